@@ -0,0 +1,90 @@
+package com.mastincrosbie.camera;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures how many bytes the current thread allocates, so we can check that the
+ * capture loop really isn't churning the heap.
+ *
+ * Uses the HotSpot thread allocation counter when the JVM has one. Otherwise
+ * isSupported() returns false and the byte counts are always 0.
+ *
+ * @author mcrosbie
+ *
+ */
+public class AllocationMonitor {
+
+	private final com.sun.management.ThreadMXBean bean;
+	private final long threadId;
+	private long mark;
+	private long last;
+	private long total;
+	private int samples;
+
+	/**
+	 * Create a monitor for the calling thread
+	 */
+	public AllocationMonitor() {
+		com.sun.management.ThreadMXBean b = null;
+		try {
+			ThreadMXBean t = ManagementFactory.getThreadMXBean();
+			if(t instanceof com.sun.management.ThreadMXBean) {
+				b = (com.sun.management.ThreadMXBean) t;
+				if(b.isThreadAllocatedMemorySupported()) {
+					b.setThreadAllocatedMemoryEnabled(true);
+				} else {
+					b = null;
+				}
+			}
+		} catch (Throwable ex) {
+			// Not HotSpot, or no management support on this JVM
+			b = null;
+		}
+		bean = b;
+		threadId = Thread.currentThread().getId();
+	}
+
+	/**
+	 * @return true if allocations can be measured on this JVM
+	 */
+	public boolean isSupported() {
+		return bean != null;
+	}
+
+	/**
+	 * Start measuring
+	 */
+	public void start() {
+		mark = allocated();
+	}
+
+	/**
+	 * Stop measuring and record the bytes allocated since start()
+	 * @return Bytes allocated since start()
+	 */
+	public long stop() {
+		last = allocated() - mark;
+		total += last;
+		samples++;
+		return last;
+	}
+
+	/**
+	 * @return Bytes allocated in the last start()/stop() period
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @return Average bytes allocated per start()/stop() period
+	 */
+	public long getAverage() {
+		return samples == 0 ? 0 : total / samples;
+	}
+
+	private long allocated() {
+		return bean == null ? 0 : bean.getThreadAllocatedBytes(threadId);
+	}
+}
@@ -0,0 +1,49 @@
+package com.mastincrosbie.camera;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Everything needed to capture, convert and encode one frame: the raw YUYV frame,
+ * the RGB image it is converted into and the JPEG it is encoded to.
+ *
+ * Buffers are handed out by a CapturePool and must be released back to it once the
+ * JPEG has been saved or uploaded.
+ *
+ * @author mcrosbie
+ *
+ */
+public class CaptureBuffer {
+
+	/** Raw YUYV frame from Video.grabFrame() */
+	public final byte[] frame;
+
+	/** TYPE_3BYTE_BGR image the frame is converted into, the cheapest layout for the JPEG writer */
+	public final BufferedImage image;
+
+	/** Encoded JPEG of the image */
+	public final JpegBuffer jpeg;
+
+	/** System.currentTimeMillis() when the frame was grabbed */
+	public long captureTime;
+
+	private Graphics2D graphics;
+
+	CaptureBuffer(int width, int height, int jpegSize) {
+		frame = new byte[width * height * 2];
+		image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		jpeg = new JpegBuffer(jpegSize);
+	}
+
+	/**
+	 * A Graphics2D for drawing on the image, created the first time it is asked for
+	 * and then kept for the life of the buffer.
+	 * @return Graphics2D for image
+	 */
+	public Graphics2D getGraphics() {
+		if(graphics == null) {
+			graphics = image.createGraphics();
+		}
+		return graphics;
+	}
+}
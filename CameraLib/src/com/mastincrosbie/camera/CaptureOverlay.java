@@ -0,0 +1,189 @@
+package com.mastincrosbie.camera;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.GlyphVector;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Draws the date/time and battery voltage onto a captured image, in place.
+ *
+ * The old addTextOverlay() copied the whole image into a new BufferedImage, created a
+ * new Font and built the strings with Date.toString() and concatenation for every frame.
+ * Here the font, its metrics and a laid out GlyphVector for every printable character
+ * are cached, and the text is formatted into a reused char array.
+ *
+ * Not thread safe: use one overlay per capture thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class CaptureOverlay {
+
+	private static final String[] DAYS = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+	private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+											"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+	private static final char FIRST_GLYPH = ' ';
+	private static final char LAST_GLYPH = '~';
+	private static final int MARGIN = 5;
+
+	private final Font font;
+	private final Color colour;
+	private final Calendar calendar = Calendar.getInstance();
+	private final String zoneName;
+	private final String dstZoneName;
+	private final char[] text = new char[64];
+
+	// Laid out the first time we draw, when we have a Graphics2D to measure with
+	private FontMetrics fm;
+	private GlyphVector[] glyphs;
+	private int[] advances;
+
+	/**
+	 * Overlay using the same red bold 15pt serif text as the original ImageCapture
+	 */
+	public CaptureOverlay() {
+		this(new Font("Serif", Font.BOLD, 15), Color.red);
+	}
+
+	/**
+	 * @param font Font to draw the text in
+	 * @param colour Text colour
+	 */
+	public CaptureOverlay(Font font, Color colour) {
+		this.font = font;
+		this.colour = colour;
+		TimeZone tz = calendar.getTimeZone();
+		zoneName = tz.getDisplayName(false, TimeZone.SHORT);
+		dstZoneName = tz.getDisplayName(true, TimeZone.SHORT);
+	}
+
+	/**
+	 * Draw the capture time at the top right and the battery level at the bottom right
+	 * @param buffer Buffer holding the converted image
+	 * @param time Time to show, from System.currentTimeMillis()
+	 * @param batteryMilliVolts Battery level to show
+	 */
+	public void draw(CaptureBuffer buffer, long time, int batteryMilliVolts) {
+		Graphics2D g2d = buffer.getGraphics();
+		if(glyphs == null) {
+			layoutGlyphs(g2d);
+		}
+		g2d.setPaint(colour);
+
+		int w = buffer.image.getWidth();
+		int h = buffer.image.getHeight();
+		int y = fm.getHeight();
+
+		int len = formatDate(time);
+		drawText(g2d, len, w, y);
+
+		len = formatBattery(batteryMilliVolts);
+		drawText(g2d, len, w, h - y - MARGIN);
+	}
+
+	private void layoutGlyphs(Graphics2D g2d) {
+		g2d.setFont(font);
+		fm = g2d.getFontMetrics();
+		int n = LAST_GLYPH - FIRST_GLYPH + 1;
+		glyphs = new GlyphVector[n];
+		advances = new int[n];
+		for(int i=0; i < n; i++) {
+			char c = (char)(FIRST_GLYPH + i);
+			glyphs[i] = font.createGlyphVector(g2d.getFontRenderContext(), new char[] {c});
+			advances[i] = fm.charWidth(c);
+		}
+	}
+
+	/**
+	 * Draw the first len characters of text right aligned against the image edge
+	 */
+	private void drawText(Graphics2D g2d, int len, int imageWidth, int y) {
+		int width = 0;
+		for(int i=0; i < len; i++) {
+			width += advances[glyphIndex(text[i])];
+		}
+		int x = imageWidth - width - MARGIN;
+		for(int i=0; i < len; i++) {
+			int g = glyphIndex(text[i]);
+			g2d.drawGlyphVector(glyphs[g], x, y);
+			x += advances[g];
+		}
+	}
+
+	private int glyphIndex(char c) {
+		if(c < FIRST_GLYPH || c > LAST_GLYPH) {
+			c = '?';
+		}
+		return c - FIRST_GLYPH;
+	}
+
+	/**
+	 * Format the time the same way as Date.toString(), e.g. "Tue Jul 07 10:15:03 BST 2015"
+	 * @return Number of characters written into text
+	 */
+	private int formatDate(long time) {
+		calendar.setTimeInMillis(time);
+		int n = 0;
+		n = append(DAYS[calendar.get(Calendar.DAY_OF_WEEK) - 1], n);
+		text[n++] = ' ';
+		n = append(MONTHS[calendar.get(Calendar.MONTH)], n);
+		text[n++] = ' ';
+		n = append2(calendar.get(Calendar.DAY_OF_MONTH), n);
+		text[n++] = ' ';
+		n = append2(calendar.get(Calendar.HOUR_OF_DAY), n);
+		text[n++] = ':';
+		n = append2(calendar.get(Calendar.MINUTE), n);
+		text[n++] = ':';
+		n = append2(calendar.get(Calendar.SECOND), n);
+		text[n++] = ' ';
+		n = append(calendar.get(Calendar.DST_OFFSET) != 0 ? dstZoneName : zoneName, n);
+		text[n++] = ' ';
+		n = appendInt(calendar.get(Calendar.YEAR), n);
+		return n;
+	}
+
+	/**
+	 * Format the battery level as "B: 7654 mV"
+	 * @return Number of characters written into text
+	 */
+	private int formatBattery(int milliVolts) {
+		int n = append("B: ", 0);
+		n = appendInt(milliVolts, n);
+		return append(" mV", n);
+	}
+
+	private int append(String s, int n) {
+		int len = Math.min(s.length(), text.length - n);
+		s.getChars(0, len, text, n);
+		return n + len;
+	}
+
+	private int append2(int v, int n) {
+		text[n++] = (char)('0' + v / 10);
+		text[n++] = (char)('0' + v % 10);
+		return n;
+	}
+
+	private int appendInt(int v, int n) {
+		if(v < 0) {
+			text[n++] = '-';
+			v = -v;
+		}
+		int start = n;
+		do {
+			text[n++] = (char)('0' + v % 10);
+			v /= 10;
+		} while(v > 0);
+		// Digits went in backwards
+		for(int i=start, j=n-1; i < j; i++, j--) {
+			char c = text[i];
+			text[i] = text[j];
+			text[j] = c;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,116 @@
+package com.mastincrosbie.camera;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compare the bytes allocated per frame by the original capture code (setRGB loop,
+ * addTextOverlay copy, ImageIO.write into a new ByteArrayOutputStream) with the
+ * pooled pipeline: CapturePool, YUYVConverter, CaptureOverlay and JpegEncoder.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.CapturePipelineBenchmark [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class CapturePipelineBenchmark {
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	public static void main(String[] args) throws IOException {
+		int frames = 100;
+		if(args.length > 0) {
+			frames = Integer.parseInt(args[0]);
+		}
+
+		byte[] frame = new byte[WIDTH * HEIGHT * 2];
+		new Random(42).nextBytes(frame);
+
+		AllocationMonitor monitor = new AllocationMonitor();
+		if(!monitor.isSupported()) {
+			System.out.println("This JVM can't measure thread allocations, only timings are shown");
+		}
+
+		// The original way
+		BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		long start = System.nanoTime();
+		for(int i=0; i < frames; i++) {
+			monitor.start();
+			YUYVConverter.convert(frame, img);
+			BufferedImage overlaid = legacyOverlay(img);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(overlaid, "jpg", baos);
+			baos.toByteArray();
+			monitor.stop();
+		}
+		report("ImageIO.write + new image", frames, System.nanoTime() - start, monitor);
+
+		// Pooled pipeline
+		monitor = new AllocationMonitor();
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 2);
+		CaptureOverlay overlay = new CaptureOverlay();
+		JpegEncoder encoder = new JpegEncoder();
+		int jpegSize = 0;
+		start = System.nanoTime();
+		for(int i=0; i < frames; i++) {
+			monitor.start();
+			CaptureBuffer buf = pool.acquire();
+			System.arraycopy(frame, 0, buf.frame, 0, frame.length);
+			buf.captureTime = System.currentTimeMillis();
+			YUYVConverter.convert(buf.frame, buf.image);
+			overlay.draw(buf, buf.captureTime, 7500);
+			encoder.encode(buf.image, buf.jpeg);
+			jpegSize = buf.jpeg.size();
+			pool.release(buf);
+			monitor.stop();
+		}
+		report("Pooled pipeline", frames, System.nanoTime() - start, monitor);
+
+		// Make sure the last JPEG is readable
+		CaptureBuffer buf = pool.acquire();
+		BufferedImage check = ImageIO.read(new ByteArrayInputStream(buf.jpeg.getBuffer(), 0, buf.jpeg.size()));
+		System.out.println("Last JPEG " + jpegSize + " bytes, decodes to "
+				+ check.getWidth() + "x" + check.getHeight()
+				+ ", pool allocations " + pool.getAllocations());
+		encoder.dispose();
+	}
+
+	private static void report(String name, int frames, long nanos, AllocationMonitor monitor) {
+		System.out.println(String.format("%-28s %.2f ms/frame  %d bytes/frame allocated (steady state %d)",
+				name, nanos / 1000000.0 / frames, monitor.getAverage(), monitor.getLast()));
+	}
+
+	/**
+	 * The addTextOverlay() from ImageCapture, without the battery reading
+	 */
+	private static BufferedImage legacyOverlay(BufferedImage old) {
+		int w = old.getWidth();
+		int h = old.getHeight();
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.drawImage(old, 0, 0, null);
+		g2d.setPaint(Color.red);
+		g2d.setFont(new Font("Serif", Font.BOLD, 15));
+		String s = "" + new Date(System.currentTimeMillis()).toString();
+		FontMetrics fm = g2d.getFontMetrics();
+		int x = img.getWidth() - fm.stringWidth(s) - 5;
+		int y = fm.getHeight();
+		g2d.drawString(s, x, y);
+		s = "B: " + 7500 + " mV";
+		x = img.getWidth() - fm.stringWidth(s) - 5;
+		g2d.drawString(s, x, h - y - 5);
+		g2d.dispose();
+		return img;
+	}
+}
@@ -0,0 +1,78 @@
+package com.mastincrosbie.camera;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of CaptureBuffers so the capture loop doesn't allocate frames, images
+ * or JPEG buffers for every picture.
+ *
+ * acquire() never blocks: if every buffer is in use, for example because uploads are
+ * backed up, a new buffer is allocated and counted so it shows up in getAllocations().
+ * Buffers released when the pool is already full are dropped for the GC to collect.
+ *
+ * @author mcrosbie
+ *
+ */
+public class CapturePool {
+
+	private final int width;
+	private final int height;
+	private final int jpegSize;
+	private final ArrayBlockingQueue<CaptureBuffer> free;
+	private final AtomicInteger allocations = new AtomicInteger();
+
+	/**
+	 * Create a pool and allocate all its buffers up front
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 * @param size Number of buffers to keep
+	 */
+	public CapturePool(int width, int height, int size) {
+		this.width = width;
+		this.height = height;
+		// A JPEG is normally well under a quarter of the RGB size, the buffer grows if not
+		this.jpegSize = width * height;
+		free = new ArrayBlockingQueue<CaptureBuffer>(size);
+		for(int i=0; i < size; i++) {
+			free.offer(new CaptureBuffer(width, height, jpegSize));
+		}
+	}
+
+	/**
+	 * Take a buffer from the pool
+	 * @return A free buffer, newly allocated if the pool is empty
+	 */
+	public CaptureBuffer acquire() {
+		CaptureBuffer b = free.poll();
+		if(b == null) {
+			allocations.incrementAndGet();
+			b = new CaptureBuffer(width, height, jpegSize);
+		}
+		return b;
+	}
+
+	/**
+	 * Return a buffer to the pool once its JPEG is no longer needed
+	 * @param b Buffer from acquire()
+	 */
+	public void release(CaptureBuffer b) {
+		if(b != null) {
+			free.offer(b);
+		}
+	}
+
+	/**
+	 * @return Number of buffers sitting in the pool
+	 */
+	public int available() {
+		return free.size();
+	}
+
+	/**
+	 * @return Number of buffers allocated since the pool was created because it was empty
+	 */
+	public int getAllocations() {
+		return allocations.get();
+	}
+}
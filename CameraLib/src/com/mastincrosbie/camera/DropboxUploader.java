@@ -0,0 +1,34 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.DbxWriteMode;
+
+/**
+ * Uploads files into a Dropbox folder using a DbxClient
+ *
+ * @author mcrosbie
+ *
+ */
+public class DropboxUploader implements Uploader {
+
+	private final DbxClient dbxClient;
+
+	/**
+	 * @param dbxClient Client already set up with the access token
+	 */
+	public DropboxUploader(DbxClient dbxClient) {
+		this.dbxClient = dbxClient;
+	}
+
+	public void upload(String path, InputStream in, long length) throws IOException {
+		try {
+			dbxClient.uploadFile(path, DbxWriteMode.add(), length, in);
+		} catch (DbxException ex) {
+			throw new IOException("Error uploading to Dropbox: " + ex.getMessage(), ex);
+		}
+	}
+}
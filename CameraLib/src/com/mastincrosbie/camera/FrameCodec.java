@@ -0,0 +1,48 @@
+package com.mastincrosbie.camera;
+
+/**
+ * The encodings a video frame can be sent over the network in, see FrameEncoder.
+ * Sizes are for a 160x120 frame.
+ *
+ * @author mcrosbie
+ *
+ */
+public enum FrameCodec {
+	/** The YUYV frame exactly as grabbed, 38400 bytes */
+	RAW(0),
+	/** Just the Y samples, a greyscale picture at half the size of RAW */
+	LUMA(1),
+	/** Full resolution Y with U and V averaged over 2x2 pixels, three quarters the size of RAW */
+	YUV420(2),
+	/** Only the bytes that changed since the previous frame, as runs of changed bytes */
+	DELTA_RLE(3),
+	/** Converted to RGB and JPEG encoded, smallest but costs the most CPU */
+	JPEG(4);
+
+	private final int id;
+
+	private FrameCodec(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return The codec's number in the frame header
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @param id Codec number from a frame header
+	 * @return The codec
+	 * @throws IllegalArgumentException if there's no codec with that number
+	 */
+	public static FrameCodec fromId(int id) {
+		for(FrameCodec c : values()) {
+			if(c.id == id) {
+				return c;
+			}
+		}
+		throw new IllegalArgumentException("Unknown frame codec " + id);
+	}
+}
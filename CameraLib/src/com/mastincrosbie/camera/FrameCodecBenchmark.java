@@ -0,0 +1,139 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Stream frames in every FrameCodec over a loopback socket, the way StreamVideo sends
+ * them to CameraFrame, and report frames per second and bytes per frame for each.
+ *
+ * Replays a recorded .yuyv file of frames back to back. Without one, a synthetic
+ * scene is used: a noisy background with a square moving across it.
+ * Note the loopback socket is far faster than the EV3's wifi, so on the brick bytes
+ * per frame decide the frame rate for all but the JPEG codec.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.FrameCodecBenchmark [frames.yuyv] [width] [height] [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int width = 160;
+		int height = 120;
+		int count = 300;
+		if(args.length > 2) {
+			width = Integer.parseInt(args[1]);
+			height = Integer.parseInt(args[2]);
+		}
+		if(args.length > 3) {
+			count = Integer.parseInt(args[3]);
+		}
+
+		int frameSize = width * height * 2;
+		byte[][] frames;
+		if(args.length > 0 && !args[0].equals("-")) {
+			byte[] recording = YUYVConverterBenchmark.readFrame(args[0]);
+			if(recording.length < frameSize || recording.length % frameSize != 0) {
+				System.err.println(args[0] + " is not a whole number of " + width + "x" + height + " frames");
+				System.exit(1);
+			}
+			frames = new byte[recording.length / frameSize][frameSize];
+			for(int f=0; f < frames.length; f++) {
+				System.arraycopy(recording, f * frameSize, frames[f], 0, frameSize);
+			}
+		} else {
+			frames = syntheticScene(width, height, 60);
+		}
+
+		System.out.println(String.format("%d frames of %dx%d, raw YUYV is %d bytes", count, width, height, frameSize));
+		System.out.println(String.format("%-10s %8s %12s %10s %12s", "codec", "fps", "bytes/frame", "vs raw", "decoded"));
+		for(FrameCodec codec : FrameCodec.values()) {
+			run(codec, frames, width, height, count);
+		}
+	}
+
+	private static void run(FrameCodec codec, final byte[][] frames, final int width, final int height, final int count)
+			throws Exception {
+		final ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final FrameDecoder decoder = new FrameDecoder();
+		final Exception[] error = new Exception[1];
+
+		// The receiving end, like CameraFrame
+		Thread receiver = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket sock = ss.accept();
+					DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+					BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+					for(int i=0; i < count; i++) {
+						decoder.readFrame(in);
+						decoder.decode(img);
+					}
+					sock.close();
+				} catch (Exception ex) {
+					error[0] = ex;
+				}
+			}
+		});
+		receiver.start();
+
+		// The sending end, like StreamVideo
+		FrameEncoder encoder = new FrameEncoder(codec, width, height);
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+		OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+		long bytes = 0;
+		long start = System.nanoTime();
+		for(int i=0; i < count; i++) {
+			bytes += encoder.encode(frames[i % frames.length], System.currentTimeMillis());
+			encoder.writeTo(out);
+			out.flush();
+		}
+		receiver.join();
+		long elapsed = System.nanoTime() - start;
+		sock.close();
+		ss.close();
+		encoder.dispose();
+
+		if(error[0] != null) {
+			throw error[0];
+		}
+		System.out.println(String.format("%-10s %8.1f %12d %9.1f%% %12d",
+				codec, count * 1000000000.0 / elapsed, bytes / count,
+				bytes * 100.0 / count / (width * height * 2 + FrameHeader.SIZE), decoder.getDecoded()));
+	}
+
+	/**
+	 * A mid grey background with sensor noise and a dark square moving across it
+	 */
+	static byte[][] syntheticScene(int width, int height, int n) {
+		Random random = new Random(7);
+		byte[][] frames = new byte[n][width * height * 2];
+		int size = height / 4;
+		for(int f=0; f < n; f++) {
+			int ox = (f * 3) % (width - size);
+			int oy = height / 3;
+			byte[] frame = frames[f];
+			for(int y=0; y < height; y++) {
+				for(int x=0; x < width; x++) {
+					int i = (y * width + x) * 2;
+					int luma = 90 + x / 4 + random.nextInt(5) - 2;
+					if(x >= ox && x < ox + size && y >= oy && y < oy + size) {
+						luma = 30;
+					}
+					frame[i] = (byte) luma;
+					frame[i+1] = (byte) ((x & 2) == 0 ? 120 + random.nextInt(3) : 136 + random.nextInt(3));
+				}
+			}
+		}
+		return frames;
+	}
+}
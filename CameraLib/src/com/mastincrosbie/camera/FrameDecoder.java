@@ -0,0 +1,224 @@
+package com.mastincrosbie.camera;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes the frames written by FrameEncoder, in any FrameCodec, back into an image.
+ *
+ * Every codec except JPEG is turned back into a YUYV frame first and converted with
+ * YUYVConverter. DELTA_RLE frames are applied to the last frame decoded, so if one is
+ * missing, or the stream starts part way through, frames are skipped until the next
+ * key frame.
+ *
+ * Not thread safe, use one decoder per stream.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameDecoder {
+
+	private final FrameHeader header = new FrameHeader();
+	private final byte[] headerBytes = new byte[FrameHeader.SIZE];
+	private final int[] varint = new int[1];
+	private byte[] payload = new byte[0];
+	private byte[] yuyv = new byte[0];
+	private int width;
+	private int height;
+
+	private boolean haveReference;
+	private int lastSequence;
+	private long decoded;
+	private long skipped;
+	private long bytes;
+
+	/**
+	 * Read the next frame, header and payload, from a stream. Blocks until the whole
+	 * frame has arrived.
+	 * @param in Stream from the sender
+	 * @return The frame's header, the same object every time
+	 * @throws IOException if the stream ends or the header is corrupt
+	 */
+	public FrameHeader readFrame(InputStream in) throws IOException {
+		DataInputStream dis = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+		dis.readFully(headerBytes);
+		header.read(headerBytes, 0);
+		if(payload.length < header.length) {
+			payload = new byte[header.length];
+		}
+		dis.readFully(payload, 0, header.length);
+		bytes += FrameHeader.SIZE + header.length;
+		return header;
+	}
+
+	/**
+	 * Decode the frame last read by readFrame()
+	 * @param img Destination image, the frame's size and TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_3BYTE_BGR
+	 * @return false if the frame had to be skipped waiting for a key frame
+	 * @throws IOException if the frame is corrupt
+	 */
+	public boolean decode(BufferedImage img) throws IOException {
+		return decode(header, payload, 0, img);
+	}
+
+	/**
+	 * Decode a frame that has been read some other way
+	 * @param h The frame's header
+	 * @param b Buffer holding the payload
+	 * @param off Start of the payload in b
+	 * @param img Destination image, the frame's size and TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_3BYTE_BGR
+	 * @return false if the frame had to be skipped waiting for a key frame
+	 * @throws IOException if the frame is corrupt
+	 */
+	public boolean decode(FrameHeader h, byte[] b, int off, BufferedImage img) throws IOException {
+		if(h.width != width || h.height != height) {
+			width = h.width;
+			height = h.height;
+			yuyv = new byte[width * height * 2];
+			haveReference = false;
+		}
+		boolean inSequence = h.sequence == lastSequence + 1;
+		lastSequence = h.sequence;
+
+		switch(h.codec) {
+		case RAW:
+			checkLength(h, yuyv.length);
+			System.arraycopy(b, off, yuyv, 0, yuyv.length);
+			break;
+		case LUMA:
+			checkLength(h, yuyv.length / 2);
+			decodeLuma(b, off);
+			break;
+		case YUV420:
+			checkLength(h, width * height + 2 * (width / 2) * (height / 2));
+			decode420(b, off);
+			break;
+		case DELTA_RLE:
+			if(h.isKey()) {
+				checkLength(h, yuyv.length);
+				System.arraycopy(b, off, yuyv, 0, yuyv.length);
+			} else if(!haveReference || !inSequence) {
+				haveReference = false;
+				skipped++;
+				return false;
+			} else {
+				decodeDelta(b, off, h.length);
+			}
+			break;
+		case JPEG:
+			decodeJpeg(b, off, h.length, img);
+			decoded++;
+			return true;
+		}
+
+		haveReference = true;
+		YUYVConverter.convert(yuyv, img);
+		decoded++;
+		return true;
+	}
+
+	private void checkLength(FrameHeader h, int expected) throws IOException {
+		if(h.length != expected) {
+			throw new IOException(h.codec + " frame is " + h.length + " bytes, expected " + expected);
+		}
+	}
+
+	private void decodeLuma(byte[] b, int off) {
+		for(int i=0; i < yuyv.length; i += 2) {
+			yuyv[i] = b[off++];
+			yuyv[i+1] = (byte) 128;
+		}
+	}
+
+	private void decode420(byte[] b, int off) {
+		for(int i=0; i < yuyv.length; i += 2) {
+			yuyv[i] = b[off++];
+		}
+		int rowBytes = width * 2;
+		int uPlane = off;
+		int vPlane = off + (width / 2) * (height / 2);
+		for(int y=0; y + 1 < height; y += 2) {
+			int row = y * rowBytes;
+			for(int i = row; i < row + rowBytes; i += 4) {
+				byte u = b[uPlane++];
+				byte v = b[vPlane++];
+				yuyv[i+1] = u;
+				yuyv[i+3] = v;
+				yuyv[i+1+rowBytes] = u;
+				yuyv[i+3+rowBytes] = v;
+			}
+		}
+	}
+
+	private void decodeDelta(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int pos = 0;
+		while(off < end) {
+			off = getVarint(b, off, end, varint);
+			pos += varint[0];
+			off = getVarint(b, off, end, varint);
+			int count = varint[0];
+			if(count < 0 || pos < 0 || pos + count > yuyv.length || off + count > end) {
+				haveReference = false;
+				throw new IOException("Corrupt delta frame");
+			}
+			System.arraycopy(b, off, yuyv, pos, count);
+			pos += count;
+			off += count;
+		}
+	}
+
+	private void decodeJpeg(byte[] b, int off, int len, BufferedImage img) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(b, off, len));
+		if(decoded == null) {
+			throw new IOException("Corrupt JPEG frame");
+		}
+		Graphics2D g = img.createGraphics();
+		g.drawImage(decoded, 0, 0, null);
+		g.dispose();
+	}
+
+	/**
+	 * Read a varint written by FrameEncoder.putVarint()
+	 * @param result result[0] is set to the value
+	 * @return Offset after the value
+	 */
+	private static int getVarint(byte[] b, int off, int end, int[] result) throws IOException {
+		int v = 0;
+		int shift = 0;
+		while(true) {
+			if(off >= end || shift > 28) {
+				throw new IOException("Corrupt delta frame");
+			}
+			int x = b[off++];
+			v |= (x & 0x7F) << shift;
+			if((x & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		result[0] = v;
+		return off;
+	}
+
+	/** @return Number of frames decoded */
+	public long getDecoded() {
+		return decoded;
+	}
+
+	/** @return Number of delta frames skipped while waiting for a key frame */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/** @return Bytes read by readFrame(), headers included */
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,290 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes YUYV frames from the webcam for sending over a socket, each one preceded by a
+ * FrameHeader. The header and payload are built in one reused buffer so a frame goes
+ * out in a single write.
+ *
+ * DELTA_RLE sends only the bytes that differ from the previous frame by more than a
+ * threshold. The encoder keeps its own copy of what the decoder has, so small changes
+ * never build up into visible drift. The payload is a list of runs:
+ *   varint bytes to leave unchanged, varint count of new bytes, the new bytes
+ * and the rest of the frame is unchanged. A key frame, the raw YUYV, is sent every
+ * keyInterval frames and whenever the delta would be bigger than the raw frame.
+ *
+ * Not thread safe, use one encoder per stream.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameEncoder {
+
+	private final FrameCodec codec;
+	private final int width;
+	private final int height;
+	private final int frameSize;
+	private final FrameHeader header = new FrameHeader();
+	private byte[] out;
+	private int length;
+	private int sequence;
+
+	// DELTA_RLE
+	private byte[] reference;
+	private int threshold = 4;
+	private int keyInterval = 50;
+	private int sinceKey;
+
+	// JPEG
+	private BufferedImage image;
+	private JpegEncoder jpegEncoder;
+	private JpegBuffer jpeg;
+
+	/**
+	 * @param codec How to encode the frames
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 */
+	public FrameEncoder(FrameCodec codec, int width, int height) {
+		this(codec, width, height, 0.75f);
+	}
+
+	/**
+	 * @param codec How to encode the frames
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 * @param jpegQuality JPEG quality from 0.0 to 1.0, only used by the JPEG codec
+	 */
+	public FrameEncoder(FrameCodec codec, int width, int height, float jpegQuality) {
+		this.codec = codec;
+		this.width = width;
+		this.height = height;
+		frameSize = width * height * 2;
+		out = new byte[FrameHeader.SIZE + frameSize];
+		header.codec = codec;
+		header.width = width;
+		header.height = height;
+
+		if(codec == FrameCodec.DELTA_RLE) {
+			reference = new byte[frameSize];
+		} else if(codec == FrameCodec.JPEG) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			jpegEncoder = new JpegEncoder(jpegQuality);
+			jpeg = new JpegBuffer(frameSize);
+		}
+	}
+
+	/**
+	 * @param threshold DELTA_RLE only: bytes within this much of the previous frame are not sent
+	 * @param keyInterval DELTA_RLE only: send a key frame at least this often
+	 */
+	public void setDelta(int threshold, int keyInterval) {
+		this.threshold = threshold;
+		this.keyInterval = Math.max(1, keyInterval);
+	}
+
+	/**
+	 * Make the next frame a key frame, e.g. when a new receiver connects
+	 */
+	public void requestKeyFrame() {
+		sinceKey = keyInterval;
+	}
+
+	/**
+	 * @return The codec frames are encoded with
+	 */
+	public FrameCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Encode a frame
+	 * @param frame Frame from Video.grabFrame(), width * height * 2 bytes
+	 * @param timestamp Capture time to put in the header
+	 * @return Length of the encoded frame, header included
+	 * @throws IOException if JPEG encoding fails
+	 */
+	public int encode(byte[] frame, long timestamp) throws IOException {
+		header.flags = 0;
+		int payload;
+		switch(codec) {
+		case LUMA:
+			payload = encodeLuma(frame);
+			break;
+		case YUV420:
+			payload = encode420(frame);
+			break;
+		case DELTA_RLE:
+			payload = encodeDelta(frame);
+			break;
+		case JPEG:
+			payload = encodeJpeg(frame);
+			break;
+		default:
+			System.arraycopy(frame, 0, out, FrameHeader.SIZE, frameSize);
+			payload = frameSize;
+			break;
+		}
+		if(codec != FrameCodec.DELTA_RLE) {
+			header.flags = FrameHeader.FLAG_KEY;
+		}
+
+		header.sequence = sequence++;
+		header.timestamp = timestamp;
+		header.length = payload;
+		header.write(out, 0);
+		length = FrameHeader.SIZE + payload;
+		return length;
+	}
+
+	/**
+	 * @return Buffer holding the last encoded frame, header first
+	 */
+	public byte[] getBuffer() {
+		return out;
+	}
+
+	/**
+	 * @return Length of the last encoded frame, header included
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Write the last encoded frame to a stream
+	 * @param os Where to write
+	 * @throws IOException if the write fails
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		os.write(out, 0, length);
+	}
+
+	/**
+	 * Y samples only
+	 */
+	private int encodeLuma(byte[] frame) {
+		int p = FrameHeader.SIZE;
+		for(int i=0; i < frameSize; i += 2) {
+			out[p++] = frame[i];
+		}
+		return p - FrameHeader.SIZE;
+	}
+
+	/**
+	 * Y plane, then U and V planes averaged over 2x2 pixels
+	 */
+	private int encode420(byte[] frame) {
+		int p = FrameHeader.SIZE;
+		for(int i=0; i < frameSize; i += 2) {
+			out[p++] = frame[i];
+		}
+		int rowBytes = width * 2;
+		int uPlane = p;
+		int vPlane = p + (width / 2) * (height / 2);
+		for(int y=0; y + 1 < height; y += 2) {
+			int row = y * rowBytes;
+			for(int i = row; i < row + rowBytes; i += 4) {
+				out[uPlane++] = (byte) (((frame[i+1] & 0xFF) + (frame[i+1+rowBytes] & 0xFF) + 1) >> 1);
+				out[vPlane++] = (byte) (((frame[i+3] & 0xFF) + (frame[i+3+rowBytes] & 0xFF) + 1) >> 1);
+			}
+		}
+		return vPlane - FrameHeader.SIZE;
+	}
+
+	/**
+	 * Runs of bytes that changed since the last frame sent, or a key frame
+	 */
+	private int encodeDelta(byte[] frame) {
+		if(sinceKey++ >= keyInterval - 1 || sequence == 0) {
+			return encodeKey(frame);
+		}
+
+		int p = FrameHeader.SIZE;
+		int limit = FrameHeader.SIZE + frameSize - 10;
+		int i = 0;
+		while(i < frameSize) {
+			int start = i;
+			while(i < frameSize && Math.abs((frame[i] & 0xFF) - (reference[i] & 0xFF)) <= threshold) {
+				i++;
+			}
+			if(i == frameSize) {
+				break;
+			}
+			int skip = i - start;
+
+			// Extend the run of changed bytes over short gaps, a new run costs at least 2 bytes
+			int litStart = i;
+			int end = i;
+			while(i < frameSize) {
+				if(Math.abs((frame[i] & 0xFF) - (reference[i] & 0xFF)) > threshold) {
+					i++;
+					end = i;
+				} else if(i - end < 2) {
+					i++;
+				} else {
+					break;
+				}
+			}
+			i = end;
+			int count = end - litStart;
+
+			if(p + count + 10 > limit) {
+				// Bigger than the raw frame, might as well send a key frame
+				return encodeKey(frame);
+			}
+			p = putVarint(out, p, skip);
+			p = putVarint(out, p, count);
+			System.arraycopy(frame, litStart, out, p, count);
+			System.arraycopy(frame, litStart, reference, litStart, count);
+			p += count;
+		}
+		return p - FrameHeader.SIZE;
+	}
+
+	private int encodeKey(byte[] frame) {
+		header.flags = FrameHeader.FLAG_KEY;
+		sinceKey = 0;
+		System.arraycopy(frame, 0, out, FrameHeader.SIZE, frameSize);
+		System.arraycopy(frame, 0, reference, 0, frameSize);
+		return frameSize;
+	}
+
+	private int encodeJpeg(byte[] frame) throws IOException {
+		YUYVConverter.convert(frame, image);
+		jpegEncoder.encode(image, jpeg);
+		int size = jpeg.size();
+		if(FrameHeader.SIZE + size > out.length) {
+			byte[] bigger = new byte[FrameHeader.SIZE + size];
+			System.arraycopy(out, 0, bigger, 0, FrameHeader.SIZE);
+			out = bigger;
+		}
+		System.arraycopy(jpeg.getBuffer(), 0, out, FrameHeader.SIZE, size);
+		return size;
+	}
+
+	/**
+	 * Release the JPEG writer, if there is one
+	 */
+	public void dispose() {
+		if(jpegEncoder != null) {
+			jpegEncoder.dispose();
+		}
+	}
+
+	/**
+	 * Write an unsigned value 7 bits at a time, low bits first, top bit set if more follow
+	 * @return Offset after the value
+	 */
+	static int putVarint(byte[] b, int off, int v) {
+		while((v & ~0x7F) != 0) {
+			b[off++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		b[off++] = (byte) v;
+		return off;
+	}
+}
@@ -0,0 +1,118 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+
+/**
+ * The fixed size header sent in front of every video frame. Big-endian:
+ *
+ *   0  short  magic 0x4556 ("EV")
+ *   2  byte   codec, FrameCodec.getId()
+ *   3  byte   flags, FLAG_KEY if the frame doesn't depend on the one before it
+ *   4  int    sequence number
+ *   8  long   capture time, System.currentTimeMillis() on the sender
+ *  16  short  width
+ *  18  short  height
+ *  20  int    payload length in bytes
+ *
+ * One header object is reused for every frame, read() and write() don't allocate.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameHeader {
+
+	public static final int SIZE = 24;
+	public static final int MAGIC = 0x4556;
+	public static final int FLAG_KEY = 1;
+
+	/** Refuse payloads bigger than this, so a corrupt header can't make us allocate a huge buffer */
+	public static final int MAX_PAYLOAD = 4 * 1024 * 1024;
+
+	public FrameCodec codec;
+	public int flags;
+	public int sequence;
+	public long timestamp;
+	public int width;
+	public int height;
+	public int length;
+
+	/**
+	 * @return true if the frame can be decoded without the one before it
+	 */
+	public boolean isKey() {
+		return (flags & FLAG_KEY) != 0;
+	}
+
+	/**
+	 * @param b Buffer that may hold a header
+	 * @param off Where it would start
+	 * @return true if it starts with MAGIC, a stream of bare frames usually won't
+	 */
+	public static boolean hasMagic(byte[] b, int off) {
+		return getShort(b, off) == MAGIC;
+	}
+
+	/**
+	 * Write the header into a buffer
+	 * @param b Buffer, at least off + SIZE bytes
+	 * @param off Where to write
+	 */
+	public void write(byte[] b, int off) {
+		putShort(b, off, MAGIC);
+		b[off+2] = (byte) codec.getId();
+		b[off+3] = (byte) flags;
+		putInt(b, off+4, sequence);
+		putInt(b, off+8, (int) (timestamp >>> 32));
+		putInt(b, off+12, (int) timestamp);
+		putShort(b, off+16, width);
+		putShort(b, off+18, height);
+		putInt(b, off+20, length);
+	}
+
+	/**
+	 * Fill in this header from a buffer
+	 * @param b Buffer holding the header
+	 * @param off Where the header starts
+	 * @throws IOException if the header is not valid
+	 */
+	public void read(byte[] b, int off) throws IOException {
+		int magic = getShort(b, off);
+		if(magic != MAGIC) {
+			throw new IOException("Bad frame header magic " + Integer.toHexString(magic));
+		}
+		try {
+			codec = FrameCodec.fromId(b[off+2] & 0xFF);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(ex.getMessage());
+		}
+		flags = b[off+3] & 0xFF;
+		sequence = getInt(b, off+4);
+		timestamp = ((long) getInt(b, off+8) << 32) | (getInt(b, off+12) & 0xFFFFFFFFL);
+		width = getShort(b, off+16);
+		height = getShort(b, off+18);
+		length = getInt(b, off+20);
+		if(length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Bad frame payload length " + length);
+		}
+	}
+
+	private static void putShort(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 8);
+		b[off+1] = (byte) v;
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off+1] = (byte) (v >>> 16);
+		b[off+2] = (byte) (v >>> 8);
+		b[off+3] = (byte) v;
+	}
+
+	private static int getShort(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 8) | (b[off+1] & 0xFF);
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+	}
+}
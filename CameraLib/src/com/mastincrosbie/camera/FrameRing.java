@@ -0,0 +1,192 @@
+package com.mastincrosbie.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed size ring of preallocated frame buffers passed from exactly one producer
+ * thread to exactly one consumer thread without locks or allocation.
+ *
+ * The producer claim()s a free slot, fills it and publish()es it. claim() never blocks:
+ * if the consumer has fallen behind and the ring is full it returns null, and the
+ * producer decides what to do with its frame, usually drop it. The consumer take()s
+ * slots in order, or takeLatest() to skip straight to the newest frame and drop any
+ * stale ones, and release()s each slot when it is done with it.
+ *
+ * Only the head and tail counters are shared. Each is written by one thread only and
+ * read by the other, so handing over a slot is a single store. A consumer with nothing
+ * to do parks rather than spins, which matters on the EV3's single core.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameRing {
+
+	/**
+	 * One preallocated frame buffer
+	 */
+	public static class Slot {
+		/** Frame bytes, only the first length are valid */
+		public final byte[] data;
+		public int length;
+		/** Capture time, System.currentTimeMillis() */
+		public long timestamp;
+
+		Slot(int capacity) {
+			data = new byte[capacity];
+		}
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+
+	// Next slot the consumer will take, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	// Next slot the producer will fill, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile Thread waiting;
+
+	// Counters, each written by one thread only
+	private volatile long rejected;
+	private volatile long skipped;
+
+	/**
+	 * @param size Number of slots, rounded up to a power of two
+	 * @param slotBytes Size of each slot's buffer
+	 */
+	public FrameRing(int size, int slotBytes) {
+		int n = 1;
+		while(n < size) {
+			n <<= 1;
+		}
+		slots = new Slot[n];
+		for(int i=0; i < n; i++) {
+			slots[i] = new Slot(slotBytes);
+		}
+		mask = n - 1;
+	}
+
+	/**
+	 * @return Number of slots in the ring
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Producer: get the next free slot to fill
+	 * @return The slot, or null if the ring is full
+	 */
+	public Slot claim() {
+		long t = tail.get();
+		if(t - head.get() >= slots.length) {
+			rejected++;
+			return null;
+		}
+		return slots[(int) t & mask];
+	}
+
+	/**
+	 * Producer: hand the slot from claim() to the consumer
+	 */
+	public void publish() {
+		// A full volatile store, so the check for a parked consumer can't be seen before it
+		tail.set(tail.get() + 1);
+		Thread t = waiting;
+		if(t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Consumer: get the oldest published slot, waiting for one if the ring is empty
+	 * @param timeoutMillis Longest time to wait
+	 * @return The slot, or null if nothing was published in time
+	 * @throws InterruptedException if the consumer is interrupted while waiting
+	 */
+	public Slot take(long timeoutMillis) throws InterruptedException {
+		if(!await(timeoutMillis)) {
+			return null;
+		}
+		return slots[(int) head.get() & mask];
+	}
+
+	/**
+	 * Consumer: get the newest published slot, dropping any older ones
+	 * @param timeoutMillis Longest time to wait if the ring is empty
+	 * @return The slot, or null if nothing was published in time
+	 * @throws InterruptedException if the consumer is interrupted while waiting
+	 */
+	public Slot takeLatest(long timeoutMillis) throws InterruptedException {
+		if(!await(timeoutMillis)) {
+			return null;
+		}
+		long h = head.get();
+		long newest = tail.get() - 1;
+		if(newest > h) {
+			skipped += newest - h;
+			head.lazySet(newest);
+			h = newest;
+		}
+		return slots[(int) h & mask];
+	}
+
+	/**
+	 * Consumer: give the slot from take() back to the producer
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * Wait until the ring is not empty
+	 */
+	private boolean await(long timeoutMillis) throws InterruptedException {
+		if(tail.get() != head.get()) {
+			return true;
+		}
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		waiting = Thread.currentThread();
+		try {
+			while(tail.get() == head.get()) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiting = null;
+		}
+		return true;
+	}
+
+	/** @return Number of slots waiting for the consumer */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/** @return Number of slots published */
+	public long getPublished() {
+		return tail.get();
+	}
+
+	/** @return Number of slots the consumer has finished with or skipped */
+	public long getConsumed() {
+		return head.get();
+	}
+
+	/** @return Number of times claim() found the ring full */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/** @return Number of stale slots skipped by takeLatest() */
+	public long getSkipped() {
+		return skipped;
+	}
+}
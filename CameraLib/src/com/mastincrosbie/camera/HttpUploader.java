@@ -0,0 +1,69 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Uploads files with an HTTP PUT to a base URL, e.g. a web server on the home network
+ * or a local stand-in for Dropbox when testing.
+ *
+ * @author mcrosbie
+ *
+ */
+public class HttpUploader implements Uploader {
+
+	private final String baseUrl;
+	private final int timeout;
+	// The upload queue's worker and the spool drain can upload at the same time, each
+	// thread copies through its own buffer
+	private final ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[4096];
+		}
+	};
+
+	/**
+	 * @param baseUrl URL the upload path is appended to, e.g. "http://192.168.1.24:8000"
+	 * @param timeout Connect and read timeout in milliseconds
+	 */
+	public HttpUploader(String baseUrl, int timeout) {
+		this.baseUrl = baseUrl;
+		this.timeout = timeout;
+	}
+
+	public void upload(String path, InputStream in, long length) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		try {
+			conn.setRequestMethod("PUT");
+			conn.setDoOutput(true);
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			conn.setFixedLengthStreamingMode((int) length);
+			conn.setRequestProperty("Content-Type", "image/jpeg");
+
+			byte[] copyBuffer = copyBuffers.get();
+			OutputStream out = conn.getOutputStream();
+			long remaining = length;
+			while(remaining > 0) {
+				int n = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+				if(n < 0) {
+					throw new IOException("Upload stream ended early");
+				}
+				out.write(copyBuffer, 0, n);
+				remaining -= n;
+			}
+			out.close();
+
+			int status = conn.getResponseCode();
+			if(status / 100 != 2) {
+				throw new IOException("Upload of " + path + " failed: HTTP " + status);
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.mastincrosbie.camera;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * A growable output buffer for an encoded JPEG that is reused frame after frame.
+ *
+ * Unlike ByteArrayOutputStream.toByteArray() nothing is copied: the encoded bytes can be
+ * read in place with getBuffer() and size(), streamed out with writeTo(), or read back
+ * through a single reusable InputStream for the Dropbox upload.
+ *
+ * @author mcrosbie
+ *
+ */
+public class JpegBuffer extends ByteArrayOutputStream {
+
+	private final ReusableInputStream in = new ReusableInputStream();
+	private ImageOutputStream ios;
+
+	/**
+	 * InputStream over the buffer contents that is rewound rather than re-created
+	 */
+	private static class ReusableInputStream extends ByteArrayInputStream {
+		ReusableInputStream() {
+			super(new byte[0]);
+		}
+
+		void rewind(byte[] b, int length) {
+			buf = b;
+			pos = 0;
+			mark = 0;
+			count = length;
+		}
+	}
+
+	/**
+	 * @param initialSize Initial capacity in bytes, make this big enough for a typical frame
+	 */
+	public JpegBuffer(int initialSize) {
+		super(initialSize);
+	}
+
+	/**
+	 * @return The backing array, only the first size() bytes are valid
+	 */
+	public synchronized byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Get an InputStream over the current contents. The same stream object is returned
+	 * every time, so only one reader can use it at once.
+	 * @return InputStream positioned at the start of the buffer
+	 */
+	public synchronized InputStream getInputStream() {
+		in.rewind(buf, count);
+		return in;
+	}
+
+	/**
+	 * Copy another buffer's contents into this one, reusing this buffer's array if it is big enough
+	 * @param b Buffer to copy from
+	 * @param off Start offset in b
+	 * @param len Number of bytes to copy
+	 */
+	public synchronized void set(byte[] b, int off, int len) {
+		reset();
+		write(b, off, len);
+	}
+
+	/**
+	 * Replace the contents with bytes read straight from a file, growing the array if needed
+	 * @param in Where to read from
+	 * @param len Number of bytes to read
+	 * @throws IOException if the bytes can't all be read
+	 */
+	synchronized void readFully(DataInput in, int len) throws IOException {
+		if(buf.length < len) {
+			buf = new byte[len];
+		}
+		count = 0;
+		in.readFully(buf, 0, len);
+		count = len;
+	}
+
+	/**
+	 * The ImageIO stream used to encode into this buffer. Created once and kept for the
+	 * life of the buffer so encoding a frame doesn't allocate a new stream and cache.
+	 * @return ImageOutputStream that writes into this buffer when flushed
+	 */
+	ImageOutputStream getImageOutputStream() {
+		if(ios == null) {
+			ios = new MemoryCacheImageOutputStream(this);
+		}
+		return ios;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(ios != null) {
+			ios.close();
+			ios = null;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes images as JPEG into a JpegBuffer.
+ *
+ * ImageIO.write() looks up a writer, creates a cache stream and a new output array for
+ * every image. Here the writer, its parameters and the IIOImage wrapper are created once
+ * and the output goes into a pooled JpegBuffer.
+ *
+ * Not thread safe: use one encoder per capture thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class JpegEncoder {
+
+	private final ImageWriter writer;
+	private final ImageWriteParam param;
+	private IIOImage iioImage;
+
+	/**
+	 * Create an encoder using the default JPEG quality
+	 */
+	public JpegEncoder() {
+		this(-1);
+	}
+
+	/**
+	 * @param quality JPEG quality from 0.0 to 1.0, or a negative value for the ImageIO default
+	 */
+	public JpegEncoder(float quality) {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+		if(!writers.hasNext()) {
+			throw new IllegalStateException("No JPEG writer available");
+		}
+		writer = writers.next();
+		param = writer.getDefaultWriteParam();
+		if(quality >= 0) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+		}
+	}
+
+	/**
+	 * Encode an image, replacing whatever was in the buffer
+	 * @param img Image to encode
+	 * @param out Buffer to hold the JPEG
+	 * @throws IOException if the encode fails
+	 */
+	public void encode(BufferedImage img, JpegBuffer out) throws IOException {
+		out.reset();
+		ImageOutputStream ios = out.getImageOutputStream();
+		if(iioImage == null) {
+			iioImage = new IIOImage(img, null, null);
+		} else {
+			iioImage.setRenderedImage(img);
+		}
+		try {
+			writer.setOutput(ios);
+			writer.write(null, iioImage, param);
+			ios.flush();
+		} finally {
+			writer.setOutput(null);
+		}
+	}
+
+	/**
+	 * Release the underlying ImageIO writer
+	 */
+	public void dispose() {
+		writer.dispose();
+	}
+}
@@ -0,0 +1,216 @@
+package com.mastincrosbie.camera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies over a rolling time window, cheap enough to
+ * record every stage of every frame.
+ *
+ * Latencies are recorded in microseconds into log-linear buckets: 8 buckets per
+ * power of two, so a percentile is accurate to within about 12%. The window is split
+ * into slices and the oldest slice is cleared and reused as time moves on, so the
+ * percentiles only reflect the last windowMillis of recordings. Any number of threads
+ * can record at once without locking. A recording that races with its slice being
+ * recycled may be lost, which doesn't matter for timing statistics.
+ *
+ * @author mcrosbie
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	// Per slice: the buckets followed by the sum and the maximum
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+	private static final int SLICE_LENGTH = BUCKETS + 2;
+
+	private final String name;
+	private final int slices;
+	private final long sliceMillis;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray epochs;
+
+	/**
+	 * A point in time copy of the histogram, summed over the window
+	 */
+	public static class Snapshot {
+		private final long[] buckets = new long[BUCKETS];
+		private long count;
+		private long sum;
+		private long max;
+
+		/** @return Number of recordings in the window */
+		public long getCount() {
+			return count;
+		}
+
+		/** @return Mean latency in microseconds */
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/** @return Largest latency in microseconds */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param p Percentile from 0.0 to 100.0
+		 * @return Latency in microseconds that p percent of recordings were at or below
+		 */
+		public long getPercentile(double p) {
+			if(count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p / 100.0 * count);
+			long seen = 0;
+			for(int i=0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if(seen >= Math.max(1, rank)) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Create a histogram with a 60 second window
+	 * @param name Name printed in reports, e.g. the pipeline stage
+	 */
+	public LatencyHistogram(String name) {
+		this(name, 60000, 6);
+	}
+
+	/**
+	 * @param name Name printed in reports, e.g. the pipeline stage
+	 * @param windowMillis Length of the rolling window in milliseconds
+	 * @param slices Number of pieces the window is split into, more slices means it rolls more smoothly
+	 */
+	public LatencyHistogram(String name, long windowMillis, int slices) {
+		this.name = name;
+		this.slices = Math.max(1, slices);
+		this.sliceMillis = Math.max(1, windowMillis / this.slices);
+		counts = new AtomicLongArray(this.slices * SLICE_LENGTH);
+		epochs = new AtomicLongArray(this.slices);
+		for(int i=0; i < this.slices; i++) {
+			epochs.set(i, -1);
+		}
+	}
+
+	/**
+	 * @return The histogram's name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record a latency measured with System.nanoTime()
+	 * @param nanos Elapsed time in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record the time since a System.nanoTime() reading
+	 * @param startNanos The System.nanoTime() when the stage started
+	 * @return System.nanoTime() now, to use as the start of the next stage
+	 */
+	public long recordSince(long startNanos) {
+		long now = System.nanoTime();
+		recordNanos(now - startNanos);
+		return now;
+	}
+
+	/**
+	 * Record a latency
+	 * @param micros Latency in microseconds
+	 * @param nowMillis Current time from System.currentTimeMillis()
+	 */
+	void record(long micros, long nowMillis) {
+		if(micros < 0) {
+			micros = 0;
+		}
+		long epoch = nowMillis / sliceMillis;
+		int slice = (int) (epoch % slices);
+		long current = epochs.get(slice);
+		if(current != epoch) {
+			if(current > epoch || !epochs.compareAndSet(slice, current, epoch)) {
+				// Another thread is recycling this slice, or the clock went backwards
+				return;
+			}
+			int base = slice * SLICE_LENGTH;
+			for(int i=0; i < SLICE_LENGTH; i++) {
+				counts.set(base + i, 0);
+			}
+		}
+
+		int base = slice * SLICE_LENGTH;
+		counts.incrementAndGet(base + bucket(micros));
+		counts.addAndGet(base + SUM, micros);
+		long max;
+		while(micros > (max = counts.get(base + MAX))) {
+			if(counts.compareAndSet(base + MAX, max, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The recordings in the window up to now
+	 */
+	public Snapshot snapshot() {
+		return snapshot(System.currentTimeMillis());
+	}
+
+	Snapshot snapshot(long nowMillis) {
+		Snapshot s = new Snapshot();
+		long epoch = nowMillis / sliceMillis;
+		for(int slice=0; slice < slices; slice++) {
+			long e = epochs.get(slice);
+			if(e < 0 || e > epoch || epoch - e >= slices) {
+				continue;
+			}
+			int base = slice * SLICE_LENGTH;
+			for(int i=0; i < BUCKETS; i++) {
+				long c = counts.get(base + i);
+				s.buckets[i] += c;
+				s.count += c;
+			}
+			s.sum += counts.get(base + SUM);
+			s.max = Math.max(s.max, counts.get(base + MAX));
+		}
+		return s;
+	}
+
+	/**
+	 * @return Bucket for a latency: exact below 8us, then 8 buckets per power of two
+	 */
+	static int bucket(long micros) {
+		if(micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return Largest latency that falls into a bucket
+	 */
+	static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,290 @@
+package com.mastincrosbie.camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams JPEG frames to any number of web browsers as multipart/x-mixed-replace,
+ * the way a webcam does. Point a browser at http://brick:8080/ to watch.
+ *
+ * Each frame is encoded once by the caller and publish()ed. The same bytes, with their
+ * part header built once, are then handed to every viewer through the viewer's own
+ * small queue and written by the viewer's own thread. publish() never blocks: a viewer
+ * that can't keep up has its oldest queued frame thrown away, so it skips frames
+ * rather than holding up the camera or the other viewers.
+ *
+ * New viewers can connect at any time and a viewer going away doesn't affect anyone
+ * else.
+ *
+ * @author mcrosbie
+ *
+ */
+public class MjpegServer {
+
+	private static final String BOUNDARY = "ev3frame";
+	private static final int READ_TIMEOUT = 5000;
+
+	/**
+	 * One encoded frame, shared by every viewer
+	 */
+	private static class Frame {
+		final byte[] partHeader;
+		final byte[] jpeg;
+
+		Frame(byte[] jpeg) {
+			this.jpeg = jpeg;
+			partHeader = ("Content-Type: image/jpeg\r\n" +
+					"Content-Length: " + jpeg.length + "\r\n" +
+					"\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private static final byte[] RESPONSE_HEADER = ("HTTP/1.0 200 OK\r\n" +
+			"Connection: close\r\n" +
+			"Max-Age: 0\r\n" +
+			"Expires: 0\r\n" +
+			"Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
+			"Pragma: no-cache\r\n" +
+			"Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n" +
+			"\r\n" +
+			"--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] PART_END = ("\r\n--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * One browser watching the stream
+	 */
+	private class Viewer implements Runnable {
+		private final Socket sock;
+		private final BlockingQueue<Frame> queue;
+		private Thread thread;
+		private volatile boolean closed;
+
+		Viewer(Socket sock) {
+			this.sock = sock;
+			queue = new ArrayBlockingQueue<Frame>(queueSize);
+		}
+
+		/**
+		 * Queue a frame for this viewer, throwing away the oldest if the queue is full
+		 */
+		void offer(Frame f) {
+			while(!queue.offer(f)) {
+				if(queue.poll() != null) {
+					skipped.incrementAndGet();
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				skipRequest(new BufferedInputStream(sock.getInputStream()));
+				OutputStream os = new BufferedOutputStream(sock.getOutputStream());
+				os.write(RESPONSE_HEADER);
+				os.flush();
+				while(running && !closed) {
+					Frame f = queue.take();
+					os.write(f.partHeader);
+					os.write(f.jpeg);
+					os.write(PART_END);
+					os.flush();
+					sent.incrementAndGet();
+				}
+			} catch (IOException | InterruptedException ex) {
+				// The viewer has gone away, or we're shutting down
+			} finally {
+				close();
+			}
+		}
+
+		void close() {
+			closed = true;
+			viewers.remove(this);
+			if(thread != Thread.currentThread()) {
+				thread.interrupt();
+			}
+			try {
+				sock.close();
+			} catch (IOException ex) {
+				// Nothing more to do
+			}
+		}
+	}
+
+	private final int queueSize;
+	private final ServerSocket server;
+	private final CopyOnWriteArrayList<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+	private Thread acceptThread;
+	private volatile boolean running;
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private volatile long published;
+	private volatile long connections;
+
+	/**
+	 * Create a server that queues up to 2 frames for each viewer
+	 * @param port Port to listen on
+	 * @throws IOException if the port can't be opened
+	 */
+	public MjpegServer(int port) throws IOException {
+		this(port, 2);
+	}
+
+	/**
+	 * @param port Port to listen on, 0 for any free port
+	 * @param queueSize Frames queued for each viewer before the oldest are skipped
+	 * @throws IOException if the port can't be opened
+	 */
+	public MjpegServer(int port, int queueSize) throws IOException {
+		this.queueSize = Math.max(1, queueSize);
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+	}
+
+	/**
+	 * @return The port being listened on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Start accepting viewers on a background thread
+	 */
+	public synchronized void start() {
+		if(acceptThread != null) {
+			return;
+		}
+		running = true;
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "mjpeg-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	private void accept() {
+		while(running) {
+			try {
+				Socket sock = server.accept();
+				sock.setTcpNoDelay(true);
+				sock.setSoTimeout(READ_TIMEOUT);
+				Viewer v = new Viewer(sock);
+				v.thread = new Thread(v, "mjpeg-viewer-" + sock.getRemoteSocketAddress());
+				v.thread.setDaemon(true);
+				viewers.add(v);
+				connections++;
+				v.thread.start();
+			} catch (SocketException ex) {
+				// Server socket closed
+				break;
+			} catch (IOException ex) {
+				System.err.println("MJPEG accept failed: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * @return true if anyone is watching, if not there's no need to encode a frame
+	 */
+	public boolean hasViewers() {
+		return !viewers.isEmpty();
+	}
+
+	/**
+	 * Send a frame to every viewer. Never blocks.
+	 * @param jpeg The encoded frame. It is shared with the viewers' threads, so it
+	 * must not be changed afterwards.
+	 */
+	public void publish(byte[] jpeg) {
+		if(viewers.isEmpty()) {
+			return;
+		}
+		Frame f = new Frame(jpeg);
+		for(Viewer v : viewers) {
+			v.offer(f);
+		}
+		published++;
+	}
+
+	/**
+	 * Stop accepting viewers and disconnect everyone watching
+	 */
+	public void close() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException ex) {
+			// Nothing more to do
+		}
+		for(Viewer v : viewers) {
+			v.close();
+		}
+	}
+
+	/**
+	 * Read and ignore the browser's request, up to the blank line at the end of its headers.
+	 * Whatever was asked for, they get the stream.
+	 */
+	private static void skipRequest(InputStream in) throws IOException {
+		int matched = 0;
+		while(matched < 4) {
+			int c = in.read();
+			if(c < 0) {
+				throw new IOException("Request ended early");
+			}
+			if(c == (matched % 2 == 0 ? '\r' : '\n')) {
+				matched++;
+			} else {
+				matched = c == '\r' ? 1 : 0;
+			}
+		}
+	}
+
+	/** @return Number of viewers watching now */
+	public int getViewers() {
+		return viewers.size();
+	}
+
+	/** @return Number of viewers that have connected */
+	public long getConnections() {
+		return connections;
+	}
+
+	/** @return Number of frames published while someone was watching */
+	public long getPublished() {
+		return published;
+	}
+
+	/** @return Number of frames written, summed over all viewers */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/** @return Number of frames skipped because a viewer was behind, summed over all viewers */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "MJPEG port " + getPort() + ": " + getViewers() + " viewers, " + published + " published, "
+				+ getSent() + " sent, " + getSkipped() + " skipped";
+	}
+}
@@ -0,0 +1,192 @@
+package com.mastincrosbie.camera;
+
+/**
+ * Cheap motion detection straight from YUYV frames, before any RGB conversion.
+ *
+ * The luma (Y) plane is averaged over square blocks and compared with a running
+ * background model of the same blocks. A block has changed when its difference from
+ * the background is more than blockThreshold luma levels. Motion is reported when at
+ * least minChangedBlocks blocks have changed.
+ *
+ * The average difference over the whole frame is taken out before comparing, so the
+ * webcam's auto exposure or a cloud going over doesn't count as motion. Only every
+ * other Y sample in a row is read, which is plenty for a block average.
+ *
+ * The background is a fixed point running average, updated every frame by
+ * 1/2^learningShift of the difference, so it slowly absorbs anything that stops moving.
+ *
+ * Not thread safe, use one detector per camera.
+ *
+ * @author mcrosbie
+ *
+ */
+public class MotionDetector {
+
+	private static final int FIXED_SHIFT = 8;		// background is held as luma * 256
+
+	private final int width;
+	private final int height;
+	private final int blockSize;
+	private final int cols;
+	private final int rows;
+	private final int[] blocks;			// mean luma of each block in the current frame
+	private final int[] samples;		// number of Y samples summed for each block
+	private final int[] background;		// fixed point block means
+
+	private int blockThreshold = 12;
+	private int minChangedBlocks;
+	private int learningShift = 4;
+	private boolean initialised;
+
+	private int changedBlocks;
+	private long frames;
+	private long triggers;
+
+	/**
+	 * Create a detector with 16 pixel blocks that reports motion when 1% of the picture changes
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 */
+	public MotionDetector(int width, int height) {
+		this(width, height, 16);
+	}
+
+	/**
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 * @param blockSize Size of the square blocks luma is averaged over, a multiple of 2
+	 */
+	public MotionDetector(int width, int height, int blockSize) {
+		this.width = width;
+		this.height = height;
+		this.blockSize = blockSize;
+		cols = (width + blockSize - 1) / blockSize;
+		rows = (height + blockSize - 1) / blockSize;
+		blocks = new int[cols * rows];
+		background = new int[cols * rows];
+		samples = new int[cols * rows];
+		for(int i=0; i < samples.length; i++) {
+			int w = Math.min(blockSize, width - (i % cols) * blockSize);
+			int h = Math.min(blockSize, height - (i / cols) * blockSize);
+			samples[i] = ((w + 1) / 2) * h;
+		}
+		minChangedBlocks = Math.max(1, cols * rows / 100);
+	}
+
+	/**
+	 * @param blockThreshold Luma levels, 0-255, a block has to differ from the background by
+	 * @param minChangedBlocks Number of changed blocks that counts as motion
+	 */
+	public void setThresholds(int blockThreshold, int minChangedBlocks) {
+		this.blockThreshold = blockThreshold;
+		this.minChangedBlocks = Math.max(1, minChangedBlocks);
+	}
+
+	/**
+	 * @param learningShift The background moves 1/2^learningShift of the way to each new
+	 * frame, bigger is slower
+	 */
+	public void setLearningShift(int learningShift) {
+		this.learningShift = learningShift;
+	}
+
+	/**
+	 * Compare a frame with the background and then fold it into the background.
+	 * The first frame always counts as motion, there's nothing to compare it with yet.
+	 * @param frame Frame from Video.grabFrame(), width * height * 2 bytes of YUYV
+	 * @return true if the frame differs enough from the background
+	 */
+	public boolean update(byte[] frame) {
+		sumBlocks(frame);
+		frames++;
+
+		if(!initialised) {
+			for(int i=0; i < blocks.length; i++) {
+				background[i] = blocks[i] << FIXED_SHIFT;
+			}
+			initialised = true;
+			changedBlocks = blocks.length;
+			triggers++;
+			return true;
+		}
+
+		// Global brightness change, in fixed point
+		long totalDiff = 0;
+		for(int i=0; i < blocks.length; i++) {
+			totalDiff += (blocks[i] << FIXED_SHIFT) - background[i];
+		}
+		int globalDiff = (int) (totalDiff / blocks.length);
+
+		int threshold = blockThreshold << FIXED_SHIFT;
+		int changed = 0;
+		for(int i=0; i < blocks.length; i++) {
+			int current = blocks[i] << FIXED_SHIFT;
+			int diff = current - background[i];
+			if(Math.abs(diff - globalDiff) > threshold) {
+				changed++;
+			}
+			background[i] += diff >> learningShift;
+		}
+
+		changedBlocks = changed;
+		if(changed >= minChangedBlocks) {
+			triggers++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forget the background, the next frame starts a new one
+	 */
+	public void reset() {
+		initialised = false;
+	}
+
+	/**
+	 * Average every other Y sample over each block. In YUYV the Y samples are at even
+	 * offsets, so stepping 4 bytes reads the first Y of every pixel pair.
+	 */
+	private void sumBlocks(byte[] frame) {
+		for(int i=0; i < blocks.length; i++) {
+			blocks[i] = 0;
+		}
+		int rowBytes = width * 2;
+		for(int y=0; y < height; y++) {
+			int base = (y / blockSize) * cols;
+			int rowStart = y * rowBytes;
+			for(int x=0; x < width; x += blockSize) {
+				int b = base + x / blockSize;
+				int end = rowStart + Math.min(x + blockSize, width) * 2;
+				int sum = 0;
+				for(int i = rowStart + x * 2; i < end; i += 4) {
+					sum += frame[i] & 0xFF;
+				}
+				blocks[b] += sum;
+			}
+		}
+		for(int i=0; i < blocks.length; i++) {
+			blocks[i] /= samples[i];
+		}
+	}
+
+	/** @return Number of blocks that changed in the last frame */
+	public int getChangedBlocks() {
+		return changedBlocks;
+	}
+
+	/** @return Total number of blocks in a frame */
+	public int getBlockCount() {
+		return blocks.length;
+	}
+
+	/** @return Number of frames checked */
+	public long getFrames() {
+		return frames;
+	}
+
+	/** @return Number of frames that counted as motion */
+	public long getTriggers() {
+		return triggers;
+	}
+}
@@ -0,0 +1,81 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measure how frame conversion throughput scales with the number of stripe threads.
+ *
+ * Replays a recorded .yuyv file, such as the snapshot_0.yuyv uploaded by PutFile. The file
+ * may hold a single frame or several frames back to back, which are converted in turn.
+ * Without a file random frames are used.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.ParallelConverterBenchmark [frames.yuyv] [width] [height] [iterations]
+ *
+ * @author mcrosbie
+ *
+ */
+public class ParallelConverterBenchmark {
+
+	private static final int WARMUP = 50;
+
+	public static void main(String[] args) throws IOException {
+		int width = 320;
+		int height = 240;
+		int iterations = 500;
+		byte[] recording;
+
+		if(args.length > 2) {
+			width = Integer.parseInt(args[1]);
+			height = Integer.parseInt(args[2]);
+		}
+		if(args.length > 3) {
+			iterations = Integer.parseInt(args[3]);
+		}
+
+		int frameSize = width * height * 2;
+		if(args.length > 0) {
+			recording = YUYVConverterBenchmark.readFrame(args[0]);
+			if(recording.length < frameSize || recording.length % frameSize != 0) {
+				System.err.println(args[0] + " is not a whole number of " + width + "x" + height + " frames");
+				System.exit(1);
+			}
+		} else {
+			recording = new byte[frameSize * 4];
+			new Random(42).nextBytes(recording);
+		}
+
+		// Split the recording into its frames
+		byte[][] frames = new byte[recording.length / frameSize][frameSize];
+		for(int f=0; f < frames.length; f++) {
+			System.arraycopy(recording, f * frameSize, frames[f], 0, frameSize);
+		}
+		int[] pixels = new int[width * height];
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		System.out.println("Replaying " + frames.length + " frame(s) at " + width + "x" + height
+				+ " on " + cpus + " processor(s)");
+
+		double singleFps = 0;
+		for(int threads = 1; threads <= Math.max(cpus, 1); threads *= 2) {
+			ParallelYUYVConverter converter = new ParallelYUYVConverter(width, height, threads);
+
+			for(int i=0; i < WARMUP; i++) {
+				converter.convert(frames[i % frames.length], pixels);
+			}
+			long start = System.nanoTime();
+			for(int i=0; i < iterations; i++) {
+				converter.convert(frames[i % frames.length], pixels);
+			}
+			long elapsed = System.nanoTime() - start;
+			converter.shutdown();
+
+			double fps = iterations * 1000000000.0 / elapsed;
+			if(threads == 1) {
+				singleFps = fps;
+			}
+			System.out.println(String.format("%2d thread(s): %8.1f frames/s  %.3f ms/frame  scaling %.2fx",
+					threads, fps, elapsed / 1000000.0 / iterations, fps / singleFps));
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts YUYV frames to RGB by splitting the frame into horizontal stripes and
+ * converting each stripe on a small fixed set of worker threads.
+ *
+ * The stripe tasks and worker threads are created once and reused for every frame.
+ * On a single core machine, like the EV3 brick, no threads are created at all and
+ * convert() simply calls YUYVConverter on the calling thread.
+ *
+ * convert() always waits for every stripe to finish with the frame before it returns
+ * or throws, even if the caller is interrupted, so the image can be reused as soon as
+ * it does.
+ *
+ * @author mcrosbie
+ *
+ */
+public class ParallelYUYVConverter {
+
+	private final int width;
+	private final int height;
+	private final int threads;
+
+	private ExecutorService pool;
+	private List<Stripe> stripes;
+
+	// The frame being converted, handed to the stripes by convert().
+	// Only one of pixels or bgr is set.
+	private byte[] frame;
+	private int[] pixels;
+	private byte[] bgr;
+
+	// Stripes of the frame still running, and the first error from one, guarded by done
+	private final Object done = new Object();
+	private int pending;
+	private Throwable error;
+
+	/**
+	 * One horizontal band of rows of the frame
+	 */
+	private class Stripe implements Runnable {
+		private final int firstRow;
+		private final int lastRow;
+
+		Stripe(int firstRow, int lastRow) {
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		public void run() {
+			Throwable failed = null;
+			try {
+				if(pixels != null) {
+					YUYVConverter.convertRows(frame, width, pixels, firstRow, lastRow);
+				} else {
+					YUYVConverter.convertRowsBGR(frame, width, bgr, firstRow, lastRow);
+				}
+			} catch (Throwable t) {
+				failed = t;
+			}
+			synchronized(done) {
+				if(failed != null && error == null) {
+					error = failed;
+				}
+				if(--pending == 0) {
+					done.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a converter that uses one thread per available processor
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 */
+	public ParallelYUYVConverter(int width, int height) {
+		this(width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a converter using the given number of threads. One thread means convert
+	 * on the caller's thread with no pool.
+	 * @param width Frame width in pixels
+	 * @param height Frame height in pixels
+	 * @param threads Number of stripes and worker threads
+	 */
+	public ParallelYUYVConverter(int width, int height, int threads) {
+		this.width = width;
+		this.height = height;
+		this.threads = Math.max(1, Math.min(threads, height));
+
+		if(this.threads > 1) {
+			stripes = new ArrayList<Stripe>(this.threads);
+			for(int i=0; i < this.threads; i++) {
+				stripes.add(new Stripe(i * height / this.threads, (i + 1) * height / this.threads));
+			}
+			pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+				private int count = 0;
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "yuyv-stripe-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return Number of threads used to convert a frame
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return true if frames are converted on the worker pool
+	 */
+	public boolean isParallel() {
+		return pool != null;
+	}
+
+	/**
+	 * Convert a whole YUYV frame into an image of the same dimensions
+	 * @param frame Frame from Video.grabFrame(), width * height * 2 bytes
+	 * @param img Destination image, TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_3BYTE_BGR
+	 * @throws RuntimeException if a stripe fails, in which case the image is only partly
+	 * converted, or the caller is interrupted. Either way the image shouldn't be used.
+	 */
+	public void convert(byte[] frame, BufferedImage img) {
+		if(img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			convert(frame, null, YUYVConverter.getBGRPixels(img));
+		} else {
+			convert(frame, YUYVConverter.getPixels(img), null);
+		}
+	}
+
+	/**
+	 * Convert a whole YUYV frame, blocking until every stripe is done.
+	 * @param frame Frame from Video.grabFrame(), width * height * 2 bytes
+	 * @param pixels Destination ARGB pixels, at least width * height entries
+	 * @throws RuntimeException if a stripe fails, in which case the pixels are only partly
+	 * converted, or the caller is interrupted. Either way the pixels shouldn't be used.
+	 */
+	public void convert(byte[] frame, int[] pixels) {
+		convert(frame, pixels, null);
+	}
+
+	/**
+	 * Convert a frame into either ARGB ints or BGR bytes. Only one frame can be
+	 * converted at a time.
+	 */
+	private synchronized void convert(byte[] frame, int[] pixels, byte[] bgr) {
+		if(pool == null) {
+			if(pixels != null) {
+				YUYVConverter.convert(frame, width, height, pixels);
+			} else {
+				YUYVConverter.convertRowsBGR(frame, width, bgr, 0, height);
+			}
+			return;
+		}
+
+		this.frame = frame;
+		this.pixels = pixels;
+		this.bgr = bgr;
+		synchronized(done) {
+			pending = stripes.size();
+			error = null;
+		}
+		RuntimeException rejected = null;
+		for(int i=0; i < stripes.size(); i++) {
+			try {
+				pool.execute(stripes.get(i));
+			} catch (RejectedExecutionException ex) {
+				// Shut down, the stripes that weren't handed out will never run
+				rejected = ex;
+				synchronized(done) {
+					pending -= stripes.size() - i;
+				}
+				break;
+			}
+		}
+
+		// Wait for every stripe, even if we're interrupted, so none is still writing
+		// into the image once we return and the caller reuses it
+		boolean interrupted = false;
+		Throwable failed;
+		synchronized(done) {
+			while(pending > 0) {
+				try {
+					done.wait();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			failed = error;
+			error = null;
+		}
+		this.frame = null;
+		this.pixels = null;
+		this.bgr = null;
+
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted converting frame");
+		}
+		if(rejected != null) {
+			throw new RuntimeException("Error converting frame, the converter has been shut down", rejected);
+		}
+		if(failed != null) {
+			throw new RuntimeException("Error converting frame", failed);
+		}
+	}
+
+	/**
+	 * Stop the worker threads. The converter can't be used afterwards.
+	 */
+	public void shutdown() {
+		if(pool != null) {
+			pool.shutdown();
+		}
+	}
+}
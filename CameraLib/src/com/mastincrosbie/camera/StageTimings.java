@@ -0,0 +1,164 @@
+package com.mastincrosbie.camera;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-stage latency statistics for a capture pipeline: one LatencyHistogram per stage,
+ * e.g. grab, yuv, overlay, jpeg and upload, and a background reporter that dumps
+ * p50/p95/p99 for every stage to the console and/or a CSV file.
+ *
+ * The CSV has one row per stage per report:
+ *   time,stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms
+ *
+ * @author mcrosbie
+ *
+ */
+public class StageTimings {
+
+	private final List<LatencyHistogram> stages = new ArrayList<LatencyHistogram>();
+	private final long windowMillis;
+	private final int slices;
+
+	private Thread reporter;
+	private volatile boolean reporting;
+
+	/**
+	 * Create a set of stages each keeping a 60 second window
+	 */
+	public StageTimings() {
+		this(60000, 6);
+	}
+
+	/**
+	 * @param windowMillis Length of each stage's rolling window in milliseconds
+	 * @param slices Number of pieces the window is split into
+	 */
+	public StageTimings(long windowMillis, int slices) {
+		this.windowMillis = windowMillis;
+		this.slices = slices;
+	}
+
+	/**
+	 * Add a stage. Stages are reported in the order they are added.
+	 * @param name Stage name
+	 * @return The histogram to record the stage's latencies in
+	 */
+	public synchronized LatencyHistogram stage(String name) {
+		for(LatencyHistogram h : stages) {
+			if(h.getName().equals(name)) {
+				return h;
+			}
+		}
+		LatencyHistogram h = new LatencyHistogram(name, windowMillis, slices);
+		stages.add(h);
+		return h;
+	}
+
+	/**
+	 * @return A table of the latest statistics for every stage, one line per stage
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-10s %7s %9s %9s %9s %9s %9s%n",
+				"stage", "count", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for(LatencyHistogram h : getStages()) {
+			LatencyHistogram.Snapshot s = h.snapshot();
+			sb.append(String.format("%-10s %7d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+					h.getName(), s.getCount(), ms(s.getMean()), ms(s.getPercentile(50)),
+					ms(s.getPercentile(95)), ms(s.getPercentile(99)), ms(s.getMax())));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append the latest statistics for every stage as CSV rows
+	 * @param out Where to write
+	 * @param time Timestamp for the rows, from System.currentTimeMillis()
+	 */
+	public void writeCsv(PrintWriter out, long time) {
+		for(LatencyHistogram h : getStages()) {
+			LatencyHistogram.Snapshot s = h.snapshot();
+			out.printf(Locale.ROOT, "%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+					time, h.getName(), s.getCount(), ms(s.getMean()), ms(s.getPercentile(50)),
+					ms(s.getPercentile(95)), ms(s.getPercentile(99)), ms(s.getMax()));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Start dumping the statistics periodically on a background thread
+	 * @param periodMillis Time between reports in milliseconds
+	 * @param console Where to print the table, or null for none
+	 * @param csv CSV file to append rows to, or null for none. The header is written if the file is new.
+	 * @throws IOException if the CSV file can't be opened
+	 */
+	public synchronized void startReporting(final long periodMillis, final PrintStream console, File csv) throws IOException {
+		if(reporter != null) {
+			return;
+		}
+		final PrintWriter out;
+		if(csv != null) {
+			boolean exists = csv.exists() && csv.length() > 0;
+			out = new PrintWriter(new FileWriter(csv, true));
+			if(!exists) {
+				out.println("time,stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms");
+			}
+		} else {
+			out = null;
+		}
+
+		reporting = true;
+		reporter = new Thread(new Runnable() {
+			public void run() {
+				while(reporting) {
+					try {
+						Thread.sleep(periodMillis);
+					} catch (InterruptedException ex) {
+						break;
+					}
+					dump(console, out);
+				}
+				if(out != null) {
+					out.close();
+				}
+			}
+		}, "stage-timings");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stop the periodic reports
+	 */
+	public synchronized void stopReporting() {
+		if(reporter != null) {
+			reporting = false;
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+
+	private void dump(PrintStream console, PrintWriter out) {
+		if(console != null) {
+			console.print(report());
+		}
+		if(out != null) {
+			writeCsv(out, System.currentTimeMillis());
+		}
+	}
+
+	private synchronized List<LatencyHistogram> getStages() {
+		return new ArrayList<LatencyHistogram>(stages);
+	}
+
+	private static double ms(long micros) {
+		return micros / 1000.0;
+	}
+}
@@ -0,0 +1,426 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives video from any number of StreamVideo senders at once, on one port, with a
+ * single selector thread rather than a thread per robot.
+ *
+ * Each connection reads into its own direct ByteBuffers, first the FrameHeader and
+ * then the payload, however the bytes happen to be split across reads. When a frame
+ * is complete it is decoded on a small worker pool into the back image of the stream's
+ * TripleBuffer and the Listener is told. The display picks up the newest frame with
+ * getImage() without ever waiting for a decode in progress.
+ *
+ * While a stream's frame is being decoded the selector stops reading that connection.
+ * Frames from one robot are decoded in order, which delta frames need, and a robot
+ * sending faster than we can decode is slowed down by TCP. StreamVideo then drops
+ * frames before encoding them.
+ *
+ * A sender can also send bare RAW frames with no FrameHeader, the way StreamVideo
+ * always has unless it is given a codec. Call setPlainFrameSize() to accept them. A
+ * connection whose first bytes aren't the FrameHeader magic number is read as bare
+ * frames of that size from then on.
+ *
+ * @author mcrosbie
+ *
+ */
+public class StreamReceiver {
+
+	/**
+	 * Told about streams coming and going and each frame decoded
+	 */
+	public interface Listener {
+		/**
+		 * A sender has connected, called on the selector thread
+		 */
+		void streamOpened(Stream stream);
+
+		/**
+		 * A new frame is ready for stream.getImage(), called on a worker thread
+		 */
+		void frameDecoded(Stream stream);
+
+		/**
+		 * A sender has gone, called on the selector or a worker thread
+		 * @param cause Why, or null if the sender closed the connection
+		 */
+		void streamClosed(Stream stream, IOException cause);
+	}
+
+	/**
+	 * One sender's connection
+	 */
+	public class Stream implements Runnable {
+		private final SocketChannel channel;
+		private final SocketAddress remote;
+		private final int id;
+		private final ByteBuffer headerBuf = ByteBuffer.allocateDirect(FrameHeader.SIZE);
+		private final byte[] headerBytes = new byte[FrameHeader.SIZE];
+		private final FrameHeader header = new FrameHeader();
+		private final FrameDecoder decoder = new FrameDecoder();
+		private ByteBuffer payloadBuf = ByteBuffer.allocateDirect(0);
+		private byte[] payload = new byte[0];
+		private boolean inHeader = true;
+		private boolean first = true;
+		private boolean plain;			// bare RAW frames, no headers
+		private SelectionKey key;
+		private final TripleBuffer images = new TripleBuffer(BufferedImage.TYPE_INT_RGB);
+		private volatile boolean closed;
+		private volatile long frames;
+		private volatile long bytes;
+
+		Stream(SocketChannel channel, int id) {
+			this.channel = channel;
+			this.id = id;
+			remote = channel.socket().getRemoteSocketAddress();
+		}
+
+		/**
+		 * Read what has arrived
+		 * @return true if a whole frame is ready to decode
+		 */
+		private boolean read() throws IOException {
+			while(true) {
+				ByteBuffer buf = inHeader ? headerBuf : payloadBuf;
+				int n = channel.read(buf);
+				if(n < 0) {
+					throw new EOFException();
+				}
+				bytes += n;
+				if(buf.hasRemaining()) {
+					return false;
+				}
+				if(!inHeader) {
+					return true;
+				}
+
+				headerBuf.flip();
+				headerBuf.get(headerBytes);
+				if(first && plainWidth > 0 && !FrameHeader.hasMagic(headerBytes, 0)) {
+					// An old sender, what we took for a header is the start of a frame
+					plain = true;
+					startPlainFrame();
+					payloadBuf.put(headerBytes);
+					inHeader = false;
+					first = false;
+					continue;
+				}
+				first = false;
+				header.read(headerBytes, 0);
+				if(payloadBuf.capacity() < header.length) {
+					payloadBuf = ByteBuffer.allocateDirect(header.length);
+					payload = new byte[header.length];
+				}
+				payloadBuf.clear();
+				payloadBuf.limit(header.length);
+				inHeader = false;
+				if(header.length == 0) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Make up the header of the next bare frame and get ready to read it
+		 */
+		private void startPlainFrame() {
+			header.codec = FrameCodec.RAW;
+			header.flags = FrameHeader.FLAG_KEY;
+			header.sequence++;
+			header.timestamp = System.currentTimeMillis();
+			header.width = plainWidth;
+			header.height = plainHeight;
+			header.length = plainWidth * plainHeight * 2;
+			if(payloadBuf.capacity() < header.length) {
+				payloadBuf = ByteBuffer.allocateDirect(header.length);
+				payload = new byte[header.length];
+			}
+			payloadBuf.clear();
+			payloadBuf.limit(header.length);
+		}
+
+		/**
+		 * Decode the frame just read, on a worker thread
+		 */
+		public void run() {
+			try {
+				payloadBuf.flip();
+				payloadBuf.get(payload, 0, header.length);
+				BufferedImage image = images.back(header.width, header.height);
+				if(decoder.decode(header, payload, 0, image)) {
+					images.publish();
+					frames++;
+					listener.frameDecoded(this);
+				}
+				if(plain) {
+					startPlainFrame();
+				} else {
+					headerBuf.clear();
+					inHeader = true;
+				}
+				resume.add(this);
+				selector.wakeup();
+			} catch (IOException | RuntimeException ex) {
+				close(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+			}
+		}
+
+		private void close(IOException cause) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// Nothing more to do
+			}
+			listener.streamClosed(this, cause);
+		}
+
+		/** @return Number of this stream, in the order senders connected */
+		public int getId() {
+			return id;
+		}
+
+		/** @return The sender's address */
+		public SocketAddress getRemoteAddress() {
+			return remote;
+		}
+
+		/**
+		 * Get the newest frame decoded. Only call this from one thread, e.g. the Swing
+		 * event thread; the image is that thread's until it next calls getImage().
+		 * @return The frame, or null before the first
+		 */
+		public BufferedImage getImage() {
+			return images.front();
+		}
+
+		/** @return Number of decoded frames that getImage() returned, the rest were replaced by newer ones first */
+		public long getShown() {
+			return images.getShown();
+		}
+
+		/** @return Codec of the last frame received */
+		public FrameCodec getCodec() {
+			return header.codec;
+		}
+
+		/** @return Number of frames decoded */
+		public long getFrames() {
+			return frames;
+		}
+
+		/** @return Number of bytes received */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** @return true if the sender sends bare RAW frames with no headers */
+		public boolean isPlain() {
+			return plain;
+		}
+
+		/** @return Number of delta frames skipped waiting for a key frame */
+		public long getSkipped() {
+			return decoder.getSkipped();
+		}
+
+		/** @return true once the connection has gone */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public String toString() {
+			return "stream " + id + " from " + remote;
+		}
+	}
+
+	private final Listener listener;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final ExecutorService workers;
+
+	// Streams whose frame has been decoded, to start reading again on the selector thread
+	private final Queue<Stream> resume = new ConcurrentLinkedQueue<Stream>();
+
+	private Thread thread;
+	private volatile boolean running;
+	private int nextId;
+	private volatile int plainWidth;
+	private volatile int plainHeight;
+
+	/**
+	 * Create a receiver with one decode thread per available processor
+	 * @param port Port to listen on
+	 * @param listener Told about streams and frames
+	 * @throws IOException if the port can't be opened
+	 */
+	public StreamReceiver(int port, Listener listener) throws IOException {
+		this(port, listener, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param port Port to listen on, 0 for any free port
+	 * @param listener Told about streams and frames
+	 * @param threads Number of decode threads
+	 * @throws IOException if the port can't be opened
+	 */
+	public StreamReceiver(int port, Listener listener, int threads) throws IOException {
+		this.listener = listener;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		workers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stream-decode-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Accept senders that send bare RAW frames with no FrameHeader, as StreamVideo does
+	 * when it isn't given a codec. Call it before start().
+	 * @param width Frame width in pixels, 0 to refuse them
+	 * @param height Frame height in pixels
+	 */
+	public void setPlainFrameSize(int width, int height) {
+		plainWidth = width;
+		plainHeight = height;
+	}
+
+	/**
+	 * @return The port being listened on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Start accepting and reading streams on a background thread
+	 */
+	public synchronized void start() {
+		if(thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				select();
+			}
+		}, "stream-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop receiving and close every stream
+	 * @throws InterruptedException if interrupted waiting for the threads to stop
+	 */
+	public void close() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		if(thread != null) {
+			thread.join();
+		}
+		workers.shutdown();
+		workers.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	private void select() {
+		try {
+			while(running) {
+				selector.select();
+
+				Stream s;
+				while((s = resume.poll()) != null) {
+					if(!s.closed && s.key.isValid()) {
+						s.key.interestOps(SelectionKey.OP_READ);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid()) {
+						continue;
+					}
+					if(key.isAcceptable()) {
+						accept();
+					} else if(key.isReadable()) {
+						read((Stream) key.attachment());
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException ex) {
+			System.err.println("Stream receiver failed: " + ex);
+		} finally {
+			for(SelectionKey key : selector.keys()) {
+				if(key.attachment() instanceof Stream) {
+					((Stream) key.attachment()).close(null);
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException ex) {
+				// Nothing more to do
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if(channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Stream stream = new Stream(channel, nextId++);
+		stream.key = channel.register(selector, SelectionKey.OP_READ, stream);
+		listener.streamOpened(stream);
+	}
+
+	private void read(Stream stream) {
+		try {
+			if(stream.read()) {
+				// Stop reading until the worker has decoded this frame
+				stream.key.interestOps(0);
+				workers.execute(stream);
+			}
+		} catch (EOFException ex) {
+			stream.close(null);
+		} catch (IOException ex) {
+			stream.close(ex);
+		}
+	}
+}
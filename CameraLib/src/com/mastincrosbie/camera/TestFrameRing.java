@@ -0,0 +1,89 @@
+package com.mastincrosbie.camera;
+
+/**
+ * Check FrameRing hands frames from one thread to another in order and intact, that
+ * a full ring rejects rather than blocks, and that takeLatest() skips stale frames.
+ * Also reports how many frames a second the ring can pass.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestFrameRing [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestFrameRing {
+
+	private static final TestResults results = new TestResults("frame ring");
+
+	public static void main(String[] args) throws Exception {
+		int frames = 1000000;
+		if(args.length > 0) {
+			frames = Integer.parseInt(args[0]);
+		}
+
+		testFullAndLatest();
+		testInOrder(frames);
+
+		results.finish();
+	}
+
+	private static void testFullAndLatest() throws InterruptedException {
+		FrameRing ring = new FrameRing(3, 16);
+		results.check("size rounded up to a power of two", ring.capacity() == 4);
+		for(int i=0; i < 4; i++) {
+			FrameRing.Slot s = ring.claim();
+			s.length = i;
+			ring.publish();
+		}
+		results.check("full ring rejects", ring.claim() == null && ring.getRejected() == 1);
+
+		FrameRing.Slot s = ring.takeLatest(0);
+		results.check("takeLatest gets the newest", s.length == 3 && ring.getSkipped() == 3);
+		ring.release();
+		results.check("ring is empty after takeLatest", ring.size() == 0 && ring.take(10) == null);
+	}
+
+	private static void testInOrder(final int frames) throws InterruptedException {
+		final FrameRing ring = new FrameRing(4, 64);
+		final int[] bad = new int[1];
+
+		Thread consumer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for(int i=0; i < frames; i++) {
+						FrameRing.Slot s = ring.take(5000);
+						if(s == null || s.length != i % 64 || s.timestamp != i
+								|| (s.length > 0 && s.data[s.length - 1] != (byte) i)) {
+							bad[0]++;
+						}
+						ring.release();
+					}
+				} catch (InterruptedException ex) {
+					bad[0]++;
+				}
+			}
+		});
+		consumer.start();
+
+		long start = System.nanoTime();
+		int i = 0;
+		while(i < frames) {
+			FrameRing.Slot s = ring.claim();
+			if(s == null) {
+				Thread.yield();
+				continue;
+			}
+			s.length = i % 64;
+			s.timestamp = i;
+			if(s.length > 0) {
+				s.data[s.length - 1] = (byte) i;
+			}
+			ring.publish();
+			i++;
+		}
+		consumer.join();
+		long elapsed = System.nanoTime() - start;
+
+		results.check("frames arrive in order and intact", bad[0] == 0 && ring.getConsumed() == frames);
+		System.out.println(String.format("  %.0f frames/s through the ring", frames * 1000000000.0 / elapsed));
+	}
+}
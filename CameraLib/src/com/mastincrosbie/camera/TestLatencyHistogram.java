@@ -0,0 +1,98 @@
+package com.mastincrosbie.camera;
+
+import java.util.Random;
+
+/**
+ * Check LatencyHistogram's percentiles, rolling window and concurrent recording
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestLatencyHistogram
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestLatencyHistogram {
+
+	private static final TestResults results = new TestResults("latency histogram");
+
+	public static void main(String[] args) throws Exception {
+		testBuckets();
+		testPercentiles();
+		testWindow();
+		testConcurrent();
+
+		results.finish();
+	}
+
+	private static void testBuckets() {
+		boolean ok = true;
+		for(long v = 0; v < 1000000; v++) {
+			int b = LatencyHistogram.bucket(v);
+			if(v > LatencyHistogram.upperBound(b) || (b > 0 && v <= LatencyHistogram.upperBound(b - 1))) {
+				System.out.println("  " + v + " in bucket " + b);
+				ok = false;
+				break;
+			}
+		}
+		results.check("every value falls inside its bucket", ok);
+		results.check("largest value has a bucket", LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)) == Long.MAX_VALUE);
+	}
+
+	private static void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram("uniform");
+		long now = 1000000;
+		for(int i=1; i <= 10000; i++) {
+			h.record(i, now);
+		}
+		LatencyHistogram.Snapshot s = h.snapshot(now);
+		results.check("count", s.getCount() == 10000);
+		results.check("mean", s.getMean() == 5000);
+		results.check("max", s.getMax() == 10000);
+		results.check("p50 within 12%", near(s.getPercentile(50), 5000));
+		results.check("p95 within 12%", near(s.getPercentile(95), 9500));
+		results.check("p99 within 12%", near(s.getPercentile(99), 9900));
+		results.check("p100 is the max", s.getPercentile(100) == 10000);
+	}
+
+	private static void testWindow() {
+		// 10 second window in 5 slices of 2 seconds
+		LatencyHistogram h = new LatencyHistogram("window", 10000, 5);
+		long t = 1000000;
+		for(int i=0; i < 100; i++) {
+			h.record(50000, t);
+		}
+		results.check("recent recordings are in the window", h.snapshot(t + 8000).getCount() == 100);
+		results.check("old recordings roll out of the window", h.snapshot(t + 10000).getCount() == 0);
+
+		for(int i=0; i < 10; i++) {
+			h.record(100, t + 12000);
+		}
+		LatencyHistogram.Snapshot s = h.snapshot(t + 12000);
+		results.check("recycled slice only holds new recordings", s.getCount() == 10 && s.getMax() == 100);
+	}
+
+	private static void testConcurrent() throws InterruptedException {
+		final LatencyHistogram h = new LatencyHistogram("concurrent");
+		final int perThread = 200000;
+		Thread[] threads = new Thread[4];
+		for(int i=0; i < threads.length; i++) {
+			final long seed = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					Random r = new Random(seed);
+					for(int j=0; j < perThread; j++) {
+						h.record(r.nextInt(100000), 1000000);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		results.check("no recordings lost between threads", h.snapshot(1000000).getCount() == perThread * threads.length);
+	}
+
+	private static boolean near(long actual, long expected) {
+		return Math.abs(actual - expected) <= expected * 0.125;
+	}
+}
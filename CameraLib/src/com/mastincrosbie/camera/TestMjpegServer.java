@@ -0,0 +1,179 @@
+package com.mastincrosbie.camera;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Check MjpegServer with several viewers watching at once: a fast one, a slow one, one
+ * that goes away part way through and one that joins late. Every viewer must see
+ * frames in order, the slow one must skip frames rather than hold up publish(), and
+ * the server must carry on for everyone else when a viewer leaves.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestMjpegServer [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestMjpegServer {
+
+	private static final int FRAME_BYTES = 32 * 1024;
+
+	private static final TestResults results = new TestResults("MJPEG server");
+
+	/**
+	 * A browser stand-in that reads the multipart stream and checks the frame numbers
+	 */
+	private static class Viewer extends Thread {
+		private final int port;
+		private final int delay;
+		private final int leaveAfter;
+		private Socket sock;
+		volatile int received;
+		volatile int last = -1;
+		volatile boolean outOfOrder;
+		volatile boolean corrupt;
+
+		Viewer(int port, int delay, int leaveAfter) {
+			this.port = port;
+			this.delay = delay;
+			this.leaveAfter = leaveAfter;
+			setDaemon(true);
+		}
+
+		void connect() throws IOException {
+			sock = new Socket("localhost", port);
+			OutputStream os = sock.getOutputStream();
+			os.write("GET / HTTP/1.1\r\nHost: brick\r\nAccept: */*\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			os.flush();
+		}
+
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				String line;
+				while((line = readLine(in)).length() > 0) {
+					// Response headers
+				}
+				readLine(in);		// First boundary
+				while(received != leaveAfter) {
+					int length = -1;
+					while((line = readLine(in)).length() > 0) {
+						if(line.startsWith("Content-Length: ")) {
+							length = Integer.parseInt(line.substring(16));
+						}
+					}
+					if(length != FRAME_BYTES) {
+						corrupt = true;
+						break;
+					}
+					int n = in.readInt();
+					in.skipBytes(length - 8);
+					if(in.readInt() != n) {
+						corrupt = true;
+					}
+					if(n <= last) {
+						outOfOrder = true;
+					}
+					last = n;
+					received++;
+					readLine(in);		// End of the frame
+					readLine(in);		// Boundary
+					if(delay > 0) {
+						Thread.sleep(delay);
+					}
+				}
+				sock.close();
+			} catch (IOException | InterruptedException ex) {
+				// Server closed
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while((c = in.read()) != '\n') {
+				if(c < 0) {
+					throw new IOException("Stream ended");
+				}
+				if(c != '\r') {
+					sb.append((char) c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+
+		MjpegServer server = new MjpegServer(0);
+		server.start();
+		results.check("no viewers to begin with", !server.hasViewers());
+
+		Viewer fast = new Viewer(server.getPort(), 0, -1);
+		Viewer slow = new Viewer(server.getPort(), 40, -1);
+		Viewer leaver = new Viewer(server.getPort(), 0, frames / 10);
+		Viewer late = new Viewer(server.getPort(), 0, -1);
+		for(Viewer v : new Viewer[] { fast, slow, leaver }) {
+			v.connect();
+			v.start();
+		}
+		waitForViewers(server, 3);
+
+		long maxPublish = 0;
+		long start = System.nanoTime();
+		for(int n=0; n < frames; n++) {
+			if(n == frames / 2) {
+				late.connect();
+				late.start();
+				waitForViewers(server, 3);
+			}
+			byte[] jpeg = new byte[FRAME_BYTES];
+			putInt(jpeg, 0, n);
+			putInt(jpeg, FRAME_BYTES - 4, n);
+			long t = System.nanoTime();
+			server.publish(jpeg);
+			maxPublish = Math.max(maxPublish, System.nanoTime() - t);
+			Thread.sleep(2);
+		}
+		long elapsed = System.nanoTime() - start;
+		// Give the fast viewers time to catch up
+		Thread.sleep(300);
+		server.close();
+		for(Viewer v : new Viewer[] { fast, slow, leaver, late }) {
+			v.join(5000);
+		}
+
+		results.check("all viewers see frames in order", !fast.outOfOrder && !slow.outOfOrder && !leaver.outOfOrder && !late.outOfOrder);
+		results.check("frames arrive intact", !fast.corrupt && !slow.corrupt && !leaver.corrupt && !late.corrupt);
+		results.check("fast viewer sees the last frame", fast.last == frames - 1);
+		results.check("slow viewer skips frames", slow.received > 0 && slow.received < frames && server.getSkipped() > 0);
+		results.check("viewer leaving doesn't stop the stream", leaver.received == frames / 10 && late.last == frames - 1);
+		results.check("late viewer picks up the stream", late.received > 0);
+		results.check("publish never waits for a viewer", maxPublish < 50000000L);
+
+		System.out.println(String.format("  %.0f frames/s published, longest publish %.2f ms, fast %d, slow %d, late %d frames",
+				frames * 1000000000.0 / elapsed, maxPublish / 1000000.0, fast.received, slow.received, late.received));
+		System.out.println("  " + server);
+
+		results.finish();
+	}
+
+	private static void waitForViewers(MjpegServer server, int n) throws InterruptedException {
+		for(int i=0; i < 500 && server.getViewers() < n; i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off+1] = (byte) (v >>> 16);
+		b[off+2] = (byte) (v >>> 8);
+		b[off+3] = (byte) v;
+	}
+}
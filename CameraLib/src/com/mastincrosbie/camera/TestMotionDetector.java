@@ -0,0 +1,111 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Check MotionDetector on synthetic YUYV scenes and compare its cost per frame with
+ * the convert, overlay and JPEG encode it saves in a quiet scene.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestMotionDetector [iterations]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestMotionDetector {
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	private static final TestResults results = new TestResults("motion detector");
+
+	public static void main(String[] args) throws IOException {
+		int iterations = 500;
+		if(args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+
+		Random random = new Random(1);
+		byte[] frame = new byte[WIDTH * HEIGHT * 2];
+		MotionDetector detector = new MotionDetector(WIDTH, HEIGHT);
+
+		scene(frame, 100, random, -1, -1);
+		results.check("first frame triggers", detector.update(frame));
+
+		int triggers = 0;
+		for(int i=0; i < 50; i++) {
+			scene(frame, 100, random, -1, -1);
+			if(detector.update(frame)) {
+				triggers++;
+			}
+		}
+		results.check("sensor noise doesn't trigger", triggers == 0);
+
+		scene(frame, 130, random, -1, -1);
+		results.check("brightness change doesn't trigger", !detector.update(frame));
+
+		// Let the background catch up with the new brightness
+		for(int i=0; i < 50; i++) {
+			scene(frame, 130, random, -1, -1);
+			detector.update(frame);
+		}
+		scene(frame, 130, random, 100, 80);
+		results.check("object in the scene triggers", detector.update(frame));
+		System.out.println("  " + detector.getChangedBlocks() + " of " + detector.getBlockCount() + " blocks changed");
+
+		// An object that stays put becomes part of the background
+		for(int i=0; i < 100; i++) {
+			scene(frame, 130, random, 100, 80);
+			detector.update(frame);
+		}
+		scene(frame, 130, random, 100, 80);
+		results.check("object that stopped moving is absorbed", !detector.update(frame));
+
+		scene(frame, 130, random, 180, 120);
+		results.check("object moving again triggers", detector.update(frame));
+
+		// Cost per frame
+		long start = System.nanoTime();
+		for(int i=0; i < iterations; i++) {
+			detector.update(frame);
+		}
+		long detect = System.nanoTime() - start;
+
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 1);
+		CaptureOverlay overlay = new CaptureOverlay();
+		JpegEncoder encoder = new JpegEncoder();
+		CaptureBuffer buf = pool.acquire();
+		int encodes = Math.max(1, iterations / 10);
+		start = System.nanoTime();
+		for(int i=0; i < encodes; i++) {
+			YUYVConverter.convert(frame, buf.image);
+			overlay.draw(buf, System.currentTimeMillis(), 7500);
+			encoder.encode(buf.image, buf.jpeg);
+		}
+		long capture = System.nanoTime() - start;
+		encoder.dispose();
+
+		System.out.println(String.format("Motion check %.3f ms/frame, convert + overlay + JPEG %.3f ms/frame",
+				detect / 1000000.0 / iterations, capture / 1000000.0 / encodes));
+
+		results.finish();
+	}
+
+	/**
+	 * Fill a frame with a flat scene of the given brightness plus sensor noise and,
+	 * if x is not negative, a dark 40x40 object at x,y
+	 */
+	private static void scene(byte[] frame, int luma, Random random, int x, int y) {
+		for(int py=0; py < HEIGHT; py++) {
+			for(int px=0; px < WIDTH; px++) {
+				int l = luma + random.nextInt(9) - 4;
+				if(x >= 0 && px >= x && px < x + 40 && py >= y && py < y + 40) {
+					l = 30;
+				}
+				int i = (py * WIDTH + px) * 2;
+				frame[i] = (byte) l;
+				frame[i+1] = (byte) 128;
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Check StreamReceiver against several senders at once, each writing its frames in
+ * awkward sized pieces so headers and payloads are split across reads. Every frame
+ * must be decoded, in order, to the same picture a FrameDecoder reading the stream
+ * directly would give. One more sender sends bare RAW frames with no headers, as an
+ * older StreamVideo does.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestStreamReceiver [senders] [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestStreamReceiver {
+
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 120;
+
+	private static final TestResults results = new TestResults("stream receiver");
+
+	public static void main(String[] args) throws Exception {
+		final int senders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		final byte[][] scene = FrameCodecBenchmark.syntheticScene(WIDTH, HEIGHT, 20);
+		final FrameCodec[] codecs = FrameCodec.values();
+
+		final AtomicInteger opened = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		// The last stream is the bare one
+		final int streams = senders + 1;
+		final CountDownLatch closed = new CountDownLatch(streams);
+		// Streams are numbered in the order they connect, so match them to senders by port
+		final Map<Integer, Integer> lastPixel = new ConcurrentHashMap<Integer, Integer>();
+		final Map<Integer, Long> decoded = new ConcurrentHashMap<Integer, Long>();
+
+		StreamReceiver receiver = new StreamReceiver(0, new StreamReceiver.Listener() {
+			public void streamOpened(StreamReceiver.Stream stream) {
+				opened.incrementAndGet();
+			}
+
+			public void frameDecoded(StreamReceiver.Stream stream) {
+				BufferedImage img = stream.getImage();
+				lastPixel.put(port(stream), img.getRGB(WIDTH / 2, HEIGHT / 2));
+			}
+
+			public void streamClosed(StreamReceiver.Stream stream, IOException cause) {
+				if(cause != null) {
+					System.out.println("  " + stream + " failed: " + cause);
+					failed.incrementAndGet();
+				}
+				decoded.put(port(stream), stream.getFrames());
+				closed.countDown();
+			}
+		}, 2);
+		receiver.setPlainFrameSize(WIDTH, HEIGHT);
+		receiver.start();
+
+		// Decode each sender's stream locally to know what the receiver should end up with
+		final int[] expected = new int[streams];
+		final int[] ports = new int[streams];
+		final long[] sentBytes = new long[streams];
+		Thread[] threads = new Thread[streams];
+		final int port = receiver.getPort();
+		long start = System.nanoTime();
+		for(int i=0; i < senders; i++) {
+			final int n = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					FrameCodec codec = codecs[n % codecs.length];
+					FrameEncoder encoder = new FrameEncoder(codec, WIDTH, HEIGHT);
+					FrameDecoder decoder = new FrameDecoder();
+					FrameHeader header = new FrameHeader();
+					BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+					try {
+						Socket sock = new Socket("localhost", port);
+						ports[n] = sock.getLocalPort();
+						OutputStream os = sock.getOutputStream();
+						for(int f=0; f < frames; f++) {
+							int len = encoder.encode(scene[f % scene.length], f);
+							byte[] b = encoder.getBuffer();
+							// Odd sized pieces, so nothing lines up with the header
+							int chunk = 7 + n * 13;
+							for(int off=0; off < len; off += chunk) {
+								os.write(b, off, Math.min(chunk, len - off));
+								os.flush();
+							}
+							sentBytes[n] += len;
+							header.read(b, 0);
+							decoder.decode(header, b, FrameHeader.SIZE, img);
+						}
+						expected[n] = img.getRGB(WIDTH / 2, HEIGHT / 2);
+						sock.close();
+					} catch (IOException ex) {
+						System.out.println("  sender " + n + " failed: " + ex);
+						failed.incrementAndGet();
+					} finally {
+						encoder.dispose();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		threads[senders] = new Thread(new Runnable() {
+			public void run() {
+				BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+				try {
+					Socket sock = new Socket("localhost", port);
+					ports[senders] = sock.getLocalPort();
+					OutputStream os = sock.getOutputStream();
+					for(int f=0; f < frames; f++) {
+						byte[] b = scene[f % scene.length];
+						// Split so the first read is shorter than a header
+						for(int off=0; off < b.length; off += 11) {
+							os.write(b, off, Math.min(11, b.length - off));
+							os.flush();
+						}
+						sentBytes[senders] += b.length;
+						YUYVConverter.convert(b, img);
+					}
+					expected[senders] = img.getRGB(WIDTH / 2, HEIGHT / 2);
+					sock.close();
+				} catch (IOException ex) {
+					System.out.println("  bare sender failed: " + ex);
+					failed.incrementAndGet();
+				}
+			}
+		});
+		threads[senders].start();
+		for(Thread t : threads) {
+			t.join();
+		}
+		boolean allClosed = closed.await(30, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+		receiver.close();
+
+		results.check("every sender connected", opened.get() == streams);
+		results.check("every stream ended cleanly", allClosed && failed.get() == 0);
+		boolean all = true;
+		boolean same = true;
+		for(int i=0; i < streams; i++) {
+			Long d = decoded.get(ports[i]);
+			Integer p = lastPixel.get(ports[i]);
+			all &= d != null && d == frames;
+			same &= p != null && p == expected[i];
+		}
+		results.check("every frame decoded", all);
+		results.check("last frame of every stream matches a direct decode", same);
+
+		long total = 0;
+		for(long b : sentBytes) {
+			total += b;
+		}
+		System.out.println(String.format("  %d streams, %.0f frames/s, %.1f MB/s total",
+				streams, streams * frames * 1000000000.0 / elapsed, total * 1000.0 / elapsed));
+
+		results.finish();
+	}
+
+	private static int port(StreamReceiver.Stream stream) {
+		return ((InetSocketAddress) stream.getRemoteAddress()).getPort();
+	}
+}
@@ -0,0 +1,79 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Check TripleBuffer with a producer and a consumer running flat out on their own
+ * threads. The producer fills every pixel of each frame with its frame number, so a
+ * consumer seeing a frame still being drawn would find mixed pixels. Frames must also
+ * never go backwards, and both sides must keep going without waiting on each other.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestTripleBuffer [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestTripleBuffer {
+
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 120;
+
+	private static final TestResults results = new TestResults("triple buffer");
+
+	public static void main(String[] args) throws InterruptedException {
+		final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final TripleBuffer buffer = new TripleBuffer(BufferedImage.TYPE_INT_RGB);
+
+		results.check("nothing to show before the first frame", buffer.front() == null);
+
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				for(int f=1; f <= frames; f++) {
+					BufferedImage img = buffer.back(WIDTH, HEIGHT);
+					int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+					Arrays.fill(pixels, f);
+					buffer.publish();
+				}
+			}
+		});
+
+		long start = System.nanoTime();
+		producer.start();
+		int last = 0;
+		int torn = 0;
+		int backwards = 0;
+		long reads = 0;
+		while(last < frames) {
+			BufferedImage img = buffer.front();
+			reads++;
+			if(img == null) {
+				continue;
+			}
+			int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+			int f = pixels[0];
+			for(int i=1; i < pixels.length; i += 97) {
+				if(pixels[i] != f) {
+					torn++;
+					break;
+				}
+			}
+			if(f < last) {
+				backwards++;
+			}
+			last = f;
+		}
+		producer.join();
+		long elapsed = System.nanoTime() - start;
+
+		results.check("no torn frames", torn == 0);
+		results.check("frames never go backwards", backwards == 0);
+		results.check("consumer ends on the last frame", last == frames);
+		results.check("every frame published", buffer.getPublished() == frames);
+		System.out.println(String.format("  %.0f frames/s published, %d shown, %d replaced before being shown, %d reads",
+				frames * 1000000000.0 / elapsed, buffer.getShown(), frames - buffer.getShown(), reads));
+
+		results.finish();
+	}
+}
@@ -0,0 +1,268 @@
+package com.mastincrosbie.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercise UploadQueue against a local HTTP server standing in for Dropbox.
+ *
+ * The stand-in can be made slow, or made to fail a number of requests, to check
+ * the back-pressure policies, the retry backoff and the metrics.
+ * Run on the desktop:
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestUploadQueue
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestUploadQueue {
+
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 120;
+
+	private static HttpServer server;
+	private static String baseUrl;
+	private static volatile long delay;							// ms per request
+	private static final AtomicInteger failuresLeft = new AtomicInteger();
+	private static final ConcurrentHashMap<String, Integer> stored = new ConcurrentHashMap<String, Integer>();
+	private static final TestResults results = new TestResults("upload queue");
+
+	public static void main(String[] args) throws Exception {
+		startServer();
+		try {
+			testUploadsEverything();
+			testDropNewest();
+			testDropOldest();
+			testBlock();
+			testRetryBackoff();
+			testGiveUp();
+			testSpoolFailures();
+			testSpoolOffThread(UploadQueue.BackPressure.DROP_OLDEST);
+			testSpoolOffThread(UploadQueue.BackPressure.DROP_NEWEST);
+		} finally {
+			server.stop(0);
+		}
+
+		results.finish();
+	}
+
+	private static void testUploadsEverything() throws Exception {
+		reset(0, 0);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 4);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 4, UploadQueue.BackPressure.BLOCK);
+		for(int i=0; i < 20; i++) {
+			q.submit(capture(pool, i), "/all_" + i + ".jpg");
+		}
+		q.shutdown(5000);
+		results.check("all uploaded", q.getUploaded() == 20);
+		results.check("stored sizes match", stored.size() == 20 && stored.get("/all_7.jpg").intValue() == 1000 + 7);
+		results.check("buffers returned to pool", pool.available() == 4);
+		System.out.println("  " + q);
+	}
+
+	private static void testDropNewest() throws Exception {
+		reset(200, 0);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 4);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 2, UploadQueue.BackPressure.DROP_NEWEST);
+		int accepted = 0;
+		for(int i=0; i < 10; i++) {
+			if(q.submit(capture(pool, i), "/newest_" + i + ".jpg")) {
+				accepted++;
+			}
+		}
+		q.shutdown(5000);
+		results.check("drop newest accepted only what fits", accepted <= 3 && q.getDropped() == 10 - accepted);
+		results.check("drop newest kept the first image", stored.containsKey("/newest_0.jpg"));
+		results.check("drop newest lost the last image", !stored.containsKey("/newest_9.jpg"));
+		System.out.println("  " + q);
+	}
+
+	private static void testDropOldest() throws Exception {
+		reset(200, 0);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 4);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 2, UploadQueue.BackPressure.DROP_OLDEST);
+		for(int i=0; i < 10; i++) {
+			results.check("drop oldest always accepts", q.submit(capture(pool, i), "/oldest_" + i + ".jpg"));
+		}
+		results.check("queue depth is bounded", q.getMaxDepth() <= 2);
+		q.shutdown(5000);
+		results.check("drop oldest kept the last image", stored.containsKey("/oldest_9.jpg"));
+		results.check("drop oldest counted drops", q.getDropped() + q.getUploaded() == 10);
+		System.out.println("  " + q);
+	}
+
+	private static void testBlock() throws Exception {
+		reset(100, 0);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 4);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 1, UploadQueue.BackPressure.BLOCK);
+		long start = System.currentTimeMillis();
+		for(int i=0; i < 5; i++) {
+			q.submit(capture(pool, i), "/block_" + i + ".jpg");
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		q.shutdown(5000);
+		results.check("block made the producer wait", elapsed >= 200);
+		results.check("block lost nothing", q.getUploaded() == 5 && q.getDropped() == 0);
+		System.out.println("  " + q);
+	}
+
+	private static void testRetryBackoff() throws Exception {
+		reset(0, 3);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 2);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 2, UploadQueue.BackPressure.BLOCK);
+		q.setRetry(5, 50, 1000);
+		long start = System.currentTimeMillis();
+		q.submit(capture(pool, 0), "/retry.jpg");
+		q.shutdown(5000);
+		long elapsed = System.currentTimeMillis() - start;
+		results.check("retried until success", q.getUploaded() == 1 && q.getRetries() == 3);
+		// 50 + 100 + 200 ms of backoff
+		results.check("backoff doubled", elapsed >= 350);
+		System.out.println("  " + q);
+	}
+
+	private static void testGiveUp() throws Exception {
+		reset(0, 100);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 2);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 2, UploadQueue.BackPressure.BLOCK);
+		q.setRetry(3, 10, 20);
+		q.submit(capture(pool, 0), "/giveup.jpg");
+		q.shutdown(5000);
+		results.check("gave up after max attempts", q.getFailed() == 1 && q.getRetries() == 2);
+		results.check("failed buffer returned to pool", pool.available() == 2);
+		System.out.println("  " + q);
+	}
+
+	private static void testSpoolFailures() throws Exception {
+		reset(0, 1000);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "upload-queue-spool");
+		UploadSpool spool = new UploadSpool(dir, 1024 * 1024);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 2);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 2, UploadQueue.BackPressure.BLOCK);
+		q.setSpool(spool);
+		q.setRetry(2, 10, 20);
+		q.submit(capture(pool, 0), "/spooled_0.jpg");
+		q.submit(capture(pool, 1), "/spooled_1.jpg");
+		q.shutdown(5000);
+		results.check("failed uploads spooled", q.getSpooled() == 2 && spool.size() == 2);
+
+		// Back in range, the spool drains in the background
+		failuresLeft.set(0);
+		spool.startDrain(new HttpUploader(baseUrl, 2000), 10, 100);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(spool.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		spool.close();
+		results.check("spool drained", stored.containsKey("/spooled_0.jpg") && stored.containsKey("/spooled_1.jpg"));
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.out.println("  " + q);
+	}
+
+	private static void testSpoolOffThread(UploadQueue.BackPressure policy) throws Exception {
+		reset(300, 0);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "upload-queue-slow-spool");
+		UploadSpool spool = new SlowSpool(dir, 1024 * 1024);
+		CapturePool pool = new CapturePool(WIDTH, HEIGHT, 4);
+		UploadQueue q = new UploadQueue(new HttpUploader(baseUrl, 2000), pool, 1, policy);
+		q.setSpool(spool);
+		long slowest = 0;
+		for(int i=0; i < 4; i++) {
+			long start = System.nanoTime();
+			q.submit(capture(pool, i), "/spool_" + i + ".jpg");
+			slowest = Math.max(slowest, System.nanoTime() - start);
+		}
+		q.shutdown(5000);
+		long start = System.nanoTime();
+		q.submit(capture(pool, 4), "/spool_late.jpg");
+		slowest = Math.max(slowest, System.nanoTime() - start);
+		results.check(policy + " to a slow spool doesn't hold up submit", slowest < 100 * 1000000L);
+		results.check(policy + " dropped images spooled", q.getSpooled() > 0 && q.getSpooled() == spool.size()
+				&& q.getSpooled() + q.getUploaded() + q.getDropped() == 5);
+		spool.close();
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.out.println("  " + q);
+	}
+
+	/**
+	 * A spool on a slow disk
+	 */
+	private static class SlowSpool extends UploadSpool {
+		SlowSpool(File dir, long maxBytes) throws IOException {
+			super(dir, maxBytes);
+		}
+
+		@Override
+		public boolean append(String path, JpegBuffer jpeg) throws IOException {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return super.append(path, jpeg);
+		}
+	}
+
+	/**
+	 * Fake a capture: a pooled buffer with an identifiable number of JPEG bytes in it
+	 */
+	private static CaptureBuffer capture(CapturePool pool, int n) {
+		CaptureBuffer buf = pool.acquire();
+		buf.jpeg.reset();
+		for(int i=0; i < 1000 + n; i++) {
+			buf.jpeg.write(i);
+		}
+		return buf;
+	}
+
+	private static void reset(long requestDelay, int failures) {
+		delay = requestDelay;
+		failuresLeft.set(failures);
+		stored.clear();
+	}
+
+	/**
+	 * Stand-in for the upload endpoint: stores the size of each PUT body by path
+	 */
+	private static void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				InputStream in = ex.getRequestBody();
+				byte[] b = new byte[4096];
+				int total = 0;
+				int n;
+				while((n = in.read(b)) > 0) {
+					total += n;
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				if(failuresLeft.getAndDecrement() > 0) {
+					ex.sendResponseHeaders(503, -1);
+				} else {
+					stored.put(ex.getRequestURI().getPath(), total);
+					ex.sendResponseHeaders(200, -1);
+				}
+				ex.close();
+			}
+		});
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+}
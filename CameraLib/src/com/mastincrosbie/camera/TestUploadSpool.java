@@ -0,0 +1,179 @@
+package com.mastincrosbie.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exercise UploadSpool: replay after a restart, recovery from a torn write, eviction
+ * at the size cap, compaction and the background drain.
+ *
+ * java -cp CameraLib.jar com.mastincrosbie.camera.TestUploadSpool [spool directory]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestUploadSpool {
+
+	private static final TestResults results = new TestResults("upload spool");
+
+	/**
+	 * Uploader that fails a set number of times then records what it was given
+	 */
+	private static class FakeUploader implements Uploader {
+		volatile int failuresLeft;
+		final List<String> uploaded = new ArrayList<String>();
+
+		public void upload(String path, InputStream in, long length) throws IOException {
+			if(failuresLeft > 0) {
+				failuresLeft--;
+				throw new IOException("out of range");
+			}
+			long n = 0;
+			while(in.read() >= 0) {
+				n++;
+			}
+			if(n != length) {
+				throw new IOException("Short read " + n + " of " + length);
+			}
+			synchronized(uploaded) {
+				uploaded.add(path);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "upload-spool-test");
+
+		testReplay(dir);
+		testTornWrite(dir);
+		testEviction(dir);
+		testDrain(dir);
+		clean(dir);
+
+		results.finish();
+	}
+
+	private static void testReplay(File dir) throws IOException {
+		clean(dir);
+		UploadSpool spool = new UploadSpool(dir, 1024 * 1024);
+		for(int i=0; i < 5; i++) {
+			spool.append("/img_" + i + ".jpg", image(i));
+		}
+		JpegBuffer jpeg = new JpegBuffer(1024);
+		spool.remove(spool.peek(jpeg));
+		spool.close();
+
+		spool = new UploadSpool(dir, 1024 * 1024);
+		results.check("replayed the images not uploaded", spool.size() == 4 && spool.getRecovered() == 4);
+		String path = spool.peek(jpeg);
+		results.check("oldest first after restart", "/img_1.jpg".equals(path));
+		results.check("image intact after restart", same(jpeg, image(1)));
+		spool.close();
+	}
+
+	private static void testTornWrite(File dir) throws IOException {
+		clean(dir);
+		UploadSpool spool = new UploadSpool(dir, 1024 * 1024);
+		for(int i=0; i < 3; i++) {
+			spool.append("/torn_" + i + ".jpg", image(i));
+		}
+		spool.close();
+
+		// Chop the last image in half as if the power went mid-write
+		File data = new File(dir, "spool-0.dat");
+		RandomAccessFile f = new RandomAccessFile(data, "rw");
+		f.setLength(f.length() - 500);
+		f.close();
+
+		spool = new UploadSpool(dir, 1024 * 1024);
+		results.check("torn image cut off", spool.size() == 2 && spool.getTruncated() > 0);
+		spool.append("/torn_3.jpg", image(3));
+		spool.close();
+
+		spool = new UploadSpool(dir, 1024 * 1024);
+		results.check("appends after recovery survive", spool.size() == 3);
+		spool.close();
+	}
+
+	private static void testEviction(File dir) throws IOException {
+		clean(dir);
+		// Room for about 4 images
+		UploadSpool spool = new UploadSpool(dir, 4 * 1100);
+		for(int i=0; i < 20; i++) {
+			spool.append("/evict_" + i + ".jpg", image(i));
+		}
+		results.check("size capped", spool.getBytes() <= 4 * 1100 && spool.size() < 5);
+		results.check("oldest evicted", spool.getEvicted() == 20 - spool.size());
+		JpegBuffer jpeg = new JpegBuffer(1024);
+		String path = spool.peek(jpeg);
+		results.check("newest kept", ("/evict_" + (20 - spool.size()) + ".jpg").equals(path));
+		results.check("compacted into a new generation", !new File(dir, "spool-0.dat").exists());
+		spool.close();
+
+		spool = new UploadSpool(dir, 4 * 1100);
+		results.check("compacted spool replays", spool.size() > 0 && path.equals(spool.peek(jpeg)) && same(jpeg, image(20 - spool.size())));
+		spool.close();
+	}
+
+	private static void testDrain(File dir) throws Exception {
+		clean(dir);
+		UploadSpool spool = new UploadSpool(dir, 1024 * 1024);
+		for(int i=0; i < 10; i++) {
+			spool.append("/drain_" + i + ".jpg", image(i));
+		}
+		FakeUploader uploader = new FakeUploader();
+		uploader.failuresLeft = 3;
+		spool.startDrain(uploader, 10, 100);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(spool.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		spool.close();
+		results.check("drained everything after failures", uploader.uploaded.size() == 10 && spool.getDrained() == 10);
+		results.check("drained in order", "/drain_0.jpg".equals(uploader.uploaded.get(0))
+				&& "/drain_9.jpg".equals(uploader.uploaded.get(9)));
+		System.out.println("  " + spool);
+
+		spool = new UploadSpool(dir, 1024 * 1024);
+		results.check("nothing left after restart", spool.size() == 0);
+		spool.close();
+	}
+
+	/**
+	 * A fake JPEG of about 1KB that identifies which image it is
+	 */
+	private static JpegBuffer image(int n) {
+		JpegBuffer jpeg = new JpegBuffer(1024);
+		for(int i=0; i < 1000 + n; i++) {
+			jpeg.write(i * 31 + n);
+		}
+		return jpeg;
+	}
+
+	private static boolean same(JpegBuffer a, JpegBuffer b) {
+		if(a.size() != b.size()) {
+			return false;
+		}
+		for(int i=0; i < a.size(); i++) {
+			if(a.getBuffer()[i] != b.getBuffer()[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void clean(File dir) {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
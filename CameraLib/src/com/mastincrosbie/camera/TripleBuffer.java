@@ -0,0 +1,92 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Three images passed between a thread that draws frames and a thread that displays
+ * them, so neither ever waits for the other.
+ *
+ * The producer draws into back(), which no one else touches, and publish()es it. That
+ * swaps it with the middle image, held in an AtomicReference. The consumer's front()
+ * swaps the middle image for its old front one only if something new was published,
+ * and the front image is then the consumer's alone until it next calls front(). A
+ * frame published while an older one was still waiting replaces it, the consumer only
+ * ever sees the newest.
+ *
+ * Exactly one producer thread and one consumer thread, e.g. a decoder and the Swing
+ * event thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class TripleBuffer {
+
+	private static class Buffer {
+		BufferedImage image;
+		boolean fresh;
+	}
+
+	private final int type;
+	private final AtomicReference<Buffer> middle = new AtomicReference<Buffer>(new Buffer());
+	private Buffer back = new Buffer();
+	private Buffer front = new Buffer();
+
+	// Counters, each written by one thread only
+	private volatile long published;
+	private volatile long shown;
+
+	/**
+	 * @param type BufferedImage type of the images, e.g. BufferedImage.TYPE_INT_RGB
+	 */
+	public TripleBuffer(int type) {
+		this.type = type;
+	}
+
+	/**
+	 * Producer: get the image to draw the next frame into
+	 * @param width Frame width, the image is replaced if it is a different size
+	 * @param height Frame height
+	 * @return The back image
+	 */
+	public BufferedImage back(int width, int height) {
+		BufferedImage img = back.image;
+		if(img == null || img.getWidth() != width || img.getHeight() != height) {
+			img = new BufferedImage(width, height, type);
+			back.image = img;
+		}
+		return img;
+	}
+
+	/**
+	 * Producer: make the back image the newest frame
+	 */
+	public void publish() {
+		back.fresh = true;
+		back = middle.getAndSet(back);
+		published++;
+	}
+
+	/**
+	 * Consumer: get the newest frame published
+	 * @return The front image, or null if nothing has been published yet
+	 */
+	public BufferedImage front() {
+		if(middle.get().fresh) {
+			front.fresh = false;
+			front = middle.getAndSet(front);
+			shown++;
+		}
+		return front.image;
+	}
+
+	/** @return Number of frames published */
+	public long getPublished() {
+		return published;
+	}
+
+	/** @return Number of frames the consumer picked up, the rest were replaced by newer ones */
+	public long getShown() {
+		return shown;
+	}
+}
@@ -0,0 +1,446 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads captured JPEGs on a worker thread of its own, so a slow upload never holds
+ * up the next capture.
+ *
+ * The capture thread submit()s a CaptureBuffer and carries on. Jobs wait in a bounded
+ * queue and what happens when the queue is full is set by the BackPressure policy.
+ * Failed uploads are retried with exponential backoff. Once a job has been uploaded,
+ * dropped or given up on, its buffer goes back to the CapturePool.
+ *
+ * With an UploadSpool set, images that are dropped or given up on are written to the
+ * spool instead of being lost, and uploaded later by the spool's own drain thread.
+ * They are written by a spooling thread of the queue's own, never by the thread that
+ * called submit(), so submit() never waits for the disk or the network. Only the BLOCK
+ * policy makes it wait at all, for room in the queue.
+ *
+ * @author mcrosbie
+ *
+ */
+public class UploadQueue {
+
+	/**
+	 * What to do when a capture is submitted and the queue is already full
+	 */
+	public enum BackPressure {
+		/** Throw away the oldest waiting upload to make room, keeps the newest pictures */
+		DROP_OLDEST,
+		/** Throw away the picture being submitted, keeps the oldest pictures */
+		DROP_NEWEST,
+		/** Make the capture thread wait for room */
+		BLOCK
+	}
+
+	/**
+	 * A single image waiting to be uploaded
+	 */
+	private static class Job {
+		final CaptureBuffer buffer;
+		final String path;
+		final long submitted;
+		boolean failed;			// given up on after every retry
+
+		Job(CaptureBuffer buffer, String path) {
+			this.buffer = buffer;
+			this.path = path;
+			this.submitted = System.nanoTime();
+		}
+	}
+
+	private final Uploader uploader;
+	private final CapturePool pool;
+	private final BackPressure policy;
+	private final ArrayBlockingQueue<Job> queue;
+	private final ArrayBlockingQueue<Job> spooling;		// waiting to be written to the spool
+	private final Thread worker;
+	private volatile Thread spooler;
+
+	private volatile UploadSpool spool;
+	private volatile LatencyHistogram uploadTiming;
+	private volatile boolean running = true;
+	private int maxAttempts = 5;
+	private long initialBackoff = 500;		// milliseconds
+	private long maxBackoff = 30000;		// milliseconds
+
+	// Metrics
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();	// nanoseconds
+	private final AtomicLong maxLatency = new AtomicLong();		// nanoseconds
+	private volatile long lastLatency;							// nanoseconds
+	private volatile int maxDepth;
+
+	/**
+	 * Create an upload queue and start its worker thread
+	 * @param uploader Where to upload to
+	 * @param pool Pool the submitted buffers came from, or null if they aren't pooled
+	 * @param capacity Maximum number of uploads waiting
+	 * @param policy What to do when the queue is full
+	 */
+	public UploadQueue(Uploader uploader, CapturePool pool, int capacity, BackPressure policy) {
+		this.uploader = uploader;
+		this.pool = pool;
+		this.policy = policy;
+		queue = new ArrayBlockingQueue<Job>(capacity);
+		spooling = new ArrayBlockingQueue<Job>(capacity);
+
+		worker = new Thread(new Runnable() {
+			public void run() {
+				uploadLoop();
+			}
+		}, "upload-queue");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Set how failed uploads are retried. The delay doubles after each failed attempt.
+	 * @param maxAttempts Total attempts per image, including the first
+	 * @param initialBackoff Delay before the first retry in milliseconds
+	 * @param maxBackoff Longest delay between retries in milliseconds
+	 */
+	public void setRetry(int maxAttempts, long initialBackoff, long maxBackoff) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Keep images that would otherwise be dropped or given up on in a spool on disk
+	 * @param spool Spool to append them to, or null to just drop them
+	 */
+	public synchronized void setSpool(UploadSpool spool) {
+		this.spool = spool;
+		if(spool != null && spooler == null) {
+			spooler = new Thread(new Runnable() {
+				public void run() {
+					spoolLoop();
+				}
+			}, "upload-queue-spool");
+			spooler.setDaemon(true);
+			spooler.start();
+		}
+	}
+
+	/**
+	 * Record how long each successful upload attempt takes, not counting time in the queue
+	 * @param histogram Histogram to record into, or null for none
+	 */
+	public void setUploadTiming(LatencyHistogram histogram) {
+		this.uploadTiming = histogram;
+	}
+
+	/**
+	 * Queue a captured image for upload. The queue owns the buffer from now on and
+	 * releases it to the pool when it is finished with it. Never does any I/O, a dropped
+	 * image is spooled on the queue's own thread.
+	 * @param buffer Buffer holding the encoded JPEG
+	 * @param path Destination path
+	 * @return true if queued, false if this image was dropped
+	 */
+	public boolean submit(CaptureBuffer buffer, String path) {
+		submitted.incrementAndGet();
+		Job job = new Job(buffer, path);
+		if(!running) {
+			discard(job);
+			return false;
+		}
+
+		switch(policy) {
+		case BLOCK:
+			try {
+				queue.put(job);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				discard(job);
+				return false;
+			}
+			break;
+
+		case DROP_NEWEST:
+			if(!queue.offer(job)) {
+				discard(job);
+				return false;
+			}
+			break;
+
+		case DROP_OLDEST:
+			while(!queue.offer(job)) {
+				Job oldest = queue.poll();
+				if(oldest != null) {
+					discard(oldest);
+				}
+			}
+			break;
+		}
+
+		int depth = queue.size();
+		if(depth > maxDepth) {
+			maxDepth = depth;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop accepting uploads and give the worker a chance to empty the queue. Anything
+	 * still waiting after that is dropped.
+	 * @param waitMillis How long to wait for the queue to drain before giving up
+	 */
+	public void shutdown(long waitMillis) {
+		running = false;
+		try {
+			worker.join(waitMillis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if(worker.isAlive()) {
+			worker.interrupt();
+		}
+		Thread s = spooler;
+		if(s != null) {
+			try {
+				s.join(waitMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if(s.isAlive()) {
+				s.interrupt();
+			}
+		}
+	}
+
+	private void uploadLoop() {
+		while(running || !queue.isEmpty()) {
+			Job job;
+			try {
+				job = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			if(job != null) {
+				upload(job);
+			}
+		}
+
+		// Anything left over is spooled or goes back to the pool
+		Job job;
+		while((job = queue.poll()) != null) {
+			discard(job);
+		}
+	}
+
+	/**
+	 * Upload one job, retrying with exponential backoff
+	 */
+	private void upload(Job job) {
+		long backoff = initialBackoff;
+		for(int attempt = 1; ; attempt++) {
+			try {
+				JpegBuffer jpeg = job.buffer.jpeg;
+				long start = System.nanoTime();
+				uploader.upload(job.path, jpeg.getInputStream(), jpeg.size());
+				LatencyHistogram timing = uploadTiming;
+				if(timing != null) {
+					timing.recordSince(start);
+				}
+				recordLatency(System.nanoTime() - job.submitted);
+				uploaded.incrementAndGet();
+				break;
+			} catch (IOException ex) {
+				if(attempt >= maxAttempts) {
+					System.out.println("Giving up on " + job.path + " after " + attempt + " attempts: " + ex.getMessage());
+					giveUp(job);
+					return;
+				}
+				System.out.println("Upload of " + job.path + " failed, retrying in " + backoff + " ms: " + ex.getMessage());
+				retries.incrementAndGet();
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					giveUp(job);
+					Thread.currentThread().interrupt();
+					return;
+				}
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
+		}
+		release(job.buffer);
+	}
+
+	private void recordLatency(long latency) {
+		lastLatency = latency;
+		totalLatency.addAndGet(latency);
+		long max;
+		while(latency > (max = maxLatency.get())) {
+			if(maxLatency.compareAndSet(max, latency)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Write dropped and failed images to the spool, until the queue has shut down
+	 */
+	private void spoolLoop() {
+		while(true) {
+			Job job;
+			try {
+				job = spooling.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			if(job != null) {
+				if(!spool(job.buffer, job.path) && !job.failed) {
+					dropped.incrementAndGet();
+				}
+				release(job.buffer);
+			} else if(!running && !worker.isAlive()) {
+				break;
+			}
+		}
+
+		// Out of time, anything left is dropped
+		Job job;
+		while((job = spooling.poll()) != null) {
+			if(!job.failed) {
+				dropped.incrementAndGet();
+			}
+			release(job.buffer);
+		}
+	}
+
+	/**
+	 * Drop a job, handing it to the spooling thread if there is a spool
+	 */
+	private void discard(Job job) {
+		if(!handToSpooler(job)) {
+			dropped.incrementAndGet();
+			release(job.buffer);
+		}
+	}
+
+	/**
+	 * Give up on a job after its retries, handing it to the spooling thread if there is a spool
+	 */
+	private void giveUp(Job job) {
+		failed.incrementAndGet();
+		job.failed = true;
+		if(!handToSpooler(job)) {
+			release(job.buffer);
+		}
+	}
+
+	/**
+	 * @return false if there is no spool, or the spooling thread is too far behind to take the job
+	 */
+	private boolean handToSpooler(Job job) {
+		Thread s = spooler;
+		return spool != null && s != null && s.isAlive() && spooling.offer(job);
+	}
+
+	/**
+	 * Write an image to the spool, if there is one
+	 * @return true if the image was spooled
+	 */
+	private boolean spool(CaptureBuffer buffer, String path) {
+		UploadSpool s = spool;
+		if(s == null) {
+			return false;
+		}
+		try {
+			if(s.append(path, buffer.jpeg)) {
+				spooled.incrementAndGet();
+				return true;
+			}
+		} catch (IOException ex) {
+			System.out.println("Error spooling " + path + ": " + ex.getMessage());
+		}
+		return false;
+	}
+
+	private void release(CaptureBuffer buffer) {
+		if(pool != null) {
+			pool.release(buffer);
+		}
+	}
+
+	/** @return Number of uploads waiting in the queue */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/** @return Most uploads ever waiting at once */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/** @return Number of images submitted */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/** @return Number of images uploaded successfully */
+	public long getUploaded() {
+		return uploaded.get();
+	}
+
+	/** @return Number of images dropped, or given up on, and written to the spool */
+	public long getSpooled() {
+		return spooled.get();
+	}
+
+	/** @return Number of images dropped because the queue was full or shut down, and not spooled */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** @return Number of images given up on after every retry failed */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return Number of retries made */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/** @return Time from submit() to the end of the upload for the last image, in milliseconds */
+	public long getLastLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLatency);
+	}
+
+	/** @return Longest time from submit() to the end of an upload, in milliseconds */
+	public long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+	}
+
+	/** @return Average time from submit() to the end of an upload, in milliseconds */
+	public long getAverageLatency() {
+		long n = uploaded.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatency.get() / n);
+	}
+
+	/**
+	 * @return One line summary of the queue metrics
+	 */
+	public String toString() {
+		return "uploads: depth " + getDepth() + " (max " + getMaxDepth() + ")"
+				+ ", submitted " + getSubmitted()
+				+ ", uploaded " + getUploaded()
+				+ ", dropped " + getDropped()
+				+ ", failed " + getFailed()
+				+ ", retries " + getRetries()
+				+ ", spooled " + getSpooled()
+				+ ", latency last/avg/max " + getLastLatency() + "/" + getAverageLatency() + "/" + getMaxLatency() + " ms";
+	}
+}
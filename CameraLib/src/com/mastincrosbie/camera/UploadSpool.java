@@ -0,0 +1,546 @@
+package com.mastincrosbie.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed spool of encoded JPEGs waiting to be uploaded, so a picture isn't lost
+ * when the upload fails or the robot is out of wifi range.
+ *
+ * Images are appended to a data file, spool-N.dat, as records of
+ *   magic, path (writeUTF), length, CRC32, JPEG bytes
+ * The index file, spool.idx, holds the generation N of the current data file and the
+ * offset of the oldest image still to be uploaded. It is only ever replaced whole, by
+ * writing a temporary file and renaming it over the old one.
+ *
+ * The data file is fsync'd in batches, after a number of appends or a time limit,
+ * rather than once per image. On restart the records after the index head are checked
+ * and anything after the first torn or corrupt record is cut off, so a crash loses at
+ * most the last unsynced batch. An image uploaded just before a crash may be uploaded
+ * again after it, never lost.
+ *
+ * The spool is capped in size. When an image doesn't fit, the oldest ones are evicted.
+ * Once more than the cap has been uploaded or evicted, the remaining images are copied
+ * into a new generation of the data file and the old one deleted.
+ *
+ * startDrain() uploads spooled images on a background thread of its own, oldest first,
+ * backing off while uploads keep failing.
+ *
+ * @author mcrosbie
+ *
+ */
+public class UploadSpool {
+
+	private static final int RECORD_MAGIC = 0x53504f4c;		// "SPOL"
+	private static final int INDEX_MAGIC = 0x53504958;		// "SPIX"
+	private static final String INDEX_NAME = "spool.idx";
+
+	private final File dir;
+	private final long maxBytes;
+	private final CRC32 crc = new CRC32();
+
+	private RandomAccessFile data;
+	private long generation;
+	private long head;			// offset of the oldest image
+	private long tail;			// offset the next image is appended at
+	private int count;
+
+	// fsync batching
+	private int syncEvery = 8;
+	private long syncInterval = 2000;		// milliseconds
+	private int unsynced;
+	private long lastSync;
+	private boolean indexDirty;
+
+	// Metrics
+	private long appended;
+	private long drained;
+	private long evicted;
+	private long recovered;
+	private long truncated;
+
+	private Thread drainer;
+	private volatile boolean draining;
+
+	/**
+	 * Open the spool in a directory, replaying whatever was left in it last time
+	 * @param dir Directory to keep the spool in, created if it doesn't exist
+	 * @param maxBytes Most bytes of images to keep, the oldest are evicted past this
+	 * @throws IOException if the spool can't be opened
+	 */
+	public UploadSpool(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create spool directory " + dir);
+		}
+		readIndex();
+		data = new RandomAccessFile(dataFile(generation), "rw");
+		recover();
+		deleteOldGenerations();
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Set how often appended images are forced to disk
+	 * @param everyAppends fsync after this many appends, 1 to fsync every image
+	 * @param intervalMillis fsync pending appends at least this often
+	 */
+	public synchronized void setSync(int everyAppends, long intervalMillis) {
+		syncEvery = Math.max(1, everyAppends);
+		syncInterval = intervalMillis;
+	}
+
+	/**
+	 * Add an image to the end of the spool, evicting the oldest images if it is full
+	 * @param path Destination path for the upload
+	 * @param jpeg Encoded image
+	 * @return true if spooled, false if the image is bigger than the whole spool
+	 * @throws IOException if the image can't be written
+	 */
+	public boolean append(String path, JpegBuffer jpeg) throws IOException {
+		synchronized(jpeg) {
+			return append(path, jpeg.getBuffer(), 0, jpeg.size());
+		}
+	}
+
+	/**
+	 * Add an image to the end of the spool, evicting the oldest images if it is full
+	 * @param path Destination path for the upload
+	 * @param b Encoded image
+	 * @param off Start of the image in b
+	 * @param len Length of the image
+	 * @return true if spooled, false if the image is bigger than the whole spool
+	 * @throws IOException if the image can't be written
+	 */
+	public synchronized boolean append(String path, byte[] b, int off, int len) throws IOException {
+		long size = recordSize(path, len);
+		if(size > maxBytes) {
+			return false;
+		}
+		while(count > 0 && tail - head + size > maxBytes) {
+			head = nextRecord(head);
+			count--;
+			evicted++;
+			indexDirty = true;
+		}
+		compactIfNeeded();
+
+		crc.reset();
+		crc.update(b, off, len);
+		data.seek(tail);
+		data.writeInt(RECORD_MAGIC);
+		data.writeUTF(path);
+		data.writeInt(len);
+		data.writeInt((int) crc.getValue());
+		data.write(b, off, len);
+		tail += size;
+		count++;
+		appended++;
+
+		unsynced++;
+		syncIfDue();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Read the oldest image in the spool without removing it
+	 * @param into Buffer to read the image into
+	 * @return The upload path of the image, or null if the spool is empty
+	 * @throws IOException if the image can't be read
+	 */
+	public synchronized String peek(JpegBuffer into) throws IOException {
+		if(count == 0) {
+			return null;
+		}
+		data.seek(head + 4);
+		String path = data.readUTF();
+		int len = data.readInt();
+		data.readInt();
+		into.readFully(data, len);
+		return path;
+	}
+
+	/**
+	 * Remove the oldest image, once it has been uploaded
+	 * @param path The path returned by peek(). If the image was evicted in the meantime
+	 * nothing is removed.
+	 * @throws IOException if the spool can't be updated
+	 */
+	public synchronized void remove(String path) throws IOException {
+		if(count == 0) {
+			return;
+		}
+		data.seek(head + 4);
+		if(!data.readUTF().equals(path)) {
+			return;
+		}
+		head = nextRecord(head);
+		count--;
+		drained++;
+		indexDirty = true;
+		compactIfNeeded();
+		syncIfDue();
+	}
+
+	/**
+	 * Force appended images and the index to disk now
+	 * @throws IOException if the sync fails
+	 */
+	public synchronized void sync() throws IOException {
+		if(unsynced > 0) {
+			data.getFD().sync();
+			unsynced = 0;
+		}
+		if(indexDirty) {
+			writeIndex();
+		}
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sync if enough appends are pending or the sync interval has passed
+	 */
+	private void syncIfDue() throws IOException {
+		if(unsynced >= syncEvery
+				|| (unsynced > 0 || indexDirty) && System.currentTimeMillis() - lastSync >= syncInterval) {
+			sync();
+		}
+	}
+
+	/**
+	 * Start uploading spooled images in the background, oldest first. While uploads fail
+	 * the drain waits, doubling the wait each time up to maxBackoff.
+	 * @param uploader Where to upload to, not shared with any other thread
+	 * @param initialBackoff Wait after the first failure in milliseconds
+	 * @param maxBackoff Longest wait between attempts in milliseconds
+	 */
+	public synchronized void startDrain(final Uploader uploader, final long initialBackoff, final long maxBackoff) {
+		if(drainer != null) {
+			return;
+		}
+		draining = true;
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop(uploader, initialBackoff, maxBackoff);
+			}
+		}, "upload-spool");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Stop the background drain, waiting for an upload in progress to finish
+	 * @param waitMillis How long to wait for the drain thread
+	 */
+	public void stopDrain(long waitMillis) {
+		Thread t;
+		synchronized(this) {
+			t = drainer;
+			drainer = null;
+			draining = false;
+			notifyAll();
+		}
+		if(t == null) {
+			return;
+		}
+		try {
+			t.join(waitMillis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if(t.isAlive()) {
+			t.interrupt();
+		}
+	}
+
+	private void drainLoop(Uploader uploader, long initialBackoff, long maxBackoff) {
+		JpegBuffer jpeg = new JpegBuffer(32 * 1024);
+		long backoff = initialBackoff;
+
+		while(draining) {
+			String path;
+			try {
+				synchronized(this) {
+					while(draining && count == 0) {
+						syncIfDue();
+						wait(syncInterval);
+					}
+					if(!draining) {
+						break;
+					}
+					syncIfDue();
+					path = peek(jpeg);
+				}
+			} catch (InterruptedException ex) {
+				break;
+			} catch (IOException ex) {
+				System.out.println("Error reading upload spool: " + ex.getMessage());
+				path = null;
+			}
+
+			try {
+				if(path != null) {
+					uploader.upload(path, jpeg.getInputStream(), jpeg.size());
+					remove(path);
+					backoff = initialBackoff;
+					continue;
+				}
+			} catch (IOException ex) {
+				System.out.println("Spooled upload of " + path + " failed, retrying in " + backoff + " ms: " + ex.getMessage());
+			}
+
+			try {
+				synchronized(this) {
+					if(draining) {
+						wait(backoff);
+					}
+				}
+			} catch (InterruptedException ex) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, maxBackoff);
+		}
+	}
+
+	/**
+	 * Stop draining, sync everything to disk and close the data file
+	 * @throws IOException if the final sync fails
+	 */
+	public void close() throws IOException {
+		stopDrain(syncInterval);
+		synchronized(this) {
+			sync();
+			data.close();
+		}
+	}
+
+	/**
+	 * Check the records after the index head and cut off anything torn or corrupt
+	 */
+	private void recover() throws IOException {
+		long length = data.length();
+		if(head > length) {
+			head = length;
+			indexDirty = true;
+		}
+		long pos = head;
+		byte[] b = new byte[0];
+		while(pos < length) {
+			try {
+				data.seek(pos);
+				if(data.readInt() != RECORD_MAGIC) {
+					break;
+				}
+				String path = data.readUTF();
+				int len = data.readInt();
+				int sum = data.readInt();
+				long next = pos + recordSize(path, len);
+				if(len < 0 || next > length) {
+					break;
+				}
+				if(b.length < len) {
+					b = new byte[len];
+				}
+				data.readFully(b, 0, len);
+				crc.reset();
+				crc.update(b, 0, len);
+				if((int) crc.getValue() != sum) {
+					break;
+				}
+				pos = next;
+				count++;
+			} catch (EOFException | UTFDataFormatException ex) {
+				break;
+			}
+		}
+		if(pos < length) {
+			System.out.println("Upload spool truncated " + (length - pos) + " bytes of incomplete images");
+			truncated = length - pos;
+			data.setLength(pos);
+			data.getFD().sync();
+		}
+		tail = pos;
+		recovered = count;
+		if(indexDirty) {
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Once the dead space in front of the head is bigger than the cap, copy the live
+	 * images into the next generation of the data file and switch the index over to it
+	 */
+	private void compactIfNeeded() throws IOException {
+		if(head <= maxBytes && !(count == 0 && head > 0)) {
+			return;
+		}
+		long next = generation + 1;
+		File nextFile = dataFile(next);
+		RandomAccessFile nextData = new RandomAccessFile(nextFile, "rw");
+		try {
+			nextData.setLength(0);
+			byte[] b = new byte[8192];
+			long pos = head;
+			while(pos < tail) {
+				int n = (int) Math.min(b.length, tail - pos);
+				data.seek(pos);
+				data.readFully(b, 0, n);
+				nextData.write(b, 0, n);
+				pos += n;
+			}
+			nextData.getFD().sync();
+		} catch (IOException ex) {
+			nextData.close();
+			nextFile.delete();
+			throw ex;
+		}
+
+		RandomAccessFile old = data;
+		long oldGeneration = generation;
+		data = nextData;
+		generation = next;
+		tail -= head;
+		head = 0;
+		unsynced = 0;
+		writeIndex();
+		old.close();
+		dataFile(oldGeneration).delete();
+	}
+
+	private void readIndex() throws IOException {
+		File index = new File(dir, INDEX_NAME);
+		if(!index.exists()) {
+			generation = 0;
+			head = 0;
+			return;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(index));
+		try {
+			if(in.readInt() != INDEX_MAGIC) {
+				throw new IOException("Not an upload spool index: " + index);
+			}
+			generation = in.readLong();
+			head = in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File tmp = new File(dir, INDEX_NAME + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(generation);
+			out.writeLong(head);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, INDEX_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexDirty = false;
+	}
+
+	/**
+	 * Remove data files left behind by a crash part way through a compaction
+	 */
+	private void deleteOldGenerations() {
+		String current = dataFile(generation).getName();
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(File f : files) {
+			if(f.getName().startsWith("spool-") && f.getName().endsWith(".dat") && !f.getName().equals(current)) {
+				f.delete();
+			}
+		}
+	}
+
+	private File dataFile(long gen) {
+		return new File(dir, "spool-" + gen + ".dat");
+	}
+
+	/**
+	 * @return Offset of the record after the one at pos
+	 */
+	private long nextRecord(long pos) throws IOException {
+		data.seek(pos + 4);
+		String path = data.readUTF();
+		int len = data.readInt();
+		return pos + recordSize(path, len);
+	}
+
+	/**
+	 * Bytes taken up by a record: magic, path, length, CRC and the image
+	 */
+	private static long recordSize(String path, int len) {
+		int utf = 0;
+		for(int i=0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			utf += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+		}
+		return 4 + 2 + utf + 4 + 4 + len;
+	}
+
+	/** @return Number of images waiting in the spool */
+	public synchronized int size() {
+		return count;
+	}
+
+	/** @return Bytes of images waiting in the spool */
+	public synchronized long getBytes() {
+		return tail - head;
+	}
+
+	/** @return Number of images appended since the spool was opened */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/** @return Number of spooled images uploaded since the spool was opened */
+	public synchronized long getDrained() {
+		return drained;
+	}
+
+	/** @return Number of images thrown away to stay under the size cap */
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+	/** @return Number of images found in the spool when it was opened */
+	public synchronized long getRecovered() {
+		return recovered;
+	}
+
+	/** @return Bytes of torn or corrupt images cut off when the spool was opened */
+	public synchronized long getTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return One line summary of the spool metrics
+	 */
+	public synchronized String toString() {
+		return "spool: " + count + " images, " + (tail - head) + " bytes"
+				+ ", recovered " + recovered
+				+ ", appended " + appended
+				+ ", drained " + drained
+				+ ", evicted " + evicted;
+	}
+}
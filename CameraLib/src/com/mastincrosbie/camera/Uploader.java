@@ -0,0 +1,22 @@
+package com.mastincrosbie.camera;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Somewhere to upload captured images to, such as Dropbox
+ *
+ * @author mcrosbie
+ *
+ */
+public interface Uploader {
+
+	/**
+	 * Upload a file, blocking until it has been stored
+	 * @param path Destination path, e.g. "/snapshots/wanderer_1.jpg"
+	 * @param in Stream holding the file contents
+	 * @param length Number of bytes to read from in
+	 * @throws IOException if the upload failed and may be retried
+	 */
+	void upload(String path, InputStream in, long length) throws IOException;
+}
@@ -0,0 +1,150 @@
+package com.mastincrosbie.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark the table driven YUYVConverter against the original per-pixel
+ * convertYUVtoARGB()/setRGB() loop at 160x120 and 320x240.
+ *
+ * Runs on the EV3 or the desktop:
+ * jrun -cp CameraLib.jar com.mastincrosbie.camera.YUYVConverterBenchmark [iterations] [frame.yuyv]
+ *
+ * If a recorded .yuyv frame is given it is used for the size it matches, otherwise
+ * random frames are generated.
+ *
+ * @author mcrosbie
+ *
+ */
+public class YUYVConverterBenchmark {
+
+	private static final int[][] SIZES = { {160, 120}, {320, 240} };
+	private static final int WARMUP = 20;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = 200;
+		byte[] recorded = null;
+
+		if(args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1) {
+			recorded = readFrame(args[1]);
+		}
+
+		for(int[] size : SIZES) {
+			int width = size[0];
+			int height = size[1];
+			byte[] frame = createFrame(width, height, recorded);
+			BufferedImage legacyImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+			// Check both produce the same picture before timing anything
+			legacyConvert(frame, legacyImg);
+			YUYVConverter.convert(frame, img);
+			if(!sameImage(legacyImg, img)) {
+				System.err.println("Converter output differs from the original loop at " + width + "x" + height);
+				System.exit(1);
+			}
+
+			long legacy = time(frame, legacyImg, iterations, true);
+			long table = time(frame, img, iterations, false);
+
+			System.out.println(String.format("%dx%d  setRGB loop: %.3f ms/frame   lookup table: %.3f ms/frame   speedup %.1fx",
+					width, height,
+					legacy / 1000000.0 / iterations,
+					table / 1000000.0 / iterations,
+					(double)legacy / table));
+		}
+	}
+
+	/**
+	 * Time a number of conversions after a short warmup
+	 * @return Total elapsed nanoseconds for the timed iterations
+	 */
+	private static long time(byte[] frame, BufferedImage img, int iterations, boolean legacy) {
+		for(int i=0; i < WARMUP; i++) {
+			convertOnce(frame, img, legacy);
+		}
+		long start = System.nanoTime();
+		for(int i=0; i < iterations; i++) {
+			convertOnce(frame, img, legacy);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void convertOnce(byte[] frame, BufferedImage img, boolean legacy) {
+		if(legacy) {
+			legacyConvert(frame, img);
+		} else {
+			YUYVConverter.convert(frame, img);
+		}
+	}
+
+	private static byte[] createFrame(int width, int height, byte[] recorded) {
+		int size = width * height * 2;
+		if(recorded != null && recorded.length == size) {
+			System.out.println("Using recorded frame for " + width + "x" + height);
+			return recorded;
+		}
+		byte[] frame = new byte[size];
+		new Random(42).nextBytes(frame);
+		return frame;
+	}
+
+	static byte[] readFrame(String filename) throws IOException {
+		FileInputStream fis = new FileInputStream(filename);
+		try {
+			byte[] frame = new byte[(int)fis.getChannel().size()];
+			new DataInputStream(fis).readFully(frame);
+			return frame;
+		} finally {
+			fis.close();
+		}
+	}
+
+	private static boolean sameImage(BufferedImage a, BufferedImage b) {
+		for(int y=0; y < a.getHeight(); y++) {
+			for(int x=0; x < a.getWidth(); x++) {
+				if(a.getRGB(x, y) != b.getRGB(x, y)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The conversion loop as it was in Snapshot, ImageCapture and CameraFrame
+	 */
+	private static void legacyConvert(byte[] frame, BufferedImage img) {
+		int width = img.getWidth();
+		int frameSize = width * img.getHeight() * 2;
+		for(int i=0;i<frameSize;i+=4) {
+			int y1 = frame[i] & 0xFF;
+			int y2 = frame[i+2] & 0xFF;
+			int u = frame[i+1] & 0xFF;
+			int v = frame[i+3] & 0xFF;
+			int rgb1 = convertYUVtoARGB(y1,u,v);
+			int rgb2 = convertYUVtoARGB(y2,u,v);
+			img.setRGB((i % (width * 2)) / 2, i / (width * 2), rgb1);
+			img.setRGB((i % (width * 2)) / 2 + 1, i / (width * 2), rgb2);
+		}
+	}
+
+	private static int convertYUVtoARGB(int y, int u, int v) {
+		int c = y - 16;
+		int d = u - 128;
+		int e = v - 128;
+		int r = (298*c+409*e+128)/256;
+		int g = (298*c-100*d-208*e+128)/256;
+		int b = (298*c+516*d+128)/256;
+		r = r>255? 255 : r<0 ? 0 : r;
+		g = g>255? 255 : g<0 ? 0 : g;
+		b = b>255? 255 : b<0 ? 0 : b;
+		return 0xff000000 | (r<<16) | (g<<8) | b;
+	}
+}
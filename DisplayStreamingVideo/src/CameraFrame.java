@@ -1,50 +1,65 @@
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
- 
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
- 
-public class CameraFrame {
+import javax.swing.Timer;
+
+import com.mastincrosbie.camera.StreamReceiver;
+
+/**
+ * Display the video streamed by StreamVideo. Any number of robots can stream at once,
+ * each one gets a tile in the window. Frames can arrive in any FrameCodec,
+ * FrameDecoder works out which from each frame's header. A StreamVideo run without a
+ * codec, or an older one, sends plain frames with no header, and those are shown too.
+ *
+ * All the streams are read by one StreamReceiver thread and decoded on a small pool
+ * of worker threads, not a thread per robot. Each stream is triple buffered, so a
+ * decode never waits for a paint or a paint for a decode.
+ *
+ * CameraFrame [-stats]
+ *
+ * -stats prints each stream's decode and paint rates every few seconds.
+ */
+public class CameraFrame implements StreamReceiver.Listener {
     private static final int WIDTH = 160;
     private static final int HEIGHT = 120;
-    private static final int NUM_PIXELS = WIDTH * HEIGHT;
-    private static final int BUFFER_SIZE = NUM_PIXELS * 2;
     private static final int PORT = 55555;
- 
-    private ServerSocket ss;
-    private Socket sock;
-    private byte[] buffer = new byte[BUFFER_SIZE];
-    private BufferedInputStream bis;
-    private BufferedImage image;
-    private CameraPanel panel = new CameraPanel();
+    private static final int STATS_INTERVAL = 5000;
+
+    private StreamReceiver receiver;
+    private final Map<StreamReceiver.Stream, CameraPanel> tiles = new ConcurrentHashMap<StreamReceiver.Stream, CameraPanel>();
+    private final JPanel view = new JPanel();
     private JFrame frame;
- 
-    public CameraFrame() {  
+
+    public CameraFrame() {
         try {
-            ss = new ServerSocket(PORT);
-            sock = ss.accept();
-            bis = new BufferedInputStream(sock.getInputStream());
-        } catch (Exception e) {
-            System.err.println("Failed to connect: " + e);
+            receiver = new StreamReceiver(PORT, this);
+            receiver.setPlainFrameSize(WIDTH, HEIGHT);
+        } catch (IOException e) {
+            System.err.println("Failed to listen on port " + PORT + ": " + e);
             System.exit(1);
         }
- 
-        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
     }
- 
+
     public void createAndShowGUI() {
         frame = new JFrame("EV3 Camera View");
- 
-        frame.getContentPane().add(panel);
-        frame.setPreferredSize(new Dimension(WIDTH, HEIGHT));
- 
+
+        view.setBackground(Color.BLACK);
+        view.setPreferredSize(new Dimension(WIDTH, HEIGHT));
+        frame.getContentPane().add(view);
+
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.addWindowListener(new WindowAdapter() {
             @Override
@@ -52,81 +67,148 @@ public class CameraFrame {
                 close();
             }
         });
- 
+
         frame.pack();
         frame.setVisible(true);
     }
- 
+
     public void close() {
         try {
-            if (bis != null) bis.close();
-            if (sock != null) sock.close();
-            if (ss != null) ss.close();
+            receiver.close();
         } catch (Exception e1) {
             System.err.println("Exception closing window: " + e1);
         }
     }
- 
-    private int convertYUVtoARGB(int y, int u, int v) {
-        int c = y - 16;
-        int d = u - 128;
-        int e = v - 128;
-        int r = (298*c+409*e+128)/256;
-        int g = (298*c-100*d-208*e+128)/256;
-        int b = (298*c+516*d+128)/256;
-        r = r>255? 255 : r<0 ? 0 : r;
-        g = g>255? 255 : g<0 ? 0 : g;
-        b = b>255? 255 : b<0 ? 0 : b;
-        return 0xff000000 | (r<<16) | (g<<8) | b;
-    }
- 
+
     public void run() {
-        while(true) {
-            synchronized (this) {
-                try {
-                    int offset = 0;
-                    while (offset < BUFFER_SIZE) {
-                        offset += bis.read(buffer, offset, BUFFER_SIZE - offset);
-                    }
-                    for(int i=0;i<BUFFER_SIZE;i+=4) {
-                        int y1 = buffer[i] & 0xFF;
-                        int y2 = buffer[i+2] & 0xFF;
-                        int u = buffer[i+1] & 0xFF;
-                        int v = buffer[i+3] & 0xFF;
-                        int rgb1 = convertYUVtoARGB(y1,u,v);
-                        int rgb2 = convertYUVtoARGB(y2,u,v);
-                        image.setRGB((i % (WIDTH * 2)) / 2, i / (WIDTH * 2), rgb1);
-                        image.setRGB((i % (WIDTH * 2)) / 2 + 1, i / (WIDTH * 2), rgb2);
-                    }
-                } catch (Exception e) {
-                    break;
+        receiver.start();
+    }
+
+    /**
+     * Print each stream's decode and paint rates every STATS_INTERVAL
+     */
+    public void startStats() {
+        Timer timer = new Timer(STATS_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for(CameraPanel panel : tiles.values()) {
+                    panel.printStats();
                 }
             }
+        });
+        timer.start();
+    }
+
+    public void streamOpened(final StreamReceiver.Stream stream) {
+        System.out.println("Receiving " + stream);
+        final CameraPanel panel = new CameraPanel(stream);
+        tiles.put(stream, panel);
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                view.add(panel);
+                layoutTiles();
+            }
+        });
+    }
+
+    public void frameDecoded(StreamReceiver.Stream stream) {
+        CameraPanel panel = tiles.get(stream);
+        if(panel != null) {
             panel.repaint(1);
         }
     }
- 
+
+    public void streamClosed(StreamReceiver.Stream stream, IOException cause) {
+        System.err.println("Stream ended: " + stream + (cause != null ? " " + cause : ""));
+        final CameraPanel panel = tiles.remove(stream);
+        if(panel == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                view.remove(panel);
+                layoutTiles();
+            }
+        });
+    }
+
+    /**
+     * Arrange the tiles in a square grid, growing the window to fit them at full size
+     */
+    private void layoutTiles() {
+        int n = Math.max(1, view.getComponentCount());
+        int cols = (int) Math.ceil(Math.sqrt(n));
+        int rows = (n + cols - 1) / cols;
+        view.setLayout(new GridLayout(rows, cols, 2, 2));
+        view.setPreferredSize(new Dimension(cols * WIDTH, rows * HEIGHT));
+        view.revalidate();
+        view.repaint();
+        if(frame != null) {
+            frame.pack();
+        }
+    }
+
     class CameraPanel extends JPanel {
         private static final long serialVersionUID = 1L;
- 
+        private final StreamReceiver.Stream stream;
+        // Only touched on the event thread
+        private long paints;
+        private long lastPaints;
+        private long lastDecoded;
+        private long lastShown;
+        private long lastStats = System.currentTimeMillis();
+
+        CameraPanel(StreamReceiver.Stream stream) {
+            this.stream = stream;
+            setBackground(Color.BLACK);
+        }
+
+        void printStats() {
+            long now = System.currentTimeMillis();
+            float secs = (now - lastStats) / 1000f;
+            long decoded = stream.getFrames();
+            long shown = stream.getShown();
+            System.out.println(stream + ": decode " + Math.round((decoded - lastDecoded) / secs)
+                    + " fps, shown " + Math.round((shown - lastShown) / secs)
+                    + " fps, paint " + Math.round((paints - lastPaints) / secs) + " fps");
+            lastDecoded = decoded;
+            lastShown = shown;
+            lastPaints = paints;
+            lastStats = now;
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            // Ensure that we don't paint while the image is being refreshed
-            synchronized(CameraFrame.this) {
-                g.drawImage(image, 0, 0, null);
+            // The newest frame, the decoder is already working on the next one in another image
+            BufferedImage image = stream.getImage();
+            if(image != null) {
+                g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
             }
-        }   
+            paints++;
+            g.setColor(Color.YELLOW);
+            g.drawString(stream.getId() + (stream.getCodec() != null ? " " + stream.getCodec() : ""), 4, 14);
+        }
     }
- 
-    public static void main(String[] args) {    
+
+    public static void main(String[] args) {
         final CameraFrame cameraFrame = new CameraFrame();
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                cameraFrame.createAndShowGUI(); 
+                cameraFrame.createAndShowGUI();
             }
         });
         cameraFrame.run();
+        if(args.length > 0 && args[0].equals("-stats")) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    cameraFrame.startStats();
+                }
+            });
+        }
     }
-}
\ No newline at end of file
+}
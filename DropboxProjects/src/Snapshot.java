@@ -1,7 +1,6 @@
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -10,8 +9,6 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Locale;
 
-import javax.imageio.ImageIO;
-
 import lejos.hardware.BrickFinder;
 import lejos.hardware.Button;
 import lejos.hardware.Sound;
@@ -25,6 +22,11 @@ import lejos.utility.Delay;
 import com.dropbox.core.*;
 import com.dropbox.core.json.JsonReader;
 import com.dropbox.core.util.IOUtil;
+import com.mastincrosbie.camera.DropboxUploader;
+import com.mastincrosbie.camera.JpegBuffer;
+import com.mastincrosbie.camera.JpegEncoder;
+import com.mastincrosbie.camera.UploadSpool;
+import com.mastincrosbie.camera.YUYVConverter;
 
 /**
  * Use a cheap webcam to take a snapshot and send the image to Dropbox.
@@ -47,6 +49,9 @@ public class Snapshot {
    private static int FRAME_SIZE = NUM_PIXELS * 2;
    private static final String AUTHFILENAME = "./access-token.json";
    private static final String FILENAME = "snapshots/snapshot_";
+   // Snapshots that fail to upload wait here and are retried in the background
+   private static final String SPOOL_DIR = "snapshots/spool";
+   private static final long SPOOL_MAX_BYTES = 8 * 1024 * 1024;
 
    public static void main(String args[]) throws IOException, DbxException {
 	   int ret = _main(args);
@@ -82,6 +87,11 @@ public class Snapshot {
        DbxRequestConfig requestConfig = new DbxRequestConfig("Snapshot", userLocale);
        DbxClient dbxClient = new DbxClient(requestConfig, authInfo.accessToken, authInfo.host);
  
+       // Upload anything left over from last time, then anything that fails from now on
+       UploadSpool spool = new UploadSpool(new File(SPOOL_DIR), SPOOL_MAX_BYTES);
+       System.out.println("Upload spool has " + spool.size() + " snapshots waiting");
+       spool.startDrain(new DropboxUploader(dbxClient), 5000, 60000);
+ 
        System.out.println("Open video camera...");
        // Get the video device and open the stream
        Video video = BrickFinder.getDefault().getVideo();
@@ -89,7 +99,11 @@ public class Snapshot {
      
        // Create the frame buffer to hold the image in
        byte[] frame = video.createFrame();
-       BufferedImage img = new BufferedImage(WIDTH, HEIGHT,BufferedImage.TYPE_INT_RGB);
+       BufferedImage img = new BufferedImage(WIDTH, HEIGHT,BufferedImage.TYPE_3BYTE_BGR);
+       
+       // Reuse one encoder and one JPEG buffer for every snapshot
+       JpegEncoder encoder = new JpegEncoder();
+       JpegBuffer jpeg = new JpegBuffer(NUM_PIXELS);
        YUYVImage yuyvImg = new YUYVImage(frame, video.getWidth(), video.getHeight());
 
        GraphicsLCD g = BrickFinder.getDefault().getGraphicsLCD();
@@ -109,29 +123,24 @@ public class Snapshot {
                
              // if (Button.ENTER.isUp()) {
             	  Sound.playTone(500, 100);
-                  for(int i=0;i<FRAME_SIZE;i+=4) {
-                      int y1 = frame[i] & 0xFF;
-                      int y2 = frame[i+2] & 0xFF;
-                      int u = frame[i+1] & 0xFF;
-                      int v = frame[i+3] & 0xFF;
-                      int rgb1 = convertYUVtoARGB(y1,u,v);
-                      int rgb2 = convertYUVtoARGB(y2,u,v);
-                      img.setRGB((i % (WIDTH * 2)) / 2, i / (WIDTH * 2), rgb1);
-                      img.setRGB((i % (WIDTH * 2)) / 2 + 1, i / (WIDTH * 2), rgb2);
-                  }
+                  YUYVConverter.convert(frame, img);
                   
                   // Convert the RGB image into a jpg format
-                  ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                  ImageIO.write(img, "jpg", baos);
-                  byte[] jpgImageBytes = baos.toByteArray();
+                  encoder.encode(img, jpeg);
 
                   String filename = FILENAME+frames+".jpg";
                   System.out.println("Saving image to " + filename);
-                  saveImageToFile(baos.toByteArray(), filename);
+                  saveImageToFile(jpeg, filename);
                   
                   System.out.println("Saving to Dropbox");
-                  writeImageToDropbox(dbxClient, baos.toByteArray(), "/"+filename);
-                  System.out.println("Done");
+                  try {
+                	  writeImageToDropbox(dbxClient, jpeg, "/"+filename);
+                	  System.out.println("Done");
+                  } catch (DbxException ex) {
+                	  System.out.println("Error uploading to Dropbox: " + ex.getMessage());
+                	  spool.append("/"+filename, jpeg);
+                	  System.out.println("Spooled for later, " + spool);
+                  }
                   Sound.beepSequenceUp();
                   
             	  frames++;
@@ -143,10 +152,13 @@ public class Snapshot {
 	           ioe.printStackTrace();
 	           System.out.println("Driver exception: " + ioe.getMessage());
 	           Sound.buzz();
+	           spool.close();
 	           return 1;
 	      }
        }
       video.close();
+      encoder.dispose();
+      spool.close();
       g.clear();
       return 0;
    }
@@ -154,13 +166,13 @@ public class Snapshot {
     /**
     * Save an image file from the webcam to disk
     * 
-    * @param img - image byte buffer
+    * @param img - encoded JPEG image
     * @param filename - file to store to
     */
-   public static void saveImageToFile(byte[] img, String filename) {
+   public static void saveImageToFile(JpegBuffer img, String filename) {
 	   try {
 		   FileOutputStream fos = new FileOutputStream(filename);
-		   fos.write(img);
+		   img.writeTo(fos);
 		   fos.close();
 	   } catch(IOException ioe) {
            ioe.printStackTrace();
@@ -168,30 +180,12 @@ public class Snapshot {
 	   }
    }
    
-   private static void writeImageToDropbox(DbxClient dbxClient, byte[] img, String dbFilename) 
+   private static void writeImageToDropbox(DbxClient dbxClient, JpegBuffer img, String dbFilename) 
 		   throws DbxException, IOException {
        // Make the API call to upload the file.
-       DbxEntry.File metadata;
-       try {
-    	   metadata = dbxClient.uploadFile(dbFilename, DbxWriteMode.add(), img.length, 
-    			   new ByteArrayInputStream(img));
-    	   System.out.println("Metadata: " + metadata.toStringMultiline());
-       } catch (DbxException ex) {
-               System.out.println("Error uploading to Dropbox: " + ex.getMessage());
-       }
+       DbxEntry.File metadata = dbxClient.uploadFile(dbFilename, DbxWriteMode.add(), img.size(), 
+    		   img.getInputStream());
+       System.out.println("Metadata: " + metadata.toStringMultiline());
    }
     
-   private static int convertYUVtoARGB(int y, int u, int v) {
-       int c = y - 16;
-       int d = u - 128;
-       int e = v - 128;
-       int r = (298*c+409*e+128)/256;
-       int g = (298*c-100*d-208*e+128)/256;
-       int b = (298*c+516*d+128)/256;
-       r = r>255? 255 : r<0 ? 0 : r;
-       g = g>255? 255 : g<0 ? 0 : g;
-       b = b>255? 255 : b<0 ? 0 : b;
-       return 0xff000000 | (r<<16) | (g<<8) | b;
-   }
-
  }
\ No newline at end of file
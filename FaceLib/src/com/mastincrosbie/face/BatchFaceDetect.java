@@ -0,0 +1,340 @@
+package com.mastincrosbie.face;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Find the faces in every image in a directory tree, e.g. the archived SurveillanceCam
+ * snapshots, on a pool of worker threads.
+ *
+ * Each worker has its own FaceDetectionContext, and so its own CascadeClassifier,
+ * created the first time it is needed and kept in a ThreadLocal, since a classifier
+ * can't be shared between threads. A copy of every image with its faces boxed is
+ * written to the output directory, under the same relative path, and summary.csv and
+ * summary.json there list the faces found in each image, in directory order.
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.BatchFaceDetect imageDir outDir [-threads n] [-profile detector.properties] [-cascade file.xml] [-noimages]
+ *
+ * The detector settings come from a DetectorProfile, see DetectorTuning, or the defaults.
+ *
+ * @author mcrosbie
+ *
+ */
+public class BatchFaceDetect {
+
+	private static final String[] EXTENSIONS = { ".jpg", ".jpeg", ".png", ".bmp" };
+	private static final Scalar FACE_COLOUR = new Scalar(0, 255, 0);
+	private static final int PROGRESS_INTERVAL = 100;
+
+	/**
+	 * The faces found in one image
+	 */
+	private static class Result {
+		final String path;
+		int width, height;
+		Rect[] faces = new Rect[0];
+		long detectNanos;
+		String error;
+
+		Result(String path) {
+			this.path = path;
+		}
+	}
+
+	private final File imageDir;
+	private final File outDir;
+	private final DetectorProfile profile;
+	private final boolean writeImages;
+
+	// Every context made, so they can all be released at the end
+	private final List<FaceDetectionContext> contexts = new ArrayList<FaceDetectionContext>();
+	private final ThreadLocal<FaceDetectionContext> detection = new ThreadLocal<FaceDetectionContext>() {
+		@Override
+		protected FaceDetectionContext initialValue() {
+			FaceDetectionContext context = profile.createContext();
+			synchronized(contexts) {
+				contexts.add(context);
+			}
+			return context;
+		}
+	};
+
+	/**
+	 * @param imageDir Top of the directory tree of images
+	 * @param outDir Where to write the boxed images and summaries
+	 * @param profile Detector settings
+	 * @param writeImages false to only write the summaries
+	 */
+	public BatchFaceDetect(File imageDir, File outDir, DetectorProfile profile, boolean writeImages) {
+		this.imageDir = imageDir;
+		this.outDir = outDir;
+		this.profile = profile;
+		this.writeImages = writeImages;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.err.println("Usage: BatchFaceDetect imageDir outDir [-threads n] [-profile detector.properties] [-cascade file.xml] [-noimages]");
+			System.exit(2);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		DetectorProfile profile = new DetectorProfile();
+		String cascade = null;
+		boolean images = true;
+		for(int i=2; i < args.length; i++) {
+			if(args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-profile") && i + 1 < args.length) {
+				profile = DetectorProfile.load(new File(args[++i]));
+			} else if(args[i].equals("-cascade") && i + 1 < args.length) {
+				cascade = args[++i];
+			} else if(args[i].equals("-noimages")) {
+				images = false;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+		if(cascade != null) {
+			profile.cascade = cascade;
+		}
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		new BatchFaceDetect(new File(args[0]), new File(args[1]), profile, images).run(threads);
+	}
+
+	/**
+	 * Detect faces in every image and write the results
+	 * @param threads Number of worker threads
+	 * @throws IOException if the summaries can't be written
+	 * @throws InterruptedException if interrupted waiting for the workers
+	 */
+	public void run(int threads) throws IOException, InterruptedException {
+		List<File> files = new ArrayList<File>();
+		findImages(imageDir, files);
+		if(!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Can't create " + outDir);
+		}
+		System.out.println("Found " + files.size() + " images, detecting with " + threads + " threads, " + profile);
+		// Fail now rather than on every image if the cascade won't load. The main thread
+		// doesn't detect, so the context is only for the check
+		profile.createContext().release();
+
+		final String base = imageDir.getPath();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results = new ArrayList<Future<Result>>(files.size());
+		long start = System.nanoTime();
+		for(final File f : files) {
+			results.add(workers.submit(new Callable<Result>() {
+				public Result call() {
+					return detect(f, relative(base, f));
+				}
+			}));
+		}
+
+		PrintWriter csv = new PrintWriter(new File(outDir, "summary.csv"), "UTF-8");
+		PrintWriter json = new PrintWriter(new File(outDir, "summary.json"), "UTF-8");
+		csv.println("image,width,height,faces,detectMs,boxes,error");
+		json.println("[");
+		long faces = 0;
+		long errors = 0;
+		long detectNanos = 0;
+		try {
+			for(int i=0; i < results.size(); i++) {
+				Result r;
+				try {
+					r = results.get(i).get();
+				} catch (ExecutionException e) {
+					r = new Result(relative(base, files.get(i)));
+					r.error = String.valueOf(e.getCause());
+				}
+				faces += r.faces.length;
+				detectNanos += r.detectNanos;
+				if(r.error != null) {
+					errors++;
+				}
+				writeCsv(csv, r);
+				writeJson(json, r, i == results.size() - 1);
+				if((i + 1) % PROGRESS_INTERVAL == 0) {
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.out.println(String.format(Locale.ROOT, "%d/%d images, %.1f images/sec", i + 1, results.size(), (i + 1) / seconds));
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+			// Don't free a context a worker is still using
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+			json.println("]");
+			csv.close();
+			json.close();
+			synchronized(contexts) {
+				for(FaceDetectionContext c : contexts) {
+					c.release();
+				}
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT,
+				"%d images, %d faces, %d errors in %.1f s: %.1f images/sec, %.1f ms detecting per image",
+				files.size(), faces, errors, seconds, files.size() / seconds,
+				files.isEmpty() ? 0 : detectNanos / 1e6 / files.size()));
+		System.out.println("Summary in " + new File(outDir, "summary.csv") + " and summary.json");
+	}
+
+	/**
+	 * Worker: find the faces in one image and write it boxed
+	 */
+	private Result detect(File file, String path) {
+		Result r = new Result(path);
+		Mat image = Highgui.imread(file.getPath());
+		try {
+			if(image.empty()) {
+				r.error = "can't read image";
+				return r;
+			}
+			r.width = image.cols();
+			r.height = image.rows();
+			FaceDetectionContext context = detection.get();
+			int n = context.detect(image);
+			r.detectNanos = context.getDetectNanos();
+			r.faces = new Rect[n];
+			for(int i=0; i < n; i++) {
+				Rect f = context.getFace(i);
+				r.faces[i] = new Rect(f.x, f.y, f.width, f.height);
+				if(writeImages) {
+					Core.rectangle(image, f.tl(), f.br(), FACE_COLOUR, 2);
+				}
+			}
+			if(writeImages) {
+				File out = new File(outDir, path);
+				File dir = out.getParentFile();
+				if(dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+					r.error = "can't create " + dir;
+				} else if(!Highgui.imwrite(out.getPath(), image)) {
+					r.error = "can't write " + out;
+				}
+			}
+		} catch (RuntimeException e) {
+			// e.g. a CvException from a corrupt image, carry on with the rest
+			r.error = String.valueOf(e);
+		} finally {
+			image.release();
+		}
+		return r;
+	}
+
+	/**
+	 * Add every image under dir, in name order, skipping the output directory
+	 */
+	private void findImages(File dir, List<File> files) throws IOException {
+		File[] entries = dir.listFiles();
+		if(entries == null) {
+			throw new IOException("Can't list " + dir);
+		}
+		Arrays.sort(entries);
+		for(File f : entries) {
+			if(f.isDirectory()) {
+				if(!f.getCanonicalFile().equals(outDir.getCanonicalFile())) {
+					findImages(f, files);
+				}
+			} else if(isImage(f.getName())) {
+				files.add(f);
+			}
+		}
+	}
+
+	private static boolean isImage(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		for(String ext : EXTENSIONS) {
+			if(lower.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String relative(String base, File f) {
+		String p = f.getPath();
+		if(p.startsWith(base)) {
+			p = p.substring(base.length());
+		}
+		while(p.startsWith(File.separator)) {
+			p = p.substring(1);
+		}
+		return p.replace(File.separatorChar, '/');
+	}
+
+	private static void writeCsv(PrintWriter csv, Result r) {
+		StringBuilder boxes = new StringBuilder();
+		for(Rect f : r.faces) {
+			if(boxes.length() > 0) {
+				boxes.append(' ');
+			}
+			boxes.append(f.x).append(':').append(f.y).append(':').append(f.width).append(':').append(f.height);
+		}
+		csv.println(csvField(r.path) + "," + r.width + "," + r.height + "," + r.faces.length + ","
+				+ String.format(Locale.ROOT, "%.2f", r.detectNanos / 1e6) + "," + boxes + ","
+				+ (r.error == null ? "" : csvField(r.error)));
+	}
+
+	private static void writeJson(PrintWriter json, Result r, boolean last) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("  {\"image\": ").append(jsonString(r.path));
+		sb.append(", \"width\": ").append(r.width);
+		sb.append(", \"height\": ").append(r.height);
+		sb.append(", \"detectMs\": ").append(String.format(Locale.ROOT, "%.2f", r.detectNanos / 1e6));
+		sb.append(", \"faces\": [");
+		for(int i=0; i < r.faces.length; i++) {
+			Rect f = r.faces[i];
+			sb.append(i == 0 ? "" : ", ");
+			sb.append("{\"x\": ").append(f.x).append(", \"y\": ").append(f.y)
+				.append(", \"width\": ").append(f.width).append(", \"height\": ").append(f.height).append('}');
+		}
+		sb.append(']');
+		if(r.error != null) {
+			sb.append(", \"error\": ").append(jsonString(r.error));
+		}
+		sb.append(last ? "}" : "},");
+		json.println(sb);
+	}
+
+	private static String csvField(String s) {
+		if(s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+			return s;
+		}
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int i=0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if(c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,131 @@
+package com.mastincrosbie.face;
+
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * The faces found in one frame, with when the frame was captured and when detection
+ * finished. Never changes once made, so one can be handed from the detection thread
+ * to any number of readers without locking: they see all of it or none of it, never a
+ * face count from one frame and a position from another.
+ *
+ * Rects are copied in and copied out, so neither side can change the other's.
+ *
+ * @author mcrosbie
+ *
+ */
+public final class DetectionResult {
+
+	/** No frames detected yet */
+	public static final DetectionResult NONE = new DetectionResult(0, 0, 0, new Rect[0], 0);
+
+	private final long frame;
+	private final long captured;
+	private final long detected;
+	private final Rect[] faces;
+
+	/**
+	 * @param frame Frame number, higher for later frames
+	 * @param captured System.nanoTime() the frame was captured
+	 * @param detected System.nanoTime() detection finished
+	 * @param faces Faces found, copied
+	 * @param count How many of faces to use
+	 */
+	public DetectionResult(long frame, long captured, long detected, Rect[] faces, int count) {
+		this.frame = frame;
+		this.captured = captured;
+		this.detected = detected;
+		this.faces = new Rect[count];
+		for(int i=0; i < count; i++) {
+			this.faces[i] = copy(faces[i]);
+		}
+	}
+
+	/**
+	 * The faces a context found in its last detect()
+	 * @param frame Frame number
+	 * @param captured System.nanoTime() the frame was captured
+	 * @param context The context
+	 * @return The result
+	 */
+	public static DetectionResult of(long frame, long captured, FaceDetectionContext context) {
+		Rect[] found = new Rect[context.getFaceCount()];
+		for(int i=0; i < found.length; i++) {
+			found[i] = context.getFace(i);
+		}
+		return new DetectionResult(frame, captured, System.nanoTime(), found, found.length);
+	}
+
+	/**
+	 * The face a tracker is following after its last update(), if any
+	 * @param frame Frame number
+	 * @param captured System.nanoTime() the frame was captured
+	 * @param tracker The tracker
+	 * @return The result
+	 */
+	public static DetectionResult of(long frame, long captured, FaceTracker tracker) {
+		return new DetectionResult(frame, captured, System.nanoTime(),
+				new Rect[] { tracker.getFace() }, tracker.isTracking() ? 1 : 0);
+	}
+
+	private static Rect copy(Rect r) {
+		return new Rect(r.x, r.y, r.width, r.height);
+	}
+
+	/** @return Frame number, higher for later frames */
+	public long getFrame() {
+		return frame;
+	}
+
+	/** @return System.nanoTime() the frame was captured */
+	public long getCaptured() {
+		return captured;
+	}
+
+	/** @return System.nanoTime() detection finished */
+	public long getDetected() {
+		return detected;
+	}
+
+	/** @return Milliseconds from capturing the frame to finishing detection */
+	public long getLatency() {
+		return (detected - captured) / 1000000;
+	}
+
+	/** @return Milliseconds since the frame was captured */
+	public long getAge() {
+		return (System.nanoTime() - captured) / 1000000;
+	}
+
+	/** @return Number of faces found */
+	public int getFaceCount() {
+		return faces.length;
+	}
+
+	/** @return true if any faces were found */
+	public boolean hasFace() {
+		return faces.length > 0;
+	}
+
+	/**
+	 * @param i Which face, from 0 to getFaceCount() - 1
+	 * @return A copy of the face
+	 */
+	public Rect getFace(int i) {
+		return copy(faces[i]);
+	}
+
+	/**
+	 * @param i Which face, from 0 to getFaceCount() - 1
+	 * @return Centre of the face
+	 */
+	public Point getFaceCenter(int i) {
+		Rect r = faces[i];
+		return new Point(r.x + r.width / 2.0, r.y + r.height / 2.0);
+	}
+
+	@Override
+	public String toString() {
+		return "Frame " + frame + ": " + faces.length + " faces, latency " + getLatency() + "ms";
+	}
+}
@@ -0,0 +1,203 @@
+package com.mastincrosbie.face;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.opencv.core.Size;
+
+/**
+ * A set of face detection settings, chosen with DetectorTuning and saved as a
+ * properties file so a detector can load it at start-up:
+ *
+ *   cascade=lbp            lbp, haar, or the path of a cascade XML file
+ *   scaleFactor=1.2        image pyramid step
+ *   minNeighbours=3
+ *   minSize=20             smallest face, pixels square, 0 for no limit
+ *   maxSize=0              largest face, pixels square, 0 for no limit
+ *   detectWidth=0          shrink frames wider than this before searching, 0 for never
+ *   flags=0
+ *
+ * Any setting left out keeps its default.
+ *
+ * @author mcrosbie
+ *
+ */
+public class DetectorProfile {
+
+	public static final String LBP = "lbp";
+	public static final String HAAR = "haar";
+	public static final String LBP_CASCADE = "/lbpcascade_frontalface.xml";
+	public static final String HAAR_CASCADE = "/haarcascade_frontalface_alt.xml";
+
+	public String cascade = LBP;
+	public double scaleFactor = 1.1;
+	public int minNeighbours = 3;
+	public int minSize = 0;
+	public int maxSize = 0;
+	public int detectWidth = 0;
+	public int flags = 0;
+
+	// Cascades packaged in a jar, copied out to a file OpenCV can open, by resource name
+	private static final Map<String, File> extracted = new HashMap<String, File>();
+
+	/**
+	 * Load a profile from a properties file
+	 * @param file The file
+	 * @return The profile
+	 * @throws IOException if the file can't be read or a setting isn't a number
+	 */
+	public static DetectorProfile load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load a profile from a properties stream
+	 * @param in The stream
+	 * @return The profile
+	 * @throws IOException if the stream can't be read or a setting isn't a number
+	 */
+	public static DetectorProfile load(InputStream in) throws IOException {
+		Properties props = new Properties();
+		props.load(in);
+		DetectorProfile p = new DetectorProfile();
+		try {
+			p.cascade = props.getProperty("cascade", p.cascade).trim();
+			p.scaleFactor = Double.parseDouble(props.getProperty("scaleFactor", "" + p.scaleFactor).trim());
+			p.minNeighbours = Integer.parseInt(props.getProperty("minNeighbours", "" + p.minNeighbours).trim());
+			p.minSize = Integer.parseInt(props.getProperty("minSize", "" + p.minSize).trim());
+			p.maxSize = Integer.parseInt(props.getProperty("maxSize", "" + p.maxSize).trim());
+			p.detectWidth = Integer.parseInt(props.getProperty("detectWidth", "" + p.detectWidth).trim());
+			p.flags = Integer.parseInt(props.getProperty("flags", "" + p.flags).trim());
+		} catch (NumberFormatException ex) {
+			throw new IOException("Bad detector profile: " + ex.getMessage());
+		}
+		if(p.scaleFactor <= 1.0) {
+			throw new IOException("Bad detector profile: scaleFactor must be more than 1");
+		}
+		return p;
+	}
+
+	/**
+	 * Save the profile as a properties file
+	 * @param file Where to save it
+	 * @param comment Written at the top of the file
+	 * @throws IOException if the file can't be written
+	 */
+	public void store(File file, String comment) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("cascade", cascade);
+		props.setProperty("scaleFactor", "" + scaleFactor);
+		props.setProperty("minNeighbours", "" + minNeighbours);
+		props.setProperty("minSize", "" + minSize);
+		props.setProperty("maxSize", "" + maxSize);
+		props.setProperty("detectWidth", "" + detectWidth);
+		props.setProperty("flags", "" + flags);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, comment);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return Path of the cascade XML file. lbp and haar are looked up on the classpath,
+	 * and copied to a temporary file if they are packaged in a jar.
+	 * @throws IllegalArgumentException if a packaged cascade can't be copied out
+	 */
+	public String getCascadePath() {
+		String resource = cascade.equalsIgnoreCase(LBP) ? LBP_CASCADE : cascade.equalsIgnoreCase(HAAR) ? HAAR_CASCADE : null;
+		if(resource == null) {
+			return cascade;
+		}
+		URL url = DetectorProfile.class.getResource(resource);
+		if(url == null) {
+			return resource.substring(1);
+		}
+		if(url.getProtocol().equals("file")) {
+			try {
+				return new File(url.toURI()).getPath();
+			} catch (URISyntaxException ex) {
+				// Fall back to copying it out
+			}
+		}
+		try {
+			return extract(resource, url).getPath();
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Can't copy cascade " + resource + " out of " + url + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Copy a cascade resource to a temporary file, once, since CascadeClassifier can only
+	 * load from a file
+	 * @return The file
+	 */
+	private static File extract(String resource, URL url) throws IOException {
+		synchronized(extracted) {
+			File file = extracted.get(resource);
+			if(file != null && file.isFile()) {
+				return file;
+			}
+			file = File.createTempFile("cascade", ".xml");
+			file.deleteOnExit();
+			InputStream in = url.openStream();
+			try {
+				OutputStream out = new FileOutputStream(file);
+				try {
+					byte[] buf = new byte[8192];
+					int n;
+					while((n = in.read(buf)) > 0) {
+						out.write(buf, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			extracted.put(resource, file);
+			return file;
+		}
+	}
+
+	/**
+	 * Create a detection context with these settings
+	 * @return The context
+	 * @throws IllegalArgumentException if the cascade can't be loaded
+	 */
+	public FaceDetectionContext createContext() {
+		FaceDetectionContext context = new FaceDetectionContext(getCascadePath());
+		apply(context);
+		return context;
+	}
+
+	/**
+	 * Use these settings, except the cascade, in a context
+	 * @param context The context
+	 */
+	public void apply(FaceDetectionContext context) {
+		context.setParameters(scaleFactor, minNeighbours, flags, new Size(minSize, minSize), new Size(maxSize, maxSize));
+		context.setDetectWidth(detectWidth);
+	}
+
+	@Override
+	public String toString() {
+		return cascade + " scale " + scaleFactor + " neighbours " + minNeighbours + " size " + minSize + "-"
+				+ (maxSize == 0 ? "any" : "" + maxSize) + " width " + (detectWidth == 0 ? "full" : "" + detectWidth);
+	}
+}
@@ -0,0 +1,289 @@
+package com.mastincrosbie.face;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Find the best face detection settings offline. Every image listed in a directory's
+ * labels.csv is run through the detector with every combination of cascade, pyramid
+ * scale factor, minNeighbours, min and max face size and detect width, and each
+ * combination's precision, recall and time per frame goes to tuning.csv.
+ *
+ * The best profile, highest F1 score then quickest, is saved as detector.properties
+ * for HTTPFaceDetect to load.
+ *
+ * labels.csv has a line for each face, image,x,y,width,height in the image's own
+ * pixels. An image with no faces is listed once with no box. A detection counts as
+ * a face if it overlaps a labelled box by at least MIN_OVERLAP (intersection over union).
+ *
+ * The face sizes tried are worked out from the image width, so every image must be
+ * the same width; any that aren't are skipped. Images can be shrunk to the robot
+ * camera's width first, which also makes them all the same, so the settings suit the
+ * frames they'll be used on:
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.DetectorTuning imageDir cascadeDir [width]
+ *
+ * e.g. DetectorTuning TestLocalOpenCV/bin TestLocalOpenCV/bin 160
+ *
+ * @author mcrosbie
+ *
+ */
+public class DetectorTuning {
+
+	private static final double MIN_OVERLAP = 0.3;
+	private static final int REPEATS = 3;
+
+	private static final String[] CASCADES = { DetectorProfile.LBP, DetectorProfile.HAAR };
+	private static final double[] SCALES = { 1.05, 1.1, 1.2, 1.3, 1.5, 1.8 };
+	private static final int[] NEIGHBOURS = { 1, 2, 3, 4, 6 };
+	private static final int[] MIN_DIVISORS = { 32, 16, 8 };		// min size is width / this
+	private static final int[] MAX_DIVISORS = { 0, 2 };			// max size is width / this, 0 for no limit
+	private static final int[] DETECT_DIVISORS = { 1, 2, 4 };		// detect width is width / this
+
+	/**
+	 * A test image and its labelled faces
+	 */
+	private static class Sample {
+		final String name;
+		final Mat image = new Mat();
+		final List<Rect> faces = new ArrayList<Rect>();
+
+		Sample(String name) {
+			this.name = name;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: DetectorTuning imageDir cascadeDir [width]");
+			System.exit(2);
+		}
+		File imageDir = new File(args[0]);
+		File cascadeDir = new File(args[1]);
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		List<Sample> samples = loadSamples(imageDir, width);
+		if(samples.isEmpty()) {
+			System.err.println("No labelled images in " + imageDir);
+			System.exit(2);
+		}
+		int frameWidth = samples.get(0).image.cols();
+		System.out.println(samples.size() + " images, " + frameWidth + " pixels wide");
+
+		PrintWriter csv = new PrintWriter(new File("tuning.csv"), "US-ASCII");
+		csv.println("cascade,scaleFactor,minNeighbours,minSize,maxSize,detectWidth,truePositives,falsePositives,missed,precision,recall,f1,msPerFrame");
+
+		DetectorProfile best = null;
+		double bestF1 = -1;
+		double bestMs = Double.MAX_VALUE;
+
+		for(String cascade : CASCADES) {
+			DetectorProfile profile = new DetectorProfile();
+			profile.cascade = new File(cascadeDir, cascade.equals(DetectorProfile.LBP) ?
+					DetectorProfile.LBP_CASCADE : DetectorProfile.HAAR_CASCADE).getPath();
+			FaceDetectionContext context = profile.createContext();
+
+			for(double scale : SCALES) {
+				for(int neighbours : NEIGHBOURS) {
+					for(int minDiv : MIN_DIVISORS) {
+						for(int maxDiv : MAX_DIVISORS) {
+							for(int detectDiv : DETECT_DIVISORS) {
+								profile.scaleFactor = scale;
+								profile.minNeighbours = neighbours;
+								profile.minSize = frameWidth / minDiv;
+								profile.maxSize = maxDiv == 0 ? 0 : frameWidth / maxDiv;
+								profile.detectWidth = detectDiv == 1 ? 0 : frameWidth / detectDiv;
+								profile.apply(context);
+
+								int[] counts = new int[3];
+								long nanos = run(context, samples, counts);
+								int tp = counts[0], fp = counts[1], missed = counts[2];
+								double precision = tp + fp == 0 ? 1.0 : (double) tp / (tp + fp);
+								double recall = tp + missed == 0 ? 1.0 : (double) tp / (tp + missed);
+								double f1 = precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+								double ms = nanos / 1000000.0 / (samples.size() * REPEATS);
+
+								csv.println(String.format(Locale.ROOT, "%s,%.2f,%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.2f",
+										cascade, scale, neighbours, profile.minSize, profile.maxSize, profile.detectWidth,
+										tp, fp, missed, precision, recall, f1, ms));
+
+								if(f1 > bestF1 + 1e-9 || (Math.abs(f1 - bestF1) <= 1e-9 && ms < bestMs)) {
+									bestF1 = f1;
+									bestMs = ms;
+									best = copy(profile, cascade);
+								}
+							}
+						}
+					}
+				}
+			}
+			context.release();
+			System.out.println("Tried every " + cascade + " setting");
+		}
+		csv.close();
+
+		for(Sample s : samples) {
+			s.image.release();
+		}
+
+		best.store(new File("detector.properties"), String.format(Locale.ROOT,
+				"Chosen by DetectorTuning on %s: F1 %.3f, %.2f ms/frame", imageDir, bestF1, bestMs));
+		System.out.println(String.format(Locale.ROOT, "Best: %s, F1 %.3f, %.2f ms/frame", best, bestF1, bestMs));
+		System.out.println("Results in tuning.csv, best profile in detector.properties");
+	}
+
+	/**
+	 * Detect faces in every sample REPEATS times
+	 * @param counts Set to true positives, false positives and missed faces, from the first pass
+	 * @return Total time taken in nanoseconds
+	 */
+	private static long run(FaceDetectionContext context, List<Sample> samples, int[] counts) {
+		long nanos = 0;
+		for(int pass=0; pass < REPEATS; pass++) {
+			for(Sample s : samples) {
+				long start = System.nanoTime();
+				int n = context.detect(s.image);
+				nanos += System.nanoTime() - start;
+				if(pass == 0) {
+					score(context, n, s.faces, counts);
+				}
+			}
+		}
+		return nanos;
+	}
+
+	/**
+	 * Match each detection to the labelled face it overlaps most, each face at most once
+	 */
+	private static void score(FaceDetectionContext context, int n, List<Rect> faces, int[] counts) {
+		boolean[] matched = new boolean[faces.size()];
+		for(int i=0; i < n; i++) {
+			Rect d = context.getFace(i);
+			int bestFace = -1;
+			double bestOverlap = MIN_OVERLAP;
+			for(int f=0; f < faces.size(); f++) {
+				double overlap = overlap(d, faces.get(f));
+				if(!matched[f] && overlap >= bestOverlap) {
+					bestFace = f;
+					bestOverlap = overlap;
+				}
+			}
+			if(bestFace >= 0) {
+				matched[bestFace] = true;
+				counts[0]++;
+			} else {
+				counts[1]++;
+			}
+		}
+		for(boolean m : matched) {
+			if(!m) {
+				counts[2]++;
+			}
+		}
+	}
+
+	/**
+	 * @return Intersection over union of two boxes
+	 */
+	static double overlap(Rect a, Rect b) {
+		int x0 = Math.max(a.x, b.x);
+		int y0 = Math.max(a.y, b.y);
+		int x1 = Math.min(a.x + a.width, b.x + b.width);
+		int y1 = Math.min(a.y + a.height, b.y + b.height);
+		if(x1 <= x0 || y1 <= y0) {
+			return 0;
+		}
+		double intersection = (double) (x1 - x0) * (y1 - y0);
+		return intersection / ((double) a.width * a.height + (double) b.width * b.height - intersection);
+	}
+
+	/**
+	 * Read labels.csv and load each image it lists, shrunk to width if that is not 0.
+	 * Images a different width from the first one loaded are skipped.
+	 */
+	private static List<Sample> loadSamples(File dir, int width) throws IOException {
+		Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(dir, "labels.csv")));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#") || line.startsWith("image,")) {
+					continue;
+				}
+				String[] f = line.split(",", -1);
+				Sample s = samples.get(f[0]);
+				if(s == null) {
+					s = new Sample(f[0]);
+					samples.put(f[0], s);
+				}
+				if(f.length >= 5 && f[1].trim().length() > 0) {
+					s.faces.add(new Rect(Integer.parseInt(f[1].trim()), Integer.parseInt(f[2].trim()),
+							Integer.parseInt(f[3].trim()), Integer.parseInt(f[4].trim())));
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		List<Sample> loaded = new ArrayList<Sample>();
+		for(Sample s : samples.values()) {
+			Mat image = Highgui.imread(new File(dir, s.name).getPath());
+			if(image.empty()) {
+				System.err.println("Can't read " + s.name + ", skipped");
+				continue;
+			}
+			if(width > 0 && image.cols() != width) {
+				double scale = (double) width / image.cols();
+				Imgproc.resize(image, s.image, new Size(width, Math.round(image.rows() * scale)), 0, 0, Imgproc.INTER_AREA);
+				for(Rect r : s.faces) {
+					r.x = (int) Math.round(r.x * scale);
+					r.y = (int) Math.round(r.y * scale);
+					r.width = (int) Math.round(r.width * scale);
+					r.height = (int) Math.round(r.height * scale);
+				}
+				image.release();
+			} else {
+				image.copyTo(s.image);
+				image.release();
+			}
+			if(!loaded.isEmpty() && s.image.cols() != loaded.get(0).image.cols()) {
+				System.err.println(s.name + " is " + s.image.cols() + " pixels wide, not " + loaded.get(0).image.cols()
+						+ ", skipped. Give a width to shrink every image to it.");
+				s.image.release();
+				continue;
+			}
+			loaded.add(s);
+		}
+		return loaded;
+	}
+
+	private static DetectorProfile copy(DetectorProfile p, String cascade) {
+		DetectorProfile c = new DetectorProfile();
+		c.cascade = cascade;
+		c.scaleFactor = p.scaleFactor;
+		c.minNeighbours = p.minNeighbours;
+		c.minSize = p.minSize;
+		c.maxSize = p.maxSize;
+		c.detectWidth = p.detectWidth;
+		c.flags = p.flags;
+		return c;
+	}
+}
@@ -0,0 +1,243 @@
+package com.mastincrosbie.face;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Everything needed to find faces in a stream of frames, allocated once and reused for
+ * every frame of the session.
+ *
+ * A frame goes straight from BGR into the grey Mat, is equalised in place and handed to
+ * the classifier, which writes into the same MatOfRect each time. Nothing is copied
+ * and no Mats are created per frame, so native memory stays flat instead of waiting
+ * for the garbage collector to finalise thousands of abandoned Mats. The faces are
+ * read out of the MatOfRect once, into Rects that are also reused.
+ *
+ * Big frames can be shrunk before searching with setDetectWidth(). The cascade then
+ * scans a smaller image pyramid, and the faces found are scaled back up to the frame.
+ *
+ * Call release() when finished to free the native memory straight away.
+ *
+ * Not thread safe, use one context per detection thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FaceDetectionContext {
+
+	private final CascadeClassifier classifier;
+	private final Mat grey = new Mat();
+	private final Mat small = new Mat();
+	private final MatOfRect faces = new MatOfRect();
+
+	// Defaults are the same as CascadeClassifier.detectMultiScale(image, objects)
+	private double scaleFactor = 1.1;
+	private int minNeighbours = 3;
+	private int flags = 0;
+	private Size minSize = new Size();
+	private Size maxSize = new Size();
+	private int detectWidth = 0;
+
+	// minSize and maxSize scaled to the shrunk frame
+	private final Size smallSize = new Size();
+	private final Size scaledMin = new Size();
+	private final Size scaledMax = new Size();
+
+	private int[] coords = new int[0];
+	private Rect[] rects = new Rect[0];
+	private int count;
+	private long detectNanos;
+	private long frames;
+
+	/**
+	 * @param cascadePath Path to the classifier's XML file
+	 * @throws IllegalArgumentException if the classifier can't be loaded
+	 */
+	public FaceDetectionContext(String cascadePath) {
+		this(new CascadeClassifier(cascadePath));
+		if(classifier.empty()) {
+			throw new IllegalArgumentException("Failed to load classifier " + cascadePath);
+		}
+	}
+
+	/**
+	 * @param classifier A loaded classifier, used only by this context
+	 */
+	public FaceDetectionContext(CascadeClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Set the detectMultiScale() parameters
+	 * @param scaleFactor How much the image is shrunk at each scale, e.g. 1.1
+	 * @param minNeighbours How many overlapping detections a face needs
+	 * @param flags Classifier flags, usually 0
+	 * @param minSize Smallest face to look for
+	 * @param maxSize Largest face to look for
+	 */
+	public void setParameters(double scaleFactor, int minNeighbours, int flags, Size minSize, Size maxSize) {
+		this.scaleFactor = scaleFactor;
+		this.minNeighbours = minNeighbours;
+		this.flags = flags;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param detectWidth Shrink frames wider than this before searching them, 0 to search at full size
+	 */
+	public void setDetectWidth(int detectWidth) {
+		this.detectWidth = detectWidth;
+	}
+
+	/**
+	 * Find the faces in a frame
+	 * @param frame BGR frame from the camera, not changed
+	 * @return Number of faces found
+	 */
+	public int detect(Mat frame) {
+		return detect(frame, null, minSize, maxSize);
+	}
+
+	/**
+	 * Find the faces in part of a frame, e.g. around a face that is being tracked.
+	 * Much quicker than searching the whole frame, the cascade has less to scan and
+	 * fewer scales to try.
+	 * @param frame BGR frame from the camera, not changed
+	 * @param roi Part of the frame to search, inside the frame, or null for all of it
+	 * @param minSize Smallest face to look for, in frame pixels
+	 * @param maxSize Largest face to look for, in frame pixels
+	 * @return Number of faces found, with positions in the whole frame
+	 */
+	public int detect(Mat frame, Rect roi, Size minSize, Size maxSize) {
+		long start = System.nanoTime();
+		if(roi == null) {
+			Imgproc.cvtColor(frame, grey, Imgproc.COLOR_BGR2GRAY);
+		} else {
+			// Just a header onto the frame's pixels, freed straight away
+			Mat part = frame.submat(roi);
+			Imgproc.cvtColor(part, grey, Imgproc.COLOR_BGR2GRAY);
+			part.release();
+		}
+		Mat search = grey;
+		double scale = 1.0;
+		if(detectWidth > 0 && grey.cols() > detectWidth) {
+			scale = (double) detectWidth / grey.cols();
+			smallSize.width = detectWidth;
+			smallSize.height = Math.max(1, Math.round(grey.rows() * scale));
+			Imgproc.resize(grey, small, smallSize, 0, 0, Imgproc.INTER_AREA);
+			scaledMin.width = minSize.width * scale;
+			scaledMin.height = minSize.height * scale;
+			scaledMax.width = maxSize.width * scale;
+			scaledMax.height = maxSize.height * scale;
+			minSize = scaledMin;
+			maxSize = scaledMax;
+			search = small;
+		}
+		Imgproc.equalizeHist(search, search);
+		classifier.detectMultiScale(search, faces, scaleFactor, minNeighbours, flags, minSize, maxSize);
+		readFaces(roi == null ? 0 : roi.x, roi == null ? 0 : roi.y, scale);
+		detectNanos = System.nanoTime() - start;
+		frames++;
+		return count;
+	}
+
+	/**
+	 * Copy the faces out of the MatOfRect, one int[4] per row, into the reused Rects
+	 * @param dx Added to each face's x
+	 * @param dy Added to each face's y
+	 * @param scale How much the searched image was shrunk
+	 */
+	private void readFaces(int dx, int dy, double scale) {
+		count = faces.rows();
+		if(count == 0) {
+			return;
+		}
+		if(coords.length < count * 4) {
+			coords = new int[count * 4];
+		}
+		if(rects.length < count) {
+			Rect[] bigger = new Rect[count];
+			System.arraycopy(rects, 0, bigger, 0, rects.length);
+			for(int i = rects.length; i < count; i++) {
+				bigger[i] = new Rect();
+			}
+			rects = bigger;
+		}
+		faces.get(0, 0, coords);
+		for(int i=0; i < count; i++) {
+			Rect r = rects[i];
+			r.x = (int) Math.round(coords[i*4] / scale) + dx;
+			r.y = (int) Math.round(coords[i*4 + 1] / scale) + dy;
+			r.width = (int) Math.round(coords[i*4 + 2] / scale);
+			r.height = (int) Math.round(coords[i*4 + 3] / scale);
+		}
+	}
+
+	/**
+	 * @return Number of faces found by the last detect()
+	 */
+	public int getFaceCount() {
+		return count;
+	}
+
+	/**
+	 * @param i Which face, from 0 to getFaceCount() - 1
+	 * @return The face. It is reused by the next detect(), copy it to keep it.
+	 */
+	public Rect getFace(int i) {
+		if(i >= count) {
+			throw new IndexOutOfBoundsException("Face " + i + " of " + count);
+		}
+		return rects[i];
+	}
+
+	/**
+	 * @return Smallest face detect(frame) looks for
+	 */
+	public Size getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @return Largest face detect(frame) looks for
+	 */
+	public Size getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The grey frame, or part of it, the last detect() converted
+	 */
+	public Mat getGrey() {
+		return grey;
+	}
+
+	/**
+	 * @return Time taken by the last detect() in nanoseconds
+	 */
+	public long getDetectNanos() {
+		return detectNanos;
+	}
+
+	/**
+	 * @return Number of frames detect() has been called on
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Free the native memory held by the Mats. The context can't be used afterwards.
+	 */
+	public void release() {
+		grey.release();
+		small.release();
+		faces.release();
+		count = 0;
+	}
+}
@@ -0,0 +1,225 @@
+package com.mastincrosbie.face;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Follows one face from frame to frame without searching the whole frame every time.
+ *
+ * Once a face has been found, each new frame is only searched in a region around where
+ * the face is predicted to be: its last position moved on by its recent velocity,
+ * padded by a fraction of the face's size, for faces a little smaller or bigger than
+ * the last one. That is a small part of the frame at a few scales, so it runs in a
+ * fraction of the time of a full scan.
+ *
+ * The whole frame is still searched every fullScanInterval frames, so a new or nearer
+ * face isn't missed, and straight away whenever the tracked face is lost.
+ *
+ * Not thread safe, use one tracker per detection thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FaceTracker {
+
+	private final FaceDetectionContext detection;
+
+	private int fullScanInterval = 15;
+	private double padding = 0.5;		// region is the face plus this much of its size each side
+	private double sizeRange = 1.4;		// look for faces this much smaller or bigger than the last
+
+	private boolean tracking;
+	private final Rect face = new Rect();
+	private final Rect roi = new Rect();
+	private final Size roiMin = new Size();
+	private final Size roiMax = new Size();
+	private double vx, vy;			// pixels per frame, smoothed
+	private int sinceFullScan;
+	private boolean lastScanFull;
+
+	private long fullScans;
+	private long roiScans;
+	private long lost;
+
+	/**
+	 * @param detection Context to detect with, its parameters are used for full scans
+	 */
+	public FaceTracker(FaceDetectionContext detection) {
+		this.detection = detection;
+	}
+
+	/**
+	 * @param fullScanInterval Search the whole frame at least this often, in frames
+	 * @param padding Region searched is the predicted face plus this fraction of its size on each side
+	 */
+	public void setTracking(int fullScanInterval, double padding) {
+		this.fullScanInterval = Math.max(1, fullScanInterval);
+		this.padding = padding;
+	}
+
+	/**
+	 * Find the face in the next frame
+	 * @param frame BGR frame from the camera, not changed
+	 * @return Number of faces found: 0 or 1 when following a face, possibly more after a full scan
+	 */
+	public int update(Mat frame) {
+		if(tracking && sinceFullScan < fullScanInterval) {
+			sinceFullScan++;
+			lastScanFull = false;
+			roiScans++;
+			predictRegion(frame.width(), frame.height());
+			if(detection.detect(frame, roi, roiMin, roiMax) > 0) {
+				// Only the face we're following counts, not others that strayed into the region
+				follow(nearest(face.x + face.width / 2.0 + vx, face.y + face.height / 2.0 + vy));
+				return 1;
+			}
+			// Lost it, look everywhere
+			lost++;
+			tracking = false;
+		}
+
+		sinceFullScan = 0;
+		lastScanFull = true;
+		fullScans++;
+		int n = detection.detect(frame);
+		if(n == 0) {
+			tracking = false;
+			return 0;
+		}
+		Rect r = tracking ? nearest(face.x + face.width / 2.0, face.y + face.height / 2.0) : largest();
+		if(!tracking) {
+			vx = vy = 0;
+		}
+		follow(r);
+		return n;
+	}
+
+	/**
+	 * Work out the region to search: the face moved on by its velocity and padded,
+	 * clipped to the frame
+	 */
+	private void predictRegion(int width, int height) {
+		double cx = face.x + face.width / 2.0 + vx;
+		double cy = face.y + face.height / 2.0 + vy;
+		double w = face.width * (1 + 2 * padding) + Math.abs(vx);
+		double h = face.height * (1 + 2 * padding) + Math.abs(vy);
+		int x0 = clip((int) (cx - w / 2), 0, width - 1);
+		int y0 = clip((int) (cy - h / 2), 0, height - 1);
+		int x1 = clip((int) Math.ceil(cx + w / 2), x0 + 1, width);
+		int y1 = clip((int) Math.ceil(cy + h / 2), y0 + 1, height);
+		roi.x = x0;
+		roi.y = y0;
+		roi.width = x1 - x0;
+		roi.height = y1 - y0;
+
+		roiMin.width = face.width / sizeRange;
+		roiMin.height = face.height / sizeRange;
+		roiMax.width = Math.min(roi.width, face.width * sizeRange);
+		roiMax.height = Math.min(roi.height, face.height * sizeRange);
+	}
+
+	/**
+	 * Move the tracked face to r and update its velocity
+	 */
+	private void follow(Rect r) {
+		if(tracking) {
+			double dx = (r.x + r.width / 2.0) - (face.x + face.width / 2.0);
+			double dy = (r.y + r.height / 2.0) - (face.y + face.height / 2.0);
+			// Smooth out the jitter in the detections
+			vx = (vx + dx) / 2;
+			vy = (vy + dy) / 2;
+		}
+		face.x = r.x;
+		face.y = r.y;
+		face.width = r.width;
+		face.height = r.height;
+		tracking = true;
+	}
+
+	private Rect nearest(double x, double y) {
+		Rect best = detection.getFace(0);
+		double bestDistance = Double.MAX_VALUE;
+		for(int i=0; i < detection.getFaceCount(); i++) {
+			Rect r = detection.getFace(i);
+			double dx = r.x + r.width / 2.0 - x;
+			double dy = r.y + r.height / 2.0 - y;
+			double d = dx * dx + dy * dy;
+			if(d < bestDistance) {
+				best = r;
+				bestDistance = d;
+			}
+		}
+		return best;
+	}
+
+	private Rect largest() {
+		Rect best = detection.getFace(0);
+		for(int i=1; i < detection.getFaceCount(); i++) {
+			Rect r = detection.getFace(i);
+			if(r.width * r.height > best.width * best.height) {
+				best = r;
+			}
+		}
+		return best;
+	}
+
+	private static int clip(int v, int min, int max) {
+		return v < min ? min : (v > max ? max : v);
+	}
+
+	/**
+	 * @return true if a face is being followed
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * @return The face being followed, only valid while isTracking(). Reused, copy it to keep it.
+	 */
+	public Rect getFace() {
+		return face;
+	}
+
+	/**
+	 * @param center Set to the centre of the face being followed
+	 * @return center, or null if no face is being followed
+	 */
+	public Point getFaceCenter(Point center) {
+		if(!tracking) {
+			return null;
+		}
+		center.x = face.x + face.width / 2.0;
+		center.y = face.y + face.height / 2.0;
+		return center;
+	}
+
+	/**
+	 * @return true if the last update() searched the whole frame
+	 */
+	public boolean wasFullScan() {
+		return lastScanFull;
+	}
+
+	/** @return Number of whole frame searches */
+	public long getFullScans() {
+		return fullScans;
+	}
+
+	/** @return Number of searches of just the region around the face */
+	public long getRoiScans() {
+		return roiScans;
+	}
+
+	/** @return Number of times the face was lost from its region */
+	public long getLost() {
+		return lost;
+	}
+
+	@Override
+	public String toString() {
+		return "FaceTracker: " + fullScans + " full scans, " + roiScans + " region scans, " + lost + " lost";
+	}
+}
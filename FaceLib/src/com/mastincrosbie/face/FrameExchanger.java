@@ -0,0 +1,141 @@
+package com.mastincrosbie.face;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opencv.core.Mat;
+
+/**
+ * Hands camera frames from a capture thread to a detection thread, newest frame wins.
+ *
+ * There are three Mats, allocated once. The capture thread reads the camera into back(),
+ * which no one else touches, and publish()es it, swapping it with the single waiting
+ * slot. If the detector hadn't picked up the frame already waiting, it is simply
+ * replaced, so the detector never works on a stale frame and the camera never waits
+ * for the detector. take() swaps the waiting frame for the detector's old one, waiting
+ * for a new frame if there isn't one yet.
+ *
+ * Each frame carries the System.nanoTime() it was captured at, so the detector can
+ * tell how old its results are.
+ *
+ * Exactly one capture thread and one detection thread.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameExchanger {
+
+	private static class Slot {
+		final Mat mat = new Mat();
+		long captured;
+		boolean fresh;
+	}
+
+	private final AtomicReference<Slot> waiting = new AtomicReference<Slot>(new Slot());
+	private Slot back = new Slot();
+	private Slot front = new Slot();
+	private volatile Thread sleeper;
+
+	// Counters, each written by one thread only
+	private volatile long published;
+	private volatile long replaced;
+	private volatile long taken;
+
+	/**
+	 * Capture thread: get the Mat to read the next frame into
+	 * @return The back Mat, the same one until publish()
+	 */
+	public Mat back() {
+		return back.mat;
+	}
+
+	/**
+	 * Capture thread: make the back Mat the newest frame
+	 * @param captured System.nanoTime() when the frame was captured
+	 */
+	public void publish(long captured) {
+		back.captured = captured;
+		back.fresh = true;
+		back = waiting.getAndSet(back);
+		if(back.fresh) {
+			// The detector never saw it
+			back.fresh = false;
+			replaced++;
+		}
+		published++;
+		Thread t = sleeper;
+		if(t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Detection thread: get the newest frame, waiting for one if there's nothing new
+	 * @param timeout Longest time to wait in milliseconds
+	 * @return The frame, the detector's own until the next take(), or null if none came in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Mat take(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while(!waiting.get().fresh) {
+			sleeper = Thread.currentThread();
+			// Check again in case publish() missed seeing us sleeping
+			if(waiting.get().fresh) {
+				sleeper = null;
+				break;
+			}
+			long left = deadline - System.nanoTime();
+			if(left <= 0) {
+				sleeper = null;
+				return null;
+			}
+			LockSupport.parkNanos(this, left);
+			sleeper = null;
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		front.fresh = false;
+		front = waiting.getAndSet(front);
+		taken++;
+		return front.mat;
+	}
+
+	/**
+	 * Detection thread: when the frame last returned by take() was captured
+	 * @return Its System.nanoTime() capture time
+	 */
+	public long getCaptured() {
+		return front.captured;
+	}
+
+	/** @return Number of frames published */
+	public long getPublished() {
+		return published;
+	}
+
+	/** @return Number of frames replaced by a newer one before the detector took them */
+	public long getReplaced() {
+		return replaced;
+	}
+
+	/** @return Number of frames the detector took */
+	public long getTaken() {
+		return taken;
+	}
+
+	/**
+	 * Free the Mats. Only once both threads have finished with the exchanger.
+	 */
+	public void release() {
+		back.mat.release();
+		front.mat.release();
+		waiting.get().mat.release();
+	}
+
+	@Override
+	public String toString() {
+		return "FrameExchanger: " + published + " published, " + taken + " taken, " + replaced + " replaced";
+	}
+}
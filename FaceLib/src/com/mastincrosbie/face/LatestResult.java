@@ -0,0 +1,76 @@
+package com.mastincrosbie.face;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Where a detection thread publishes its newest DetectionResult for others to read.
+ *
+ * Publishing and reading are a single atomic reference write and read, no locks. A
+ * reader that wants the next result, rather than spinning on get() and stealing the
+ * CPU detection needs, can awaitNewer() and sleep until it arrives. The publisher
+ * only takes a lock to wake readers when someone is actually waiting.
+ *
+ * One publishing thread, any number of readers.
+ *
+ * @author mcrosbie
+ *
+ */
+public class LatestResult {
+
+	private final AtomicReference<DetectionResult> latest = new AtomicReference<DetectionResult>(DetectionResult.NONE);
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final Object lock = new Object();
+
+	/**
+	 * Make a result the newest
+	 * @param result The result, its frame number higher than any published before
+	 */
+	public void publish(DetectionResult result) {
+		latest.set(result);
+		if(waiting.get() > 0) {
+			synchronized(lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return The newest result, DetectionResult.NONE before the first
+	 */
+	public DetectionResult get() {
+		return latest.get();
+	}
+
+	/**
+	 * Wait for a result from a later frame than one already seen
+	 * @param frame Frame number already seen, 0 for any result
+	 * @param timeout Longest time to wait in milliseconds
+	 * @return The newest result, or null if none newer came in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DetectionResult awaitNewer(long frame, long timeout) throws InterruptedException {
+		DetectionResult r = latest.get();
+		if(r.getFrame() > frame) {
+			return r;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		waiting.incrementAndGet();
+		try {
+			synchronized(lock) {
+				// Checked after counting ourselves in, so publish() either sees us or we see its result
+				while((r = latest.get()).getFrame() <= frame) {
+					long left = deadline - System.nanoTime();
+					if(left <= 0) {
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(lock, left);
+				}
+				return r;
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.mastincrosbie.face;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Soak test FaceDetectionContext on recorded video, looping the video until enough
+ * frames have been processed, and check that neither the Java heap nor the process's
+ * native memory grows.
+ *
+ * Heap use is measured after a GC and native memory as the resident set size from
+ * /proc/self/status, every REPORT_INTERVAL frames. Growth is measured from the first
+ * report, once everything has warmed up, to the last, so it needs at least two reports.
+ *
+ * -alloc runs the old way instead, with new Mats and a MatOfRect every frame, to show
+ * the difference.
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.TestFaceDetectionContext video.avi cascade.xml [frames] [-alloc]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestFaceDetectionContext {
+
+	private static final int REPORT_INTERVAL = 10000;
+	private static final long MAX_RSS_GROWTH = 8 * 1024 * 1024;
+	private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+
+	private static final TestResults results = new TestResults("face detection soak");
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: TestFaceDetectionContext video cascade.xml [frames] [-alloc]");
+			System.exit(2);
+		}
+		String video = args[0];
+		String cascade = args[1];
+		int frames = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		boolean alloc = args.length > 3 && args[3].equals("-alloc");
+		if(frames < 2 * REPORT_INTERVAL) {
+			System.err.println("Too few frames to measure growth, need at least " + 2 * REPORT_INTERVAL);
+			System.exit(2);
+		}
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		VideoCapture vid = new VideoCapture(video);
+		if(!vid.isOpened()) {
+			System.err.println("Can't open " + video);
+			System.exit(2);
+		}
+		FaceDetectionContext context = new FaceDetectionContext(cascade);
+		CascadeClassifier classifier = new CascadeClassifier(cascade);
+		Mat frame = new Mat();
+
+		long firstRss = 0;
+		long firstHeap = 0;
+		int reports = 0;
+		long lastRss = 0;
+		long lastHeap = 0;
+		long faces = 0;
+		long start = System.nanoTime();
+		System.out.println(alloc ? "Allocating Mats every frame" : "Reusing a FaceDetectionContext");
+
+		for(int n=1; n <= frames; n++) {
+			if(!vid.read(frame) || frame.empty()) {
+				// End of the video, go round again
+				vid.release();
+				vid = new VideoCapture(video);
+				if(!vid.read(frame) || frame.empty()) {
+					System.err.println("Can't read frames from " + video);
+					System.exit(2);
+				}
+			}
+
+			if(alloc) {
+				faces += detectAllocating(classifier, frame);
+			} else {
+				faces += context.detect(frame);
+			}
+
+			if(n % REPORT_INTERVAL == 0) {
+				System.gc();
+				lastHeap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+				lastRss = residentBytes();
+				if(reports == 0) {
+					firstRss = lastRss;
+					firstHeap = lastHeap;
+				}
+				reports++;
+				long elapsed = System.nanoTime() - start;
+				System.out.println(String.format("%7d frames  %5.1f fps  heap %6d KB  rss %7d KB  %d faces",
+						n, n * 1000000000.0 / elapsed, lastHeap / 1024, lastRss / 1024, faces));
+			}
+		}
+
+		context.release();
+		frame.release();
+		vid.release();
+
+		results.check("measured growth over " + reports + " reports, need at least 2 (" + 2 * REPORT_INTERVAL + " frames)", reports >= 2);
+		results.check("native memory flat, grew " + (lastRss - firstRss) / 1024 + " KB", lastRss - firstRss < MAX_RSS_GROWTH);
+		results.check("heap flat, grew " + (lastHeap - firstHeap) / 1024 + " KB", lastHeap - firstHeap < MAX_HEAP_GROWTH);
+		results.finish();
+	}
+
+	/**
+	 * What the detection loops used to do every frame
+	 */
+	private static int detectAllocating(CascadeClassifier classifier, Mat frame) {
+		MatOfRect faces = new MatOfRect();
+		Mat mRgba = new Mat();
+		Mat mGrey = new Mat();
+		frame.copyTo(mRgba);
+		frame.copyTo(mGrey);
+		Imgproc.cvtColor(mRgba, mGrey, Imgproc.COLOR_BGR2GRAY);
+		Imgproc.equalizeHist(mGrey, mGrey);
+		classifier.detectMultiScale(mGrey, faces, 1.1, 3, 0, new Size(), new Size());
+		return faces.toArray().length;
+	}
+
+	/**
+	 * @return The process's resident set size in bytes, from /proc/self/status
+	 */
+	private static long residentBytes() throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,106 @@
+package com.mastincrosbie.face;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Compare FaceTracker with a full frame search on every frame of a recorded video:
+ * time per frame for each, and how far the tracked face is from the one the full
+ * search finds. Fails if the tracker loses too many faces the full search finds or
+ * follows them badly.
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.TestFaceTracker video.avi cascade.xml [interval]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestFaceTracker {
+
+	private static final double MAX_MEAN_ERROR = 8.0;		// pixels
+	private static final double MIN_AGREEMENT = 0.9;
+
+	private static final TestResults results = new TestResults("face tracker");
+
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.err.println("Usage: TestFaceTracker video cascade.xml [interval]");
+			System.exit(2);
+		}
+		int interval = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		VideoCapture vid = new VideoCapture(args[0]);
+		if(!vid.isOpened()) {
+			System.err.println("Can't open " + args[0]);
+			System.exit(2);
+		}
+		FaceDetectionContext full = new FaceDetectionContext(args[1]);
+		FaceDetectionContext tracked = new FaceDetectionContext(args[1]);
+		FaceTracker tracker = new FaceTracker(tracked);
+		tracker.setTracking(interval, 0.5);
+
+		Mat frame = new Mat();
+		Point center = new Point();
+		long frames = 0;
+		long fullNanos = 0;
+		long trackNanos = 0;
+		long bothFound = 0;
+		long fullFound = 0;
+		double error = 0;
+
+		while(vid.read(frame) && !frame.empty()) {
+			frames++;
+			long t = System.nanoTime();
+			int n = full.detect(frame);
+			fullNanos += System.nanoTime() - t;
+
+			t = System.nanoTime();
+			tracker.update(frame);
+			trackNanos += System.nanoTime() - t;
+
+			if(n == 0) {
+				continue;
+			}
+			fullFound++;
+			if(tracker.getFaceCenter(center) == null) {
+				continue;
+			}
+			// Distance to the nearest face the full search found
+			double best = Double.MAX_VALUE;
+			for(int i=0; i < n; i++) {
+				Rect r = full.getFace(i);
+				double dx = r.x + r.width / 2.0 - center.x;
+				double dy = r.y + r.height / 2.0 - center.y;
+				best = Math.min(best, Math.sqrt(dx * dx + dy * dy));
+			}
+			bothFound++;
+			error += best;
+		}
+
+		full.release();
+		tracked.release();
+		frame.release();
+		vid.release();
+
+		if(fullFound == 0) {
+			System.out.println("No faces in " + args[0]);
+			System.exit(2);
+		}
+		double agreement = (double) bothFound / fullFound;
+		double meanError = bothFound > 0 ? error / bothFound : Double.MAX_VALUE;
+		System.out.println(String.format("%d frames, full search %.2f ms/frame, tracking %.2f ms/frame",
+				frames, fullNanos / 1000000.0 / frames, trackNanos / 1000000.0 / frames));
+		System.out.println(String.format("Tracked %.1f%% of the faces found, mean error %.1f pixels",
+				agreement * 100, meanError));
+		System.out.println(tracker);
+
+		results.check("tracker keeps the face", agreement >= MIN_AGREEMENT);
+		results.check("tracker follows the face closely", meanError <= MAX_MEAN_ERROR);
+		results.check("tracking is quicker than searching every frame", trackNanos < fullNanos);
+		results.finish();
+	}
+}
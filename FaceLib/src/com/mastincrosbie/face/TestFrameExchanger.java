@@ -0,0 +1,90 @@
+package com.mastincrosbie.face;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Check FrameExchanger hands over only the newest frames: a fast capture thread
+ * numbers each frame it publishes, a slow detector checks the numbers it takes only
+ * ever go up, that every frame is either taken or replaced, and that a waiting
+ * detector wakes up for a new frame and times out when there isn't one.
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.TestFrameExchanger
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestFrameExchanger {
+
+	private static final int FRAMES = 20000;
+
+	private static final TestResults results = new TestResults("frame exchanger");
+
+	public static void main(String[] args) throws Exception {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		final FrameExchanger frames = new FrameExchanger();
+		results.check("nothing to take before a publish", frames.take(20) == null);
+
+		Thread capture = new Thread(new Runnable() {
+			public void run() {
+				int[] number = new int[1];
+				for(int i=1; i <= FRAMES; i++) {
+					Mat m = frames.back();
+					m.create(1, 1, CvType.CV_32SC1);
+					number[0] = i;
+					m.put(0, 0, number);
+					frames.publish(System.nanoTime());
+					if(i % 1000 == 0) {
+						// Give the detector a quiet moment to wait in
+						try {
+							Thread.sleep(5);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "capture");
+		capture.start();
+
+		int[] number = new int[1];
+		int last = 0;
+		boolean ordered = true;
+		boolean fresh = true;
+		long taken = 0;
+		while(last < FRAMES) {
+			Mat m = frames.take(1000);
+			if(m == null) {
+				break;
+			}
+			m.get(0, 0, number);
+			if(number[0] <= last) {
+				ordered = false;
+			}
+			if(frames.getCaptured() > System.nanoTime()) {
+				fresh = false;
+			}
+			last = number[0];
+			taken++;
+			// A detector slower than the camera
+			for(int i=0; i < 20000; i++) {
+				Math.sqrt(i);
+			}
+		}
+		capture.join();
+
+		System.out.println(frames);
+		results.check("every frame taken is newer than the last", ordered);
+		results.check("capture times are in the past", fresh);
+		results.check("the last frame published is taken", last == FRAMES);
+		results.check("taken count matches", frames.getTaken() == taken);
+		results.check("every frame is taken or replaced", frames.getTaken() + frames.getReplaced() == FRAMES);
+		results.check("slow detector skips frames", frames.getReplaced() > 0);
+		results.check("nothing left to take", frames.take(20) == null);
+		frames.release();
+
+		results.finish();
+	}
+}
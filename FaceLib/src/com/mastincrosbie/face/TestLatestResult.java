@@ -0,0 +1,111 @@
+package com.mastincrosbie.face;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Rect;
+
+/**
+ * Check LatestResult: readers waiting with awaitNewer() only ever see newer frames,
+ * each result is whole (its face positions match its frame number), readers wake up
+ * for every publish they wait for, and time out when nothing is published.
+ *
+ * Only uses OpenCV's Rect and Point, so no native library is needed.
+ *
+ * java -cp FaceLib.jar com.mastincrosbie.face.TestLatestResult
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestLatestResult {
+
+	private static final int RESULTS = 100000;
+	private static final int READERS = 4;
+
+	private static final TestResults results = new TestResults("latest result");
+
+	public static void main(String[] args) throws Exception {
+		final LatestResult latest = new LatestResult();
+
+		results.check("NONE before the first publish", latest.get() == DetectionResult.NONE);
+		long start = System.nanoTime();
+		results.check("times out with nothing published", latest.awaitNewer(0, 50) == null);
+		results.check("waits about as long as asked", System.nanoTime() - start >= 45000000L);
+
+		final AtomicBoolean whole = new AtomicBoolean(true);
+		final AtomicBoolean ordered = new AtomicBoolean(true);
+		final AtomicLong seenTotal = new AtomicLong();
+		final long[] lastSeen = new long[READERS];
+		Thread[] readers = new Thread[READERS];
+		for(int t=0; t < READERS; t++) {
+			final int id = t;
+			readers[t] = new Thread(new Runnable() {
+				public void run() {
+					long seen = 0;
+					try {
+						while(seen < RESULTS) {
+							DetectionResult r = latest.awaitNewer(seen, 2000);
+							if(r == null) {
+								break;
+							}
+							if(r.getFrame() <= seen) {
+								ordered.set(false);
+							}
+							for(int i=0; i < r.getFaceCount(); i++) {
+								Rect f = r.getFace(i);
+								if(f.x != r.getFrame() || f.y != i || r.getCaptured() != r.getFrame()) {
+									whole.set(false);
+								}
+							}
+							seen = r.getFrame();
+							seenTotal.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						// finish
+					}
+					lastSeen[id] = seen;
+				}
+			}, "reader-" + t);
+			readers[t].start();
+		}
+
+		// Reuse the same Rects for every result, as a detector does
+		Rect[] faces = { new Rect(), new Rect(), new Rect() };
+		for(int frame=1; frame <= RESULTS; frame++) {
+			int n = frame % 4;
+			for(int i=0; i < n; i++) {
+				faces[i].x = frame;
+				faces[i].y = i;
+				faces[i].width = faces[i].height = 10;
+			}
+			latest.publish(new DetectionResult(frame, frame, frame, faces, n));
+			if(frame % 10000 == 0) {
+				// Let the readers catch up and sleep
+				Thread.sleep(2);
+			}
+		}
+		for(Thread t : readers) {
+			t.join();
+		}
+
+		boolean allFinished = true;
+		for(long s : lastSeen) {
+			allFinished &= s == RESULTS;
+		}
+		System.out.println(READERS + " readers took " + seenTotal.get() + " of " + RESULTS * READERS + " results");
+		results.check("readers see frames in order", ordered.get());
+		results.check("results are never half updated", whole.get());
+		results.check("every reader gets the last result", allFinished);
+
+		Rect[] one = { new Rect(1, 2, 3, 4) };
+		DetectionResult r = new DetectionResult(1, 0, 0, one, 1);
+		one[0].x = 99;
+		r.getFace(0).y = 99;
+		results.check("results can't be changed through their Rects", r.getFace(0).x == 1 && r.getFace(0).y == 2);
+
+		results.check("times out when nothing newer is published", latest.awaitNewer(RESULTS, 50) == null);
+		results.check("returns straight away when something newer is there", latest.awaitNewer(RESULTS - 1, 1000) != null);
+
+		results.finish();
+	}
+}
@@ -0,0 +1,14 @@
+/**
+ * Something that can turn Friendly on the spot, the real motors or a simulation
+ * 
+ * @author mcrosbie
+ *
+ */
+interface Drive {
+
+	/**
+	 * Spin on the spot
+	 * @param speed Wheel speed in degrees per second, positive turns right, 0 stops
+	 */
+	void turn(int speed);
+}
@@ -1,25 +1,46 @@
 import lejos.hardware.Sound;
 
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfRect;
 import org.opencv.core.Point;
-import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.highgui.VideoCapture;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
+import com.mastincrosbie.face.DetectionResult;
+import com.mastincrosbie.face.FaceDetectionContext;
+import com.mastincrosbie.face.FaceTracker;
+import com.mastincrosbie.face.FrameExchanger;
+import com.mastincrosbie.face.LatestResult;
+
 /**
  * A class to detect and track faces streamed from a webcam
  * Keeps track of the x,y of the faces and can be queried
  * 
+ * In track mode, the default, once a face is found only the area around where it is
+ * expected next is searched, with a full frame search every FULL_SCAN_INTERVAL frames
+ * or as soon as the face is lost. Positions come through much faster for the same CPU.
+ * 
+ * The camera is read on its own thread, which hands each frame over through a
+ * FrameExchanger. Detection always works on the newest frame instead of whatever was
+ * left in the camera's buffer while it was busy, and getAge() says how old the
+ * reading is.
+ * 
+ * Each frame's faces are published as one DetectionResult, which never changes, so a
+ * reader always sees a count, positions and times from the same frame. Readers can
+ * wait for the next result with awaitResult() rather than polling.
+ * 
  * @author mcrosbie
  *
  */
-class FaceDetector extends Thread {
+class FaceDetector extends Thread implements SteeringLoop.FaceSource {
 
 	private CascadeClassifier faceDetector;
+	private FaceDetectionContext detection;
+	private FaceTracker tracker;
+	private boolean trackMode = true;
+	private static final int FULL_SCAN_INTERVAL = 15;
+	private static final double ROI_PADDING = 0.5;
 	
 	private int flags = 0;
 	private double scaleFactor = 1.8;
@@ -34,12 +55,14 @@ class FaceDetector extends Thread {
     private final int DEFAULT_FRAME_HEIGHT = 120;
     private int frameWidth, frameHeight;
     
-    private int numFacesDetected = 0;
-    private Point faceCenter;
-    private Mat frame;
+    private final LatestResult result = new LatestResult();
+    private final FrameExchanger frames = new FrameExchanger();
     private VideoCapture vid;
+    private Thread capture;
+    private static final long FRAME_TIMEOUT = 500;	// ms
+    private static final long MIN_READ_BACKOFF = 10;	// ms after a failed read, doubling up to FRAME_TIMEOUT
     
-    private boolean running = true;
+    private volatile boolean running = true;
     
     /**
      * Default constructor uses the LBP feature detector - faster but less accurate
@@ -70,8 +93,6 @@ class FaceDetector extends Thread {
     	frameWidth = _frameWidth;
     	frameHeight = _frameHeight;
     	
-	    frame = new Mat();
-	    
         vid = new VideoCapture(0);
         vid.set(Highgui.CV_CAP_PROP_FRAME_WIDTH, frameWidth);
         vid.set(Highgui.CV_CAP_PROP_FRAME_HEIGHT, frameHeight);
@@ -86,73 +107,169 @@ class FaceDetector extends Thread {
         	return;
         } 
 
+        // Grey Mats and face buffers reused for every frame
+        detection = new FaceDetectionContext(faceDetector);
+        detection.setParameters(scaleFactor, minNeighbours, flags, minSize, maxSize);
+        tracker = new FaceTracker(detection);
+        tracker.setTracking(FULL_SCAN_INTERVAL, ROI_PADDING);
+
     }
     
     public boolean faceDetected() {
-    	return numFacesDetected > 0;
+    	return result.get().hasFace();
     }
     
     public int numFacesDetected() {
-    	return numFacesDetected;
+    	return result.get().getFaceCount();
     }
     
     public Point getFaceCenter() {
-    	if(numFacesDetected > 0) {
-    		return new Point(faceCenter.x, faceCenter.y);
+    	DetectionResult r = result.get();
+    	if(r.hasFace()) {
+    		return r.getFaceCenter(0);
     	} else {
     		return null;
     	}
     }
     
+    /**
+     * @return The faces found in the newest frame detected
+     */
+    public DetectionResult getResult() {
+    	return result.get();
+    }
+    
+    /**
+     * Wait for the faces from a newer frame than one already seen
+     * @param frame Frame number of the result already seen, 0 for any
+     * @param timeout Longest time to wait in milliseconds
+     * @return The newest result, or null if none newer came in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public DetectionResult awaitResult(long frame, long timeout) throws InterruptedException {
+    	return result.awaitNewer(frame, timeout);
+    }
+    
+    /**
+     * @return Width of the frames faces are found in
+     */
+    public int getFrameWidth() {
+    	return frameWidth;
+    }
+    
+    /**
+     * @return Milliseconds since the frame behind the current reading was captured
+     */
+    public long getAge() {
+    	return result.get().getAge();
+    }
+    
+    /**
+     * @return Milliseconds from capturing a frame to having its reading, for the latest reading
+     */
+    public long getLatency() {
+    	return result.get().getLatency();
+    }
+    
+    /**
+     * @param track true to follow a face by searching around it, false to search the whole frame every time
+     */
+    public void setTrackMode(boolean track) {
+    	trackMode = track;
+    }
+    
     public void stopRunning() {
     	running = false;
     }
     
+	/**
+	 * Read the camera as fast as it delivers frames, handing each one to the detector.
+	 * Backs off when the camera has nothing to give, and releases it when done.
+	 */
+	private class Capture implements Runnable {
+		public void run() {
+			long backoff = MIN_READ_BACKOFF;
+			try {
+				while (running) {
+					Mat frame = frames.back();
+					if(vid.read(frame) && !frame.empty()) {
+						frames.publish(System.nanoTime());
+						backoff = MIN_READ_BACKOFF;
+					} else {
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, FRAME_TIMEOUT);
+					}
+				}
+			} catch(InterruptedException e) {
+				// stopping
+			} finally {
+				vid.release();
+			}
+		}
+	}
+	
 	public void run() {
 		
 		System.out.println("FaceDetector starting");
+		capture = new Thread(new Capture(), "FaceDetector capture");
+		capture.setDaemon(true);
+		capture.start();
           
         /**
-         * Capture images and detect face centers
+         * Detect face centers in the newest frame
          */
         while (running) {
             
         	try {
-	        	vid.read(frame);         	
+	        	Mat frame = frames.take(FRAME_TIMEOUT);
+	        	if(frame == null) {
+	        		continue;
+	        	}
+	        	long captured = frames.getCaptured();
 	       	
-	            if (!frame.empty()) {
-	            	           	
-	                MatOfRect faces = new MatOfRect();
-	                Mat mRgba=new Mat();  
-	                Mat mGrey=new Mat();  
-	                frame.copyTo(mRgba);  
-	                frame.copyTo(mGrey);  
-	                Imgproc.cvtColor( mRgba, mGrey, Imgproc.COLOR_BGR2GRAY);  
-	                Imgproc.equalizeHist( mGrey, mGrey );                  
-	                
-	                // detect faces
-	                faceDetector.detectMultiScale(
-	                		mGrey, 
-	                		faces,
-	                		scaleFactor,
-	                		minNeighbours,
-	                		flags,
-	                		minSize,
-	                		maxSize);
-	
-	                // we only want the first face found
-	                numFacesDetected = faces.toArray().length;
-	                if(numFacesDetected > 0) {
-	                	System.out.println("Face detected " + numFacesDetected);
-			            // each rectangle in faces is a face
-			            Rect rect = faces.toArray()[0];
-			            faceCenter = new Point(rect.x + rect.width/2, rect.y + rect.height/2 );  
+	        	long frameNumber = frames.getTaken();
+	       	
+                if(trackMode) {
+                	// follow the face, searching just around it most of the time
+                	tracker.update(frame);
+                	result.publish(DetectionResult.of(frameNumber, captured, tracker));
+                } else {
+	                // detect faces, the first one found is the face
+	                int n = detection.detect(frame);
+	                if(n > 0) {
+	                	System.out.println("Face detected " + n);
 	                } 
-	             }
+	                result.publish(DetectionResult.of(frameNumber, captured, detection));
+                }
+        	} catch(InterruptedException e) {
+        		break;
         	} catch(Exception e) {
         		System.err.println("FaceDetector Exception: " + e.getMessage());
         		Sound.buzz();
         	}
         }
+        
+        // The capture thread reads into the exchanger's Mats, so they can only be released
+        // once it has stopped. It finishes the read it's in and stops.
+        running = false;
+        capture.interrupt();
+        boolean interrupted = false;
+        while(capture.isAlive()) {
+        	try {
+        		capture.join(FRAME_TIMEOUT);
+        	} catch(InterruptedException e) {
+        		interrupted = true;
+        	}
+        	if(capture.isAlive()) {
+        		System.out.println("FaceDetector waiting for the camera to stop");
+        	}
+        }
+        System.out.println(tracker);
+        System.out.println(frames);
+        detection.release();
+        frames.release();
+        if(interrupted) {
+        	Thread.currentThread().interrupt();
+        }
 	}
-}
\ No newline at end of file
+}
@@ -3,8 +3,6 @@ import lejos.hardware.Sound;
 import lejos.hardware.lcd.LCD;
 import lejos.hardware.motor.*;
 import lejos.hardware.port.MotorPort;
-import lejos.robotics.RegulatedMotor;
-import lejos.utility.Delay;
 
 import org.opencv.core.*;
 
@@ -12,6 +10,10 @@ import org.opencv.core.*;
  * Friendly is a robot who tries to look at you and keep your face in front of the camera
  * He likes seeing people.
  * 
+ * Steering is driven by the face detector: each new result turns Friendly towards the
+ * face, faster the further it is from the middle of the picture, and the loop sleeps
+ * in between. Run with -stats to print the loop timings when it finishes.
+ * 
  * @author mcrosbie
  *
  */
@@ -19,43 +21,37 @@ public class Friendly {
 
 	static FaceDetector fd;	
 	static EV3LargeRegulatedMotor left, right;
+	static final long MAX_AGE = 300;		// ms, ignore face readings older than this
 	
 	public static void main(String[] args) {
 
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		boolean stats = args.length > 0 && args[0].equals("-stats");
 
 		LCD.clear();
 		LCD.drawString("Friendly", 0, 0);
 		
+		SteeringLoop steering = null;
 		try {
 			left = new EV3LargeRegulatedMotor(MotorPort.B);
 			right = new EV3LargeRegulatedMotor(MotorPort.C);
-			
-			left.setSpeed(400);
-			right.setSpeed(400);
 
 			fd = new FaceDetector();
 			fd.setDaemon(true);
 			fd.start();
+			
+			steering = new SteeringLoop(fd, new MotorDrive(left, right), fd.getFrameWidth());
+			steering.setControl(2.5, 5, 400, MAX_AGE);
 		
-			Delay.msDelay(500);
 			System.out.println("Running");
+			int shown = Integer.MIN_VALUE;
 			while(Button.ENTER.isUp()) {
-				
-				if(fd.faceDetected()) {
-					Point p = fd.getFaceCenter();
-					System.out.println("Face center: " + p.x + ","+p.y);
-					if(p.x < 70) {
-						LCD.drawString("LEFT  ", 0, 2);
-						right.rotate(-360, true);
-					} else if(p.x > 90) {
-						LCD.drawString("RIGHT ", 0, 2);
-						left.rotate(-360, true);
-					} else {
-						LCD.drawString("CENTER", 0, 2);
-						left.stop();
-						right.stop();
-					}				
+				// Sleeps until the detector has looked at a new frame
+				int speed = steering.step();
+				if(speed != shown) {
+					LCD.drawString(speed < 0 ? "LEFT  " : speed > 0 ? "RIGHT " : "CENTER", 0, 2);
+					LCD.drawString("Speed " + speed + "    ", 0, 3);
+					shown = speed;
 				}
 			}
 		} catch(Exception e) {
@@ -65,10 +61,11 @@ public class Friendly {
 		}
 		
 		fd.stopRunning();
-		
-		left.stop();
-		right.stop();
+		steering.stop();
+		System.out.println(steering);
+		if(stats) {
+			System.out.print(steering.getTimings().report());
+		}
 	}
 
 }
-
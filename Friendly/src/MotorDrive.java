@@ -0,0 +1,36 @@
+import lejos.robotics.RegulatedMotor;
+
+/**
+ * Turns Friendly with the two drive motors, one forwards and one backwards.
+ * 
+ * The motors are mounted backwards, so backward() drives a wheel forwards.
+ * 
+ * @author mcrosbie
+ *
+ */
+class MotorDrive implements Drive {
+
+	private final RegulatedMotor left, right;
+	
+	public MotorDrive(RegulatedMotor _left, RegulatedMotor _right) {
+		left = _left;
+		right = _right;
+	}
+	
+	public void turn(int speed) {
+		if(speed == 0) {
+			left.stop(true);
+			right.stop(true);
+			return;
+		}
+		left.setSpeed(Math.abs(speed));
+		right.setSpeed(Math.abs(speed));
+		if(speed > 0) {
+			left.backward();
+			right.forward();
+		} else {
+			left.forward();
+			right.backward();
+		}
+	}
+}
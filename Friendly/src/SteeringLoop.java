@@ -0,0 +1,209 @@
+import com.mastincrosbie.camera.LatencyHistogram;
+import com.mastincrosbie.camera.StageTimings;
+import com.mastincrosbie.face.DetectionResult;
+
+/**
+ * Keeps Friendly facing the face it sees, one step for each new detection result.
+ *
+ * Each step sleeps until the detector has looked at a newer frame, so the loop uses no
+ * CPU the detector could be using. The turning speed is proportional to how far the
+ * face is from the middle of the frame, nothing within the deadband, and limited to
+ * maxSpeed. A new speed is only sent to the motors if it differs enough from the last
+ * one and the last was at least minInterval ago, so the motors aren't flooded with
+ * commands that cancel each other. Stopping is always sent straight away, and the
+ * robot stops if results stop coming or are too old to steer by.
+ *
+ * How long each step waits, how old the results are and how long commands take are
+ * kept in a StageTimings.
+ *
+ * @author mcrosbie
+ *
+ */
+class SteeringLoop {
+
+	/**
+	 * Where the detection results come from, FaceDetector or a simulation
+	 */
+	interface FaceSource {
+		/**
+		 * Wait for the faces from a newer frame than one already seen
+		 * @param frame Frame number of the result already seen, 0 for any
+		 * @param timeout Longest time to wait in milliseconds
+		 * @return The newest result, or null if none newer came in time
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		DetectionResult awaitResult(long frame, long timeout) throws InterruptedException;
+	}
+
+	private final FaceSource faces;
+	private final Drive drive;
+	private final int frameWidth;
+
+	private double gain = 2.5;			// wheel degrees per second for each pixel off centre
+	private int deadband = 5;			// pixels
+	private int maxSpeed = 400;			// degrees per second
+	private long maxAge = 300;			// ms, stop rather than steer on older results
+	private long minInterval = 100;		// ms between speed changes
+	private int minChange = 20;			// degrees per second
+
+	private long seen;
+	private int speed;
+	private long lastCommand;
+	private long lastStep;
+
+	private long steps;
+	private long commands;
+	private long skipped;
+	private long stale;
+
+	private final StageTimings timings = new StageTimings(10000, 10);
+	private final LatencyHistogram waitTime = timings.stage("wait");
+	private final LatencyHistogram ageTime = timings.stage("age");
+	private final LatencyHistogram commandTime = timings.stage("command");
+	private final LatencyHistogram stepTime = timings.stage("period");
+
+	/**
+	 * @param _faces Detection results to steer by
+	 * @param _drive Motors to steer with
+	 * @param _frameWidth Width of the frames the faces are found in
+	 */
+	public SteeringLoop(FaceSource _faces, Drive _drive, int _frameWidth) {
+		faces = _faces;
+		drive = _drive;
+		frameWidth = _frameWidth;
+	}
+
+	/**
+	 * @param _gain Wheel degrees per second for each pixel the face is off centre
+	 * @param _deadband Don't turn if the face is this close to the centre, pixels
+	 * @param _maxSpeed Fastest turn, wheel degrees per second
+	 * @param _maxAge Stop if the newest result is older than this, ms
+	 */
+	public void setControl(double _gain, int _deadband, int _maxSpeed, long _maxAge) {
+		gain = _gain;
+		deadband = _deadband;
+		maxSpeed = _maxSpeed;
+		maxAge = _maxAge;
+	}
+
+	/**
+	 * @param _minInterval Shortest time between speed changes, ms
+	 * @param _minChange Smallest speed change worth sending, degrees per second
+	 */
+	public void setRateLimit(long _minInterval, int _minChange) {
+		minInterval = _minInterval;
+		minChange = _minChange;
+	}
+
+	/**
+	 * Wait for the next detection result, at most maxAge, and steer by it
+	 * @return The turning speed now
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int step() throws InterruptedException {
+		long start = System.nanoTime();
+		if(lastStep != 0) {
+			stepTime.recordNanos(start - lastStep);
+		}
+		lastStep = start;
+		steps++;
+
+		DetectionResult r = faces.awaitResult(seen, maxAge);
+		long now = waitTime.recordSince(start);
+		int target;
+		if(r == null || (now - r.getCaptured()) / 1000000 > maxAge) {
+			stale++;
+			target = 0;
+		} else {
+			ageTime.recordNanos(now - r.getCaptured());
+			target = speedFor(r);
+		}
+		if(r != null) {
+			seen = r.getFrame();
+		}
+		command(target, now);
+		return speed;
+	}
+
+	/**
+	 * Proportional control on how far the first face is from the centre
+	 * @param r Detection result
+	 * @return Turning speed, positive to turn right
+	 */
+	int speedFor(DetectionResult r) {
+		if(!r.hasFace()) {
+			return 0;
+		}
+		double offset = r.getFaceCenter(0).x - frameWidth / 2.0;
+		if(Math.abs(offset) <= deadband) {
+			return 0;
+		}
+		int s = (int) Math.round(gain * offset);
+		return Math.max(-maxSpeed, Math.min(maxSpeed, s));
+	}
+
+	/**
+	 * Send a new speed if it's worth sending
+	 */
+	private void command(int target, long now) {
+		if(target == speed) {
+			return;
+		}
+		boolean stopping = target == 0;
+		boolean reversing = (target > 0) != (speed > 0) && speed != 0;
+		if(!stopping && !reversing
+				&& (Math.abs(target - speed) < minChange || (now - lastCommand) / 1000000 < minInterval)) {
+			skipped++;
+			return;
+		}
+		long start = System.nanoTime();
+		drive.turn(target);
+		commandTime.recordSince(start);
+		speed = target;
+		lastCommand = now;
+		commands++;
+	}
+
+	/**
+	 * Stop turning
+	 */
+	public void stop() {
+		drive.turn(0);
+		speed = 0;
+	}
+
+	/** @return The turning speed last sent */
+	public int getSpeed() {
+		return speed;
+	}
+
+	/** @return Number of steps */
+	public long getSteps() {
+		return steps;
+	}
+
+	/** @return Number of speed changes sent to the motors */
+	public long getCommands() {
+		return commands;
+	}
+
+	/** @return Number of speed changes too small or too soon to send */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/** @return Number of steps with no result new enough to steer by */
+	public long getStale() {
+		return stale;
+	}
+
+	/** @return Timings of the wait, result age, motor command and step period */
+	public StageTimings getTimings() {
+		return timings;
+	}
+
+	@Override
+	public String toString() {
+		return "SteeringLoop: " + steps + " steps, " + commands + " commands, " + skipped + " skipped, " + stale + " stale";
+	}
+}
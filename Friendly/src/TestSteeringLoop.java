@@ -0,0 +1,183 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.opencv.core.Rect;
+
+import com.mastincrosbie.face.DetectionResult;
+import com.mastincrosbie.face.LatestResult;
+
+/**
+ * Try SteeringLoop without the robot: a simulated Friendly turns on the spot as the
+ * loop commands, and a simulated detector reports where a face would be in the camera
+ * picture given which way Friendly is facing, with a detector's frame rate and lag.
+ *
+ * Checks Friendly turns to face someone standing still and follows someone walking
+ * past, stops when the detector stops, doesn't repeat motor commands or flood the
+ * motors with them, and sleeps rather than spinning while it waits.
+ *
+ * Only uses OpenCV's Rect and Point, so no native library or EV3 is needed:
+ * java -cp Friendly.jar TestSteeringLoop
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestSteeringLoop {
+
+	private static final int WIDTH = 160;
+	private static final double DEG_PER_PIXEL = 60.0 / WIDTH;	// camera field of view over the frame
+	private static final double TURN_RATIO = 0.3;				// robot degrees per wheel degree, spinning on the spot
+	private static final int FACE_SIZE = 30;
+	private static final long FRAME_MS = 100;					// detector frame rate
+	private static final long LAG_MS = 60;						// capture to result
+
+	private static final TestResults results = new TestResults("steering loop");
+
+	/**
+	 * Friendly's heading, turned by the loop's commands
+	 */
+	static class SimulatedDrive implements Drive {
+		private double heading;
+		private int speed;
+		private long since = System.nanoTime();
+		int commands;
+		int repeats;
+
+		public synchronized void turn(int _speed) {
+			if(_speed == speed) {
+				repeats++;
+			}
+			heading = heading(System.nanoTime());
+			since = System.nanoTime();
+			speed = _speed;
+			commands++;
+		}
+
+		synchronized double heading(long now) {
+			return heading + speed * TURN_RATIO * (now - since) / 1e9;
+		}
+
+		synchronized int speed() {
+			return speed;
+		}
+	}
+
+	/**
+	 * Reports where the face is in the picture, every FRAME_MS, LAG_MS late
+	 */
+	static class SimulatedDetector extends Thread implements SteeringLoop.FaceSource {
+		private final SimulatedDrive drive;
+		private final LatestResult results = new LatestResult();
+		private volatile double bearing;		// where the person is
+		private volatile double walking;		// degrees per second
+		private volatile boolean paused;
+		private volatile boolean running = true;
+		private long frame;
+
+		SimulatedDetector(SimulatedDrive _drive, double _bearing) {
+			drive = _drive;
+			bearing = _bearing;
+			setDaemon(true);
+		}
+
+		public void run() {
+			Rect[] face = { new Rect() };
+			long last = System.nanoTime();
+			while(running) {
+				try {
+					Thread.sleep(FRAME_MS - LAG_MS);
+					long captured = System.nanoTime();
+					bearing += walking * (captured - last) / 1e9;
+					last = captured;
+					double x = WIDTH / 2.0 + (bearing - drive.heading(captured)) / DEG_PER_PIXEL;
+					Thread.sleep(LAG_MS);
+					if(paused) {
+						continue;
+					}
+					face[0].x = (int) Math.round(x - FACE_SIZE / 2.0);
+					face[0].y = 40;
+					face[0].width = face[0].height = FACE_SIZE;
+					int n = x >= 0 && x < WIDTH ? 1 : 0;
+					results.publish(new DetectionResult(++frame, captured, System.nanoTime(), face, n));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		public DetectionResult awaitResult(long seen, long timeout) throws InterruptedException {
+			return results.awaitNewer(seen, timeout);
+		}
+
+		/** @return How far the face is from the middle of the picture now, pixels */
+		double offset() {
+			return (bearing - drive.heading(System.nanoTime())) / DEG_PER_PIXEL;
+		}
+
+		long published() {
+			return frame;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+		SimulatedDrive drive = new SimulatedDrive();
+		SimulatedDetector detector = new SimulatedDetector(drive, 20);
+		SteeringLoop loop = new SteeringLoop(detector, drive, WIDTH);
+		detector.start();
+
+		// Someone standing off to the right
+		long cpuStart = cpu.getCurrentThreadCpuTime();
+		long wallStart = System.nanoTime();
+		run(loop, 3000);
+		double cpuShare = (double) (cpu.getCurrentThreadCpuTime() - cpuStart) / (System.nanoTime() - wallStart);
+		System.out.println(String.format("Standing: face %.1f pixels off centre, speed %d, %s",
+				detector.offset(), drive.speed(), loop));
+		results.check("turns to face someone standing still", Math.abs(detector.offset()) <= 8);
+		results.check("stops once facing them", drive.speed() == 0);
+		results.check("one step per result, no spinning", loop.getSteps() <= detector.published() + loop.getStale() + 1);
+		results.check(String.format("loop thread mostly asleep (%.1f%% of a core)", cpuShare * 100), cpuShare < 0.05);
+		results.check("fewer commands than results", loop.getCommands() < detector.published() / 2);
+
+		// They walk past
+		detector.walking = 8;
+		long published = detector.published();
+		run(loop, 1500);
+		double error = 0;
+		int samples = 0;
+		long end = System.currentTimeMillis() + 2500;
+		while(System.currentTimeMillis() < end) {
+			loop.step();
+			error += Math.abs(detector.offset());
+			samples++;
+		}
+		double meanError = error / samples;
+		System.out.println(String.format("Walking: mean %.1f pixels off centre, %d commands for %d results, %s",
+				meanError, drive.commands, detector.published() - published, loop));
+		results.check("follows someone walking past", meanError < 20);
+		results.check("never repeats a motor command", drive.repeats == 0);
+
+		// The detector stops reporting
+		detector.paused = true;
+		long pausedAt = System.nanoTime();
+		while(drive.speed() != 0 && System.nanoTime() - pausedAt < 2000000000L) {
+			loop.step();
+		}
+		long stopMs = (System.nanoTime() - pausedAt) / 1000000;
+		System.out.println("Stopped " + stopMs + "ms after the detector stopped");
+		results.check("stops when results stop", drive.speed() == 0 && stopMs < 1000);
+
+		detector.running = false;
+		detector.interrupt();
+		System.out.print(loop.getTimings().report());
+
+		results.finish();
+	}
+
+	private static void run(SteeringLoop loop, long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while(System.currentTimeMillis() < end) {
+			loop.step();
+		}
+	}
+}
@@ -1,7 +1,4 @@
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.File;
 
 import lejos.hardware.Button;
 import lejos.hardware.Sound;
@@ -10,23 +7,26 @@ import lejos.hardware.lcd.LCD;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
-import org.opencv.core.MatOfRect;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.highgui.VideoCapture;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
+import com.mastincrosbie.camera.MjpegServer;
+import com.mastincrosbie.face.DetectorProfile;
+import com.mastincrosbie.face.FaceDetectionContext;
+
 /**
  * Detect a face in the video stream from the camera and highlight the face in the image
  * streamed to the web-browser
  * 
  * To use: either run directly and open your browser at the IP address for the brick :8080
  * e.g. 192.168.0.123:8080 to see a 160x120 live streamed video with a green square around the 
- * faces detected.
+ * faces detected. Any number of browsers can watch at once, each frame is encoded once
+ * and shared by all of them, and a browser that can't keep up skips frames.
  * 
  * Very sensitive to lighting of course!
  * 
@@ -39,6 +39,9 @@ import org.opencv.objdetect.CascadeClassifier;
  * l = LBP feature classifier
  * h = Haar feeature classifier (slower but more accurate)
  * 
+ * Or load the settings DetectorTuning picked as best for your pictures:
+ * jrun -cp HTTPFaceDetect.jar HTTPFaceDetect detector.properties
+ * 
  * @author mcrosbie http://thinkbricks.net
  * @date 29/11/2015
  *
@@ -50,7 +53,10 @@ public class HTTPFaceDetect {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 		DetectFaceDemo d;
 		
-		if(args.length > 0) {
+		if(args.length == 1 && args[0].endsWith(".properties")) {
+			d = new DetectFaceDemo(DetectorProfile.load(new File(args[0])));
+			System.out.println("Loaded " + args[0]);
+		} else if(args.length > 0) {
 			int min = Integer.parseInt(args[0]);
 			double scale = Float.parseFloat(args[1]);
 			String features;
@@ -82,6 +88,10 @@ class DetectFaceDemo {
     private final String HaarFeatures = "/haarcascade_frontalface_alt.xml";  //classifiers to detect eyes and face.
     private final String LbpFeatures = "/lbpcascade_frontalface.xml";
     private String features;
+    private DetectorProfile profile;
+    private static final int PORT = 8080;
+    private static final Scalar MIDLINE_COLOUR = new Scalar(255, 0, 0, 255);
+    private static final Scalar FACE_COLOUR = new Scalar(0, 255, 0, 255);
     
     public DetectFaceDemo() {
     	features = LbpFeatures;
@@ -94,6 +104,10 @@ class DetectFaceDemo {
     	features = _features;
     }
     
+    public DetectFaceDemo(DetectorProfile _profile) {
+    	profile = _profile;
+    }
+    
 	public void run() throws Exception {
 		
 	    Mat frame = new Mat();
@@ -104,127 +118,90 @@ class DetectFaceDemo {
         vid.open(0);
         System.out.println("Camera open");   
         
-        faceDetector = new CascadeClassifier(getClass().getResource(features).getPath());
-
-        if(faceDetector.empty()) {
-        	System.err.println("Failed to load classifier ");
-        	Sound.buzz();
-        	System.exit(1);
+        FaceDetectionContext detection;
+        if(profile != null) {
+        	try {
+        		detection = profile.createContext();
+        	} catch (IllegalArgumentException e) {
+        		System.err.println(e.getMessage());
+        		Sound.buzz();
+        		System.exit(1);
+        		return;
+        	}
+        	System.out.println("Detecting with " + profile);
         } else {
-        	System.out.println("Loaded classifier");
+	        faceDetector = new CascadeClassifier(getClass().getResource(features).getPath());
+	
+	        if(faceDetector.empty()) {
+	        	System.err.println("Failed to load classifier ");
+	        	Sound.buzz();
+	        	System.exit(1);
+	        } else {
+	        	System.out.println("Loaded classifier");
+	        }
+	        detection = new FaceDetectionContext(faceDetector);
+	        detection.setParameters(scaleFactor, minNeighbours, flags, minSize, maxSize);
         }
+        Point midPoint1 = new Point();
+        Point midPoint2 = new Point();
 
-        ServerSocket ss = new ServerSocket(8080);
-        Socket sock = ss.accept();
-        System.out.println("Socket connected");
-        String boundary = "Thats it folks!";
-        writeHeader(sock.getOutputStream(), boundary);
-        System.out.println("Written header");
+        MjpegServer server = new MjpegServer(PORT);
+        server.start();
+        System.out.println("Streaming on port " + PORT);
+        MatOfByte jpeg = new MatOfByte();
           
         /**
-         * Capture images and stream to the web client
+         * Capture images and stream to the web clients
          */
         while (Button.ESCAPE.isUp()) {
             
         	vid.read(frame);     	
         	
-        	Point midPoint1 = new Point((double)(frame.width()/2), 0.0);
-        	Point midPoint2 = new Point((double)(frame.width()/2), (double)frame.height());
-        	
             if (!frame.empty()) {
             	           	
-                MatOfRect faces = new MatOfRect();
-                Mat mRgba=new Mat();  
-                Mat mGrey=new Mat();  
-                frame.copyTo(mRgba);  
-                frame.copyTo(mGrey);  
-                Imgproc.cvtColor( mRgba, mGrey, Imgproc.COLOR_BGR2GRAY);  
-                Imgproc.equalizeHist( mGrey, mGrey );                  
-                
-                // detect faces
-                long startTime = System.nanoTime();  
-                faceDetector.detectMultiScale(
-                		mGrey, 
-                		faces,
-                		scaleFactor,
-                		minNeighbours,
-                		flags,
-                		minSize,
-                		maxSize);
-                long endTime = System.nanoTime();  
+                // detect faces, the grey Mats and results are reused every frame
+                int numFaces = detection.detect(frame);
 
                 //System.out.println(String.format("detectMultiScale done: took %.2f ms", 
-                //		(float)(endTime - startTime)/1000000));  
+                //		(float)detection.getDetectNanos()/1000000));  
 
                	// draw a line down the middle of the frame so we can tell left from right
-            	Core.line(frame, midPoint1, midPoint2, new Scalar(255, 0, 0, 255), 1);
+            	midPoint1.x = midPoint2.x = frame.width()/2;
+            	midPoint2.y = frame.height();
+            	Core.line(frame, midPoint1, midPoint2, MIDLINE_COLOUR, 1);
 
-                int numFaces = faces.toArray().length;
                 if(numFaces > 0) {
                 	System.out.println(String.format("+++ Detected %s faces", numFaces));
 
 		            // each rectangle in faces is a face
-		            Rect[] facesArray = faces.toArray();
-		            for (int i = 0; i < facesArray.length; i++) {
-		            	Rect rect = facesArray[i];
-		                Point center= new Point(rect.x + rect.width*0.5, rect.y + rect.height*0.5 );  
-		                if(center.x < (frame.width()/2)) {
+		            for (int i = 0; i < numFaces; i++) {
+		            	Rect rect = detection.getFace(i);
+		                double centerX = rect.x + rect.width*0.5;  
+		                if(centerX < (frame.width()/2)) {
 		                	System.out.println("<<<<<<<<<< Face to the LEFT");
 		                } else {
 		                	System.out.println("Face to the RIGHT >>>>>>>>>>>>>");
 		                }
 		 
-		            	Core.rectangle(frame, rect.tl(), rect.br(), new Scalar(0, 255, 0, 255), 2);
+		            	Core.rectangle(frame, rect.tl(), rect.br(), FACE_COLOUR, 2);
 		            }
                 } else {
                 	LCD.clear(5);
                 }
 
-                writeJpg(sock.getOutputStream(), frame, boundary);
+                // Encode once for every viewer, and not at all if no one is watching
+                if(server.hasViewers()) {
+                	Highgui.imencode(".jpg", frame, jpeg);
+                	server.publish(jpeg.toArray());
+                }
              } else {
             	 System.out.println("No picture");
              }
         }
-        sock.close();
-        ss.close();    
+        System.out.println(server);
+        server.close();
+        detection.release();
+        frame.release();
+        jpeg.release();
 	}
-	
-	/**
-	 * Write the HTTP header to the output stream
-	 * 
-	 * @param stream OutputStream connected to the connect
-	 * @param boundary Text to insert between messages
-	 * @throws IOException
-	 */
-    private void writeHeader(OutputStream stream, String boundary) throws IOException {
-        stream.write(("HTTP/1.0 200 OK\r\n" +
-                "Connection: close\r\n" +
-                "Max-Age: 0\r\n" +
-                "Expires: 0\r\n" +
-                "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
-                "Pragma: no-cache\r\n" + 
-                "Content-Type: multipart/x-mixed-replace; " +
-                "boundary=" + boundary + "\r\n" +
-                "\r\n" +
-                "--" + boundary + "\r\n").getBytes());
-    }
-
-    /**
-     * Convert an OpenCV matrix into JPG format and write it to the HTTP output stream
-     * 
-     * @param stream
-     * @param img
-     * @param boundary
-     * @throws IOException
-     */
-    private void writeJpg(OutputStream stream, Mat img, String boundary) throws IOException {
-        MatOfByte buf = new MatOfByte();
-        Highgui.imencode(".jpg", img, buf);
-        byte[] imageBytes = buf.toArray();
-        stream.write(("Content-type: image/jpeg\r\n" +
-                "Content-Length: " + imageBytes.length + "\r\n" +
-                "\r\n").getBytes());
-        stream.write(imageBytes);
-        stream.write(("\r\n--" + boundary + "\r\n").getBytes());
-    }
 }
@@ -8,6 +8,8 @@ import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
+import com.mastincrosbie.face.BatchFaceDetect;
+
 
 //
 // Detects faces in an image, draws boxes around them, and writes the results
@@ -41,8 +43,17 @@ class DetectFaces {
   }
 }
 
+//
+// With arguments, finds the faces in a whole directory tree of images instead:
+// TestFaceDetect imageDir outDir [-threads n] [-profile detector.properties] [-cascade file.xml]
+// See BatchFaceDetect.
+//
 public class TestFaceDetect {
-  public static void main(String[] args) {
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      BatchFaceDetect.main(args);
+      return;
+    }
     System.out.println("Hello, OpenCV");
 
     // Load the native library.
@@ -0,0 +1,210 @@
+package com.mastincrosbie;
+
+import java.io.IOException;
+
+/**
+ * A local clock that follows the controller's beat clock, so every SoundMachine stamps
+ * its colour events on the same grid. The same class is in soundmachinecontroller,
+ * keep the two identical.
+ *
+ * Beat time is counted in ticks, TICKS_PER_BEAT to a beat. The controller broadcasts a
+ * CMD_TIMECODE message every so often with its beat time and tempo (see write()), and
+ * each one is given to sync() with the local ms it arrived at. The clock fits a line
+ * through the last WINDOW of them, which gives the offset between the two clocks and how
+ * fast the local one drifts against the controller's, and toBeat() reads the line. The
+ * drift is fitted by least squares. A timecode can be held up by the radio but never
+ * arrives early, so the line is put through the earliest of them rather than through
+ * the middle. A timecode well behind the line is ignored, unless several in a row are,
+ * when the clock starts again from them.
+ *
+ * The radio delay isn't measured, so beat time runs behind the controller by about
+ * the shortest delay. It is much the same for every SoundMachine, so they still agree
+ * with each other.
+ *
+ * @author mcrosbie
+ *
+ */
+public class BeatClock {
+
+	public static final int TICKS_PER_BEAT = 480;
+
+	private static final int WINDOW = 128;					// long enough to see the drift through the radio jitter
+	private static final int MAX_ERROR = TICKS_PER_BEAT / 16;	// further behind the line than this is an outlier
+	private static final int MAX_OUTLIERS = 8;				// in a row, before starting again
+	private static final int LOCKED = 4;					// timecodes needed before the clock is trusted
+	private static final int MIN_SPAN = 2000;				// ms the timecodes must cover before the drift is fitted
+	private static final double MAX_DRIFT = 0.01;
+
+	// The last WINDOW timecodes: local ms and beat ticks
+	private final int[] locals = new int[WINDOW];
+	private final int[] ticks = new int[WINDOW];
+	private int count;
+	private int next;
+	private int outliers;
+
+	private int bpm;
+	private double nominal;		// ticks per ms at bpm
+	private double rate;		// ticks per local ms, nominal corrected for drift
+
+	// The line: beat time baseTicks at local time baseLocal
+	private int baseLocal;
+	private double baseTicks;
+	private double offset;		// ticks the last timecode was off the line before it
+
+	/**
+	 * @param bpm Tempo to assume until the first timecode arrives
+	 */
+	public BeatClock(int bpm) {
+		setTempo(bpm);
+		rate = nominal;
+	}
+
+	/**
+	 * Write a timecode message body
+	 * @param b Where to write it
+	 * @param beat Beat time now, ticks
+	 * @param bpm Tempo, beats per minute
+	 * @throws IOException if it doesn't fit
+	 */
+	public static void write(MessageBuffer b, int beat, int bpm) throws IOException {
+		b.putInt(beat);
+		b.putShort(bpm);
+	}
+
+	/**
+	 * Follow a timecode message
+	 * @param local Local time it arrived, ms
+	 * @param b Its body, from write()
+	 * @return false if it was ignored as an outlier
+	 * @throws IOException if the body is short
+	 */
+	public boolean sync(int local, MessageBuffer b) throws IOException {
+		int beat = b.getInt();
+		int tempo = b.getShort() & 0xFFFF;
+		return sync(local, beat, tempo);
+	}
+
+	/**
+	 * Follow a timecode
+	 * @param local Local time it arrived, ms
+	 * @param beat Controller's beat time, ticks
+	 * @param tempo Controller's tempo, beats per minute
+	 * @return false if it was ignored as an outlier
+	 */
+	public boolean sync(int local, int beat, int tempo) {
+		if(tempo != bpm) {
+			// The old line is no use at a new tempo
+			setTempo(tempo);
+			restart();
+		}
+		if(count > 0) {
+			offset = beat - toBeatExact(local);
+			// Only late is suspect, an early one means the line is behind
+			if(isLocked() && offset < -MAX_ERROR) {
+				if(++outliers <= MAX_OUTLIERS) {
+					return false;
+				}
+				restart();
+			}
+		}
+		outliers = 0;
+		locals[next] = local;
+		ticks[next] = beat;
+		next = (next + 1) % WINDOW;
+		if(count < WINDOW) {
+			count++;
+		}
+		fit(local);
+		return true;
+	}
+
+	/**
+	 * Beat time at a local time
+	 * @param local Local time, ms
+	 * @return Beat time, ticks
+	 */
+	public int toBeat(int local) {
+		return (int) Math.floor(toBeatExact(local));
+	}
+
+	private double toBeatExact(int local) {
+		return baseTicks + rate * (local - baseLocal);
+	}
+
+	/**
+	 * Fit the line through the timecodes, relative to the latest so the numbers stay small
+	 */
+	private void fit(int latest) {
+		int latestTicks = ticks[(next + WINDOW - 1) % WINDOW];
+		// Drift, as ticks per ms off the tempo, fitted to the timecodes that came about as
+		// soon as the earliest, leaving out any held up before the clock locked. Until they
+		// cover long enough to say, say a burst of them arriving together, none.
+		double earliest = envelope(latest, latestTicks, rate);
+		int oldest = latest;
+		int n = 0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for(int i=0; i < count; i++) {
+			double x = locals[i] - latest;
+			if((ticks[i] - latestTicks) - rate * x < earliest - MAX_ERROR) {
+				continue;
+			}
+			double y = (ticks[i] - latestTicks) - nominal * x;
+			oldest = Math.min(oldest, locals[i]);
+			n++;
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		double slope = 0;
+		double d = n * sxx - sx * sx;
+		if(n >= LOCKED && latest - oldest >= MIN_SPAN && d != 0) {
+			slope = (n * sxy - sx * sy) / d;
+			slope = Math.max(-MAX_DRIFT * nominal, Math.min(MAX_DRIFT * nominal, slope));
+		}
+		rate = nominal + slope;
+		baseLocal = latest;
+		baseTicks = latestTicks + envelope(latest, latestTicks, rate);
+	}
+
+	/**
+	 * @return How far the earliest timecode is ahead of a line at rate through the latest
+	 */
+	private double envelope(int latest, int latestTicks, double r) {
+		double earliest = -Double.MAX_VALUE;
+		for(int i=0; i < count; i++) {
+			earliest = Math.max(earliest, (ticks[i] - latestTicks) - r * (locals[i] - latest));
+		}
+		return earliest;
+	}
+
+	private void restart() {
+		count = 0;
+		next = 0;
+	}
+
+	private void setTempo(int tempo) {
+		bpm = tempo;
+		nominal = tempo * (double) TICKS_PER_BEAT / 60000;
+	}
+
+	/** @return true once there have been enough timecodes to trust the drift */
+	public boolean isLocked() {
+		return count >= LOCKED;
+	}
+
+	/** @return Tempo, beats per minute */
+	public int getTempo() {
+		return bpm;
+	}
+
+	/** @return How fast the local clock runs against the controller's, e.g. 0.0001 is 100 ppm fast */
+	public double getDrift() {
+		return nominal / rate - 1;
+	}
+
+	/** @return How far off the line the last timecode was, ticks */
+	public double getOffset() {
+		return offset;
+	}
+}
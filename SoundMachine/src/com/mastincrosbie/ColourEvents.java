@@ -0,0 +1,149 @@
+package com.mastincrosbie;
+
+import java.io.IOException;
+
+/**
+ * Turns the SoundMachine's colour samples into run-length events: one message when the
+ * colour changes, rather than one per sample, and a keepalive when nothing has been
+ * sent for a while so the controller knows the link is up. The same class is in
+ * soundmachinecontroller, keep the two identical.
+ *
+ * Times are in ticks, whatever clock the caller samples with (Timecode beat ticks on the NXT). The bodies are
+ *
+ *   CHANGE:    colour (byte) | start (int) | previous colour (byte) | previous duration (int)
+ *   KEEPALIVE: colour (byte) | start (int) | duration so far (int)
+ *
+ * so a change says when the new colour started and how long the one before it lasted,
+ * and the controller can rebuild every run from the changes alone.
+ *
+ * @author mcrosbie
+ *
+ */
+public class ColourEvents {
+
+	public static final int NONE = 0;
+	public static final int CHANGE = 1;
+	public static final int KEEPALIVE = 2;
+
+	/** Previous colour in the first change, when there wasn't one */
+	public static final int NO_COLOUR = 0xFF;
+
+	private final int keepalive;
+
+	// The run in progress, and when the last message went. There is no run until the
+	// first sample, a colour can't mark that since the sensor's NONE is -1.
+	private boolean started;
+	private int colour;
+	private int start;
+	private int lastSent;
+
+	// The event to send, or the one last read
+	private int kind = NONE;
+	private int eventColour;
+	private int eventStart;
+	private int previousColour;
+	private int duration;
+
+	/**
+	 * @param keepalive Send a keepalive after this many ticks without a message
+	 */
+	public ColourEvents(int keepalive) {
+		if(keepalive <= 0) {
+			throw new IllegalArgumentException("keepalive must be positive");
+		}
+		this.keepalive = keepalive;
+	}
+
+	/**
+	 * Add a sample
+	 * @param now When it was taken
+	 * @param c Its colour, 0-254, or -1 for the sensor's NONE, which is sent as NO_COLOUR
+	 * @return CHANGE or KEEPALIVE if there is an event to send now, otherwise NONE
+	 */
+	public int sample(int now, int c) {
+		if(!started || c != colour) {
+			previousColour = started ? colour : NO_COLOUR;
+			duration = started ? now - start : 0;
+			started = true;
+			colour = c;
+			start = now;
+			eventColour = c;
+			eventStart = now;
+			lastSent = now;
+			kind = CHANGE;
+			return kind;
+		}
+		return tick(now);
+	}
+
+	/**
+	 * Check whether a keepalive is due, when there are no samples to add
+	 * @param now The time now
+	 * @return KEEPALIVE if one should be sent now, otherwise NONE
+	 */
+	public int tick(int now) {
+		if(!started || now - lastSent < keepalive) {
+			kind = NONE;
+			return kind;
+		}
+		eventColour = colour;
+		eventStart = start;
+		duration = now - start;
+		lastSent = now;
+		kind = KEEPALIVE;
+		return kind;
+	}
+
+	/**
+	 * Write the event from sample() or tick() as a message body
+	 * @param b Where to write it
+	 * @throws IOException if it doesn't fit
+	 */
+	public void write(MessageBuffer b) throws IOException {
+		b.putByte(eventColour);
+		b.putInt(eventStart);
+		if(kind == CHANGE) {
+			b.putByte(previousColour);
+		}
+		b.putInt(duration);
+	}
+
+	/**
+	 * Replace the event with one read from a message body
+	 * @param b The body
+	 * @param k CHANGE or KEEPALIVE, from the message type
+	 * @throws IOException if the body is short
+	 */
+	public void read(MessageBuffer b, int k) throws IOException {
+		eventColour = b.getByte() & 0xFF;
+		eventStart = b.getInt();
+		previousColour = k == CHANGE ? b.getByte() & 0xFF : eventColour;
+		duration = b.getInt();
+		kind = k;
+	}
+
+	/** @return CHANGE or KEEPALIVE, or NONE if there is no event */
+	public int getKind() {
+		return kind;
+	}
+
+	/** @return The colour now */
+	public int getColour() {
+		return eventColour;
+	}
+
+	/** @return When the colour now started */
+	public int getStart() {
+		return eventStart;
+	}
+
+	/** @return For a change, the colour before it, or NO_COLOUR for the first */
+	public int getPreviousColour() {
+		return previousColour;
+	}
+
+	/** @return For a change, how long the previous colour lasted; for a keepalive, how long the colour now has */
+	public int getDuration() {
+		return duration;
+	}
+}
@@ -0,0 +1,73 @@
+package com.mastincrosbie;
+
+/**
+ * The framing used for every message between a SoundMachine and the controller.
+ * The same class is in soundmachinecontroller, keep the two identical.
+ *
+ * A frame is
+ *
+ *   START (0xFF) | type | address | length | payload[length] | Xor8
+ *
+ * where the Xor8 checksum covers type, address, length and the payload, and length is
+ * at most MAX_PAYLOAD. FrameParser reads them back however the bytes arrive.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameCodec {
+
+	public static final int START = 0xFF;
+	public static final int HEADER_SIZE = 4;
+	public static final int TRAILER_SIZE = 1;
+	public static final int MAX_PAYLOAD = 64;
+	public static final int MAX_FRAME = HEADER_SIZE + MAX_PAYLOAD + TRAILER_SIZE;
+
+	/**
+	 * Build a frame round a payload
+	 * @param type Message type, 0-255
+	 * @param address Address, 0-255
+	 * @param payload Payload bytes
+	 * @param off Offset of the payload in payload
+	 * @param len Length of the payload, at most MAX_PAYLOAD
+	 * @param frame Where to build the frame, at least len + HEADER_SIZE + TRAILER_SIZE bytes from frameOff
+	 * @param frameOff Offset of the frame in frame
+	 * @return Length of the frame
+	 * @throws IllegalArgumentException if the payload is too big or the frame doesn't fit
+	 */
+	public static int encode(int type, int address, byte[] payload, int off, int len, byte[] frame, int frameOff) {
+		check(len, frame, frameOff);
+		System.arraycopy(payload, off, frame, frameOff + HEADER_SIZE, len);
+		return frame(type, address, len, frame, frameOff);
+	}
+
+	/**
+	 * Build a frame round a payload already in place at frameOff + HEADER_SIZE,
+	 * filling in the header and checksum without copying anything
+	 * @param type Message type, 0-255
+	 * @param address Address, 0-255
+	 * @param len Length of the payload, at most MAX_PAYLOAD
+	 * @param frame The frame
+	 * @param frameOff Offset of the frame in frame
+	 * @return Length of the frame
+	 * @throws IllegalArgumentException if the payload is too big or the frame doesn't fit
+	 */
+	public static int frame(int type, int address, int len, byte[] frame, int frameOff) {
+		check(len, frame, frameOff);
+		frame[frameOff] = (byte) START;
+		frame[frameOff + 1] = (byte) type;
+		frame[frameOff + 2] = (byte) address;
+		frame[frameOff + 3] = (byte) len;
+		int end = frameOff + HEADER_SIZE + len;
+		frame[end] = (byte) Xor8.checksum(frame, frameOff + 1, HEADER_SIZE - 1 + len);
+		return HEADER_SIZE + len + TRAILER_SIZE;
+	}
+
+	private static void check(int len, byte[] frame, int frameOff) {
+		if(len < 0 || len > MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Payload of " + len + " bytes, at most " + MAX_PAYLOAD);
+		}
+		if(frameOff < 0 || frameOff + HEADER_SIZE + len + TRAILER_SIZE > frame.length) {
+			throw new IllegalArgumentException("Frame doesn't fit");
+		}
+	}
+}
@@ -5,11 +5,17 @@ import java.util.Arrays;
 
 import lejos.nxt.*;
 import lejos.util.*;
-import lejos.nxt.comm.RConsole;
 import java.util.*;
 
 /**
  * Implements a message that is sent/received to/from the Controller
+ * 
+ * Messages go over the link as FrameCodec frames, checksummed, and are read back with a
+ * FrameParser, so it doesn't matter how the bytes are split up on the way.
+ * 
+ * Fields are written straight into the frame buffer and read straight out of the parser's
+ * buffer with a MessageBuffer, so nothing is allocated per message or per field. There
+ * is no locking per field: use a Message from one thread at a time.
  * @author mcrosbie
  *
  */
@@ -17,16 +23,16 @@ public class Message {
 	
 	private InputStream dis;
 	private OutputStream dos;
-	private ByteArrayOutputStream baos;
-	private ByteArrayInputStream bais;
-	private byte[] b;
+	private FrameParser parser;
+	private byte[] frame;
+	private MessageBuffer body;	// the payload being written, or the one last read
+	private boolean read;		// a message has been read
 	
 	private int msgType;
 	private int address;
 	private int msgSize;		// how many bytes are stored in the message buffer
 
-    private final int MAX_MSG_SIZE = 90;
-	private final int START_BYTE = 0xff;
+    private final int MAX_MSG_SIZE = FrameCodec.MAX_PAYLOAD;
 	
 	/**
 	 * Create a new message that will be sent on the given OutputStream
@@ -34,7 +40,9 @@ public class Message {
 	 */
 	Message(OutputStream os) {
 		dos = os;
-		baos = new ByteArrayOutputStream(MAX_MSG_SIZE);
+		frame = new byte[FrameCodec.MAX_FRAME];
+		body = new MessageBuffer();
+		body.wrap(frame, FrameCodec.HEADER_SIZE, MAX_MSG_SIZE);
 		msgSize = 0;
 	}
 	
@@ -44,8 +52,8 @@ public class Message {
 	 */
 	Message(InputStream is) {
 		dis = is;
-		b = new byte[MAX_MSG_SIZE];
-		bais = new ByteArrayInputStream(b);
+		parser = new FrameParser();
+		body = new MessageBuffer();
 		msgSize = 0;
 	}
 	
@@ -55,52 +63,20 @@ public class Message {
 	 * as the message body. The message still consists of a header field, with a type.
 	 * @throws IOException if a poorly formed message was read, or one with a bad checksum
 	 */
-	public synchronized int extractHeader() throws IOException {
+	public int extractHeader() throws IOException {
 
-		// Has any data been read from the input stream?
-  	   	if( msgSize > 0) {
-  	   		
-  	   		int startByte = bais.read();
-  	   		if(startByte != START_BYTE) {
-	  	   		RConsole.println("Message read() No magic value");
-	  	   		throw new IOException("No magic value");
-	  	   	}	  	   	
-  	   		  	   		  	   	
-  	   		// Read the type of the message next
-  	   		msgType = bais.read();
-  	   		if(msgType < 0) {
-  	   			RConsole.println("MEssage read() bad msgType: " + msgType);
-  	   			throw new IOException("Bad message type");
-  	   		}
-  	   		
-  	   		// Read the address value
-  	   		address = bais.read();
-
-  	   		//RConsole.println("Message read() address="+address);
-  	   		
-  	   		// Read the byte count in the message
-	  	   	msgSize = bais.read();
-
-	  	   	RConsole.println("Message read() msgSize= " + msgSize + " bytes");
-	  	   	
-	  	   	// A little sanity checking is good for you!
-	  	   	if( msgSize == 0) {
-	  	   		RConsole.println("Message read(), 0 length message body, returning");
-	  	   		return 0;	// empty message, so exit ok
-	  	   	}
-	  	   	
-	  	   	if(msgSize < 0 || msgSize > MAX_MSG_SIZE) {
-	  	   		RConsole.println("Message read() invalid message size " + msgSize);
-	  	   		throw new IOException("Invalid message size " + msgSize);
-	  	   	}
-	  	   	return msgSize;
-	 	} else {
-	 		return 0; // no bytes available
-	 	}
+		// The parser has already checked the start byte, length and checksum
+		if(!read) {
+			return 0; // nothing read
+		}
+		msgType = parser.getType();
+		address = parser.getAddress();
+		msgSize = parser.getLength();
+		return msgSize;
 	}
 	
 		
-	public synchronized void setType(byte t) {
+	public void setType(byte t) {
 		msgType = t;
 	}
 	
@@ -108,7 +84,7 @@ public class Message {
 	 * Returns the message type of this message as an integer from 0-255
 	 * @return The message type
 	 */
-	public synchronized int getType() {
+	public int getType() {
 		return (int)msgType;
 	}
 	
@@ -116,7 +92,7 @@ public class Message {
 	 * Set the destination address to send this message to
 	 * @param a Address to send. BROADCAST sends to all receivers
 	 */
-	public synchronized void setAddress(byte a) {
+	public void setAddress(byte a) {
 		address = a;
 	}
 	
@@ -124,7 +100,7 @@ public class Message {
 	 * Return the address encoded in the message
 	 * @return The address from 0-255 as an integer
 	 */
-	public synchronized int getAddress() {
+	public int getAddress() {
 		return (int)address;
 	}
 	
@@ -137,23 +113,34 @@ public class Message {
 	
 	/**
 	 * Initiates sending a message by writing the header to the OutputStream, followed by
-	 * the message bytes
+	 * the message bytes and the checksum, all in one write
 	 * @throws IOException If an error occurs writing to the output stream
 	 */
-	public synchronized void sendMessage() throws IOException {
+	public void sendMessage() throws IOException {
+		
+		// The body is already in place after the header
+		int n = FrameCodec.frame(msgType, address, body.position(), frame, 0);
 		
-   		// now send the whole byte buffer to the remote side
-   		baos.writeTo(dos);
+   		// now send the whole frame to the remote side
+   		dos.write(frame, 0, n);
+   		dos.flush();
+   		body.rewind();
+   		msgSize = 0;
 	}
 	
 	/**
 	 * Read a message from the underlying InputStream that was passed in to the constructor. Will block
-	 * if the underlying InputStream read() method blocks.
+	 * until a whole message has arrived if the underlying InputStream read() method blocks.
 	 * @throws IOException If an error occurred reading the input stream
 	 */
-	public synchronized void readMessage() throws IOException {
+	public void readMessage() throws IOException {
 		
-		msgSize = dis.read(b);
+		if(!parser.readFrame(dis)) {
+			throw new EOFException("End of stream");
+		}
+		msgSize = parser.getLength();
+		body.wrap(parser.getBuffer(), parser.getPayloadOffset(), msgSize);
+		read = true;
 	}
 	
 	/**
@@ -183,10 +170,7 @@ public class Message {
 	 */
 	public final void writeInt(int v) throws IOException
 	{
-		baos.write(v >>> 24);
-		baos.write(v >>> 16);
-		baos.write(v >>>  8);
-		baos.write(v);
+		body.putInt(v);
 	}
 
 	/**
@@ -196,16 +180,7 @@ public class Message {
 	 */
 	public final void writeLong(long v) throws IOException
 	{
-		int tmp = (int)(v >>> 32);
-		baos.write(tmp >>> 24);
-		baos.write(tmp >>> 16);
-		baos.write(tmp >>> 8);
-		baos.write(tmp);
-		tmp = (int)v;
-		baos.write(tmp >>> 24);
-		baos.write(tmp >>> 16);
-		baos.write(tmp >>> 8);
-		baos.write(tmp);
+		body.putLong(v);
 	}
 
 	/**
@@ -215,8 +190,7 @@ public class Message {
 	 */
 	public final void writeShort(int v) throws IOException
 	{
-		baos.write(v >>> 8);
-		baos.write(v);
+		body.putShort(v);
 	}
 
 	/**
@@ -224,9 +198,8 @@ public class Message {
 	 * @param val The byte value to send 0-255 encoded as an integer. Low-order byte is sent.
 	 * @throws IOException
 	 */
-	public synchronized void writeByte(int val) throws IOException {
-		baos.write(val);
-		msgSize++;
+	public void writeByte(int val) throws IOException {
+		body.putByte(val);
 	}
 	
 	/**
@@ -234,7 +207,7 @@ public class Message {
 	 * @param val Bytes to send
 	 * @throws IOException
 	 */
-	public synchronized void sendBytes(byte[] val) throws IOException {
+	public void sendBytes(byte[] val) throws IOException {
 		this.sendBytes(val, 0, val.length);
 	}
 	
@@ -245,24 +218,16 @@ public class Message {
 	 * @param len Number of elements from val to send.
 	 * @throws IOException 
 	 */
-	public synchronized void sendBytes(byte[] val, int off, int len) throws IOException {
-		if( (len - off) > MAX_MSG_SIZE ) {
-			throw new IOException("Message too large");
-		}
-		
-		if(len > val.length) {
-			throw new IOException("Invalid length");
-		}
-	
-		baos.write(val, off, len);
+	public void sendBytes(byte[] val, int off, int len) throws IOException {
+		body.putBytes(val, off, len);
 	}
 	
 	/**
 	 * Return the number of bytes encoded in the message just read, or written thus far
 	 * @return Number of bytes encoded
 	 */
-	public synchronized int size() {
-		return msgSize;
+	public int size() {
+		return dos != null ? body.position() : msgSize;
 	}
 
 	/**
@@ -270,8 +235,8 @@ public class Message {
 	 * @return The next byte in the message from 0-255 is returned as an integer
 	 * @throws IOException if no more bytes are available
 	 */
-	public synchronized byte readByte() throws IOException {
-		return (byte)(bais.read() & 0xFF);
+	public byte readByte() throws IOException {
+		return body.getByte();
 	}
 
 	/**
@@ -279,8 +244,8 @@ public class Message {
 	 * @return The next integer value in the message
 	 * @throws IOException is thrown if no more bytes are available
 	 */
-	public synchronized int readInt() throws IOException {
-		return bais.read();
+	public int readInt() throws IOException {
+		return body.getInt();
 	}
 
 	/**
@@ -288,7 +253,7 @@ public class Message {
 	 * @return The next long value in the message
 	 * @throws IOException is thrown if no more bytes are available
 	 */
-	public synchronized long readLong() throws IOException {
-		return dis.read();
+	public long readLong() throws IOException {
+		return body.getLong();
 	}
 }
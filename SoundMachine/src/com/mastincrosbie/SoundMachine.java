@@ -45,12 +45,39 @@ public class SoundMachine extends Thread {
 
 	private static final int sampleInterval = 5;
 	
+	// The beat clock, followed from the controller's CMD_TIMECODE messages
+	private static Timecode timecode = new Timecode(BPM);
+	
+	// Send only the colour changes, each with when it started and how long the colour before
+	// it lasted, in beat time, and a keepalive every KEEPALIVE ticks when nothing has changed.
+	// The controller only cares when a new colour arrives. Set edgeEvents false to send the
+	// samples instead, in ms.
+	private static boolean edgeEvents = true;
+	private static final int KEEPALIVE = 2 * BeatClock.TICKS_PER_BEAT;
+	private static ColourEvents events = new ColourEvents(KEEPALIVE);
+	
+	// Send the colour samples in batches, one radio transaction for up to BATCH_SAMPLES samples,
+	// rather than one per sample. A batch goes when it is full, after BATCH_DELAY ms, or
+	// at once when the colour changes. Set batching false to send every sample on its own.
+	private static boolean batching = true;
+	private static final int BATCH_SAMPLES = SampleBatch.MAX_SAMPLES;
+	private static final int BATCH_DELAY = 100;	// ms
+	
+	private static SampleBatch batch = new SampleBatch(batching ? BATCH_SAMPLES : 1, BATCH_DELAY);
+	private static byte[] frame = new byte[FrameCodec.MAX_FRAME];
+	private static MessageBuffer body = new MessageBuffer();
+	
+	// Commands from the controller, read by the command thread
+	private static FrameParser commands = new FrameParser();
+	private static MessageBuffer command = new MessageBuffer();
+	private static byte[] link = new byte[FrameCodec.MAX_FRAME];
+	
 	private static int turntableSpeed = TURNTABLE_SPEED;
 	
 	private static boolean debug = false;
 	
 	private static boolean running = false;		// true if the disk is rotating
-	private static boolean exit = false;		// true if we have to exit the program loop
+	private static volatile boolean exit = false;	// true if we have to exit the program loop
 	
 	///////////////////////////////////////////////////
 	// Set to true if you want to run the simulator
@@ -70,6 +97,9 @@ public class SoundMachine extends Thread {
     private static final byte CMD_SPEEDUP = 4;	// Rotate the disk faster
     private static final byte CMD_SLOWDOWN = 5;	// Rotate the disk slower
     private static final byte CMD_EXIT = 6;		// Stop and exit
+    private static final byte CMD_COLOURS = 7;	// A SampleBatch of colour samples
+    private static final byte CMD_CHANGE = 8;	// A ColourEvents colour change
+    private static final byte CMD_KEEPALIVE = 9;	// A ColourEvents keepalive
 
 	/**
 	 * printWelcomeScreen
@@ -86,13 +116,16 @@ public class SoundMachine extends Thread {
 	/**
 	 * setMyAddress
 	 * Choose the address for this NXT to use when talking to the host
-	 * @return address chosen by the user (1..3)
+	 * @return address chosen by the user (1..3), 0 is the broadcast address
 	 */
 	public static void setMyAddress() {
         String addr[] = {"1", "2", "3"};
         TextMenu modeMenu = new TextMenu(addr, 1, "My Address");
 
-        myAddress = (byte)(modeMenu.select() & 0xFF);
+        int selected = modeMenu.select();
+        if(selected >= 0) {
+        	myAddress = (byte)(selected + 1);	// the menu counts from 0
+        }
 
         if(debug) RConsole.println("Set my address to " + myAddress);
         
@@ -141,28 +174,52 @@ public class SoundMachine extends Thread {
     }
 
     /**
-     * Send a data block to the Mac
+     * Send a colour sample to the Mac: as an event if the colour changed, or add it to the
+     * batch and send the batch if it's time
      */
     public static void sendSignal(int colour) {
-    	    	
-    	byte[] b = new byte[6];
-    	
+    	if(edgeEvents) {
+    		sendEvent(events.sample(timecode.now(), colour));
+    	} else if(batch.add((int)System.currentTimeMillis(), colour)) {
+    		sendBatch();
+    	}
+    }
+    
+    /**
+     * Send a CMD_CHANGE or CMD_KEEPALIVE message for the event from ColourEvents
+     * @param kind The event, nothing is sent for ColourEvents.NONE
+     */
+    public static void sendEvent(int kind) {
+    	if(kind == ColourEvents.NONE) {
+    		return;
+    	}
     	try {
-
-	    	b[0] = CMD_TIMECODE;
-	    	b[1] = (byte)(colour & 0xFF);
-/**
-	    	b[1] = (byte)(timecode >>> 24);
-	    	b[2] = (byte)(timecode >>> 16);
-	    	b[3] = (byte)(timecode >>> 8);
-	    	b[4] = (byte)(timecode);
-	    	b[5] = (byte)(colour & 0xFF);
-**/ 	
-	    	os.write(b, 0, 2);	    	
+    		body.wrap(frame, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+    		events.write(body);
+    		int type = kind == ColourEvents.CHANGE ? CMD_CHANGE : CMD_KEEPALIVE;
+    		int n = FrameCodec.frame(type, myAddress, body.position(), frame, 0);
+	    	os.write(frame, 0, n);
+	    	os.flush();
     	} catch(Exception e) {
     		RConsole.println("Error sending message to controller: " + e);
     	}
-     }
+    }
+    
+    /**
+     * Send the samples batched so far as one CMD_COLOURS message
+     */
+    public static void sendBatch() {
+    	try {
+    		body.wrap(frame, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+    		batch.write(body);
+    		int n = FrameCodec.frame(CMD_COLOURS, myAddress, body.position(), frame, 0);
+	    	os.write(frame, 0, n);
+	    	os.flush();
+    	} catch(Exception e) {
+    		RConsole.println("Error sending message to controller: " + e);
+    	}
+    	batch.clear();
+    }
       
     public static void readColourSensor() {  	
     	while(true) {
@@ -217,14 +274,16 @@ public class SoundMachine extends Thread {
     
     /**
      * Execute a command received from the controller
+     * @param cmd The command, the message type
+     * @param body The message body, for commands that have one
      */
-    public static void executeCommand(int cmd) {
+    public static void executeCommand(int cmd, MessageBuffer body) {
 		    	
     	// what type of message is this?
     	try {
 			switch(cmd) {
 			case CMD_TIMECODE:
-				RConsole.println("CMD_TIMECODE");
+				timecode.update(body);
 				break;
 			
 			case CMD_EXIT:
@@ -278,16 +337,34 @@ public class SoundMachine extends Thread {
     	int cmd;
     	
     	RConsole.println("run method started...");
-    	while(true) {
-	 	   	// Read commands from the controller
+    	while(!exit) {
+	 	   	// Read commands from the controller, each a frame. Handle them as soon as they
+    		// arrive, so the timecodes aren't held up.
 	  	   	try {
-	  	   		cmd = is.read();
-	      	   	executeCommand(cmd);
+	  	   		int n = is.available();
+	  	   		if(n == 0) {
+	  	   			Delay.msDelay(5);	// nothing there yet
+	  	   			continue;
+	  	   		}
+	  	   		n = is.read(link, 0, Math.min(n, link.length));
+	  	   		if(n < 0) {
+	  	   			// The link has gone, nothing more will come
+	  	   			RConsole.println("Controller link closed");
+	  	   			exit = true;
+	  	   			break;
+	  	   		}
+	  	   		for(int off = 0; off < n; ) {
+	  	   			off += commands.put(link, off, n - off);
+	  	   			while(commands.next()) {
+	  	   				cmd = commands.getType();
+	  	   				command.wrap(commands.getBuffer(), commands.getPayloadOffset(), commands.getLength());
+	  	   				executeCommand(cmd, command);
+	  	   			}
+	  	   		}
 	      	} catch(Exception e) {
 				RConsole.println("***** COMMAND EXCEPTION " + e);
+	  	   		Delay.msDelay(100);
 	      	}
-	  	   		  	   	
-	  	   	Delay.msDelay(100);
     	}
     }
     
@@ -323,7 +400,10 @@ public class SoundMachine extends Thread {
  		 				 		
  		exit = false;
  		
- 		myAddress = 1;
+ 		// Each SoundMachine needs its own address so the controller can tell their colours apart
+ 		setMyAddress();
+ 		LCD.clear();
+ 		LCD.drawString("SoundMachine", 0, 0);
  		 		
  		if(debug) RConsole.println("Starting run loop");
  		
@@ -376,6 +456,15 @@ public class SoundMachine extends Thread {
 	      	   	Delay.msDelay(sampleInterval);     	   		      	   	
  			} else {
  				LCD.drawString("STOPPED", 0, 1);
+ 				
+ 				// Don't leave the last samples waiting for the disk to start again
+ 				if(batch.size() > 0) {
+ 					sendBatch();
+ 				}
+ 				// and let the controller know we're still here
+ 				if(edgeEvents) {
+ 					sendEvent(events.tick(timecode.now()));
+ 				}
  			}
  			       	   	
         }
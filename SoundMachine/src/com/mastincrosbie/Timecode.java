@@ -1,45 +1,74 @@
 package com.mastincrosbie;
 /**
  * Timecode implementation for SoundMachine
- * 
+ *
+ * Follows the beat clock the controller broadcasts in CMD_TIMECODE messages with a
+ * BeatClock, and gives the beat time now for stamping colour events. The command
+ * thread calls update() with each timecode, the main loop calls now().
+ *
  * @author mcrosbie
  *
  */
 
-import com.mastincrosbie.*;
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-
-import lejos.nxt.*;
-import lejos.util.Delay;
-import lejos.util.TextMenu;
-import lejos.robotics.Color;
-import lejos.nxt.addon.*;
-import lejos.nxt.comm.RConsole;
-
-public class Timecode implements Runnable {
-
-	private long timecode;
-	private boolean running = false;
-	private int period = 100; 		// one beat every 100ms = 10 bps
-	
-	Timecode(NXTBee nb) {
-		timecode = 0;
-	}
-	
-	public void start() {
-		running = true;
+import java.io.IOException;
+
+public class Timecode {
+
+	private final BeatClock clock;
+	private int last;			// beat time last returned, so now() doesn't step back
+	private int syncs;
+	private int ignored;
+
+	/**
+	 * @param bpm Tempo to assume until the first timecode arrives
+	 */
+	Timecode(int bpm) {
+		clock = new BeatClock(bpm);
 	}
-	
-	public void stop() {
-		running = false;
+
+	/**
+	 * Follow a CMD_TIMECODE message from the controller
+	 * @param body The message body
+	 * @throws IOException if the body is short
+	 */
+	public synchronized void update(MessageBuffer body) throws IOException {
+		if(clock.sync((int)System.currentTimeMillis(), body)) {
+			syncs++;
+		} else {
+			ignored++;
+		}
 	}
-	
+
 	/**
-	 * Constantly update the timecode based on messages from the NXTBee
+	 * @return Beat time now, in BeatClock ticks. The small corrections each timecode makes
+	 * don't take it backwards; only a big one, like the first timecode, can.
 	 */
-	public void run() {
-		
+	public synchronized int now() {
+		int t = clock.toBeat((int)System.currentTimeMillis());
+		if(t - last < 0 && last - t < BeatClock.TICKS_PER_BEAT) {
+			t = last;
+		}
+		last = t;
+		return t;
+	}
+
+	/** @return true once the clock is following the controller */
+	public synchronized boolean isLocked() {
+		return clock.isLocked();
+	}
+
+	/** @return Tempo, beats per minute */
+	public synchronized int getTempo() {
+		return clock.getTempo();
+	}
+
+	/** @return Number of timecodes followed */
+	public synchronized int getSyncs() {
+		return syncs;
+	}
+
+	/** @return Number of timecodes ignored as too far out */
+	public synchronized int getIgnored() {
+		return ignored;
 	}
 }
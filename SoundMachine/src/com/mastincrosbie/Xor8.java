@@ -55,5 +55,20 @@ public class Xor8 {
     public void reset() {
     	value = 0;
     }
+
+    /**
+     * Checksum a range of bytes in one go, without creating an Xor8
+     * @param bytes the byte array
+     * @param offset the start offset of the data
+     * @param length the number of bytes to checksum
+     * @return the checksum, 0-255
+     */
+    public static int checksum(byte[] bytes, int offset, int length) {
+    	int v = 0;
+    	for (int i = offset; i < length + offset; i++) {
+    		v ^= bytes[i];
+    	}
+    	return v & 0xFF;
+    }
 }
 
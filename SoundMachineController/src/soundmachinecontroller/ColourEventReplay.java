@@ -0,0 +1,206 @@
+package soundmachinecontroller;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a recording of a SoundMachine's colour samples and counts the messages each
+ * way of sending them needs per revolution of the disk: a message per sample, as
+ * sendSignal used to, SampleBatch batches, and ColourEvents changes with keepalives.
+ * The events are framed, read back with Message and ReaderThread, and the runs rebuilt
+ * from them checked against the samples, so nothing is lost by sending less.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.ColourEventReplay [recording.txt]
+ *
+ * A recording has one sample a line, "ms colour", with colours as the NXT ColorSensor
+ * numbers them. Without one, three revolutions are made up: a disk with 40 beats at
+ * 120 BPM, sampled every 15 ms or so, with the odd stray colour where a block starts
+ * or ends, as the sensor gives.
+ *
+ * @author mcrosbie
+ *
+ */
+public class ColourEventReplay {
+
+	private static final int REVOLUTION = 20000;	// ms, 40 beats at 120 BPM
+	private static final int BEAT = 500;
+	private static final int KEEPALIVE = 1000;		// ms, SoundMachine sends two beats at 120 BPM
+	private static final int BATCH_DELAY = 100;
+	private static final int RED = 0, YELLOW = 3, WHITE = 6, BLACK = 7;
+	private static final int NO_READING = -1;		// the sensor's Color.NONE
+	private static final byte CMD_COLOURS = 7, CMD_CHANGE = 8, CMD_KEEPALIVE = 9;
+
+	private static final TestResults results = new TestResults("ColourEventReplay");
+
+	public static void main(String[] args) throws IOException {
+		List<int[]> samples = args.length > 0 ? load(args[0]) : record(3, new Random(40));
+		if(samples.size() < 2) {
+			System.err.println("Need at least two samples");
+			System.exit(2);
+		}
+		int first = samples.get(0)[0];
+		int last = samples.get(samples.size() - 1)[0];
+		double revolutions = (last - first) / (double) REVOLUTION;
+		System.out.println(String.format("%d samples over %.1f s, %.2f revolutions", samples.size(), (last - first) / 1000.0, revolutions));
+
+		// Every sample in its own message
+		int raw = samples.size();
+
+		// SampleBatch, as SoundMachine does with batching on
+		SampleBatch batch = new SampleBatch(SampleBatch.MAX_SAMPLES, BATCH_DELAY);
+		int batches = 0;
+		for(int i=0; i < samples.size(); i++) {
+			if(batch.add(samples.get(i)[0], samples.get(i)[1]) || i == samples.size() - 1) {
+				batch.clear();
+				batches++;
+			}
+		}
+
+		// ColourEvents, framed as SoundMachine sends them
+		ColourEvents events = new ColourEvents(KEEPALIVE);
+		ByteArrayOutputStream link = new ByteArrayOutputStream();
+		byte[] frame = new byte[FrameCodec.MAX_FRAME];
+		MessageBuffer body = new MessageBuffer();
+		int changes = 0, keepalives = 0, maxGap = 0, lastSent = first;
+		for(int[] s : samples) {
+			int kind = events.sample(s[0], s[1]);
+			if(kind == ColourEvents.NONE) {
+				continue;
+			}
+			body.wrap(frame, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+			events.write(body);
+			int n = FrameCodec.frame(kind == ColourEvents.CHANGE ? CMD_CHANGE : CMD_KEEPALIVE, 1, body.position(), frame, 0);
+			link.write(frame, 0, n);
+			if(kind == ColourEvents.CHANGE) {
+				changes++;
+			} else {
+				keepalives++;
+			}
+			maxGap = Math.max(maxGap, s[0] - lastSent);
+			lastSent = s[0];
+		}
+		int sent = changes + keepalives;
+
+		System.out.println(String.format("Messages per revolution: every sample %.0f, batched %.0f, changes %.0f + keepalives %.0f = %.0f",
+				raw / revolutions, batches / revolutions, changes / revolutions, keepalives / revolutions, sent / revolutions));
+		System.out.println(String.format("Changes send %.1fx fewer messages than every sample, %.1fx fewer than batches, %d bytes a revolution",
+				(double) raw / sent, (double) batches / sent, Math.round(link.size() / revolutions)));
+		results.check("fewer messages than batching", sent < batches && batches < raw);
+		results.check("never quiet for much over the keepalive", maxGap <= KEEPALIVE + 100);
+
+		checkRuns(samples, link.toByteArray(), changes, keepalives);
+
+		// Nothing in front of the sensor is a run like any other: it starts with a change,
+		// gets keepalives, and the change after it says how long it lasted
+		ColourEvents none = new ColourEvents(KEEPALIVE);
+		boolean noneRun = none.sample(0, NO_READING) == ColourEvents.CHANGE
+				&& none.sample(KEEPALIVE, NO_READING) == ColourEvents.KEEPALIVE
+				&& none.sample(KEEPALIVE + 300, RED) == ColourEvents.CHANGE;
+		body.wrap(frame, 0, FrameCodec.MAX_PAYLOAD);
+		none.write(body);
+		body.wrap(frame, 0, body.position());
+		none.read(body, ColourEvents.CHANGE);
+		results.check("a run with no colour reading is sent and timed", noneRun
+				&& none.getPreviousColour() == ColourEvents.NO_COLOUR && none.getDuration() == KEEPALIVE + 300);
+
+		results.finish();
+	}
+
+	/**
+	 * Read the events back as the controller does and check the runs they describe are
+	 * the runs in the samples
+	 */
+	private static void checkRuns(List<int[]> samples, byte[] stream, int changes, int keepalives) throws IOException {
+		// The runs in the samples: colour, start
+		List<int[]> runs = new ArrayList<int[]>();
+		for(int[] s : samples) {
+			if(runs.isEmpty() || runs.get(runs.size() - 1)[0] != s[1]) {
+				runs.add(new int[] { s[1], s[0] });
+			}
+		}
+
+		Message in = new Message(new ByteArrayInputStream(stream));
+		ColourEvents event = new ColourEvents(KEEPALIVE);
+		boolean ok = true;
+		int run = 0;
+		while(in.readHeader() > 0) {
+			if(in.getType() == CMD_CHANGE) {
+				event.read(in.getBody(), ColourEvents.CHANGE);
+				int[] r = runs.get(run);
+				ok &= event.getColour() == r[0] && event.getStart() == r[1];
+				if(run == 0) {
+					ok &= event.getPreviousColour() == ColourEvents.NO_COLOUR;
+				} else {
+					int[] p = runs.get(run - 1);
+					ok &= event.getPreviousColour() == p[0] && event.getDuration() == r[1] - p[1];
+				}
+				run++;
+			} else if(in.getType() == CMD_KEEPALIVE) {
+				event.read(in.getBody(), ColourEvents.KEEPALIVE);
+				int[] r = runs.get(run - 1);
+				ok &= event.getColour() == r[0] && event.getStart() == r[1] && event.getDuration() >= KEEPALIVE;
+			} else {
+				ok = false;
+			}
+		}
+		results.check("runs rebuilt from the changes match the samples", ok && run == runs.size());
+
+		ReaderThread reader = new ReaderThread(0, new ByteArrayInputStream(stream));
+		reader.poll();
+		int[] lastRun = runs.get(runs.size() - 1);
+		results.check("ReaderThread sees every change and keepalive", reader.getChanges() == changes && reader.getKeepalives() == keepalives
+				&& reader.getData() == lastRun[0] && reader.getTime() == lastRun[1]);
+	}
+
+	/**
+	 * Make up a recording: black, with a white or red block on most beats, and now and
+	 * then a stray yellow sample at the edge of a block
+	 */
+	private static List<int[]> record(int revolutions, Random random) {
+		int[] beats = new int[REVOLUTION / BEAT];
+		int[] lengths = new int[beats.length];
+		for(int i=0; i < beats.length; i++) {
+			int r = random.nextInt(4);
+			beats[i] = r == 0 ? BLACK : r == 1 ? RED : WHITE;
+			lengths[i] = 120 + random.nextInt(60);
+		}
+		List<int[]> samples = new ArrayList<int[]>();
+		int previous = BLACK;
+		for(int t=0; t < revolutions * REVOLUTION; t += 13 + random.nextInt(5)) {
+			int beat = (t / BEAT) % beats.length;
+			int c = t % BEAT < lengths[beat] ? beats[beat] : BLACK;
+			int colour = c;
+			if(c != previous && random.nextInt(3) == 0) {
+				colour = YELLOW;
+			}
+			previous = c;
+			samples.add(new int[] { t, colour });
+		}
+		return samples;
+	}
+
+	private static List<int[]> load(String file) throws IOException {
+		List<int[]> samples = new ArrayList<int[]>();
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] f = line.split("\\s+");
+				samples.add(new int[] { Integer.parseInt(f[0]), Integer.parseInt(f[1]) });
+			}
+		} finally {
+			r.close();
+		}
+		return samples;
+	}
+}
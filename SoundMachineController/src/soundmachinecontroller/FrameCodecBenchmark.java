@@ -0,0 +1,119 @@
+package soundmachinecontroller;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Measures how many frames a second FrameCodec and FrameParser manage, over a piped
+ * loopback with a writer thread standing in for the link, and parsing from memory
+ * with no stream at all, for a range of payload sizes.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.FrameCodecBenchmark [frames]
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameCodecBenchmark {
+
+	private static final int[] PAYLOADS = { 0, 8, 32, FrameCodec.MAX_PAYLOAD };
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		for(int size : PAYLOADS) {
+			loopback(size, frames / 10);	// warm up
+			long nanos = loopback(size, frames);
+			report("loopback", size, frames, nanos);
+		}
+		for(int size : PAYLOADS) {
+			memory(size, frames / 10);
+			long nanos = memory(size, frames);
+			report("memory  ", size, frames, nanos);
+		}
+	}
+
+	/**
+	 * Send frames through a pipe from another thread and parse them as they arrive
+	 * @return Nanoseconds taken
+	 */
+	private static long loopback(final int size, final int frames) throws Exception {
+		final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+		final PipedOutputStream out = new PipedOutputStream(in);
+		final IOException[] failed = new IOException[1];
+		Thread writer = new Thread("FrameWriter") {
+			public void run() {
+				byte[] frame = new byte[FrameCodec.MAX_FRAME];
+				try {
+					for(int i=0; i < frames; i++) {
+						frame[FrameCodec.HEADER_SIZE] = (byte) i;
+						int n = FrameCodec.frame(FrameCodec.START, i, size, frame, 0);
+						out.write(frame, 0, n);
+					}
+					out.close();
+				} catch (IOException e) {
+					failed[0] = e;
+				}
+			}
+		};
+
+		FrameParser parser = new FrameParser();
+		long start = System.nanoTime();
+		writer.start();
+		int received = 0;
+		while(parser.readFrame(in)) {
+			received++;
+		}
+		long nanos = System.nanoTime() - start;
+		writer.join();
+		check(size, frames, received, parser, failed[0]);
+		return nanos;
+	}
+
+	/**
+	 * Parse frames already in memory, as fast as the parser can go
+	 * @return Nanoseconds taken
+	 */
+	private static long memory(int size, int frames) throws Exception {
+		byte[] frame = new byte[FrameCodec.MAX_FRAME];
+		int n = FrameCodec.frame(FrameCodec.START, 0, size, frame, 0);
+		byte[] block = new byte[n * 100];
+		for(int off=0; off < block.length; off += n) {
+			System.arraycopy(frame, 0, block, off, n);
+		}
+
+		FrameParser parser = new FrameParser();
+		long start = System.nanoTime();
+		int received = 0;
+		while(received < frames) {
+			int off = 0;
+			while(off < block.length) {
+				off += parser.put(block, off, block.length - off);
+				while(parser.next()) {
+					received++;
+				}
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		check(size, received, received, parser, null);
+		return nanos;
+	}
+
+	private static void check(int size, int sent, int received, FrameParser parser, IOException failed) throws IOException {
+		if(failed != null) {
+			throw failed;
+		}
+		if(received != sent || parser.getChecksumErrors() != 0 || parser.getSkipped() != 0) {
+			throw new IOException("Payload " + size + ": sent " + sent + " frames, got " + received
+					+ " with " + parser.getChecksumErrors() + " checksum errors, " + parser.getSkipped() + " bytes skipped");
+		}
+	}
+
+	private static void report(String name, int size, int frames, long nanos) {
+		double seconds = nanos / 1e9;
+		int frameSize = FrameCodec.HEADER_SIZE + size + FrameCodec.TRAILER_SIZE;
+		System.out.println(String.format("%s  payload %2d bytes: %,10.0f frames/sec, %6.1f MB/sec",
+				name, size, frames / seconds, frames * (double) frameSize / seconds / 1e6));
+	}
+}
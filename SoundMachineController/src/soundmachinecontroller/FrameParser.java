@@ -0,0 +1,200 @@
+package soundmachinecontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds the FrameCodec frames in a stream of bytes, however the bytes arrive: a frame
+ * split over several reads, several frames in one read, or a single byte at a time.
+ * The same class is in com.mastincrosbie on the NXT, keep the two identical.
+ *
+ * Bytes before a START byte are skipped. A frame with an impossible length or a bad
+ * checksum is dropped one byte at a time, so the search carries on from the byte after
+ * its START and a good frame hidden inside the damaged one is still found.
+ *
+ * The bytes are kept in one buffer allocated up front, and a frame's payload is read
+ * straight out of it, so nothing is allocated per frame.
+ *
+ * Use put() to add bytes and next() to find each frame in them, or readFrame() to read
+ * from an InputStream until there is a frame. The frame found is valid until the next
+ * call to any of them. Not thread safe.
+ *
+ * @author mcrosbie
+ *
+ */
+public class FrameParser {
+
+	// Room for a whole frame plus an incomplete one, so put() always has space once next() is false
+	private final byte[] buf = new byte[FrameCodec.MAX_FRAME * 2];
+	private int start;
+	private int end;
+	private int consumed;		// length of the frame last returned, dropped by the next call
+
+	private int type;
+	private int address;
+	private int length;
+
+	private int frames;
+	private int checksumErrors;
+	private int lengthErrors;
+	private int skipped;
+
+	/**
+	 * Add bytes to be searched for frames
+	 * @param b Bytes
+	 * @param off Offset of the first byte
+	 * @param len Number of bytes
+	 * @return Number of bytes taken, fewer than len if the buffer is full. Call next() then put the rest.
+	 */
+	public int put(byte[] b, int off, int len) {
+		makeRoom();
+		int n = Math.min(len, buf.length - end);
+		System.arraycopy(b, off, buf, end, n);
+		end += n;
+		return n;
+	}
+
+	/**
+	 * Add one byte and look for a frame
+	 * @param b The byte
+	 * @return true if there is a frame. There may be more after it, call next() until it is false.
+	 * @throws IllegalStateException if the buffer is full because next() wasn't called
+	 */
+	public boolean feed(int b) {
+		makeRoom();
+		if(end == buf.length) {
+			throw new IllegalStateException("Frame buffer full");
+		}
+		buf[end++] = (byte) b;
+		return next();
+	}
+
+	/**
+	 * Look for the next frame in the bytes put so far
+	 * @return true if there is a frame, read it with getType() etc.
+	 */
+	public boolean next() {
+		start += consumed;
+		consumed = 0;
+		while(true) {
+			int i = start;
+			while(i < end && (buf[i] & 0xFF) != FrameCodec.START) {
+				i++;
+			}
+			skipped += i - start;
+			start = i;
+			if(end - start < FrameCodec.HEADER_SIZE) {
+				return false;
+			}
+			int len = buf[start + 3] & 0xFF;
+			if(len > FrameCodec.MAX_PAYLOAD) {
+				lengthErrors++;
+				skipped++;
+				start++;
+				continue;
+			}
+			int total = FrameCodec.HEADER_SIZE + len + FrameCodec.TRAILER_SIZE;
+			if(end - start < total) {
+				return false;
+			}
+			int sum = Xor8.checksum(buf, start + 1, FrameCodec.HEADER_SIZE - 1 + len);
+			if(sum != (buf[start + total - 1] & 0xFF)) {
+				checksumErrors++;
+				skipped++;
+				start++;
+				continue;
+			}
+			type = buf[start + 1] & 0xFF;
+			address = buf[start + 2] & 0xFF;
+			length = len;
+			consumed = total;
+			frames++;
+			return true;
+		}
+	}
+
+	/**
+	 * Read from a stream until there is a frame. Reads as many bytes as are there, so
+	 * the bytes of later frames may be taken too: keep calling readFrame(), or next()
+	 * until it is false, rather than reading the stream directly.
+	 * @param in The stream
+	 * @return true if there is a frame, false at the end of the stream
+	 * @throws IOException if the stream can't be read
+	 */
+	public boolean readFrame(InputStream in) throws IOException {
+		while(!next()) {
+			makeRoom();
+			int n = in.read(buf, end, buf.length - end);
+			if(n < 0) {
+				return false;
+			}
+			end += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the last frame and move what's left to the front of the buffer
+	 */
+	private void makeRoom() {
+		start += consumed;
+		consumed = 0;
+		if(start > 0) {
+			System.arraycopy(buf, start, buf, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+	}
+
+	/** @return Type of the frame found, 0-255 */
+	public int getType() {
+		return type;
+	}
+
+	/** @return Address of the frame found, 0-255 */
+	public int getAddress() {
+		return address;
+	}
+
+	/** @return Payload length of the frame found */
+	public int getLength() {
+		return length;
+	}
+
+	/** @return The buffer holding the payload of the frame found, don't change it */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/** @return Offset of the payload of the frame found in getBuffer() */
+	public int getPayloadOffset() {
+		return start + FrameCodec.HEADER_SIZE;
+	}
+
+	/** @return Number of good frames found */
+	public int getFrames() {
+		return frames;
+	}
+
+	/** @return Number of frames dropped for a bad checksum */
+	public int getChecksumErrors() {
+		return checksumErrors;
+	}
+
+	/** @return Number of frames dropped for a length over FrameCodec.MAX_PAYLOAD */
+	public int getLengthErrors() {
+		return lengthErrors;
+	}
+
+	/** @return Number of bytes skipped looking for frames */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Forget any bytes not yet made into a frame
+	 */
+	public void reset() {
+		start = end = consumed = 0;
+	}
+}
@@ -6,6 +6,14 @@ import processing.core.*;
 
 /**
  * Implements a message that is sent/received to/from the Controller
+ * 
+ * Messages go over the link as FrameCodec frames, checksummed. A message is built up
+ * in a frame buffer and written in one go once all msgSize bytes have been added, and
+ * is read back with a FrameParser, so it doesn't matter how the bytes are split up on the way.
+ * 
+ * Fields are written straight into the frame buffer and read straight out of the parser's
+ * buffer with a MessageBuffer, so nothing is allocated per message or per field. There
+ * is no locking per field: use a Message from one thread at a time.
  * @author mcrosbie
  *
  */
@@ -18,8 +26,17 @@ public class Message extends PApplet {
 	private int address;
 	private int msgSize;
 
-    private final int MAX_MSG_SIZE = 64;
-	private final int START_BYTE = 0xff;
+	// Sending: the frame being built
+	private byte[] frame;
+	
+	// Receiving: the frames found, and bytes read from the stream for the parser
+	private FrameParser parser;
+	private byte[] in;
+	
+	// The body of the message being built, or the one last read
+	private MessageBuffer body = new MessageBuffer();
+	
+    private final int MAX_MSG_SIZE = FrameCodec.MAX_PAYLOAD;
 	
 	/**
 	 * Create a new message that will be sent on the given OutputStream
@@ -27,6 +44,7 @@ public class Message extends PApplet {
 	 */
 	Message(OutputStream os) {
 		dos = new DataOutputStream(os);
+		frame = new byte[FrameCodec.MAX_FRAME];
 	}
 	
 	/**
@@ -35,65 +53,42 @@ public class Message extends PApplet {
 	 */
 	Message(InputStream is) {
 		dis = new DataInputStream(is);
+		parser = new FrameParser();
+		in = new byte[FrameCodec.MAX_FRAME];
 	}
 	
 	/**
-	 * Read and parse a message from the InputStream
+	 * Read and parse a message from the InputStream. Doesn't block: returns 0 if there isn't
+	 * a whole message yet, and the bytes so far are kept for the next call.
 	 * @return Number of bytes in the message body, excluding the header. Returns 0 if no bytes were read
 	 * as the message body. The message still consists of a header field, with a type.
-	 * @throws IOException if a poorly formed message was read, or one with a bad checksum
+	 * @throws IOException if the stream can't be read. Poorly formed messages, or ones with a bad
+	 * checksum, are skipped.
 	 */
-	public synchronized int readHeader() throws IOException {
-		int ba;
+	public int readHeader() throws IOException {
 		
- 	   	// Read data from the input stream
-  	   	if( (ba = dis.available()) > 0) {
-  	   		
-  	   		println("Message read(): " + ba + " bytes available");
-  	   		
-  	   		int startByte = dis.read();
-  	   		println("Message read(): startByte = " + startByte);
-  	   		if(startByte != START_BYTE) {
-	  	   		println("Message read() No magic value");
-	  	   		throw new IOException("No magic value");
-	  	   	}	  	   	
-  	   		  	   		  	   	
-  	   		// Read the type of the message next
-  	   		msgType = dis.read();
-  	   		println("Message read(): msgType = " + msgType);
-
-  	   		if(msgType < 0) {
-  	   			println("MEssage read() bad msgType: " + msgType);
-  	   			throw new IOException("Bad message type");
-  	   		}
-  	   		
-  	   		// Read the address value
-  	   		address = dis.read();
-
-  	   		println("Message read() address="+address);
-  	   		
-  	   		// Read the byte count in the message
-	  	   	msgSize = dis.read();
-
-	  	   	println("Message read() msgSize= " + msgSize + " bytes");
-	  	   	
-	  	   	// A little sanity checking is good for you!
-	  	   	if( msgSize == 0) {
-	  	   		println("Message read(), 0 length message body, returning");
-	  	   		return 0;	// empty message, so exit ok
-	  	   	}
-	  	   	
-	  	   	if(msgSize < 0 || msgSize > MAX_MSG_SIZE) {
-	  	   		println("Message read() invalid message size " + msgSize);
-	  	   		throw new IOException("Invalid message size " + msgSize);
-	  	   	}
-	  	   	return msgSize;
-	 	} else {
-	 		return 0; // no bytes available
-	 	}
+		// Read only what is there, and never more than a frame, which the parser always has room for
+		while(!parser.next()) {
+			int ba = dis.available();
+			if(ba <= 0) {
+				msgSize = 0;
+				body.wrap(in, 0, 0);
+				return 0; // no whole message available
+			}
+			int n = dis.read(in, 0, Math.min(ba, in.length));
+			if(n < 0) {
+				throw new EOFException("End of stream");
+			}
+			parser.put(in, 0, n);
+		}
+		msgType = parser.getType();
+		address = parser.getAddress();
+		msgSize = parser.getLength();
+		body.wrap(parser.getBuffer(), parser.getPayloadOffset(), msgSize);
+		return msgSize;
 	}
 		
-	public synchronized void setType(byte t) {
+	public void setType(byte t) {
 		msgType = t;
 	}
 	
@@ -101,7 +96,7 @@ public class Message extends PApplet {
 	 * Returns the message type of this message as an integer from 0-255
 	 * @return The message type
 	 */
-	public synchronized int getType() {
+	public int getType() {
 		return (int)msgType;
 	}
 	
@@ -109,7 +104,7 @@ public class Message extends PApplet {
 	 * Set the destination address to send this message to
 	 * @param a Address to send. BROADCAST sends to all receivers
 	 */
-	public synchronized void setAddress(byte a) {
+	public void setAddress(byte a) {
 		address = a;
 	}
 	
@@ -117,31 +112,23 @@ public class Message extends PApplet {
 	 * Return the address encoded in the message
 	 * @return The address from 0-255 as an integer
 	 */
-	public synchronized int getAddress() {
+	public int getAddress() {
 		return (int)address;
 	}
 		
 	/** 
-	 * Initiates sending a message by writing the header to the OutputStream.
+	 * Initiates sending a message. Nothing is written until all msgSize bytes have been added,
+	 * then the whole frame is written and flushed at once.
 	 * @param msgSize Number of bytes in the final message after the header
 	 * @throws IOException If an error occurs writing to the output stream
 	 */
-	public synchronized void sendHeader(int msgSize) throws IOException {	   		
-	   		// Send the start byte
-	   		dos.write(START_BYTE);
-	   		dos.flush();
-
-	   		// Send the msg type
-	   		dos.write(msgType);
-	   		dos.flush();
-	   		
-	   		// Send the destination address
-	   		dos.write(address);
-	   		dos.flush();
-	   		
-	   		// Send the message length
-	   		dos.write(msgSize);		
-	   		dos.flush();
+	public void sendHeader(int msgSize) throws IOException {
+		if(msgSize < 0 || msgSize > MAX_MSG_SIZE) {
+			throw new IOException("Invalid message size " + msgSize);
+		}
+		this.msgSize = msgSize;
+		body.wrap(frame, FrameCodec.HEADER_SIZE, msgSize);
+		sendIfComplete();
    	}
 	
 	/**
@@ -149,9 +136,9 @@ public class Message extends PApplet {
 	 * @param val Integer value to add
 	 * @throws IOException 
 	 */
-	public synchronized void sendInt(int val) throws IOException {
-		dos.writeInt(val);
-   		dos.flush();
+	public void sendInt(int val) throws IOException {
+		body.putInt(val);
+		sendIfComplete();
 	}
 	
 	/**
@@ -159,9 +146,9 @@ public class Message extends PApplet {
 	 * @param val Long value to add
 	 * @throws IOException 
 	 */
-	public synchronized void sendLong(long val) throws IOException {
-		dos.writeLong(val);
-   		dos.flush();
+	public void sendLong(long val) throws IOException {
+		body.putLong(val);
+		sendIfComplete();
 	}
 
 	
@@ -170,9 +157,9 @@ public class Message extends PApplet {
 	 * @param val The byte value to send 0-255 encoded as an integer. Low-order byte is sent.
 	 * @throws IOException
 	 */
-	public synchronized void sendByte(int val) throws IOException {
-		dos.write(val);
-   		dos.flush();
+	public void sendByte(int val) throws IOException {
+		body.putByte(val);
+		sendIfComplete();
 	}
 	
 	/**
@@ -180,7 +167,7 @@ public class Message extends PApplet {
 	 * @param val Bytes to send
 	 * @throws IOException
 	 */
-	public synchronized void sendBytes(byte[] val) throws IOException {
+	public void sendBytes(byte[] val) throws IOException {
 		this.sendBytes(val, 0, val.length);
 	}
 	
@@ -191,34 +178,45 @@ public class Message extends PApplet {
 	 * @param len Number of elements from val to send.
 	 * @throws IOException 
 	 */
-	public synchronized void sendBytes(byte[] val, int off, int len) throws IOException {
-		if( (len - off) > MAX_MSG_SIZE ) {
-			throw new IOException("Message too large");
-		}
-		
-		if(len > val.length) {
-			throw new IOException("Invalie length");
-		}
+	public void sendBytes(byte[] val, int off, int len) throws IOException {
+		body.putBytes(val, off, len);
+		sendIfComplete();
+	}
 	
-		dos.write(val, off, len);
-   		dos.flush();
+	/**
+	 * Write the frame once the whole message is in it
+	 */
+	private void sendIfComplete() throws IOException {
+		if(body.remaining() == 0) {
+			int n = FrameCodec.frame(msgType, address, msgSize, frame, 0);
+			dos.write(frame, 0, n);
+			dos.flush();
+		}
 	}
 	
 	/**
 	 * Return the number of bytes encoded in the message
 	 * @return Number of bytes encoded
 	 */
-	public synchronized int available() {
+	public int available() {
 		return msgSize;
 	}
 
+	/**
+	 * The body of the message last read, to decode it in place
+	 * @return The body, positioned after anything already read from it
+	 */
+	public MessageBuffer getBody() {
+		return body;
+	}
+
 	/**
 	 * Get a byte from the next message position
 	 * @return The next byte in the message from 0-255 is returned as an integer
 	 * @throws IOException if no more bytes are available
 	 */
-	public synchronized byte readByte() throws IOException {
-		return dis.readByte();
+	public byte readByte() throws IOException {
+		return body.getByte();
 	}
 
 	/**
@@ -226,8 +224,8 @@ public class Message extends PApplet {
 	 * @return The next integer value in the message
 	 * @throws IOException is thrown if no more bytes are available
 	 */
-	public synchronized int readInt() throws IOException {
-		return dis.readInt();
+	public int readInt() throws IOException {
+		return body.getInt();
 	}
 	
 	/**
@@ -235,8 +233,8 @@ public class Message extends PApplet {
 	 * @return The next long value in the message
 	 * @throws IOException is thrown if no more bytes are available
 	 */
-	public synchronized long readLong() throws IOException {
-		return dis.readLong();
+	public long readLong() throws IOException {
+		return body.getLong();
 	}
 
 }
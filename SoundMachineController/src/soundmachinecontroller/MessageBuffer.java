@@ -0,0 +1,137 @@
+package soundmachinecontroller;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads and writes the fields of a message in place in a byte[] the caller owns, big-endian,
+ * moving a cursor along as it goes. Nothing is copied or allocated per field, so a Message
+ * can build a frame straight into its frame buffer and read fields straight out of the
+ * FrameParser's buffer.
+ * The same class is in com.mastincrosbie on the NXT, keep the two identical.
+ *
+ * Every get and put is bounds checked against the range given to wrap(), and throws
+ * rather than touching bytes outside it. Not thread safe, there is no locking per field.
+ *
+ * @author mcrosbie
+ *
+ */
+public class MessageBuffer {
+
+	private byte[] buf = new byte[0];
+	private int start;
+	private int pos;
+	private int limit;
+
+	/**
+	 * Read or write len bytes of b from off, starting at off
+	 * @param b The bytes
+	 * @param off First byte to use
+	 * @param len Number of bytes that may be used
+	 * @throws IllegalArgumentException if the range isn't inside b
+	 */
+	public void wrap(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || off + len > b.length) {
+			throw new IllegalArgumentException("Range outside buffer");
+		}
+		buf = b;
+		start = pos = off;
+		limit = off + len;
+	}
+
+	/**
+	 * Go back to the start of the range
+	 */
+	public void rewind() {
+		pos = start;
+	}
+
+	/** @return Number of bytes read or written since wrap() */
+	public int position() {
+		return pos - start;
+	}
+
+	/** @return Number of bytes left before the end of the range */
+	public int remaining() {
+		return limit - pos;
+	}
+
+	public void putByte(int v) throws IOException {
+		need(1);
+		buf[pos++] = (byte) v;
+	}
+
+	public void putShort(int v) throws IOException {
+		need(2);
+		EndianTools.encodeShortBE(v, buf, pos);
+		pos += 2;
+	}
+
+	public void putInt(int v) throws IOException {
+		need(4);
+		EndianTools.encodeIntBE(v, buf, pos);
+		pos += 4;
+	}
+
+	public void putLong(long v) throws IOException {
+		need(8);
+		EndianTools.encodeLongBE(v, buf, pos);
+		pos += 8;
+	}
+
+	public void putBytes(byte[] b, int off, int len) throws IOException {
+		if(off < 0 || len < 0 || off + len > b.length) {
+			throw new IOException("Invalid length");
+		}
+		need(len);
+		System.arraycopy(b, off, buf, pos, len);
+		pos += len;
+	}
+
+	public byte getByte() throws IOException {
+		take(1);
+		return buf[pos++];
+	}
+
+	public short getShort() throws IOException {
+		take(2);
+		short v = EndianTools.decodeShortBE(buf, pos);
+		pos += 2;
+		return v;
+	}
+
+	public int getInt() throws IOException {
+		take(4);
+		int v = EndianTools.decodeIntBE(buf, pos);
+		pos += 4;
+		return v;
+	}
+
+	public long getLong() throws IOException {
+		take(8);
+		long v = EndianTools.decodeLongBE(buf, pos);
+		pos += 8;
+		return v;
+	}
+
+	public void getBytes(byte[] b, int off, int len) throws IOException {
+		if(off < 0 || len < 0 || off + len > b.length) {
+			throw new IOException("Invalid length");
+		}
+		take(len);
+		System.arraycopy(buf, pos, b, off, len);
+		pos += len;
+	}
+
+	private void need(int n) throws IOException {
+		if(limit - pos < n) {
+			throw new IOException("Message too large");
+		}
+	}
+
+	private void take(int n) throws IOException {
+		if(limit - pos < n) {
+			throw new EOFException("End of message");
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package soundmachinecontroller;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Quantizes the colour changes from every SoundMachine onto one beat grid, so blocks that
+ * pass different sensors on the same beat play together.
+ *
+ * A change is stamped in beat ticks of the TimecodeThread clock, which every
+ * SoundMachine follows. It goes in the grid slot its stamp falls into, the grid tick
+ * nearest the stamp, and is played latency ticks after that slot, so that changes from
+ * every SoundMachine have come in over the radio before their slot is played. A change
+ * that arrives after its slot has been played goes in the next slot instead, and is
+ * counted as late.
+ *
+ * Not thread safe, the PlayerThread owns it.
+ *
+ * @author mcrosbie
+ *
+ */
+public class NoteScheduler {
+
+	/**
+	 * A colour change waiting to be played
+	 */
+	public static class Note {
+		public final int address;	// the SoundMachine it came from
+		public final int colour;
+		public final int stamp;		// when it was seen, beat ticks
+		public final int slot;		// when to play it, beat ticks
+
+		Note(int address, int colour, int stamp, int slot) {
+			this.address = address;
+			this.colour = colour;
+			this.stamp = stamp;
+			this.slot = slot;
+		}
+	}
+
+	private final int grid;
+	private final int latency;
+	private final PriorityQueue<Note> notes = new PriorityQueue<Note>(16, new Comparator<Note>() {
+		public int compare(Note a, Note b) {
+			int d = a.slot - b.slot;		// beat time wraps, so compare the difference
+			return d < 0 ? -1 : d > 0 ? 1 : 0;
+		}
+	});
+	private int scheduled;
+	private int late;
+
+	/**
+	 * @param grid Ticks between grid slots, e.g. BeatClock.TICKS_PER_BEAT for one note a beat
+	 * @param latency Ticks after its slot a note is played, longer than the radio delay
+	 */
+	public NoteScheduler(int grid, int latency) {
+		if(grid <= 0 || latency < 0) {
+			throw new IllegalArgumentException("grid must be positive and latency not negative");
+		}
+		this.grid = grid;
+		this.latency = latency;
+	}
+
+	/**
+	 * @param stamp Beat time, ticks
+	 * @return The grid tick nearest it
+	 */
+	public int slot(int stamp) {
+		int s = stamp + grid / 2;
+		int q = s / grid;
+		if(s % grid < 0) {
+			q--;		// round towards minus infinity
+		}
+		return q * grid;
+	}
+
+	/**
+	 * Schedule a colour change
+	 * @param address The SoundMachine it came from
+	 * @param colour Its colour
+	 * @param stamp When it was seen, beat ticks
+	 * @param now Beat time now, ticks
+	 * @return The note, with the time it will be played
+	 */
+	public Note add(int address, int colour, int stamp, int now) {
+		int at = slot(stamp) + latency;
+		if(at - now < 0) {
+			// Too late for its own slot, play it in the next one
+			late++;
+			at = slot(now - latency) + latency;
+			if(at - now < 0) {
+				at += grid;
+			}
+		}
+		Note n = new Note(address, colour, stamp, at);
+		notes.add(n);
+		scheduled++;
+		return n;
+	}
+
+	/**
+	 * @param now Beat time now, ticks
+	 * @return The next note due to be played by now, or null if there isn't one yet
+	 */
+	public Note next(int now) {
+		Note n = notes.peek();
+		if(n == null || now - n.slot < 0) {
+			return null;
+		}
+		return notes.poll();
+	}
+
+	/**
+	 * Forget every note waiting to be played
+	 */
+	public void clear() {
+		notes.clear();
+	}
+
+	/** @return Ticks between grid slots */
+	public int getGrid() {
+		return grid;
+	}
+
+	/** @return Number of notes waiting to be played */
+	public int size() {
+		return notes.size();
+	}
+
+	/** @return Number of notes scheduled */
+	public int getScheduled() {
+		return scheduled;
+	}
+
+	/** @return Number of notes that arrived too late for their own slot */
+	public int getLate() {
+		return late;
+	}
+}
@@ -17,7 +17,8 @@ public class PlayerThread extends Thread {
 	private Minim minim;
 	private PApplet myParent;
 	private ReaderThread reader;
-	private Timer timer;
+	private TimecodeThread timecode;
+	private NoteScheduler scheduler;	// the changes waiting for their grid tick
 	
 	// If using the Minim built-in library
 	private final String BASSDRUM_SOUND = "26888__vexst__kick-4.wav";
@@ -31,8 +32,9 @@ public class PlayerThread extends Thread {
 
 	private OscP5 oscP5;
 
-	private boolean running = false;
-	private int wait;
+	private volatile boolean running = false;	// until quit()
+	private volatile boolean paused = false;
+	private int wait;			// ticks between notes
 	
 	// track when a drum has been struck for the keyboard input
 	public boolean drum1struck;
@@ -45,18 +47,20 @@ public class PlayerThread extends Thread {
 	 * Initialise an instance of the PlayerThread responsible for playing the instruments
 	 * @param parent The PApplet instance of the parent
 	 * @param r An instance of a ReaderThread that has been initialised.
-	 * @param playInterval How frequently a note should be played - in ms
+	 * @param t The TimecodeThread whose beat clock the SoundMachines follow
+	 * @param ticksPerNote How frequently a note should be played - in beat ticks
 	 */
-	public PlayerThread(PApplet parent, ReaderThread r, int playInterval) {
+	public PlayerThread(PApplet parent, ReaderThread r, TimecodeThread t, int ticksPerNote) {
 		
 		myParent = parent;
 		reader = r;
-		wait = playInterval;
+		timecode = t;
+		wait = ticksPerNote;
+		// A note is played a grid step after the tick it's on, so the changes from every
+		// SoundMachine have come in over the radio by then
+		scheduler = new NoteScheduler(wait, wait);
 		running = false;
 
-		// A timer will run so we know when to play the beat of an instrument
-		timer = new Timer(playInterval);
-
 		// Load the sound files as samples so that they can be triggered
 		// using Minim and can be re-started if already playing
 		if(useMinim) {
@@ -91,10 +95,9 @@ public class PlayerThread extends Thread {
 	  public void start() {
 	    // Set running equal to true
 	    running = true;
+	    paused = false;
 
-	    System.out.println("Starting player thread (will execute every " + wait + " milliseconds.)"); 
-	    
-	    timer.start();
+	    System.out.println("Starting player thread (will execute every " + wait + " ticks.)"); 
 	    
 	    // Do whatever start does in Thread, don't forget this!
 	    super.start();
@@ -104,16 +107,15 @@ public class PlayerThread extends Thread {
 	   * Pause the current player thread. The thread does not die, it just will not play any instruments
 	   */
 	  public void pause() {
-		  running = false;
+		  paused = true;
 	  }
 	  
 	  /**
 	   * Resume the current player thread. Starts playing instruments again
 	   */
 	  public void restart() {
-		  System.out.println("Restarting player thread (will execute every " + wait + " milliseconds.)"); 
-		  timer.start(wait);
-		  running = true;	  
+		  System.out.println("Restarting player thread (will execute every " + wait + " ticks.)"); 
+		  paused = false;	  
 	  }
 
 	  /**
@@ -126,61 +128,89 @@ public class PlayerThread extends Thread {
 	
 		running = false;
 		
-		// always close Minim audio classes when you are done with them
-		bassdrum.close();
-		snare.close();
-		minim.stop();	
-		
-		// In case the thread is waiting
+		// In case the thread is waiting, and let it finish before its instruments go
 		interrupt();
+		try {
+			join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// always close Minim audio classes when you are done with them
+		if(useMinim) {
+			bassdrum.close();
+			snare.close();
+			minim.stop();	
+		}
 	}
 
 	
 	/**
-	 * Check to see if the timer has expired, and if so, see if there is a sample available
-	 * for us to play.
+	 * Put every colour change from the SoundMachines on the beat grid, and play each one
+	 * when its grid tick comes round, so changes from different SoundMachines on the same
+	 * beat play together.
 	 */
 	public void run() {
 		
-		while(true) {
-			if(running && timer.isFinished()) {
-				if(reader.available()) {
-					int instrument = reader.getData();
-					
-					if(instrument == BASSDRUM) {
-						System.out.println("PlayerThread triggering BASSDRUM");
-						if(useMinim) {
-							bassdrum.trigger();
-						} else {
-							OscMessage myMessage;
-						    myMessage = new OscMessage("/live/play/clip");
-						    myMessage.add(0); // track
-						    myMessage.add(0); // clip
-						    oscP5.send(myMessage, myRemoteLocation); 
-						    System.out.println("Sent /live/play/clip ");
-						}
-						drum1struck = true;
-					} 
-					
-					if(instrument == SNARE) {
-						System.out.println("PlayerThread triggering SNARE");
-						if(useMinim) {
-							snare.trigger();
-						} else {
-							OscMessage myMessage;
-						    myMessage = new OscMessage("/live/play/clip");
-						    myMessage.add(1); // track
-						    myMessage.add(0); // clip
-						    oscP5.send(myMessage, myRemoteLocation); 
-						    System.out.println("Sent /live/play/clip ");
-						}
-						drum2struck = true;
-					}
+		while(running) {
+			int now = timecode.getTicks();
+			ReaderThread.Change c;
+			while((c = reader.nextChange()) != null) {
+				if(!paused) {
+					scheduler.add(c.address, c.colour, c.time, now);
 				}
-				
-				// re-start a new timer
-				timer.start();
 			}
+			if(paused) {
+				scheduler.clear();		// nothing is played while paused
+			}
+			NoteScheduler.Note note;
+			while((note = scheduler.next(now)) != null) {
+				play(note.colour);
+			}
+			
+			try {
+				sleep(1);
+			} catch (InterruptedException e) {
+				// quit() wakes us up
+				break;
+			}
+		}
+		System.out.println("Player thread is done!");
+	}
+	
+	/**
+	 * Play the instrument for a colour, if it has one
+	 * @param instrument The colour
+	 */
+	private void play(int instrument) {
+		if(instrument == BASSDRUM) {
+			System.out.println("PlayerThread triggering BASSDRUM");
+			if(useMinim) {
+				bassdrum.trigger();
+			} else {
+				OscMessage myMessage;
+			    myMessage = new OscMessage("/live/play/clip");
+			    myMessage.add(0); // track
+			    myMessage.add(0); // clip
+			    oscP5.send(myMessage, myRemoteLocation); 
+			    System.out.println("Sent /live/play/clip ");
+			}
+			drum1struck = true;
+		} 
+		
+		if(instrument == SNARE) {
+			System.out.println("PlayerThread triggering SNARE");
+			if(useMinim) {
+				snare.trigger();
+			} else {
+				OscMessage myMessage;
+			    myMessage = new OscMessage("/live/play/clip");
+			    myMessage.add(1); // track
+			    myMessage.add(0); // clip
+			    oscP5.send(myMessage, myRemoteLocation); 
+			    System.out.println("Sent /live/play/clip ");
+			}
+			drum2struck = true;
 		}
 	}
 }
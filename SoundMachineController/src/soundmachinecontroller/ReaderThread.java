@@ -1,17 +1,66 @@
 package soundmachinecontroller;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import processing.core.PApplet;
 
+/**
+ * Reads the colours the SoundMachines send and keeps the latest one for the PlayerThread.
+ * They come as CMD_CHANGE events when the colour changes, with CMD_KEEPALIVE in between
+ * (see ColourEvents), or as samples batched into CMD_COLOURS messages (see SampleBatch).
+ * A batch is sent as soon as the colour changes, so the last sample in a batch is the
+ * only new colour in it.
+ *
+ * Every change is also kept, with the address of the SoundMachine it came from and its
+ * beat stamp, until the PlayerThread takes it with nextChange() to put it on the beat
+ * grid. The latest colour and time of each SoundMachine are kept too.
+ * @author mcrosbie
+ *
+ */
 public class ReaderThread extends Thread {
 	private boolean running;           // Is the thread running?  Yes or no?
 	private int wait;                  // How many milliseconds should we wait in between executions?
-	private InputStream in;
+	private Message in;
 	private int count;                 // counter
 	private boolean available;		// is data available?
-	private byte CMD_TIMECODE = 2;	// Send the global timecode
+	private byte CMD_COLOURS = 7;	// A SampleBatch of colour samples
+	private byte CMD_CHANGE = 8;	// A ColourEvents colour change
+	private byte CMD_KEEPALIVE = 9;	// A ColourEvents keepalive
 	private int data;
+	private int time;				// when the SoundMachine took the sample in data
+	
+	private SampleBatch batch = new SampleBatch(SampleBatch.MAX_SAMPLES, 0xFFFF);
+	private int batches;
+	private int samples;
+	
+	private ColourEvents event = new ColourEvents(1);
+	private int changes;
+	private int keepalives;
+	private int duration;			// how long the colour before the latest change lasted
+	
+	// Changes waiting for the PlayerThread, and the latest colour from each address
+	private final ConcurrentLinkedQueue<Change> pending = new ConcurrentLinkedQueue<Change>();
+	private final int[] colours = new int[256];
+	private final int[] times = new int[256];
+	
+	/**
+	 * A colour change from one SoundMachine
+	 */
+	public static class Change {
+		public final int address;	// the SoundMachine it came from
+		public final int colour;
+		public final int time;		// when it started, beat ticks
+		public final int previous;	// how long the colour before it lasted, beat ticks
+		
+		Change(int address, int colour, int time, int previous) {
+			this.address = address;
+			this.colour = colour;
+			this.time = time;
+			this.previous = previous;
+		}
+	}
 	
 	/**
 	 * Initialise a reader thread that reads data from the given InputStream every w milliseconds
@@ -21,8 +70,9 @@ public class ReaderThread extends Thread {
 	public ReaderThread(int w, InputStream i) {
 	  wait = w;
 	  running = false;
-	  in = i;
+	  in = new Message(i);
 	  count = 0;
+	  Arrays.fill(colours, ColourEvents.NO_COLOUR);
 	}
 	  
 	  /**
@@ -38,28 +88,44 @@ public class ReaderThread extends Thread {
 	    super.start();
 	  }
 	
-		private int readByte0() throws IOException
-		{
-			int ch = in.read();
-			if (ch < 0)
-				throw new EOFException();
-			//actually, InputStream.read() should always return values from 0 to 255
-			return ch & 0xFF;
-		}
-		
-		public final int readInt() throws IOException 
-		{
-			int x = readByte0();
-			x = (x << 8) | readByte0();
-			x = (x << 8) | readByte0();
-			x = (x << 8) | readByte0();
-			return x;
-		}
-		
-		public final byte readByte() throws IOException
-		{
-			return (byte)readByte0();
+	/**
+	 * Read every message that has arrived, without blocking, and keep the latest colour
+	 * @return true if there was a new colour
+	 * @throws IOException if the stream can't be read or a batch is malformed
+	 */
+	public boolean poll() throws IOException {
+		boolean got = false;
+		while(in.readHeader() > 0) {
+			if(in.getType() == CMD_COLOURS) {
+				batch.read(in.getBody());
+				batches++;
+				samples += batch.size();
+				if(batch.size() > 0) {
+					time = batch.getTime(batch.size() - 1);
+					data = batch.getColour(batch.size() - 1);
+					colours[in.getAddress()] = data;
+					times[in.getAddress()] = time;
+					available = true;
+					got = true;
+				}
+			} else if(in.getType() == CMD_CHANGE) {
+				event.read(in.getBody(), ColourEvents.CHANGE);
+				changes++;
+				time = event.getStart();
+				data = event.getColour();
+				duration = event.getDuration();
+				colours[in.getAddress()] = data;
+				times[in.getAddress()] = time;
+				pending.add(new Change(in.getAddress(), data, time, duration));
+				available = true;
+				got = true;
+			} else if(in.getType() == CMD_KEEPALIVE) {
+				event.read(in.getBody(), ColourEvents.KEEPALIVE);
+				keepalives++;
+			}
 		}
+		return got;
+	}
 
 	  /**
 	   * 
@@ -69,15 +135,7 @@ public class ReaderThread extends Thread {
 			while (running) {
 				count++;
 				try {
-					int msgSize = in.available();
-
-					if(msgSize > 0) {
-						if(readByte() == CMD_TIMECODE) {	
-							data = readByte();
-							available = true;
-							//System.out.println("Reader thread: data available " + data);
-						}
-					}
+					poll();
 	        
 					sleep((long)(wait));
 				} catch (Exception e) {
@@ -90,6 +148,31 @@ public class ReaderThread extends Thread {
         return available;
 	  }
 
+	  /**
+	   * Take the oldest colour change not taken yet. Only changes are kept, batched samples
+	   * are stamped in each SoundMachine's own ms so can't go on the beat grid.
+	   * @return The change, or null if there isn't one
+	   */
+	  public Change nextChange() {
+		  return pending.poll();
+	  }
+	  
+	  /**
+	   * @param address A SoundMachine address, 0-255
+	   * @return The latest colour from it, or ColourEvents.NO_COLOUR if nothing has come yet
+	   */
+	  public int getColour(int address) {
+		  return colours[address];
+	  }
+	  
+	  /**
+	   * @param address A SoundMachine address, 0-255
+	   * @return When the latest colour from it started, as getTime()
+	   */
+	  public int getTime(int address) {
+		  return times[address];
+	  }
+	  
 	  public int getCount() {
 		  return count;
 	  }
@@ -98,6 +181,50 @@ public class ReaderThread extends Thread {
 		  available = false;
 		  return data;
 	  }
+	  
+	  /**
+	   * @return When the SoundMachine took the latest sample: for a change or keepalive, in
+	   * beat ticks of the TimecodeThread clock, which every SoundMachine follows; for a batch,
+	   * in its ms
+	   */
+	  public int getTime() {
+		  return time;
+	  }
+	  
+	  /**
+	   * @return How long the colour before the latest change lasted, in beat ticks
+	   */
+	  public int getDuration() {
+		  return duration;
+	  }
+	  
+	  /**
+	   * @return Number of colour changes received
+	   */
+	  public int getChanges() {
+		  return changes;
+	  }
+	  
+	  /**
+	   * @return Number of keepalives received
+	   */
+	  public int getKeepalives() {
+		  return keepalives;
+	  }
+	  
+	  /**
+	   * @return Number of batches received
+	   */
+	  public int getBatches() {
+		  return batches;
+	  }
+	  
+	  /**
+	   * @return Number of samples received
+	   */
+	  public int getSamples() {
+		  return samples;
+	  }
 
 	  /**
 	   * Our method that quits the thread
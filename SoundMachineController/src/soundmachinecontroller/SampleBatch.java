@@ -0,0 +1,134 @@
+package soundmachinecontroller;
+
+import java.io.IOException;
+
+/**
+ * A batch of colour samples sent to the controller in one message, so a radio
+ * transaction carries many samples rather than one. The same class is in
+ * com.mastincrosbie on the NXT, keep the two identical.
+ *
+ * The SoundMachine adds every sample, and sends the batch when add() or isDue() says to:
+ * when it is full, when its oldest sample has waited maxDelay ms, or straight away when
+ * the colour changes, since a change is what triggers a note and shouldn't wait. So a
+ * batch holds at most one change, and it's the last sample.
+ *
+ * The message body is
+ *
+ *   time of the first sample (int, ms) | count (byte) | count * (ms after the first (ushort) | colour (byte))
+ *
+ * @author mcrosbie
+ *
+ */
+public class SampleBatch {
+
+	private static final int HEADER = 4 + 1;
+	private static final int SAMPLE = 2 + 1;
+
+	/** Most samples that fit in one message */
+	public static final int MAX_SAMPLES = (FrameCodec.MAX_PAYLOAD - HEADER) / SAMPLE;
+
+	private final int maxSamples;
+	private final int maxDelay;
+	private final int[] times = new int[MAX_SAMPLES];
+	private final byte[] colours = new byte[MAX_SAMPLES];
+	private int count;
+	private int lastColour = -1;
+
+	/**
+	 * @param maxSamples Send once this many samples are waiting, 1 to send every sample
+	 * @param maxDelay Send once the oldest sample has waited this many ms
+	 * @throws IllegalArgumentException if maxSamples is more than MAX_SAMPLES or maxDelay doesn't fit the format
+	 */
+	public SampleBatch(int maxSamples, int maxDelay) {
+		if(maxSamples < 1 || maxSamples > MAX_SAMPLES) {
+			throw new IllegalArgumentException("maxSamples must be 1-" + MAX_SAMPLES);
+		}
+		if(maxDelay < 0 || maxDelay > 0xFFFF) {
+			throw new IllegalArgumentException("maxDelay must be 0-65535 ms");
+		}
+		this.maxSamples = maxSamples;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Add a sample
+	 * @param time When it was taken, ms
+	 * @param colour Its colour, 0-255
+	 * @return true if the batch should be sent now
+	 */
+	public boolean add(int time, int colour) {
+		if(count == maxSamples) {
+			throw new IllegalStateException("Batch full, send it first");
+		}
+		times[count] = time;
+		colours[count] = (byte) colour;
+		count++;
+		boolean changed = colour != lastColour;
+		lastColour = colour;
+		return changed || count == maxSamples || isDue(time);
+	}
+
+	/**
+	 * @param now The time now, ms
+	 * @return true if there are samples and the oldest has waited maxDelay ms
+	 */
+	public boolean isDue(int now) {
+		return count > 0 && now - times[0] >= maxDelay;
+	}
+
+	/** @return Number of samples in the batch */
+	public int size() {
+		return count;
+	}
+
+	/** @return Time of sample i, ms */
+	public int getTime(int i) {
+		return times[i];
+	}
+
+	/** @return Colour of sample i, 0-255 */
+	public int getColour(int i) {
+		return colours[i] & 0xFF;
+	}
+
+	/**
+	 * Empty the batch once it has been sent
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Write the batch as a message body
+	 * @param b Where to write it
+	 * @throws IOException if it doesn't fit
+	 */
+	public void write(MessageBuffer b) throws IOException {
+		int base = count > 0 ? times[0] : 0;
+		b.putInt(base);
+		b.putByte(count);
+		for(int i=0; i < count; i++) {
+			b.putShort(times[i] - base);
+			b.putByte(colours[i]);
+		}
+	}
+
+	/**
+	 * Replace the batch with one read from a message body
+	 * @param b The body
+	 * @throws IOException if the body is short or has too many samples
+	 */
+	public void read(MessageBuffer b) throws IOException {
+		int base = b.getInt();
+		int n = b.getByte() & 0xFF;
+		if(n > MAX_SAMPLES) {
+			throw new IOException("Batch of " + n + " samples");
+		}
+		count = 0;
+		for(int i=0; i < n; i++) {
+			times[i] = base + (b.getShort() & 0xFFFF);
+			colours[i] = b.getByte();
+		}
+		count = n;
+	}
+}
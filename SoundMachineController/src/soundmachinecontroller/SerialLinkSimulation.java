@@ -0,0 +1,203 @@
+package soundmachinecontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Simulates a SoundMachine sending its colour samples over the NXTBee radio link, with
+ * and without batching, and measures what arrives at the controller: messages and
+ * bytes on the link, samples delivered a second, and how long samples and colour
+ * changes take to arrive.
+ *
+ * The link sends one message at a time, each costing a fixed transaction overhead plus
+ * 10 bits a byte at the baud rate. Samples are taken every 15 ms, as the SoundMachine
+ * main loop does, from a disk turning at 120 BPM with a coloured block on some beats.
+ * The samples really are batched with SampleBatch, framed with FrameCodec and read back
+ * with ReaderThread and Message, so the test also checks every sample arrives intact
+ * and in order. Time is simulated, so the results are the same every run.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.SerialLinkSimulation [baud] [overheadMs] [seconds]
+ *
+ * @author mcrosbie
+ *
+ */
+public class SerialLinkSimulation {
+
+	private static final int SAMPLE_PERIOD = 15;	// ms between samples
+	private static final int BEAT = 500;			// ms, 120 BPM
+	private static final int BLOCK = 150;			// ms a coloured block takes to pass the sensor
+	private static final int WHITE = 6, RED = 0, BLACK = 7;
+	private static final byte CMD_COLOURS = 7;
+
+	private static final TestResults results = new TestResults("SerialLinkSimulation");
+
+	/**
+	 * The controller's end of the link: bytes appear when the link delivers them
+	 */
+	private static class LinkInputStream extends InputStream {
+		private byte[] buf = new byte[1024];
+		private int start, end;
+
+		void deliver(byte[] b, int off, int len) {
+			if(end + len > buf.length) {
+				System.arraycopy(buf, start, buf, 0, end - start);
+				end -= start;
+				start = 0;
+				if(end + len > buf.length) {
+					buf = Arrays.copyOf(buf, (end + len) * 2);
+				}
+			}
+			System.arraycopy(b, off, buf, end, len);
+			end += len;
+		}
+
+		@Override
+		public int read() {
+			return start < end ? buf[start++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(start == end) {
+				return -1;
+			}
+			int n = Math.min(len, end - start);
+			System.arraycopy(buf, start, b, off, n);
+			start += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - start;
+		}
+	}
+
+	/**
+	 * What one run of the simulation measured
+	 */
+	private static class Result {
+		int samples, delivered, messages, changes, changesDelivered;
+		long bytes;
+		double linkBusy, sampleLatency, maxSampleLatency, changeLatency, maxChangeLatency;
+		boolean intact = true;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int baud = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+		double overhead = args.length > 1 ? Double.parseDouble(args[1]) : 12;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+		int[] colours = disk(seconds * 1000 / SAMPLE_PERIOD, new Random(2012));
+		System.out.println("Link " + baud + " baud, " + overhead + " ms a message, " + seconds + " s of samples every " + SAMPLE_PERIOD + " ms");
+
+		Result single = run("every sample  ", 1, 0, colours, baud, overhead, seconds);
+		Result fifty = run("batch 50 ms   ", SampleBatch.MAX_SAMPLES, 50, colours, baud, overhead, seconds);
+		Result hundred = run("batch 100 ms  ", SampleBatch.MAX_SAMPLES, 100, colours, baud, overhead, seconds);
+
+		System.out.println(String.format("Batching sends %.1fx fewer messages", (double) single.messages / hundred.messages));
+		results.check("batching sends fewer messages", fifty.messages < single.messages && hundred.messages < fifty.messages);
+
+		results.finish();
+	}
+
+	/**
+	 * The colour under the sensor at each sample: black, with a white or red block on
+	 * most beats
+	 */
+	private static int[] disk(int samples, Random random) {
+		int[] beats = new int[40];
+		for(int i=0; i < beats.length; i++) {
+			int r = random.nextInt(4);
+			beats[i] = r == 0 ? BLACK : r == 1 ? RED : WHITE;
+		}
+		int[] colours = new int[samples];
+		for(int i=0; i < samples; i++) {
+			int t = i * SAMPLE_PERIOD;
+			int beat = (t / BEAT) % beats.length;
+			colours[i] = t % BEAT < BLOCK ? beats[beat] : BLACK;
+		}
+		return colours;
+	}
+
+	private static Result run(String name, int maxSamples, int maxDelay, int[] colours, int baud, double overhead, int seconds) throws IOException {
+		Result r = new Result();
+		SampleBatch batch = new SampleBatch(maxSamples, maxDelay);
+		MessageBuffer body = new MessageBuffer();
+		byte[] frame = new byte[FrameCodec.MAX_FRAME];
+
+		// Samples are checked as they arrive, and the controller's ReaderThread gets a copy of the stream
+		LinkInputStream link = new LinkInputStream();
+		LinkInputStream readerLink = new LinkInputStream();
+		ReaderThread reader = new ReaderThread(0, readerLink);
+		Message received = new Message(link);
+		SampleBatch got = new SampleBatch(SampleBatch.MAX_SAMPLES, 0xFFFF);
+		double linkFree = 0;
+		int next = 0;		// next sample the controller should get
+
+		for(int i=0; i < colours.length; i++) {
+			int t = i * SAMPLE_PERIOD;
+			r.samples++;
+			if(i > 0 && colours[i] != colours[i - 1]) {
+				r.changes++;
+			}
+			boolean last = i == colours.length - 1;
+			if(!batch.add(t, colours[i]) && !last) {
+				continue;
+			}
+
+			// Send the batch as soon as the link is free
+			body.wrap(frame, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+			batch.write(body);
+			batch.clear();
+			int n = FrameCodec.frame(CMD_COLOURS, 1, body.position(), frame, 0);
+			double start = Math.max(t, linkFree);
+			linkFree = start + overhead + n * 10 * 1000.0 / baud;
+			r.messages++;
+			r.bytes += n;
+			r.linkBusy += linkFree - start;
+
+			// It arrives when the link has sent it
+			link.deliver(frame, 0, n);
+			readerLink.deliver(frame, 0, n);
+			if(r.messages % 10 == 0) {
+				reader.poll();
+			}
+			if(received.readHeader() == 0 || received.getType() != CMD_COLOURS) {
+				r.intact = false;
+				continue;
+			}
+			got.read(received.getBody());
+			for(int k=0; k < got.size(); k++, next++) {
+				if(next >= colours.length || got.getTime(k) != next * SAMPLE_PERIOD || got.getColour(k) != colours[next]) {
+					r.intact = false;
+				}
+				double latency = linkFree - got.getTime(k);
+				r.delivered++;
+				r.sampleLatency += latency;
+				r.maxSampleLatency = Math.max(r.maxSampleLatency, latency);
+				if(next > 0 && next < colours.length && colours[next] != colours[next - 1]) {
+					r.changesDelivered++;
+					r.changeLatency += latency;
+					r.maxChangeLatency = Math.max(r.maxChangeLatency, latency);
+				}
+			}
+		}
+		reader.poll();
+		boolean readerOk = reader.getSamples() == r.samples && reader.available()
+				&& reader.getData() == colours[colours.length - 1] && reader.getTime() == (colours.length - 1) * SAMPLE_PERIOD;
+
+		double elapsed = Math.max(linkFree, colours.length * SAMPLE_PERIOD) / 1000.0;
+		System.out.println(String.format("%s %6d messages %7d bytes  link %5.1f%% busy  %6.1f samples/s  "
+				+ "sample latency %7.1f ms avg %8.1f max  colour change %7.1f ms avg %8.1f max",
+				name, r.messages, r.bytes, 100 * r.linkBusy / (seconds * 1000.0), r.delivered / elapsed,
+				r.sampleLatency / Math.max(1, r.delivered), r.maxSampleLatency,
+				r.changeLatency / Math.max(1, r.changesDelivered), r.maxChangeLatency));
+		results.check(name.trim() + ": every sample arrives intact and in order",
+				r.intact && r.delivered == r.samples && r.changesDelivered == r.changes);
+		results.check(name.trim() + ": ReaderThread ends on the last sample", readerOk);
+		return r;
+	}
+}
@@ -39,6 +39,7 @@ public class SoundMachineController extends PApplet {
 	SerialController serial;
 	ReaderThread reader;
 	PlayerThread player;
+	TimecodeThread timecode;
 	
 	InputStream in;
 	OutputStream out;
@@ -65,6 +66,11 @@ public class SoundMachineController extends PApplet {
 	byte BROADCAST = 0;
 	int myAddress = BROADCAST;
 	
+	// Commands go as frames, like everything else on the link, so the SoundMachines can
+	// tell them from the timecodes. Only used inside synchronized(out), which every
+	// sender holds, so two commands can't be built in it at once.
+	byte[] frame = new byte[FrameCodec.MAX_FRAME];
+	
 	// ASSUME 120 BPM
 	//
 	// My disk has 40 beats on it, at 120 bpm = 3 revolutions of the disk per minute.
@@ -77,8 +83,9 @@ public class SoundMachineController extends PApplet {
 
 	private static final int TURNTABLE_SPEED = 126;	// degrees per second
 
-	// ASSUME 120 bpm = 2 beats per second. Sampling speed is 1/bpm, or 60/BPM * 1000 milliseconds apart
-	private static final int sampleInterval = (60*1000)/BPM;
+	// Broadcast the beat clock every TIMECODE_INTERVAL ms, and play a note every beat of it
+	private static final int TIMECODE_INTERVAL = 250;
+	private static final int TICKS_PER_NOTE = BeatClock.TICKS_PER_BEAT;
 
 	public void setup() {
 		// initialize the screen
@@ -99,9 +106,14 @@ public class SoundMachineController extends PApplet {
 		reader = new ReaderThread(50, in);		// poll Xbee every 50 ms
 		reader.start();
 		
-		// Start the thread to play notes at the correct interval
+		// Start the beat clock the SoundMachines follow
+		println("Starting the timecode thread...");
+		timecode = new TimecodeThread(TIMECODE_INTERVAL, out, BPM);
+		timecode.start();
+		
+		// Start the thread to play notes on the beat
 		println("Starting the player thread...");
-		player = new PlayerThread(this, reader, sampleInterval);
+		player = new PlayerThread(this, reader, timecode, TICKS_PER_NOTE);
 		player.start();
 		
 	}
@@ -123,7 +135,9 @@ public class SoundMachineController extends PApplet {
 		
 		println("stop cleaning up...");
 		
+		player.quit();
 		reader.quit();
+		timecode.quit();
 		
 		exitAll();		// stop the SoundMachines by transmitting a EXIT command
 		
@@ -133,7 +147,7 @@ public class SoundMachineController extends PApplet {
 	// Send a STOP command to all of the SoundMachine units
 	public void sendStop() {
 	    try {
-	    	out.write(CMD_STOP);
+	    	sendCommand(CMD_STOP);
 			println("Sent STOP");
 	   	} catch(Exception e) {
 	   		println("Error sending STOP " + e);
@@ -145,7 +159,7 @@ public class SoundMachineController extends PApplet {
 	public void sendStart() {
 
 	    try {
-	    	out.write(CMD_START);
+	    	sendCommand(CMD_START);
 
 			println("Sent START");
 	   	} catch(Exception e) {
@@ -156,7 +170,7 @@ public class SoundMachineController extends PApplet {
 	// Send a SLOWDOWN command to the SoundMachines to tell them to slow down
 	public void slowDown() {
 		try {
-	    	out.write(CMD_SLOWDOWN);
+	    	sendCommand(CMD_SLOWDOWN);
 
 			println("Sent SLOWDOWN");
 	   	} catch(Exception e) {
@@ -167,7 +181,7 @@ public class SoundMachineController extends PApplet {
 	// Send a SPEEDUP command to the SoundMachines to tell them to start operation
 	public void speedUp() {
 	    try {
-	    	out.write(CMD_SPEEDUP);
+	    	sendCommand(CMD_SPEEDUP);
 
 			println("Sent SPEEDUP");
 	   	} catch(Exception e) {
@@ -178,7 +192,7 @@ public class SoundMachineController extends PApplet {
 	// Send a EXIT command to the SoundMachines to tell them to exit
 	public void exitAll() {
 	    try {
-	    	out.write(CMD_EXIT);
+	    	sendCommand(CMD_EXIT);
 
 			println("Sent EXIT");
 	   	} catch(Exception e) {
@@ -186,6 +200,15 @@ public class SoundMachineController extends PApplet {
 	   	}
 	}	
 	
+	// Send a command with no body to all of the SoundMachine units
+	void sendCommand(byte cmd) throws IOException {
+		synchronized(out) {		// the timecode thread writes to it too
+			int n = FrameCodec.frame(cmd, BROADCAST, 0, frame, 0);
+			out.write(frame, 0, n);
+			out.flush();
+		}
+	}
+	
 	public void keyPressed() {
 		if(key == 'x' || key == 'X') {
 			exitAll();
@@ -0,0 +1,321 @@
+package soundmachinecontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fuzz test for FrameCodec and FrameParser: frames split across reads, merged into one
+ * read, fed a byte at a time, with garbage between them and with damaged frames, and
+ * a Message round trip on top. The NXT copy of the codec is identical so is covered too.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.TestFrameParser
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestFrameParser {
+
+	private static final int FRAMES = 2000;
+	private static final long[] SEEDS = { 1, 42, 1234567 };
+
+	private static final TestResults results = new TestResults("FrameParser");
+
+	/**
+	 * A frame as sent, to compare with what the parser finds
+	 */
+	private static class Frame {
+		final int type, address;
+		final byte[] payload;
+
+		Frame(int type, int address, byte[] payload) {
+			this.type = type;
+			this.address = address;
+			this.payload = payload;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Frame f = (Frame) o;
+			return f.type == type && f.address == address && Arrays.equals(f.payload, payload);
+		}
+
+		@Override
+		public int hashCode() {
+			return type * 31 + address + Arrays.hashCode(payload);
+		}
+	}
+
+	/**
+	 * Returns the bytes of a stream in random sized pieces, as a serial port might
+	 */
+	private static class ChunkyInputStream extends InputStream {
+		private final byte[] data;
+		private final Random random;
+		private final int maxChunk;
+		private int pos;
+
+		ChunkyInputStream(byte[] data, Random random, int maxChunk) {
+			this.data = data;
+			this.random = random;
+			this.maxChunk = maxChunk;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(pos == data.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, 1 + random.nextInt(maxChunk)), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return data.length - pos;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		for(long seed : SEEDS) {
+			Random random = new Random(seed);
+			List<Frame> frames = randomFrames(random, FRAMES);
+			byte[] stream = encode(frames, null, 0);
+
+			check("seed " + seed + " byte at a time", frames, byteAtATime(stream));
+			check("seed " + seed + " one read", frames, chunked(stream, stream.length));
+			check("seed " + seed + " merged reads", frames, chunked(stream, 3 * FrameCodec.MAX_FRAME + 7));
+			check("seed " + seed + " random reads", frames, readFrames(new ChunkyInputStream(stream, random, 200)));
+
+			// Garbage between frames with no START byte in it can always be skipped exactly
+			byte[] noisy = encode(frames, random, 0xFE);
+			check("seed " + seed + " garbage between frames", frames, readFrames(new ChunkyInputStream(noisy, random, 50)));
+
+			damaged(seed, random, frames);
+		}
+		everySplit();
+		oversize();
+		messageRoundTrip();
+
+		results.finish();
+	}
+
+	/**
+	 * Two frames split at every possible point, so every field is cut somewhere
+	 */
+	private static void everySplit() {
+		List<Frame> frames = new ArrayList<Frame>();
+		frames.add(new Frame(3, 1, new byte[] { (byte) 0xFF, 0, (byte) 0xFF, 5 }));
+		frames.add(new Frame(255, 255, new byte[] { 1, 2, 3 }));
+		frames.add(new Frame(0, 0, new byte[0]));
+		byte[] stream = encode(frames, null, 0);
+		boolean ok = true;
+		for(int split=0; split <= stream.length; split++) {
+			FrameParser p = new FrameParser();
+			List<Frame> found = new ArrayList<Frame>();
+			p.put(stream, 0, split);
+			drain(p, found);
+			p.put(stream, split, stream.length - split);
+			drain(p, found);
+			ok &= found.equals(frames);
+		}
+		results.check("split at every byte", ok);
+	}
+
+	/**
+	 * A START byte followed by an impossible length is skipped, not waited on
+	 */
+	private static void oversize() {
+		List<Frame> frames = new ArrayList<Frame>();
+		frames.add(new Frame(2, 7, new byte[] { 9 }));
+		byte[] good = encode(frames, null, 0);
+		byte[] stream = new byte[4 + good.length];
+		stream[0] = (byte) FrameCodec.START;
+		stream[1] = 2;
+		stream[2] = 7;
+		stream[3] = (byte) (FrameCodec.MAX_PAYLOAD + 1);
+		System.arraycopy(good, 0, stream, 4, good.length);
+		FrameParser p = new FrameParser();
+		List<Frame> found = new ArrayList<Frame>();
+		p.put(stream, 0, stream.length);
+		drain(p, found);
+		results.check("oversize length skipped", found.equals(frames) && p.getLengthErrors() == 1);
+	}
+
+	/**
+	 * Damage some frames, with a flipped bit or bytes dropped, and add garbage that
+	 * contains START bytes. Every intact frame should still be found, barring the
+	 * rare garbage that happens to look like a frame and swallows part of the next one.
+	 */
+	private static void damaged(long seed, Random random, List<Frame> frames) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[FrameCodec.MAX_FRAME];
+		List<Frame> intact = new ArrayList<Frame>();
+		for(Frame f : frames) {
+			int n = FrameCodec.encode(f.type, f.address, f.payload, 0, f.payload.length, buf, 0);
+			int damage = random.nextInt(10);
+			if(damage == 0) {
+				buf[1 + random.nextInt(n - 1)] ^= 1 << random.nextInt(8);
+			} else if(damage == 1) {
+				n = 1 + random.nextInt(n - 1);
+			} else {
+				intact.add(f);
+			}
+			out.write(buf, 0, n);
+			if(random.nextInt(4) == 0) {
+				for(int i=random.nextInt(20); i >= 0; i--) {
+					out.write(random.nextInt(256));
+				}
+			}
+		}
+		FrameParser p = new FrameParser();
+		InputStream in = new ChunkyInputStream(out.toByteArray(), random, 100);
+		List<Frame> found = new ArrayList<Frame>();
+		while(p.readFrame(in)) {
+			found.add(copy(p));
+		}
+
+		// The intact frames should come out in order; anything else found is a false frame
+		int matched = 0;
+		int j = 0;
+		for(Frame f : found) {
+			if(j < intact.size() && f.equals(intact.get(j))) {
+				matched++;
+				j++;
+			} else {
+				int k = intact.subList(j, intact.size()).indexOf(f);
+				if(k >= 0) {
+					j += k + 1;
+					matched++;
+				}
+			}
+		}
+		int spurious = found.size() - matched;
+		System.out.println("  seed " + seed + ": " + matched + "/" + intact.size() + " intact frames recovered, "
+				+ spurious + " false frames, " + p.getChecksumErrors() + " checksum errors, "
+				+ p.getLengthErrors() + " length errors, " + p.getSkipped() + " bytes skipped");
+		results.check("seed " + seed + " damaged frames", matched >= intact.size() * 99 / 100 && spurious <= intact.size() / 100);
+	}
+
+	/**
+	 * Message built with sendHeader() etc. and read back with readHeader() etc.
+	 */
+	private static void messageRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Message m = new Message(out);
+		m.setType((byte) 2);
+		m.setAddress((byte) 5);
+		m.sendHeader(13);
+		m.sendInt(-123456);
+		m.sendLong(0x0123456789ABCDEFL);
+		m.sendByte(0xFF);
+		m.setType((byte) 6);
+		m.sendHeader(0);
+		byte[] bytes = out.toByteArray();
+
+		Message r = new Message(new ChunkyInputStream(bytes, new Random(7), 3));
+		int n = 0;
+		for(int i=0; i < bytes.length && n == 0; i++) {
+			n = r.readHeader();
+		}
+		boolean ok = n == 13 && r.getType() == 2 && r.getAddress() == 5
+				&& r.readInt() == -123456 && r.readLong() == 0x0123456789ABCDEFL && r.readByte() == (byte) 0xFF;
+		try {
+			r.readByte();
+			ok = false;
+		} catch (IOException e) {
+			// past the end of the message
+		}
+		for(int i=0; i < bytes.length && r.getType() != 6; i++) {
+			r.readHeader();
+		}
+		ok &= r.getType() == 6 && r.available() == 0;
+		results.check("Message round trip", ok);
+	}
+
+	private static List<Frame> randomFrames(Random random, int count) {
+		List<Frame> frames = new ArrayList<Frame>(count);
+		for(int i=0; i < count; i++) {
+			byte[] payload = new byte[random.nextInt(FrameCodec.MAX_PAYLOAD + 1)];
+			random.nextBytes(payload);
+			frames.add(new Frame(random.nextInt(256), random.nextInt(256), payload));
+		}
+		return frames;
+	}
+
+	/**
+	 * Encode frames one after another, with random garbage up to maxGarbage between them if random isn't null
+	 */
+	private static byte[] encode(List<Frame> frames, Random random, int maxGarbage) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[FrameCodec.MAX_FRAME];
+		for(Frame f : frames) {
+			if(random != null) {
+				for(int i=random.nextInt(8); i > 0; i--) {
+					out.write(random.nextInt(maxGarbage + 1));
+				}
+			}
+			int n = FrameCodec.encode(f.type, f.address, f.payload, 0, f.payload.length, buf, 0);
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static List<Frame> byteAtATime(byte[] stream) {
+		FrameParser p = new FrameParser();
+		List<Frame> found = new ArrayList<Frame>();
+		for(byte b : stream) {
+			if(p.feed(b)) {
+				found.add(copy(p));
+				drain(p, found);
+			}
+		}
+		return found;
+	}
+
+	private static List<Frame> chunked(byte[] stream, int chunk) {
+		FrameParser p = new FrameParser();
+		List<Frame> found = new ArrayList<Frame>();
+		int off = 0;
+		while(off < stream.length) {
+			off += p.put(stream, off, Math.min(chunk, stream.length - off));
+			drain(p, found);
+		}
+		return found;
+	}
+
+	private static List<Frame> readFrames(InputStream in) throws IOException {
+		FrameParser p = new FrameParser();
+		List<Frame> found = new ArrayList<Frame>();
+		while(p.readFrame(in)) {
+			found.add(copy(p));
+		}
+		return found;
+	}
+
+	private static void drain(FrameParser p, List<Frame> found) {
+		while(p.next()) {
+			found.add(copy(p));
+		}
+	}
+
+	private static Frame copy(FrameParser p) {
+		int off = p.getPayloadOffset();
+		return new Frame(p.getType(), p.getAddress(), Arrays.copyOfRange(p.getBuffer(), off, off + p.getLength()));
+	}
+
+	private static void check(String name, List<Frame> expected, List<Frame> found) {
+		results.check(name, found.equals(expected));
+	}
+}
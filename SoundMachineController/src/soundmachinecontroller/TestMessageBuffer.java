@@ -0,0 +1,253 @@
+package soundmachinecontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Tests for MessageBuffer and the Messages built on it: every field type round trips and
+ * matches EndianTools, reads and writes past the end of the range throw without touching
+ * the bytes around it, and sending and receiving messages allocates nothing. Then times
+ * decoding whole messages.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.TestMessageBuffer [messages]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TestMessageBuffer {
+
+	private static final int BODY = 4 + 8 + 3;	// int, long, 3 bytes
+
+	private static final TestResults results = new TestResults("MessageBuffer");
+
+	/**
+	 * The same frames over and over, as if the link never stopped
+	 */
+	private static class RepeatingInputStream extends InputStream {
+		private final byte[] data;
+		private int pos;
+
+		RepeatingInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			int b = data[pos] & 0xFF;
+			pos = (pos + 1) % data.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos = (pos + n) % data.length;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return data.length - pos;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		roundTrip();
+		bounds();
+		allocation();
+		decodeRate(messages);
+
+		results.finish();
+	}
+
+	private static void roundTrip() throws IOException {
+		byte[] b = new byte[40];
+		MessageBuffer m = new MessageBuffer();
+		m.wrap(b, 3, 30);
+		m.putInt(0x89ABCDEF);
+		m.putLong(-2L);
+		m.putShort(0xBEEF);
+		m.putByte(0x80);
+		m.putBytes(new byte[] { 1, 2, 3 }, 1, 2);
+		boolean ok = m.position() == 17 && m.remaining() == 13
+				&& EndianTools.decodeIntBE(b, 3) == 0x89ABCDEF
+				&& EndianTools.decodeLongBE(b, 7) == -2L
+				&& EndianTools.decodeUShortBE(b, 15) == 0xBEEF
+				&& b[17] == (byte) 0x80 && b[18] == 2 && b[19] == 3;
+
+		m.rewind();
+		byte[] two = new byte[2];
+		ok &= m.getInt() == 0x89ABCDEF && m.getLong() == -2L && m.getShort() == (short) 0xBEEF
+				&& m.getByte() == (byte) 0x80;
+		m.getBytes(two, 0, 2);
+		ok &= Arrays.equals(two, new byte[] { 2, 3 }) && m.position() == 17;
+		results.check("fields round trip big-endian", ok);
+	}
+
+	private static void bounds() throws IOException {
+		byte[] b = new byte[12];
+		Arrays.fill(b, (byte) 0x55);
+		MessageBuffer m = new MessageBuffer();
+		m.wrap(b, 2, 6);
+		m.putInt(0);
+		boolean ok = throwsOnPut(m, 4) && m.position() == 4;
+		m.putShort(0);
+		ok &= throwsOnPut(m, 1);
+		ok &= b[0] == 0x55 && b[1] == 0x55 && b[8] == 0x55 && b[11] == 0x55;
+		results.check("writes stop at the end of the range", ok);
+
+		m.rewind();
+		m.getInt();
+		ok = throwsOnGet(m, 4) && m.position() == 4;
+		m.getShort();
+		ok &= throwsOnGet(m, 1);
+		results.check("reads stop at the end of the range", ok);
+
+		ok = false;
+		try {
+			m.wrap(b, 8, 5);
+		} catch (IllegalArgumentException e) {
+			ok = true;
+		}
+		results.check("wrap checks the range", ok);
+
+		ok = false;
+		try {
+			m.putBytes(new byte[2], 1, 2);
+		} catch (IOException e) {
+			ok = true;
+		}
+		results.check("putBytes checks its source range", ok);
+	}
+
+	/**
+	 * Send and read messages through Message and check no bytes were allocated, when the JVM can tell us
+	 */
+	private static void allocation() throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream(BODY * 1000);
+		Message out = new Message(sink);
+		out.setType((byte) 2);
+		out.sendHeader(BODY);
+		sendFields(out, 1);
+		Message in = new Message(new RepeatingInputStream(sink.toByteArray()));
+
+		com.sun.management.ThreadMXBean bean = allocationBean();
+		if(bean == null) {
+			System.out.println("  this JVM can't count allocations, skipping the allocation test");
+			return;
+		}
+		long id = Thread.currentThread().getId();
+		int n = 100000;
+		long sum = 0;
+		// Warm up so the counts aren't of class loading or the interpreter
+		sum += exchange(out, in, sink, n);
+		long before = bean.getThreadAllocatedBytes(id);
+		sum += exchange(out, in, sink, n);
+		long bytes = bean.getThreadAllocatedBytes(id) - before;
+		System.out.println("  " + bytes + " bytes allocated for " + n + " messages sent and read (checksum " + sum + ")");
+		// Allow for the odd object the JIT or the counter itself makes
+		results.check("no allocation per message", bytes < n / 10);
+	}
+
+	private static long exchange(Message out, Message in, ByteArrayOutputStream sink, int n) throws IOException {
+		long sum = 0;
+		for(int i=0; i < n; i++) {
+			sink.reset();
+			out.sendHeader(BODY);
+			sendFields(out, i);
+			while(in.readHeader() == 0) {
+			}
+			sum += in.readInt() + in.readLong() + in.readByte();
+		}
+		return sum;
+	}
+
+	/**
+	 * Time decoding whole messages with Message, from a stream that always has more
+	 */
+	private static void decodeRate(int messages) throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Message out = new Message(sink);
+		out.setType((byte) 2);
+		for(int i=0; i < 100; i++) {
+			out.sendHeader(BODY);
+			sendFields(out, i);
+		}
+		Message in = new Message(new RepeatingInputStream(sink.toByteArray()));
+		long sum = 0;
+		for(int pass=0; pass < 2; pass++) {		// first pass warms up
+			long start = System.nanoTime();
+			for(int i=0; i < messages; i++) {
+				while(in.readHeader() == 0) {
+				}
+				sum += in.readInt() + in.readLong() + in.readByte();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if(pass == 1) {
+				System.out.println(String.format("  decoded %,d messages of %d bytes: %,.0f messages/sec (checksum %d)",
+						messages, BODY, messages / seconds, sum));
+				results.check("decodes thousands of messages a second", messages / seconds > 10000);
+			}
+		}
+	}
+
+	private static void sendFields(Message m, int i) throws IOException {
+		m.sendInt(i);
+		m.sendLong(i * 1000L);
+		m.sendByte(0);
+		m.sendByte(i);
+		m.sendByte(i >> 8);
+	}
+
+	private static boolean throwsOnPut(MessageBuffer m, int size) {
+		try {
+			if(size == 1) {
+				m.putByte(0);
+			} else {
+				m.putInt(0);
+			}
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static boolean throwsOnGet(MessageBuffer m, int size) {
+		try {
+			if(size == 1) {
+				m.getByte();
+			} else {
+				m.getInt();
+			}
+			return false;
+		} catch (EOFException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		try {
+			ThreadMXBean t = ManagementFactory.getThreadMXBean();
+			if(t instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) t;
+				if(b.isThreadAllocatedMemorySupported()) {
+					b.setThreadAllocatedMemoryEnabled(true);
+					return b;
+				}
+			}
+		} catch (Throwable e) {
+			// Not HotSpot
+		}
+		return null;
+	}
+}
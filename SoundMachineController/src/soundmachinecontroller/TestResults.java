@@ -0,0 +1,58 @@
+package soundmachinecontroller;
+
+/**
+ * The PASS and FAIL lines of a test harness. Each check prints one line, and finish()
+ * prints the summary and exits with status 1 if any check failed, so a script running
+ * the harnesses can tell.
+ *
+ * Checks can be made from any thread.
+ *
+ * @author mcrosbie
+ *
+ */
+class TestResults {
+
+	private final String name;
+	private int failures = 0;
+
+	/**
+	 * @param name What is tested, for the summary line, e.g. "frame ring"
+	 */
+	TestResults(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Print a PASS or FAIL line for one check
+	 * @param test What was checked
+	 * @param ok true if it passed
+	 * @return ok
+	 */
+	synchronized boolean check(String test, boolean ok) {
+		System.out.println((ok ? "PASS " : "FAIL ") + test);
+		if(!ok) {
+			failures++;
+		}
+		return ok;
+	}
+
+	/**
+	 * @return The number of checks failed so far
+	 */
+	synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Print the summary, and exit with status 1 if any check failed
+	 */
+	void finish() {
+		int failed = getFailures();
+		if(failed == 0) {
+			System.out.println("All " + name + " tests passed");
+		} else {
+			System.out.println(failed + " " + name + " test(s) FAILED");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package soundmachinecontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Simulates the controller broadcasting its beat clock to several SoundMachines over the
+ * radio, each following it with a BeatClock, and measures how well they agree on the
+ * beat time of the same moment: the error of each one's stamp against the controller's
+ * clock, and the spread between them.
+ *
+ * Each SoundMachine has its own ms clock, with a random offset and drift. The timecodes
+ * are built by TimecodeThread every 250 ms, framed, and delivered to each SoundMachine
+ * after a radio delay with some jitter; now and then one is held up for a long time, or
+ * lost. A late timecode holds up the ones behind it, as on a serial link. Every beat, a
+ * block passes the sensor of every SoundMachine at the same moment and each stamps it.
+ * Half way through the tempo changes. The same SoundMachines running free, on their own
+ * clocks from the first timecode at each tempo, are measured for comparison. Time is
+ * simulated, so the results are the same every run.
+ *
+ * Once locked, each SoundMachine sends every block it stamps back to the controller as a
+ * CMD_CHANGE from its own address, after a radio delay. The controller reads them with a
+ * ReaderThread and puts them on the beat grid with a NoteScheduler, as the PlayerThread
+ * does, and the test checks the blocks that passed every sensor on the same beat are
+ * played together, on that beat's grid tick.
+ *
+ * java -cp SoundMachineController.jar soundmachinecontroller.TimecodeSimulation [seconds] [nodes]
+ *
+ * @author mcrosbie
+ *
+ */
+public class TimecodeSimulation {
+
+	private static final int PERIOD = 250;			// ms between timecodes
+	private static final int DELAY = 15;			// ms radio delay
+	private static final int JITTER = 10;			// ms, on top of the delay
+	private static final double LATE = 0.03;		// chance a timecode is held up
+	private static final int LATE_DELAY = 600;		// ms, at most
+	private static final double LOST = 0.03;		// chance a timecode is lost
+	private static final int MAX_DRIFT_PPM = 500;
+	private static final int SETTLE = 5000;			// ms to lock, at the start and after the tempo change
+	private static final int BPM = 120, NEW_BPM = 140;
+	private static final int TICKS_PER_BEAT = BeatClock.TICKS_PER_BEAT;
+	private static final int WHITE = 6, RED = 0;
+	private static final byte CMD_CHANGE = 8;
+
+	private static final TestResults results = new TestResults("TimecodeSimulation");
+
+	/**
+	 * The controller's end of the link back from the SoundMachines: bytes appear when
+	 * they are delivered
+	 */
+	private static class Link extends InputStream {
+		private final ArrayDeque<Byte> bytes = new ArrayDeque<Byte>();
+
+		void deliver(byte[] b) {
+			for(byte x : b) {
+				bytes.add(x);
+			}
+		}
+
+		@Override
+		public int read() {
+			return bytes.isEmpty() ? -1 : bytes.poll() & 0xFF;
+		}
+
+		@Override
+		public int available() {
+			return bytes.size();
+		}
+	}
+
+	/**
+	 * A SoundMachine: its clock, and the timecodes on their way to it
+	 */
+	private static class Node {
+		final double offset;		// ms
+		final double drift;			// e.g. 0.0001 is 100 ppm fast
+		final BeatClock clock = new BeatClock(BPM);
+		final FrameParser parser = new FrameParser();
+		final MessageBuffer body = new MessageBuffer();
+		final ArrayDeque<Long> arrivals = new ArrayDeque<Long>();
+		final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+		long lastArrival;
+		int syncs, ignored;
+
+		// The changes it sends back, and the ones on their way to the controller
+		final int address;
+		final ColourEvents events = new ColourEvents(TICKS_PER_BEAT);
+		final MessageBuffer out = new MessageBuffer();
+		final ArrayDeque<Long> upArrivals = new ArrayDeque<Long>();
+		final ArrayDeque<byte[]> upFrames = new ArrayDeque<byte[]>();
+		long lastUpArrival;
+		int sentChanges, lastColour;
+
+		// Running free: the first timecode at each tempo, and the tempo
+		int freeLocal, freeBeat, freeBpm;
+
+		Node(int address, Random random) {
+			this.address = address;
+			offset = random.nextInt(1 << 30);
+			drift = (random.nextDouble() * 2 - 1) * MAX_DRIFT_PPM / 1e6;
+		}
+
+		int local(long t) {
+			return (int) Math.floor(offset + t * (1 + drift));
+		}
+
+		void send(long t, byte[] frame, Random random) {
+			if(random.nextDouble() < LOST) {
+				return;
+			}
+			long delay = DELAY + random.nextInt(JITTER + 1);
+			if(random.nextDouble() < LATE) {
+				delay += random.nextInt(LATE_DELAY);
+			}
+			lastArrival = Math.max(lastArrival, t + delay);
+			arrivals.add(lastArrival);
+			frames.add(frame);
+		}
+
+		void receive(long t) throws IOException {
+			while(!arrivals.isEmpty() && arrivals.peek() <= t) {
+				arrivals.poll();
+				byte[] f = frames.poll();
+				parser.put(f, 0, f.length);
+				while(parser.next()) {
+					body.wrap(parser.getBuffer(), parser.getPayloadOffset(), parser.getLength());
+					int beat = body.getInt();
+					int tempo = body.getShort() & 0xFFFF;
+					if(tempo != freeBpm) {
+						freeLocal = local(t);
+						freeBeat = beat;
+						freeBpm = tempo;
+					}
+					body.rewind();
+					if(clock.sync(local(t), body)) {
+						syncs++;
+					} else {
+						ignored++;
+					}
+				}
+			}
+		}
+
+		int stamp(long t) {
+			return clock.toBeat(local(t));
+		}
+
+		/**
+		 * Send a block back to the controller as a colour change
+		 */
+		void sendChange(long t, int stamp, int colour, Random random) throws IOException {
+			if(events.sample(stamp, colour) != ColourEvents.CHANGE) {
+				return;
+			}
+			byte[] f = new byte[FrameCodec.MAX_FRAME];
+			out.wrap(f, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+			events.write(out);
+			int n = FrameCodec.frame(CMD_CHANGE, address, out.position(), f, 0);
+			lastUpArrival = Math.max(lastUpArrival, t + DELAY + random.nextInt(JITTER + 1));
+			upArrivals.add(lastUpArrival);
+			upFrames.add(Arrays.copyOf(f, n));
+			sentChanges++;
+			lastColour = colour;
+		}
+
+		/**
+		 * Deliver the changes that have arrived at the controller by t
+		 */
+		void deliver(long t, Link link) {
+			while(!upArrivals.isEmpty() && upArrivals.peek() <= t) {
+				upArrivals.poll();
+				link.deliver(upFrames.poll());
+			}
+		}
+
+		int freeStamp(long t) {
+			return freeBeat + (int) Math.floor((local(t) - freeLocal) * (double) freeBpm * TICKS_PER_BEAT / 60000);
+		}
+	}
+
+	/**
+	 * Error and spread of the stamps
+	 */
+	private static class Stats {
+		double sum, sumSquares;
+		int n;
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		int maxSpread;
+
+		void add(int[] stamps, int truth) {
+			int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+			for(int s : stamps) {
+				int e = s - truth;
+				sum += e;
+				sumSquares += (double) e * e;
+				n++;
+				min = Math.min(min, e);
+				max = Math.max(max, e);
+				lo = Math.min(lo, s);
+				hi = Math.max(hi, s);
+			}
+			maxSpread = Math.max(maxSpread, hi - lo);
+		}
+
+		double mean() {
+			return sum / n;
+		}
+
+		double sd() {
+			return Math.sqrt(Math.max(0, sumSquares / n - mean() * mean()));
+		}
+
+		/** @return Furthest any stamp was from the mean error, the jitter */
+		double jitter() {
+			return Math.max(max - mean(), mean() - min);
+		}
+
+		String describe() {
+			return String.format("error mean %.1f sd %.1f range %.0f..%.0f ticks, jitter %.1f ticks (1/%.0f beat), spread up to %d ticks",
+					mean(), sd(), min, max, jitter(), TICKS_PER_BEAT / Math.max(jitter(), 1), maxSpread);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		long duration = seconds * 1000L;
+		long change = duration / 2;
+		Random random = new Random(25);
+
+		// The controller's clock, driven in simulated time rather than System.nanoTime()
+		TimecodeThread master = new TimecodeThread(PERIOD, new ByteArrayOutputStream(), BPM);
+		long origin = System.nanoTime();
+		master.setBPM(BPM, origin);
+
+		Node[] nodes = new Node[count];
+		for(int i=0; i < count; i++) {
+			nodes[i] = new Node(i + 1, random);
+		}
+
+		// The controller reading the changes and putting them on the grid, as the PlayerThread does
+		Link link = new Link();
+		ReaderThread reader = new ReaderThread(0, link);
+		NoteScheduler scheduler = new NoteScheduler(TICKS_PER_BEAT, TICKS_PER_BEAT);
+		int[] played = new int[count + 1];
+		int notes = 0, offGrid = 0, wrongSlot = 0, playedLate = 0;
+
+		Stats followed = new Stats();
+		Stats free = new Stats();
+		int[] stamps = new int[count];
+		int[] freeStamps = new int[count];
+		boolean monotonic = true;
+		int previous = Integer.MIN_VALUE;
+		int lastBeat = -1;
+		int sent = 0;
+		for(long t=0; t <= duration; t++) {
+			long nanos = origin + t * 1000000L;
+			if(t == change) {
+				master.setBPM(NEW_BPM, nanos);
+			}
+			int ticks = master.getTicks(nanos);
+			monotonic &= ticks >= previous && ticks - previous <= 2;
+			previous = ticks;
+
+			if(t % PERIOD == 0) {
+				byte[] frame = new byte[FrameCodec.MAX_FRAME];
+				int n = master.encode(frame, nanos);
+				for(Node node : nodes) {
+					node.send(t, Arrays.copyOf(frame, n), random);
+				}
+				sent++;
+			}
+			for(Node node : nodes) {
+				node.receive(t);
+			}
+
+			// A block passes every sensor on each beat
+			int beat = ticks / TICKS_PER_BEAT;
+			if(beat != lastBeat) {
+				lastBeat = beat;
+				boolean settled = t >= SETTLE && (t < change || t >= change + SETTLE);
+				if(settled) {
+					for(int i=0; i < count; i++) {
+						stamps[i] = nodes[i].stamp(t);
+						freeStamps[i] = nodes[i].freeStamp(t);
+					}
+					followed.add(stamps, ticks);
+					free.add(freeStamps, ticks);
+					// Stop sending a second before the end, so every change has been played by then
+					if(t < duration - 1000) {
+						for(int i=0; i < count; i++) {
+							nodes[i].sendChange(t, stamps[i], beat % 2 == 0 ? WHITE : RED, random);
+						}
+					}
+				}
+			}
+
+			// The controller plays each change on the grid tick of the beat it was seen on
+			for(Node node : nodes) {
+				node.deliver(t, link);
+			}
+			reader.poll();
+			ReaderThread.Change c;
+			while((c = reader.nextChange()) != null) {
+				scheduler.add(c.address, c.colour, c.time, ticks);
+			}
+			NoteScheduler.Note note;
+			while((note = scheduler.next(ticks)) != null) {
+				notes++;
+				played[note.address]++;
+				// The beat the block passed on, the stamps are well within half a beat of it
+				int seen = scheduler.slot(note.stamp);
+				if(seen % TICKS_PER_BEAT != 0) {
+					offGrid++;
+				}
+				if(note.slot != seen + TICKS_PER_BEAT) {
+					wrongSlot++;
+				}
+				if(ticks - note.slot > 2) {
+					playedLate++;
+				}
+			}
+		}
+
+		System.out.println(String.format("%d SoundMachines, %d s, %d timecodes every %d ms, delay %d+%d ms, %.0f%% held up to %d ms, %.0f%% lost, %d BPM then %d BPM",
+				count, seconds, sent, PERIOD, DELAY, JITTER, LATE * 100, LATE_DELAY, LOST * 100, BPM, NEW_BPM));
+		boolean locked = true, parsed = true;
+		int ignored = 0;
+		for(int i=0; i < count; i++) {
+			Node node = nodes[i];
+			System.out.println(String.format("  node %d: drift %+.0f ppm, estimated %+.0f ppm, %d timecodes followed, %d ignored",
+					i + 1, node.drift * 1e6, node.clock.getDrift() * 1e6, node.syncs, node.ignored));
+			locked &= node.clock.isLocked() && node.clock.getTempo() == NEW_BPM;
+			parsed &= node.parser.getChecksumErrors() == 0 && node.parser.getFrames() == node.syncs + node.ignored;
+			ignored += node.ignored;
+		}
+		System.out.println("Following the timecode: " + followed.describe());
+		System.out.println("Running free:           " + free.describe());
+		System.out.println(String.format("The shortest radio delay, %d ms, is %.0f ticks at %d BPM: the bias in the mean error",
+				DELAY, DELAY * BPM * TICKS_PER_BEAT / 60000.0, BPM));
+
+		results.check("controller beat clock never goes back, even when the tempo changes", monotonic);
+		results.check("every SoundMachine locked at the new tempo", locked);
+		results.check("every timecode read back from its frame", parsed);
+		results.check("held up timecodes ignored", ignored > 0);
+		results.check("jitter under 1/16 beat", followed.jitter() < TICKS_PER_BEAT / 16);
+		results.check("SoundMachines within 1/16 beat of each other", followed.maxSpread < TICKS_PER_BEAT / 16);
+		results.check("following the timecode beats running free", followed.maxSpread < free.maxSpread && followed.jitter() < free.jitter());
+
+		System.out.println(String.format("Changes: %d played, %d late for their slot, %d still waiting",
+				notes, scheduler.getLate(), scheduler.size()));
+		boolean perAddress = true;
+		for(int i=0; i < count; i++) {
+			perAddress &= played[i + 1] == nodes[i].sentChanges && reader.getColour(i + 1) == nodes[i].lastColour;
+		}
+		results.check("every change played, from the SoundMachine that sent it", perAddress && notes > 0);
+		results.check("every change on the grid tick of the beat it was seen on", offGrid == 0 && wrongSlot == 0);
+		results.check("no change arrived too late for its slot", scheduler.getLate() == 0);
+		results.check("every change played on time", playedLate == 0);
+
+		// A change that arrives after its slot was played goes in the next one
+		NoteScheduler late = new NoteScheduler(TICKS_PER_BEAT, TICKS_PER_BEAT);
+		late.add(1, WHITE, 10, TICKS_PER_BEAT + 100);
+		late.add(2, WHITE, -10, 0);
+		NoteScheduler.Note first = late.next(TICKS_PER_BEAT);
+		NoteScheduler.Note second = late.next(2 * TICKS_PER_BEAT);
+		results.check("a late change is played on the next grid tick", late.getLate() == 1
+				&& first != null && first.address == 2 && first.slot == TICKS_PER_BEAT
+				&& second != null && second.address == 1 && second.slot == 2 * TICKS_PER_BEAT);
+
+		results.finish();
+	}
+}
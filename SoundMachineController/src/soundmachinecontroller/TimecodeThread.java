@@ -0,0 +1,158 @@
+package soundmachinecontroller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The controller's beat clock, broadcast to every SoundMachine as a CMD_TIMECODE message
+ * every period ms so they can follow it with a BeatClock and stamp their colour events
+ * in the same beat time.
+ *
+ * Beat time is in BeatClock ticks, counted from System.nanoTime() so it never goes back
+ * or jumps when the wall clock is changed. Changing the tempo changes how fast it
+ * counts from then on, it doesn't move it.
+ *
+ * Writes to the output stream are synchronized on it, so commands can be sent on the
+ * same stream from another thread, as long as they synchronize on it too.
+ *
+ * @author mcrosbie
+ *
+ */
+public class TimecodeThread extends Thread {
+
+	private static final byte CMD_TIMECODE = 2;	// Send the global timecode
+	private static final byte BROADCAST = 0;
+
+	private boolean running;
+	private int wait;				// ms between timecodes
+	private OutputStream out;
+	private int count;
+
+	private final byte[] frame = new byte[FrameCodec.MAX_FRAME];
+	private final MessageBuffer body = new MessageBuffer();
+
+	// Beat time originTicks at originNanos, counting at bpm from there
+	private long originNanos;
+	private double originTicks;
+	private int bpm;
+
+	/**
+	 * Initialise a thread that broadcasts the beat clock every w milliseconds
+	 * @param w Delay between timecodes
+	 * @param o OutputStream to the SoundMachines - must be open already!
+	 * @param bpm Tempo, beats per minute
+	 */
+	public TimecodeThread(int w, OutputStream o, int bpm) {
+		wait = w;
+		out = o;
+		this.bpm = bpm;
+		originNanos = System.nanoTime();
+		running = false;
+	}
+
+	/**
+	 * Start broadcasting
+	 */
+	public void start() {
+		running = true;
+		System.out.println("Starting timecode thread (will send every " + wait + " milliseconds.)");
+		super.start();
+	}
+
+	public void run() {
+		while(running) {
+			try {
+				send();
+				sleep((long)(wait));
+			} catch (InterruptedException e) {
+				// quit() wakes us up
+			} catch (IOException e) {
+				System.out.println("Error sending timecode " + e);
+			}
+		}
+		System.out.println("Timecode thread is done!");
+	}
+
+	/**
+	 * Broadcast the beat time now
+	 * @throws IOException if it can't be written
+	 */
+	public void send() throws IOException {
+		int n = encode(frame, System.nanoTime());
+		synchronized(out) {
+			out.write(frame, 0, n);
+			out.flush();
+		}
+		count++;
+	}
+
+	/**
+	 * Build a CMD_TIMECODE frame
+	 * @param f Where to build it, at least FrameCodec.MAX_FRAME bytes
+	 * @param nanos The time to send, System.nanoTime()
+	 * @return Length of the frame
+	 * @throws IOException if it doesn't fit
+	 */
+	public synchronized int encode(byte[] f, long nanos) throws IOException {
+		body.wrap(f, FrameCodec.HEADER_SIZE, FrameCodec.MAX_PAYLOAD);
+		BeatClock.write(body, getTicks(nanos), bpm);
+		return FrameCodec.frame(CMD_TIMECODE, BROADCAST, body.position(), f, 0);
+	}
+
+	/**
+	 * @return Beat time now, ticks
+	 */
+	public int getTicks() {
+		return getTicks(System.nanoTime());
+	}
+
+	/**
+	 * @param nanos A time from System.nanoTime()
+	 * @return Beat time then, ticks
+	 */
+	public synchronized int getTicks(long nanos) {
+		return (int) Math.floor(ticks(nanos));
+	}
+
+	private double ticks(long nanos) {
+		return originTicks + (nanos - originNanos) * (double) bpm * BeatClock.TICKS_PER_BEAT / 60e9;
+	}
+
+	/**
+	 * Change the tempo from now on
+	 * @param newBpm Beats per minute
+	 */
+	public void setBPM(int newBpm) {
+		setBPM(newBpm, System.nanoTime());
+	}
+
+	/**
+	 * Change the tempo from a given time on
+	 * @param newBpm Beats per minute
+	 * @param nanos When, from System.nanoTime()
+	 */
+	public synchronized void setBPM(int newBpm, long nanos) {
+		originTicks = ticks(nanos);
+		originNanos = nanos;
+		bpm = newBpm;
+	}
+
+	/** @return Tempo, beats per minute */
+	public synchronized int getBPM() {
+		return bpm;
+	}
+
+	/** @return Number of timecodes sent */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Stop broadcasting
+	 */
+	public void quit() {
+		System.out.println("Quitting timecode thread.");
+		running = false;
+		interrupt();
+	}
+}
@@ -1,4 +1,3 @@
- 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
@@ -8,40 +7,185 @@ import lejos.hardware.Button;
 import lejos.hardware.ev3.EV3;
 import lejos.hardware.lcd.LCD;
 import lejos.hardware.video.Video;
+
+import com.mastincrosbie.camera.FrameCodec;
+import com.mastincrosbie.camera.FrameEncoder;
+import com.mastincrosbie.camera.FrameHeader;
+import com.mastincrosbie.camera.FrameRing;
  
+/**
+ * Stream video from the webcam to CameraFrame running on a remote host.
+ * 
+ * StreamVideo [plain|raw|luma|yuv420|delta_rle|jpeg] [host]
+ * 
+ * plain, the default, sends each frame exactly as grabbed with nothing around it, as
+ * StreamVideo always has, so any CameraFrame can show it. Given a codec, each frame is
+ * sent with a FrameHeader and encoded with that codec, which needs a CameraFrame built
+ * on CameraLib's StreamReceiver. DELTA_RLE only sends what changed since the last frame.
+ * 
+ * Grabbing, encoding and sending each run on their own thread, joined by FrameRings of
+ * preallocated frames, so a slow network never holds up the camera. When the network
+ * falls behind the encoder skips to the newest grabbed frame, and drops frames before
+ * encoding them rather than after so a delta sequence is never broken. The LCD shows
+ * the frames per second through each stage and the frames dropped.
+ */
 public class StreamVideo {
     private static final int WIDTH = 160;
     private static final int HEIGHT = 120;
     private static final String HOST = "192.168.1.24";
     private static final int PORT = 55555;
+    private static final String PLAIN = "plain";
+    private static final int RING_SIZE = 4;
+    private static final int TAKE_TIMEOUT = 200;
+    private static final int LCD_INTERVAL = 1000;
+ 
+    private static volatile boolean running = true;
+    private static volatile long encoded;
+    private static volatile long sent;
+    private static volatile long encodeDropped;
  
-    public static void main(String[] args) throws IOException  {
+    public static void main(String[] args) throws IOException, InterruptedException  {
+ 
+        // null for plain frames
+        FrameCodec codec = null;
+        String host = HOST;
+        if(args.length > 0 && !args[0].equalsIgnoreCase(PLAIN)) {
+            codec = FrameCodec.valueOf(args[0].toUpperCase());
+        }
+        if(args.length > 1) {
+            host = args[1];
+        }
  
         EV3 ev3 = (EV3) BrickFinder.getLocal();
-        Video video = ev3.getVideo();
+        final Video video = ev3.getVideo();
         video.open(WIDTH, HEIGHT);
-        byte[] frame = video.createFrame();
+        int frameSize = WIDTH * HEIGHT * 2;
+        final FrameRing rawRing = new FrameRing(RING_SIZE, frameSize);
+        final FrameRing sendRing = new FrameRing(RING_SIZE, FrameHeader.SIZE + frameSize * 2);
+        final FrameEncoder encoder = codec != null ? new FrameEncoder(codec, WIDTH, HEIGHT) : null;
+        // Grabbed into when the encoder has fallen behind and every slot is taken
+        byte[] spare = video.createFrame();
  
-        Socket sock = new Socket(HOST, PORT);
-        BufferedOutputStream bos = new BufferedOutputStream(sock.getOutputStream());
-        long start = System.currentTimeMillis();
-        int frames = 0;
-        LCD.drawString("fps:", 0, 2);
+        final Socket sock = new Socket(host, PORT);
+        final BufferedOutputStream bos = new BufferedOutputStream(sock.getOutputStream());
  
-        while(Button.ESCAPE.isUp()) {
-            try {
-                video.grabFrame(frame);
-                LCD.drawString("" + (++frames * 1000f/(System.currentTimeMillis() - start)), 5,2);
+        Thread encodeThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(running) {
+                        FrameRing.Slot raw = rawRing.takeLatest(TAKE_TIMEOUT);
+                        if(raw == null) {
+                            continue;
+                        }
+                        FrameRing.Slot out = sendRing.claim();
+                        if(out == null) {
+                            encodeDropped++;
+                        } else if(encoder == null) {
+                            // Plain, the frame goes as it is
+                            System.arraycopy(raw.data, 0, out.data, 0, raw.length);
+                            out.length = raw.length;
+                            out.timestamp = raw.timestamp;
+                            sendRing.publish();
+                            encoded++;
+                        } else {
+                            int len = encoder.encode(raw.data, raw.timestamp);
+                            if(len <= out.data.length) {
+                                System.arraycopy(encoder.getBuffer(), 0, out.data, 0, len);
+                                out.length = len;
+                                out.timestamp = raw.timestamp;
+                                sendRing.publish();
+                                encoded++;
+                            } else {
+                                // Too big for a slot, the next one has to be a key frame
+                                encoder.requestKeyFrame();
+                                encodeDropped++;
+                            }
+                        }
+                        rawRing.release();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    running = false;
+                }
+            }
+        }, "encode");
+ 
+        Thread sendThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(running) {
+                        FrameRing.Slot out = sendRing.take(TAKE_TIMEOUT);
+                        if(out == null) {
+                            continue;
+                        }
+                        bos.write(out.data, 0, out.length);
+                        bos.flush();
+                        sendRing.release();
+                        sent++;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    running = false;
+                }
+            }
+        }, "send");
+ 
+        encodeThread.start();
+        sendThread.start();
+ 
+        LCD.drawString(codec != null ? codec.toString() : PLAIN, 0, 1);
+        LCD.drawString("grab fps:", 0, 2);
+        LCD.drawString("enc fps:", 0, 3);
+        LCD.drawString("send fps:", 0, 4);
+        LCD.drawString("dropped:", 0, 5);
+ 
+        long grabbed = 0;
+        long grabDropped = 0;
+        long lastGrabbed = 0;
+        long lastEncoded = 0;
+        long lastSent = 0;
+        long lastUpdate = System.currentTimeMillis();
  
-                bos.write(frame);
-                bos.flush();
+        while(running && Button.ESCAPE.isUp()) {
+            FrameRing.Slot slot = rawRing.claim();
+            try {
+                if(slot == null) {
+                    // Keep the camera going, this frame is dropped
+                    video.grabFrame(spare);
+                    grabDropped++;
+                } else {
+                    video.grabFrame(slot.data);
+                    slot.length = frameSize;
+                    slot.timestamp = System.currentTimeMillis();
+                    rawRing.publish();
+                }
+                grabbed++;
             } catch (IOException e) {
                 break;
             }
+ 
+            long now = System.currentTimeMillis();
+            if(now - lastUpdate >= LCD_INTERVAL) {
+                long elapsed = now - lastUpdate;
+                long e = encoded;
+                long s = sent;
+                LCD.drawInt((int) ((grabbed - lastGrabbed) * 1000 / elapsed), 4, 10, 2);
+                LCD.drawInt((int) ((e - lastEncoded) * 1000 / elapsed), 4, 10, 3);
+                LCD.drawInt((int) ((s - lastSent) * 1000 / elapsed), 4, 10, 4);
+                LCD.drawInt((int) (grabDropped + encodeDropped), 6, 10, 5);
+                lastGrabbed = grabbed;
+                lastEncoded = e;
+                lastSent = s;
+                lastUpdate = now;
+            }
         }
  
+        running = false;
+        encodeThread.join();
+        sendThread.join();
         bos.close();
         sock.close();
         video.close();
+        if(encoder != null) {
+            encoder.dispose();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,17 +1,11 @@
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-import javax.imageio.ImageIO;
-
 import lejos.hardware.Battery;
 import lejos.hardware.BrickFinder;
 import lejos.hardware.Sound;
@@ -21,11 +15,20 @@ import lejos.utility.Delay;
 
 import com.dropbox.core.DbxAuthInfo;
 import com.dropbox.core.DbxClient;
-import com.dropbox.core.DbxEntry;
-import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
-import com.dropbox.core.DbxWriteMode;
 import com.dropbox.core.json.JsonReader;
+import com.mastincrosbie.camera.AllocationMonitor;
+import com.mastincrosbie.camera.CaptureBuffer;
+import com.mastincrosbie.camera.CaptureOverlay;
+import com.mastincrosbie.camera.CapturePool;
+import com.mastincrosbie.camera.DropboxUploader;
+import com.mastincrosbie.camera.JpegEncoder;
+import com.mastincrosbie.camera.LatencyHistogram;
+import com.mastincrosbie.camera.MotionDetector;
+import com.mastincrosbie.camera.ParallelYUYVConverter;
+import com.mastincrosbie.camera.StageTimings;
+import com.mastincrosbie.camera.UploadQueue;
+import com.mastincrosbie.camera.UploadSpool;
 
 /**
  * ImageCapture thread
@@ -38,29 +41,64 @@ import com.dropbox.core.json.JsonReader;
  */
 public class ImageCapture extends Thread {
 
-<<<<<<< HEAD
-	private final int WIDTH = 160;
-	private final int HEIGHT = 120;
-=======
 	private final int WIDTH = 320;
 	private final int HEIGHT = 240;
->>>>>>> e072866a4d6cbeb896f5ba6d05fed18a37390eb4
 	private int NUM_PIXELS = WIDTH * HEIGHT;
 	private int FRAME_SIZE = NUM_PIXELS * 2;
 	private final int CAPTURE_FREQUENCY = 10000; // milliseconds
+	private final int UPLOAD_QUEUE_SIZE = 4;
+	// Every queued upload holds a buffer, plus the one being captured and a spare
+	private final int POOL_SIZE = UPLOAD_QUEUE_SIZE + 2;
+	// Pictures that can't be uploaded are kept on disk until we're back in wifi range
+	private final String SPOOL_DIR = "spool";
+	private final long SPOOL_MAX_BYTES = 32 * 1024 * 1024;
+	private final long SPOOL_RETRY = 5000;			// milliseconds
+	private final long SPOOL_MAX_RETRY = 60000;		// milliseconds
+	// Per-stage timings, p50/p95/p99 over the last TIMING_WINDOW
+	private final long TIMING_WINDOW = 10 * 60000;		// milliseconds
+	private final long TIMING_REPORT_PERIOD = 60000;	// milliseconds
+	private final String TIMING_CSV = "timings.csv";
+	// Motion detection mode: check a frame every MOTION_CHECK_INTERVAL but only convert,
+	// encode and upload it when something moved, or every HEARTBEAT_INTERVAL regardless
+	private final int MOTION_CHECK_INTERVAL = 500;		// milliseconds
+	private final int MOTION_MIN_INTERVAL = 2000;		// milliseconds between motion captures
+	private final int HEARTBEAT_INTERVAL = 300000;		// milliseconds
+	private final int MOTION_BLOCK_THRESHOLD = 12;		// luma levels
+	private final int IDLE_DELAY = 50;					// milliseconds
 	
 	private DbxClient dbxClient;
 	private Video video;
+	private ParallelYUYVConverter converter;
+	private UploadSpool spool;
+	private StageTimings timings = new StageTimings(TIMING_WINDOW, 10);
 	
 	private boolean running = true;
 	private String base;
 	
+	// The upload name is built in the same buffers every capture, in the format of Date.toString()
+	private final SimpleDateFormat nameFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+	private final Date nameDate = new Date();
+	private final StringBuffer name = new StringBuffer();
+	private final FieldPosition namePosition = new FieldPosition(0);
+	private boolean motionDetect;
+	
 
-	public ImageCapture(String argAuthFile, String imageBaseFilename) throws IOException {
+	/**
+	 * @param argAuthFile Dropbox access token file
+	 * @param imageBaseFilename Prefix for the uploaded image names
+	 * @param motionDetect true to only capture when something moves, false to capture every CAPTURE_FREQUENCY
+	 */
+	public ImageCapture(String argAuthFile, String imageBaseFilename, boolean motionDetect) throws IOException {
 
 		initialiseDropbox(argAuthFile);
 		openVideoCamera();
+		// Splits the frame into stripes on a multi-core host, single threaded on the brick
+		converter = new ParallelYUYVConverter(WIDTH, HEIGHT);
+		// Anything left in the spool from last time is uploaded once run() starts
+		spool = new UploadSpool(new File(SPOOL_DIR), SPOOL_MAX_BYTES);
+		System.out.println("Upload spool has " + spool.size() + " images waiting");
 		base = imageBaseFilename;		
+		this.motionDetect = motionDetect;
 	}
 		
 	public void stopRunning() {
@@ -98,37 +136,20 @@ public class ImageCapture extends Thread {
 	   video.open(WIDTH, HEIGHT);	 
 	}
 	  
-   private void writeImageToDropbox(DbxClient dbxClient, byte[] img, String dbFilename) 
-		   throws DbxException, IOException {
-       // Make the API call to upload the file.
-       DbxEntry.File metadata;
-       try {
-    	   metadata = dbxClient.uploadFile(dbFilename, DbxWriteMode.add(), img.length, 
-    			   new ByteArrayInputStream(img));
-       } catch (DbxException ex) {
-               System.out.println("Error uploading to Dropbox: " + ex.getMessage());
-       }
-   }
-    
    /**
-    * Convert a pixel value in YUV colourspace into standard RGB colourspace
-    * Probably would be faster using lookup tables
-    * @param y
-    * @param u
-    * @param v
-    * @return RGB value as an int
+    * Build the upload name for a capture, "/" + base + the capture time as Date.toString()
+    * gives it + ".jpg", without a Date or concatenation per capture
+    * 
+    * @param captureTime - System.currentTimeMillis() of the capture
+    * @return the path to upload to
     */
-   private int convertYUVtoARGB(int y, int u, int v) {
-       int c = y - 16;
-       int d = u - 128;
-       int e = v - 128;
-       int r = (298*c+409*e+128)/256;
-       int g = (298*c-100*d-208*e+128)/256;
-       int b = (298*c+516*d+128)/256;
-       r = r>255? 255 : r<0 ? 0 : r;
-       g = g>255? 255 : g<0 ? 0 : g;
-       b = b>255? 255 : b<0 ? 0 : b;
-       return 0xff000000 | (r<<16) | (g<<8) | b;
+   private String uploadName(long captureTime) {
+	   nameDate.setTime(captureTime);
+	   name.setLength(0);
+	   name.append('/').append(base);
+	   nameFormat.format(nameDate, name, namePosition);
+	   name.append(".jpg");
+	   return name.toString();
    }
    
    /**
@@ -136,71 +157,131 @@ public class ImageCapture extends Thread {
     */
    public void run() {
 	   
-	   int i=0;
+	   // Frames, images and JPEG buffers all come from the pool, and the overlay
+	   // and encoder are reused, so a capture doesn't churn the heap
+	   CapturePool pool = new CapturePool(WIDTH, HEIGHT, POOL_SIZE);
+	   CaptureOverlay overlay = new CaptureOverlay();
+	   JpegEncoder encoder = new JpegEncoder();
+	   AllocationMonitor allocations = new AllocationMonitor();
 	   
-	   // Create the frame buffer to hold the image in
-	   byte[] frame = video.createFrame();
-	   BufferedImage img = new BufferedImage(WIDTH, HEIGHT,BufferedImage.TYPE_INT_RGB);
+	   // Uploads happen on their own thread so a slow Dropbox doesn't delay the next capture.
+	   // If uploads back up, the oldest waiting pictures go to the spool in favour of new ones,
+	   // and the spool drains in the background whenever Dropbox can be reached.
+	   UploadQueue uploads = new UploadQueue(new DropboxUploader(dbxClient), pool,
+			   UPLOAD_QUEUE_SIZE, UploadQueue.BackPressure.DROP_OLDEST);
+	   uploads.setSpool(spool);
+	   spool.startDrain(new DropboxUploader(dbxClient), SPOOL_RETRY, SPOOL_MAX_RETRY);
+	   
+	   // Time every stage of every capture, the upload is timed on the queue's thread
+	   LatencyHistogram grabTime = timings.stage("grab");
+	   LatencyHistogram yuvTime = timings.stage("yuv");
+	   LatencyHistogram overlayTime = timings.stage("overlay");
+	   LatencyHistogram jpegTime = timings.stage("jpeg");
+	   uploads.setUploadTiming(timings.stage("upload"));
+	   try {
+		   timings.startReporting(TIMING_REPORT_PERIOD, System.out, new File(TIMING_CSV));
+	   } catch (IOException ex) {
+           System.out.println("Error opening " + TIMING_CSV + ": " + ex.getMessage());		   
+	   }
+	   
+	   // Motion detection works on the luma in the raw frame, so quiet frames never get
+	   // as far as the RGB conversion, JPEG encoder or Dropbox
+	   MotionDetector detector = new MotionDetector(WIDTH, HEIGHT);
+	   detector.setThresholds(MOTION_BLOCK_THRESHOLD, detector.getBlockCount() / 100);
+	   LatencyHistogram motionTime = timings.stage("motion");
 	   
 	   long lastCapture = 0;
+	   long lastCheck = 0;
 	 
 	   while(running) {
 		   
 		   long t = System.currentTimeMillis();
 		   
-		   // Only start a capture if we're due...
-		   if(t > (lastCapture + CAPTURE_FREQUENCY)) {
-			   lastCapture = t;
-			   
-			   System.out.println("Starting capture...");
+		   // Only grab a frame if we're due...
+		   boolean due;
+		   if(motionDetect) {
+			   due = t >= lastCheck + MOTION_CHECK_INTERVAL;
+		   } else {
+			   due = t > (lastCapture + CAPTURE_FREQUENCY);
+		   }
+		   if(due) {
+			   lastCheck = t;
+			   allocations.start();
+			   CaptureBuffer buf = pool.acquire();
+			   buf.captureTime = t;
+			   long stageStart = System.nanoTime();
 			   
 			   // Grab a video frame
 			   try {
-				   video.grabFrame(frame);
+				   video.grabFrame(buf.frame);
 			   } catch (IOException ex) {
 	               System.out.println("Error grabbing video: " + ex.getMessage());
 			   }
+			   stageStart = grabTime.recordSince(stageStart);
+			   
+			   // In motion mode throw the frame away unless something moved or a heartbeat is due
+			   if(motionDetect) {
+				   boolean motion = detector.update(buf.frame);
+				   stageStart = motionTime.recordSince(stageStart);
+				   if(motion && t >= lastCapture + MOTION_MIN_INTERVAL) {
+					   System.out.println("Motion: " + detector.getChangedBlocks() + " of "
+							   + detector.getBlockCount() + " blocks changed");
+				   } else if(t >= lastCapture + HEARTBEAT_INTERVAL) {
+					   System.out.println("Heartbeat capture");
+				   } else {
+					   allocations.stop();
+					   pool.release(buf);
+					   continue;
+				   }
+			   }
+			   lastCapture = t;
+			   System.out.println("Starting capture...");
 			   			   
 			   // Convert the YUV format image from the camera into RGB format
 			   // leJOS libraries only return YUV format from cameras.
-			   // Time-consuming as we have to iterate over every pixel
+			   // Uses lookup tables and writes straight into the image, in parallel stripes if we can
 			   try {
-				   for(i=0;i<FRAME_SIZE;i+=4) {
-		        	   int y1 = frame[i] & 0xFF;
-		        	   int y2 = frame[i+2] & 0xFF;
-		        	   int u = frame[i+1] & 0xFF;
-		        	   int v = frame[i+3] & 0xFF;
-		        	   int rgb1 = convertYUVtoARGB(y1,u,v);
-		        	   int rgb2 = convertYUVtoARGB(y2,u,v);
-		        	   img.setRGB((i % (WIDTH * 2)) / 2, i / (WIDTH * 2), rgb1);
-		        	   img.setRGB((i % (WIDTH * 2)) / 2 + 1, i / (WIDTH * 2), rgb2);
-				   }
+				   converter.convert(buf.frame, buf.image);
 			   } catch (Exception ex) {
-				   System.err.println("Error converting frame: i="+ i);
+				   // The conversion failed or was interrupted, don't upload the image
+				   System.err.println("Error converting frame");
 				   System.err.println(ex.getMessage());
+				   allocations.stop();
+				   pool.release(buf);
+				   continue;
 			   }
+			   stageStart = yuvTime.recordSince(stageStart);
 			   
-			   img = addTextOverlay(img);
+			   overlay.draw(buf, buf.captureTime, Battery.getVoltageMilliVolt());
+			   stageStart = overlayTime.recordSince(stageStart);
 	
 		      // Convert the RGB image into a jpg format
-		      ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		      try {
-			      ImageIO.write(img, "jpg", baos);	    	  
+		    	  encoder.encode(buf.image, buf.jpeg);
 		      } catch (IOException ex) {
 	              System.out.println("Error converting to jpg: " + ex.getMessage());  
 		      }
+		      jpegTime.recordSince(stageStart);
 		      
-		      // Save the JPG image to Dropbox
-		      try {
-			      Date date = new Date();
-			      String filename = base+date.toString()+".jpg";
-		    	  writeImageToDropbox(dbxClient, baos.toByteArray(), "/"+filename);
-		      } catch (Exception ex) {
-	              System.out.println("Error saving to Dropbox: " + ex.getMessage());
-		      }
+		      // Queue the JPG image for upload to Dropbox, the queue releases the buffer
+		      uploads.submit(buf, uploadName(buf.captureTime));
 		      
-		      System.out.println("Save to Dropbox complete");
-		   }	   
+		      System.out.println("Queued for Dropbox, " + uploads);
+		      System.out.println(spool);
+		      // Everything the capture allocates is counted, down to the upload and its log lines
+		      allocations.stop();
+		      if(allocations.isSupported()) {
+		    	  System.out.println("Capture allocated " + allocations.getLast() + " bytes, pool allocations "
+		    			  + pool.getAllocations());
+		      }
+		   } else {
+			   Delay.msDelay(IDLE_DELAY);
+		   }
+	   }
+	   
+	   if(motionDetect) {
+		   System.out.println("Motion detection checked " + detector.getFrames() + " frames, "
+				   + detector.getTriggers() + " had motion");
 	   }
 
 	   try {
@@ -208,39 +289,19 @@ public class ImageCapture extends Thread {
 	   } catch (IOException ex) {
            System.out.println("Error closing video: " + ex.getMessage());		   
 	   }	   
+	   converter.shutdown();
+	   encoder.dispose();
+	   
+	   // Give any waiting uploads a chance to finish
+	   uploads.shutdown(CAPTURE_FREQUENCY);
+	   System.out.println("Final " + uploads);
+	   timings.stopReporting();
+	   System.out.print(timings.report());
+	   try {
+		   spool.close();
+	   } catch (IOException ex) {
+           System.out.println("Error closing upload spool: " + ex.getMessage());		   
+	   }
    }
    
-   /**
-    * Add overlay text with the current UTC date and battery voltage level onto the image
-    * Text colour, font and size can be adjusted below
-    * 
-    * @param old Original image captured from the camera
-    * @return new BufferedImage that contains the original image with text overlay
-    */
-   private BufferedImage addTextOverlay(BufferedImage old) {
-       int w = old.getWidth();
-       int h = old.getHeight();
-       BufferedImage img = new BufferedImage(
-               w, h, BufferedImage.TYPE_INT_RGB);
-       Graphics2D g2d = img.createGraphics();
-       g2d.drawImage(old, 0, 0, null);
-       g2d.setPaint(Color.red);
-       g2d.setFont(new Font("Serif", Font.BOLD, 15));
-       
-       // Get the current system date and time in UTC
-       Date d = new Date(System.currentTimeMillis());
-       String s = "" + d.toString();
-       FontMetrics fm = g2d.getFontMetrics();
-       int x = img.getWidth() - fm.stringWidth(s) - 5;
-       int y = fm.getHeight();
-       g2d.drawString(s, x, y);
-
-       // Get the current battery level in mV
-       s = "B: " + Battery.getVoltageMilliVolt() + " mV";
-       x = img.getWidth() - fm.stringWidth(s) - 5;
-       g2d.drawString(s, x, h - y - 5);
-       
-       g2d.dispose();
-       return img;
-   }
 }
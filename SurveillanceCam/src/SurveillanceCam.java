@@ -11,6 +11,9 @@ import com.dropbox.core.DbxException;
  * overlays the date and time and current battery voltage and then saves that
  * to Dropbox.
  * 
+ * Run with -motion to only save an image when something moves in front of the
+ * camera, plus a heartbeat image every few minutes, rather than every 10 seconds.
+ * 
  * Needs to be on wifi to talk to Dropbox, and have a USB webcam attached to the
  * host port of the EV3
  * 
@@ -32,18 +35,22 @@ public class SurveillanceCam {
 
    public static int _main(String[] args) {
 
-	   // Default to access token file if not on cmd line
-	   String argAuthFile;
-	   if (args.length != 1) {
-		   argAuthFile = AUTHFILENAME;
-	   } else {
-		   argAuthFile = args[0];
+	   // Motion detection only if -motion is given, and
+	   // default to access token file if not on cmd line
+	   String argAuthFile = AUTHFILENAME;
+	   boolean motionDetect = false;
+	   for(String arg : args) {
+		   if(arg.equals("-motion")) {
+			   motionDetect = true;
+		   } else {
+			   argAuthFile = arg;
+		   }
 	   }
 	   
-	   System.out.println(">> SURVEILLANCE STARTING...");
+	   System.out.println(">> SURVEILLANCE STARTING" + (motionDetect ? " IN MOTION MODE..." : "..."));
 	   
 	   try {
-		   imgCapture = new ImageCapture(argAuthFile, IMAGEFILENAME);
+		   imgCapture = new ImageCapture(argAuthFile, IMAGEFILENAME, motionDetect);
 	   } catch (Exception ex) {
 		   System.err.println("Failed to initialise camera and Dropbox: " + ex.getMessage());
 	   }
@@ -0,0 +1,50 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Copies a Mat's pixels into a BufferedImage without any copy in between.
+ *
+ * An OpenCV BGR Mat and a TYPE_3BYTE_BGR BufferedImage hold their pixels the same way,
+ * so Mat.get() can write straight into the array behind the image's DataBufferByte.
+ * Nothing is allocated per frame: the image is reused for as long as the frames stay
+ * the same size, and grey frames go through a BGR Mat that is also reused.
+ *
+ * @author mcrosbie
+ *
+ */
+class MatImage {
+
+	private final Mat bgr = new Mat();
+
+	/**
+	 * Copy a frame into an image
+	 * @param frame CV_8UC3 BGR or CV_8UC1 grey frame
+	 * @param image TYPE_3BYTE_BGR image the same size as the frame
+	 */
+	public void copy(Mat frame, BufferedImage image) {
+		if(image.getType() != BufferedImage.TYPE_3BYTE_BGR
+				|| image.getWidth() != frame.cols() || image.getHeight() != frame.rows()) {
+			throw new IllegalArgumentException("Need a " + frame.cols() + "x" + frame.rows() + " TYPE_3BYTE_BGR image");
+		}
+		Mat src = frame;
+		if(frame.type() == CvType.CV_8UC1) {
+			Imgproc.cvtColor(frame, bgr, Imgproc.COLOR_GRAY2BGR);
+			src = bgr;
+		} else if(frame.type() != CvType.CV_8UC3) {
+			throw new IllegalArgumentException("Can't show Mat type " + frame.type());
+		}
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		src.get(0, 0, pixels);
+	}
+
+	/**
+	 * Free the grey to BGR Mat
+	 */
+	public void release() {
+		bgr.release();
+	}
+}
@@ -0,0 +1,106 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.mastincrosbie.camera.AllocationMonitor;
+import com.mastincrosbie.camera.TripleBuffer;
+
+/**
+ * Benchmark getting a 640x480 camera frame into a BufferedImage: the old
+ * MatToBufferedImage, which allocated a byte[] and a BufferedImage every frame and
+ * copied between them, against MatImage copying straight into a reused image from a
+ * TripleBuffer. Prints time and bytes allocated per frame for each.
+ *
+ * java -cp TestLocalOpenCV.jar MatImageBenchmark [iterations]
+ *
+ * @author mcrosbie
+ *
+ */
+public class MatImageBenchmark {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int WARMUP = 50;
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+		Core.randu(frame, 0, 256);
+		MatImage converter = new MatImage();
+		TripleBuffer images = new TripleBuffer(BufferedImage.TYPE_3BYTE_BGR);
+
+		// Check both produce the same picture before timing anything
+		BufferedImage legacy = legacyConvert(frame);
+		BufferedImage direct = images.back(WIDTH, HEIGHT);
+		converter.copy(frame, direct);
+		if(!Arrays.equals(pixels(legacy), pixels(direct))) {
+			System.err.println("MatImage output differs from the original conversion");
+			System.exit(1);
+		}
+
+		AllocationMonitor alloc = new AllocationMonitor();
+		BufferedImage sink = null;
+		for(int i=0; i < WARMUP; i++) {
+			sink = legacyConvert(frame);
+		}
+		alloc.start();
+		long start = System.nanoTime();
+		for(int i=0; i < iterations; i++) {
+			sink = legacyConvert(frame);
+		}
+		long legacyNanos = System.nanoTime() - start;
+		long legacyBytes = alloc.stop();
+
+		for(int i=0; i < WARMUP; i++) {
+			converter.copy(frame, images.back(WIDTH, HEIGHT));
+			images.publish();
+			sink = images.front();
+		}
+		alloc.start();
+		start = System.nanoTime();
+		for(int i=0; i < iterations; i++) {
+			converter.copy(frame, images.back(WIDTH, HEIGHT));
+			images.publish();
+			sink = images.front();
+		}
+		long directNanos = System.nanoTime() - start;
+		long directBytes = alloc.stop();
+
+		System.out.println(String.format("%dx%d  allocate and copy: %.3f ms/frame, %d bytes/frame   direct: %.3f ms/frame, %d bytes/frame   speedup %.1fx",
+				WIDTH, HEIGHT,
+				legacyNanos / 1000000.0 / iterations, legacyBytes / iterations,
+				directNanos / 1000000.0 / iterations, directBytes / iterations,
+				(double) legacyNanos / directNanos));
+		if(!alloc.isSupported()) {
+			System.out.println("This JVM can't count allocations, the byte counts are 0");
+		}
+		if(sink == null) {
+			System.out.println("No image");
+		}
+		converter.release();
+		frame.release();
+	}
+
+	/**
+	 * The original My_Panel.MatToBufferedImage
+	 */
+	private static BufferedImage legacyConvert(Mat matBGR) {
+		int width = matBGR.width(), height = matBGR.height(), channels = matBGR.channels();
+		byte[] sourcePixels = new byte[width * height * channels];
+		matBGR.get(0, 0, sourcePixels);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(sourcePixels, 0, targetPixels, 0, sourcePixels.length);
+		return image;
+	}
+
+	private static byte[] pixels(BufferedImage image) {
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+}
@@ -5,20 +5,23 @@
  */  
 import java.awt.*;  
 import java.awt.image.BufferedImage;  
-import java.awt.image.DataBufferByte;  
 import javax.swing.*;  
 import org.opencv.core.Core;  
 import org.opencv.core.Mat;  
-import org.opencv.core.MatOfRect;  
 import org.opencv.core.Point;  
 import org.opencv.core.Rect;  
 import org.opencv.core.Scalar;  
 import org.opencv.core.Size;  
 import org.opencv.imgproc.Imgproc;  
 import org.opencv.objdetect.CascadeClassifier;  
+
+import com.mastincrosbie.camera.TripleBuffer;
+import com.mastincrosbie.face.FaceDetectionContext;
 class My_Panel extends JPanel{  
     private static final long serialVersionUID = 1L;  
-    private BufferedImage image;  
+    // The capture loop fills the back image while Swing paints the front one
+    private final TripleBuffer images = new TripleBuffer(BufferedImage.TYPE_3BYTE_BGR);  
+    private final MatImage converter = new MatImage();  
     // Create a constructor method  
 
 
@@ -27,34 +30,36 @@ class My_Panel extends JPanel{
     }  
     /**  
      * Converts/writes a Mat into a BufferedImage.  
+     * The pixels go straight into the back image, which is reused while the frame
+     * size stays the same, and it then becomes the image painted.
      *   
-     * @param matrix Mat of type CV_8UC3 or CV_8UC1  
-     * @return BufferedImage of type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY  
+     * @param matBGR Mat of type CV_8UC3 or CV_8UC1  
+     * @return true
      */  
     public boolean MatToBufferedImage(Mat matBGR){  
         long startTime = System.nanoTime();  
-        int width = matBGR.width(), height = matBGR.height(), channels = matBGR.channels() ;  
-        byte[] sourcePixels = new byte[width * height * channels];  
-        matBGR.get(0, 0, sourcePixels);  
-        // create new image and get reference to backing data  
-        image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);  
-        final byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();  
-        System.arraycopy(sourcePixels, 0, targetPixels, 0, sourcePixels.length);  
+        BufferedImage image = images.back(matBGR.width(), matBGR.height());  
+        converter.copy(matBGR, image);  
+        images.publish();  
         long endTime = System.nanoTime();  
         System.out.println(String.format("Elapsed: %.2f ms", (float)(endTime - startTime)/1000000));  
         return true;  
     }  
     public void paintComponent(Graphics g){  
         super.paintComponent(g);   
-        if (this.image==null) return;  
-        g.drawImage(this.image,10,10,2*this.image.getWidth(),2*this.image.getHeight(), null);  
+        BufferedImage image = images.front();  
+        if (image==null) return;  
+        g.drawImage(image,10,10,2*image.getWidth(),2*image.getHeight(), null);  
         //g.drawString("This is my custom Panel!",10,20);  
     }  
 }  
 
 
 class processor {  
+    private static final Scalar FACE_COLOUR = new Scalar( 255, 0, 255 );  
     private CascadeClassifier face_cascade;  
+    // Grey Mats and face buffers reused for every frame
+    private FaceDetectionContext detection;  
     // Create a constructor method  
     public processor(){  
         face_cascade=new CascadeClassifier(getClass().getResource("/haarcascade_frontalface_alt.xml").getPath());
@@ -67,26 +72,20 @@ class processor {
         {  
             System.out.println("Facesifier loooaaaaaded up");  
         }  
+        detection = new FaceDetectionContext(face_cascade);  
     }  
     
     public Mat detect(Mat inputframe){    
-        long startTime = System.nanoTime();  
-        Mat mRgba=new Mat();  
-        Mat mGrey=new Mat();  
-        MatOfRect faces = new MatOfRect();  
-        inputframe.copyTo(mRgba);  
-        inputframe.copyTo(mGrey);  
-        Imgproc.cvtColor( mRgba, mGrey, Imgproc.COLOR_BGR2GRAY);  
-        Imgproc.equalizeHist( mGrey, mGrey );  
-        face_cascade.detectMultiScale(mGrey, faces);  
-        long endTime = System.nanoTime();  
-        System.out.println(String.format("Detect: %.2f ms", (float)(endTime - startTime)/1000000));  
-        System.out.println(String.format("Detected %d faces", faces.toArray().length));  
-        for(Rect rect:faces.toArray())  
+        int numFaces = detection.detect(inputframe);  
+        System.out.println(String.format("Detect: %.2f ms", (float)detection.getDetectNanos()/1000000));  
+        System.out.println(String.format("Detected %d faces", numFaces));  
+        // Draw straight onto the frame, there's no need for a copy
+        for(int i = 0; i < numFaces; i++)  
         {  
+            Rect rect = detection.getFace(i);  
             Point center= new Point(rect.x + rect.width*0.5, rect.y + rect.height*0.5 );  
-            Imgproc.ellipse( mRgba, center, new Size( rect.width*0.5, rect.height*0.5), 0, 0, 360, new Scalar( 255, 0, 255 ), 4, 8, 0 );  
+            Imgproc.ellipse( inputframe, center, new Size( rect.width*0.5, rect.height*0.5), 0, 0, 360, FACE_COLOUR, 4, 8, 0 );  
         }  
-        return mRgba;  
+        return inputframe;  
     }  
 }
\ No newline at end of file
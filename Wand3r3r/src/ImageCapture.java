@@ -1,17 +1,11 @@
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-import javax.imageio.ImageIO;
-
 import lejos.hardware.Battery;
 import lejos.hardware.BrickFinder;
 import lejos.hardware.Sound;
@@ -21,11 +15,19 @@ import lejos.utility.Delay;
 
 import com.dropbox.core.DbxAuthInfo;
 import com.dropbox.core.DbxClient;
-import com.dropbox.core.DbxEntry;
-import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
-import com.dropbox.core.DbxWriteMode;
 import com.dropbox.core.json.JsonReader;
+import com.mastincrosbie.camera.AllocationMonitor;
+import com.mastincrosbie.camera.CaptureBuffer;
+import com.mastincrosbie.camera.CaptureOverlay;
+import com.mastincrosbie.camera.CapturePool;
+import com.mastincrosbie.camera.DropboxUploader;
+import com.mastincrosbie.camera.JpegEncoder;
+import com.mastincrosbie.camera.LatencyHistogram;
+import com.mastincrosbie.camera.ParallelYUYVConverter;
+import com.mastincrosbie.camera.StageTimings;
+import com.mastincrosbie.camera.UploadQueue;
+import com.mastincrosbie.camera.UploadSpool;
 
 /**
  * ImageCapture thread
@@ -42,27 +44,44 @@ public class ImageCapture extends Thread {
 	private int NUM_PIXELS = WIDTH * HEIGHT;
 	private int FRAME_SIZE = NUM_PIXELS * 2;
 	private final int CAPTURE_FREQUENCY = 10000;
+	private final int UPLOAD_QUEUE_SIZE = 4;
+	// Every queued upload holds a buffer, plus the one being captured and a spare
+	private final int POOL_SIZE = UPLOAD_QUEUE_SIZE + 2;
+	// Pictures that can't be uploaded are kept on disk until we're back in wifi range
+	private final String SPOOL_DIR = "spool";
+	private final long SPOOL_MAX_BYTES = 32 * 1024 * 1024;
+	private final long SPOOL_RETRY = 5000;			// milliseconds
+	private final long SPOOL_MAX_RETRY = 60000;		// milliseconds
+	// Per-stage timings, p50/p95/p99 over the last TIMING_WINDOW
+	private final long TIMING_WINDOW = 10 * 60000;		// milliseconds
+	private final long TIMING_REPORT_PERIOD = 60000;	// milliseconds
+	private final String TIMING_CSV = "timings.csv";
 	
 	private DbxClient dbxClient;
 	private Video video;
+	private ParallelYUYVConverter converter;
+	private UploadSpool spool;
+	private StageTimings timings = new StageTimings(TIMING_WINDOW, 10);
 	
 	private boolean running = true;
 	private String base;
 	
-    // Timing buffers
-	private long t1[], t2[], t3[], t4[];
-	private final int SAMPLES = 10;
-	private int iter;
+	// The upload name is built in the same buffers every capture, in the format of Date.toString()
+	private final SimpleDateFormat nameFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+	private final Date nameDate = new Date();
+	private final StringBuffer name = new StringBuffer();
+	private final FieldPosition namePosition = new FieldPosition(0);
 	
 	public ImageCapture(String argAuthFile, String imageBaseFilename) throws IOException {
 
 		initialiseDropbox(argAuthFile);
 		openVideoCamera();
+		// Splits the frame into stripes on a multi-core host, single threaded on the brick
+		converter = new ParallelYUYVConverter(WIDTH, HEIGHT);
+		// Anything left in the spool from last time is uploaded once run() starts
+		spool = new UploadSpool(new File(SPOOL_DIR), SPOOL_MAX_BYTES);
+		System.out.println("Upload spool has " + spool.size() + " images waiting");
 		base = imageBaseFilename;		
-		t1 = new long[SAMPLES];
-		t2 = new long[SAMPLES];
-		t3 = new long[SAMPLES];
-		t4 = new long[SAMPLES];
 	}
 		
 	public void stopRunning() {
@@ -117,38 +136,50 @@ public class ImageCapture extends Thread {
 	   }
    }
    
-   private void writeImageToDropbox(DbxClient dbxClient, byte[] img, String dbFilename) 
-		   throws DbxException, IOException {
-       // Make the API call to upload the file.
-       DbxEntry.File metadata;
-       try {
-    	   metadata = dbxClient.uploadFile(dbFilename, DbxWriteMode.add(), img.length, 
-    			   new ByteArrayInputStream(img));
-       } catch (DbxException ex) {
-               System.out.println("Error uploading to Dropbox: " + ex.getMessage());
-       }
-   }
-    
-   private int convertYUVtoARGB(int y, int u, int v) {
-       int c = y - 16;
-       int d = u - 128;
-       int e = v - 128;
-       int r = (298*c+409*e+128)/256;
-       int g = (298*c-100*d-208*e+128)/256;
-       int b = (298*c+516*d+128)/256;
-       r = r>255? 255 : r<0 ? 0 : r;
-       g = g>255? 255 : g<0 ? 0 : g;
-       b = b>255? 255 : b<0 ? 0 : b;
-       return 0xff000000 | (r<<16) | (g<<8) | b;
+   /**
+    * Build the upload name for a capture, "/" + base + the capture time as Date.toString()
+    * gives it + ".jpg", without a Date or concatenation per capture
+    * 
+    * @param captureTime - System.currentTimeMillis() of the capture
+    * @return the path to upload to
+    */
+   private String uploadName(long captureTime) {
+	   nameDate.setTime(captureTime);
+	   name.setLength(0);
+	   name.append('/').append(base);
+	   nameFormat.format(nameDate, name, namePosition);
+	   name.append(".jpg");
+	   return name.toString();
    }
    
    public void run() {
 	   
-	   int i=0;
+	   // Frames, images and JPEG buffers all come from the pool, and the overlay
+	   // and encoder are reused, so a capture doesn't churn the heap
+	   CapturePool pool = new CapturePool(WIDTH, HEIGHT, POOL_SIZE);
+	   CaptureOverlay overlay = new CaptureOverlay();
+	   JpegEncoder encoder = new JpegEncoder();
+	   AllocationMonitor allocations = new AllocationMonitor();
+	   
+	   // Uploads happen on their own thread so a slow Dropbox doesn't delay the next capture.
+	   // If uploads back up, the oldest waiting pictures go to the spool in favour of new ones,
+	   // and the spool drains in the background whenever Dropbox can be reached.
+	   UploadQueue uploads = new UploadQueue(new DropboxUploader(dbxClient), pool,
+			   UPLOAD_QUEUE_SIZE, UploadQueue.BackPressure.DROP_OLDEST);
+	   uploads.setSpool(spool);
+	   spool.startDrain(new DropboxUploader(dbxClient), SPOOL_RETRY, SPOOL_MAX_RETRY);
 	   
-	   // Create the frame buffer to hold the image in
-	   byte[] frame = video.createFrame();
-	   BufferedImage img = new BufferedImage(WIDTH, HEIGHT,BufferedImage.TYPE_INT_RGB);
+	   // Time every stage of every capture, the upload is timed on the queue's thread
+	   LatencyHistogram grabTime = timings.stage("grab");
+	   LatencyHistogram yuvTime = timings.stage("yuv");
+	   LatencyHistogram overlayTime = timings.stage("overlay");
+	   LatencyHistogram jpegTime = timings.stage("jpeg");
+	   uploads.setUploadTiming(timings.stage("upload"));
+	   try {
+		   timings.startReporting(TIMING_REPORT_PERIOD, System.out, new File(TIMING_CSV));
+	   } catch (IOException ex) {
+           System.out.println("Error opening " + TIMING_CSV + ": " + ex.getMessage());		   
+	   }
 	   
 	   long lastCapture = 0;
 	 
@@ -161,52 +192,55 @@ public class ImageCapture extends Thread {
 			   lastCapture = t;
 			   
 			   System.out.println("Starting capture...");
+			   allocations.start();
+			   CaptureBuffer buf = pool.acquire();
+			   buf.captureTime = t;
+			   long stageStart = System.nanoTime();
 			   
 			   // Grab a video frame
 			   try {
-				   video.grabFrame(frame);
+				   video.grabFrame(buf.frame);
 			   } catch (IOException ex) {
 	               System.out.println("Error grabbing video: " + ex.getMessage());
 			   }
+			   stageStart = grabTime.recordSince(stageStart);
 			   			   
 			   // Convert the YUV format from the camera into RGB format
 			   // leJOS libraries only return YUV format from cameras.
 			   try {
-				   for(i=0;i<FRAME_SIZE;i+=4) {
-		        	   int y1 = frame[i] & 0xFF;
-		        	   int y2 = frame[i+2] & 0xFF;
-		        	   int u = frame[i+1] & 0xFF;
-		        	   int v = frame[i+3] & 0xFF;
-		        	   int rgb1 = convertYUVtoARGB(y1,u,v);
-		        	   int rgb2 = convertYUVtoARGB(y2,u,v);
-		        	   img.setRGB((i % (WIDTH * 2)) / 2, i / (WIDTH * 2), rgb1);
-		        	   img.setRGB((i % (WIDTH * 2)) / 2 + 1, i / (WIDTH * 2), rgb2);
-				   }
+				   converter.convert(buf.frame, buf.image);
 			   } catch (Exception ex) {
-				   System.err.println("Error converting frame: i="+ i);
+				   // The conversion failed or was interrupted, don't upload the image
+				   System.err.println("Error converting frame");
 				   System.err.println(ex.getMessage());
+				   allocations.stop();
+				   pool.release(buf);
+				   continue;
 			   }
+			   stageStart = yuvTime.recordSince(stageStart);
 			   
-			   img = addTextOverlay(img);
+			   overlay.draw(buf, buf.captureTime, Battery.getVoltageMilliVolt());
+			   stageStart = overlayTime.recordSince(stageStart);
 	
 		      // Convert the RGB image into a jpg format
-		      ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		      try {
-			      ImageIO.write(img, "jpg", baos);	    	  
+		    	  encoder.encode(buf.image, buf.jpeg);
 		      } catch (IOException ex) {
 	              System.out.println("Error converting to jpg: " + ex.getMessage());  
 		      }
+		      jpegTime.recordSince(stageStart);
 		      
-		      // Save the JPG image to Dropbox
-		      try {
-			      Date date = new Date();
-			      String filename = base+date.toString()+".jpg";
-		    	  writeImageToDropbox(dbxClient, baos.toByteArray(), "/"+filename);
-		      } catch (Exception ex) {
-	              System.out.println("Error saving to Dropbox: " + ex.getMessage());
-		      }
+		      // Queue the JPG image for upload to Dropbox, the queue releases the buffer
+		      uploads.submit(buf, uploadName(buf.captureTime));
 		      
-		      System.out.println("Save to Dropbox complete");
+		      System.out.println("Queued for Dropbox, " + uploads);
+		      System.out.println(spool);
+		      // Everything the capture allocates is counted, down to the upload and its log lines
+		      allocations.stop();
+		      if(allocations.isSupported()) {
+		    	  System.out.println("Capture allocated " + allocations.getLast() + " bytes, pool allocations "
+		    			  + pool.getAllocations());
+		      }
 		   }	   
 	   }
 
@@ -215,57 +249,19 @@ public class ImageCapture extends Thread {
 	   } catch (IOException ex) {
            System.out.println("Error closing video: " + ex.getMessage());		   
 	   }	   
-   }
-   
-   private BufferedImage addTextOverlay(BufferedImage old) {
-       int w = old.getWidth();
-       int h = old.getHeight();
-       BufferedImage img = new BufferedImage(
-               w, h, BufferedImage.TYPE_INT_RGB);
-       Graphics2D g2d = img.createGraphics();
-       g2d.drawImage(old, 0, 0, null);
-       g2d.setPaint(Color.red);
-       g2d.setFont(new Font("Serif", Font.BOLD, 15));
-       Date d = new Date(System.currentTimeMillis());
-       String s = "" + d.toString();
-       FontMetrics fm = g2d.getFontMetrics();
-       int x = img.getWidth() - fm.stringWidth(s) - 5;
-       int y = fm.getHeight();
-       g2d.drawString(s, x, y);
-
-       s = "B: " + Battery.getVoltageMilliVolt() + " mV";
-       x = img.getWidth() - fm.stringWidth(s) - 5;
-       g2d.drawString(s, x, h - y - 5);
-       
-       g2d.dispose();
-       return img;
-   }
-
-   
-   private void printTiming() {
-	   long total=0;
-	   int i;
-	   for(i=0; i < SAMPLES; i++) {
-		   total += t1[i];
-	   }
-	   System.out.println(">> Average video frame grab time:\t" + total/SAMPLES + " ms");
-
-	   total=0;
-	   for(i=0; i < SAMPLES; i++) {
-		   total += t2[i];
-	   }
-	   System.out.println(">> Average YUV to RGB time:\t" + total/SAMPLES + " ms");
-
-	   total=0;
-	   for(i=0; i < SAMPLES; i++) {
-		   total += t3[i];
-	   }
-	   System.out.println(">> Average RGB to JPG time:\t" + total/SAMPLES + " ms");
-
-	   total=0;
-	   for(i=0; i < SAMPLES; i++) {
-		   total += t4[i];
+	   converter.shutdown();
+	   encoder.dispose();
+	   
+	   // Give any waiting uploads a chance to finish
+	   uploads.shutdown(CAPTURE_FREQUENCY);
+	   System.out.println("Final " + uploads);
+	   timings.stopReporting();
+	   System.out.print(timings.report());
+	   try {
+		   spool.close();
+	   } catch (IOException ex) {
+           System.out.println("Error closing upload spool: " + ex.getMessage());		   
 	   }
-	   System.out.println(">> Average time to save to Dropbox:\t" + total/SAMPLES + " ms");
    }
+   
 }